@@ -0,0 +1,107 @@
+package com.mobilesw.homey;
+
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class LogDatabaseTest {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final long NOW = 1577836800000L + 365 * DAY;
+    private static final LogEvent.Device[] DEVICES = {
+            LogEvent.Device.LIGHTS, LogEvent.Device.LIGHTS, LogEvent.Device.FAN, LogEvent.Device.FAN,
+    };
+    private static final LogEvent.Action[] ACTIONS = {
+            LogEvent.Action.ON, LogEvent.Action.OFF, LogEvent.Action.ON, LogEvent.Action.OFF,
+    };
+
+    private LogDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new LogDatabase(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void keepsHighWaterMarkPerUser() {
+        assertEquals(0, mDatabase.getHighWaterMark("user"));
+        Map<String, UserLog> logs = new LinkedHashMap<>();
+        logs.put("a", log("user", 0, 20));
+        logs.put("b", log("user", 1, 30));
+        logs.put("c", log("other", 1, 40));
+        mDatabase.putAll(logs);
+        assertEquals(30, mDatabase.getHighWaterMark("user"));
+
+        logs.clear();
+        logs.put("b", log("user", 1, 30)); // synced again
+        mDatabase.putAll(logs);
+        assertEquals(2, mDatabase.countEvents("user", LogEvent.Device.LIGHTS, null, 0));
+    }
+
+    @Test
+    public void deletesLogsBeforeATime() {
+        Map<String, UserLog> logs = new LinkedHashMap<>();
+        logs.put("a", log("user", 0, 20));
+        logs.put("b", log("user", 1, 30));
+        logs.put("c", log("other", 1, 20));
+        mDatabase.putAll(logs);
+        assertEquals(1, mDatabase.deleteBefore("user", 30)); // compacted upstream
+        assertEquals(30, mDatabase.getHighWaterMark("user"));
+        assertEquals(1, mDatabase.countEvents("user", LogEvent.Device.LIGHTS, null, 0));
+        assertEquals(1, mDatabase.countEvents("other", LogEvent.Device.LIGHTS, null, 0));
+    }
+
+    @Test
+    public void queriesEventsOf100kLogsInUnder5Milliseconds() {
+        // a log every 5 minutes for a year
+        Map<String, UserLog> logs = new LinkedHashMap<>();
+        int count = 0;
+        for (long time = NOW - 365 * DAY; count < 105120; time += 5 * 60 * 1000) {
+            logs.put("log" + count, log("user", count % DEVICES.length, time));
+            count++;
+            if (logs.size() == 5000) {
+                mDatabase.putAll(logs);
+                logs.clear();
+            }
+        }
+        mDatabase.putAll(logs);
+
+        long since = NOW - 7 * DAY;
+        mDatabase.countEvents("user", LogEvent.Device.FAN, null, since); // warm up
+        long started = System.nanoTime();
+        long events = mDatabase.countEvents("user", LogEvent.Device.FAN, null, since);
+        long countMicros = (System.nanoTime() - started) / 1000;
+
+        started = System.nanoTime();
+        Cursor cursor = mDatabase.queryEvents("user", LogEvent.Device.FAN, LogEvent.Action.ON, since, 50);
+        int rows = cursor.getCount(); // runs the query
+        cursor.close();
+        long queryMicros = (System.nanoTime() - started) / 1000;
+
+        assertEquals(7 * 288 / 2, events);
+        assertEquals(50, rows);
+        assertTrue("count took " + countMicros + " us", countMicros < 5000);
+        assertTrue("query took " + queryMicros + " us", queryMicros < 5000);
+    }
+
+    private static UserLog log(String userID, int event, long time) {
+        return new UserLog(userID, time, DEVICES[event], ACTIONS[event], LogEvent.Source.AUTO);
+    }
+}
@@ -0,0 +1,184 @@
+package com.mobilesw.homey;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Instrumentation;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewTreeObserver;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Startup times of the app, reported as instrumentation status and in the
+ * log (tag StartupBenchmark):
+ * - time to the first frame of MainActivity, and until it is ready, i.e. the
+ *   splash is gone;
+ * - time until the device control of BluetoothFunctions is usable.
+ *
+ * The tests run in the process of the app, so only the first launch after
+ * installing is a cold start; the numbers of that run are reported apart.
+ * Cold starts are measured with "adb shell am start -S -W", where
+ * BluetoothFunctions reports being fully drawn once its switches work.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final String TAG = StartupBenchmark.class.getSimpleName();
+    private static final int RUNS = 10;
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    private Instrumentation mInstrumentation;
+    private Application mApplication;
+    private final AtomicReference<Activity> mResumed = new AtomicReference<>();
+    private volatile CountDownLatch mFirstFrame = new CountDownLatch(1);
+    private volatile long mFirstFrameTime;
+
+    private final Application.ActivityLifecycleCallbacks mCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityResumed(Activity activity) {
+            mResumed.set(activity);
+            final ViewTreeObserver observer = activity.getWindow().getDecorView().getViewTreeObserver();
+            observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    observer.removeOnPreDrawListener(this);
+                    mFirstFrameTime = SystemClock.elapsedRealtime();
+                    mFirstFrame.countDown();
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mApplication = (Application) mInstrumentation.getTargetContext().getApplicationContext();
+        mApplication.registerActivityLifecycleCallbacks(mCallbacks);
+    }
+
+    @After
+    public void tearDown() {
+        mApplication.unregisterActivityLifecycleCallbacks(mCallbacks);
+    }
+
+    @Test
+    public void mainActivity() throws InterruptedException {
+        long[] firstFrame = new long[RUNS];
+        long[] ready = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            mFirstFrame = new CountDownLatch(1);
+            long start = SystemClock.elapsedRealtime();
+            Activity activity = launch(MainActivity.class);
+            assertTrue(mFirstFrame.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            firstFrame[run] = mFirstFrameTime - start;
+            while (!FirebaseLoader.isReady() || !(mResumed.get() instanceof MainActivity)) { // splash gone
+                assertTrue(SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+                SystemClock.sleep(5);
+            }
+            ready[run] = SystemClock.elapsedRealtime() - start;
+            activity.finish();
+            mInstrumentation.waitForIdleSync();
+        }
+        report("main_first_frame", firstFrame);
+        report("main_ready", ready);
+    }
+
+    @Test
+    public void deviceControl() throws InterruptedException {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        assumeTrue("Bluetooth needs to be on", adapter != null && adapter.isEnabled());
+        long[] firstFrame = new long[RUNS];
+        long[] usable = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            mFirstFrame = new CountDownLatch(1);
+            long start = SystemClock.elapsedRealtime();
+            final BluetoothFunctions activity = (BluetoothFunctions) launch(BluetoothFunctions.class);
+            assertTrue(mFirstFrame.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            firstFrame[run] = mFirstFrameTime - start;
+            final boolean[] ready = new boolean[1];
+            while (!ready[0]) {
+                assertTrue(SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS);
+                mInstrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        ready[0] = activity.isDeviceControlReady();
+                    }
+                });
+                if (!ready[0]) {
+                    SystemClock.sleep(5);
+                }
+            }
+            usable[run] = SystemClock.elapsedRealtime() - start;
+            activity.finish();
+            mInstrumentation.waitForIdleSync();
+        }
+        Context context = mInstrumentation.getTargetContext();
+        context.stopService(new Intent(context, DeviceService.class));
+        report("device_control_first_frame", firstFrame);
+        report("device_control_usable", usable);
+    }
+
+    private Activity launch(Class<? extends Activity> activity) {
+        Intent intent = new Intent(mInstrumentation.getTargetContext(), activity)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        return mInstrumentation.startActivitySync(intent);
+    }
+
+    /**
+     * Reports the first run, which may be a cold start, then the median and the maximum of the others.
+     */
+    private void report(String name, long[] millis) {
+        long[] warm = Arrays.copyOfRange(millis, 1, millis.length);
+        Arrays.sort(warm);
+        Bundle status = new Bundle();
+        status.putLong(name + "_first_ms", millis[0]);
+        status.putLong(name + "_median_ms", warm[warm.length / 2]);
+        status.putLong(name + "_max_ms", warm[warm.length - 1]);
+        Log.i(TAG, name + ": " + status);
+        mInstrumentation.sendStatus(0, status);
+    }
+}
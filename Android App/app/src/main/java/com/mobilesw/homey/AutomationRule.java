@@ -0,0 +1,333 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A rule of the user switching a device when all its conditions hold, e.g.
+ * "fan when hot: temperature >= 25 and time 08:00-22:00 -> HC-06 fan on".
+ * The conditions are on the sensors of the device switched, or of another
+ * one named after them, e.g. "cool the bedroom: temperature >= 25 in
+ * kitchen -> bedroom fan on".
+ *
+ * Rules are written one per line, see {@link #parse(String)}, and run by a
+ * {@link RulesEngine}.
+ */
+public final class AutomationRule {
+
+    public enum Sensor {
+        TEMPERATURE, // degrees Celsius
+        HUMIDITY, // %
+        MOTION, // 1 while the Arduino reports motion, 0 otherwise
+        TIME_OF_DAY, // minutes since midnight
+        TEMPERATURE_TREND, // degrees Celsius per hour over the last hour
+        HUMIDITY_TREND, // % per hour
+        SENSOR_FAULT // 1 while the readings look wrong, see TelemetryStats, 0 otherwise
+    }
+
+    public enum Action {
+        LIGHTS_ON("lights on", "2"),
+        LIGHTS_OFF("lights off", "1"),
+        FAN_ON("fan on", "4"),
+        FAN_OFF("fan off", "3");
+
+        private final String mText;
+        private final String mCommand;
+
+        Action(String text, String command) {
+            mText = text;
+            mCommand = command;
+        }
+
+        /**
+         * The command sent to the Arduino.
+         */
+        public String getCommand() {
+            return mCommand;
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+
+    /**
+     * The value of a sensor is between min and max, both included. If min is
+     * greater than max the range wraps around, e.g. the time from 22:00 to 06:00.
+     */
+    public static final class Condition {
+
+        private final Sensor mSensor;
+        private final int mMin;
+        private final int mMax;
+
+        public Condition(Sensor sensor, int min, int max) {
+            mSensor = sensor;
+            mMin = min;
+            mMax = max;
+        }
+
+        public static Condition atLeast(Sensor sensor, int min) {
+            return new Condition(sensor, min, Integer.MAX_VALUE);
+        }
+
+        public static Condition atMost(Sensor sensor, int max) {
+            return new Condition(sensor, Integer.MIN_VALUE, max);
+        }
+
+        public Sensor getSensor() {
+            return mSensor;
+        }
+
+        public int getMin() {
+            return mMin;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        public boolean matches(int value) {
+            return matches(mMin, mMax, value);
+        }
+
+        static boolean matches(int min, int max, int value) {
+            return min <= max ? value >= min && value <= max : value >= min || value <= max;
+        }
+
+        @Override
+        public String toString() {
+            switch (mSensor) {
+                case MOTION:
+                    return mMin > 0 ? "motion" : "no motion";
+                case SENSOR_FAULT:
+                    return mMin > 0 ? "sensor fault" : "no sensor fault";
+                case TIME_OF_DAY:
+                    return "time " + formatTime(mMin) + "-" + formatTime(mMax);
+                default:
+                    String name = mSensor.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+                    if (mMax == Integer.MAX_VALUE) {
+                        return name + " >= " + mMin;
+                    } else if (mMin == Integer.MIN_VALUE) {
+                        return name + " <= " + mMax;
+                    }
+                    return name + " >= " + mMin + " and " + name + " <= " + mMax;
+            }
+        }
+    }
+
+    private static final String ACTION_SEPARATOR = "->";
+    private static final String AND = " and ";
+    private static final String IN = " in ";
+
+    private final String mName;
+    private final List<Condition> mConditions;
+    private final String mSensorDeviceId;
+    private final String mDeviceId;
+    private final Action mAction;
+
+    /**
+     * @param conditions at least one, on the sensors of the device switched
+     * @param deviceId   see {@link DeviceRegistry}
+     */
+    public AutomationRule(String name, List<Condition> conditions, String deviceId, Action action) {
+        this(name, conditions, deviceId, deviceId, action);
+    }
+
+    /**
+     * @param conditions     at least one
+     * @param sensorDeviceId the device whose sensors the conditions are on
+     * @param deviceId       the device switched, see {@link DeviceRegistry}
+     */
+    public AutomationRule(String name, List<Condition> conditions, String sensorDeviceId, String deviceId,
+                          Action action) {
+        if (conditions.isEmpty()) {
+            throw new IllegalArgumentException("A rule needs a condition");
+        }
+        mName = name;
+        mConditions = Collections.unmodifiableList(new ArrayList<>(conditions));
+        mSensorDeviceId = sensorDeviceId;
+        mDeviceId = deviceId;
+        mAction = action;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public List<Condition> getConditions() {
+        return mConditions;
+    }
+
+    /**
+     * The device whose sensors the conditions are on.
+     */
+    public String getSensorDeviceId() {
+        return mSensorDeviceId;
+    }
+
+    /**
+     * The device switched.
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public Action getAction() {
+        return mAction;
+    }
+
+    /**
+     * Reads a rule written as
+     * "name: condition and condition ... [in device] -> device action", where
+     * a condition is "temperature >= 25", "humidity <= 40", "temperature
+     * trend >= 2" (ºC per hour over the last hour), "humidity trend <= -5",
+     * "motion", "no motion", "sensor fault", "no sensor fault" or "time
+     * 22:00-06:00", and the action "lights on", "lights off", "fan on" or
+     * "fan off". Without "in device" the conditions are on the sensors of the
+     * device switched.
+     *
+     * @throws IllegalArgumentException if malformed
+     */
+    public static AutomationRule parse(String line) {
+        int colon = line.indexOf(':');
+        int arrow = line.lastIndexOf(ACTION_SEPARATOR);
+        if (colon <= 0 || arrow < colon) {
+            throw new IllegalArgumentException("Expected \"name: conditions -> device action\": " + line);
+        }
+        String conditionsText = line.substring(colon + 1, arrow);
+        String sensorDeviceId = null;
+        int in = conditionsText.indexOf(IN); // the first: conditions never have it, device IDs may
+        if (in >= 0) {
+            sensorDeviceId = conditionsText.substring(in + IN.length()).trim();
+            conditionsText = conditionsText.substring(0, in);
+            if (sensorDeviceId.isEmpty()) {
+                throw new IllegalArgumentException("Expected a device after \"in\": " + line);
+            }
+        }
+        List<Condition> conditions = new ArrayList<>();
+        for (String condition : conditionsText.split(AND)) {
+            conditions.add(parseCondition(condition.trim()));
+        }
+        String target = line.substring(arrow + ACTION_SEPARATOR.length()).trim();
+        for (Action action : Action.values()) {
+            if (target.endsWith(" " + action)) {
+                String deviceId = target.substring(0, target.length() - action.toString().length()).trim();
+                return new AutomationRule(line.substring(0, colon).trim(), conditions,
+                        sensorDeviceId != null ? sensorDeviceId : deviceId, deviceId, action);
+            }
+        }
+        throw new IllegalArgumentException("Unknown action: " + target);
+    }
+
+    /**
+     * Reads a rule per line, skipping blank lines.
+     *
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    public static List<AutomationRule> parseAll(String text) {
+        List<AutomationRule> rules = new ArrayList<>();
+        if (text == null) {
+            return rules;
+        }
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                rules.add(parse(line.trim()));
+            }
+        }
+        return rules;
+    }
+
+    private static Condition parseCondition(String text) {
+        if (text.equals("motion")) {
+            return new Condition(Sensor.MOTION, 1, 1);
+        } else if (text.equals("no motion")) {
+            return new Condition(Sensor.MOTION, 0, 0);
+        } else if (text.equals("sensor fault")) {
+            return new Condition(Sensor.SENSOR_FAULT, 1, 1);
+        } else if (text.equals("no sensor fault")) {
+            return new Condition(Sensor.SENSOR_FAULT, 0, 0);
+        } else if (text.startsWith("time ")) {
+            String[] range = text.substring("time ".length()).trim().split("-");
+            if (range.length != 2) {
+                throw new IllegalArgumentException("Expected \"time HH:MM-HH:MM\": " + text);
+            }
+            return new Condition(Sensor.TIME_OF_DAY, parseTime(range[0].trim()), parseTime(range[1].trim()));
+        }
+        String[] fields = text.split("\\s+");
+        if (fields.length != 3 && (fields.length != 4 || !fields[1].equals("trend"))) {
+            throw new IllegalArgumentException("Unknown condition: " + text);
+        }
+        boolean trend = fields.length == 4;
+        Sensor sensor;
+        if (fields[0].equals("temperature")) {
+            sensor = trend ? Sensor.TEMPERATURE_TREND : Sensor.TEMPERATURE;
+        } else if (fields[0].equals("humidity")) {
+            sensor = trend ? Sensor.HUMIDITY_TREND : Sensor.HUMIDITY;
+        } else {
+            throw new IllegalArgumentException("Unknown sensor: " + fields[0]);
+        }
+        int value = parseInt(fields[fields.length - 1]);
+        switch (fields[fields.length - 2]) {
+            case ">=":
+                return Condition.atLeast(sensor, value);
+            case "<=":
+                return Condition.atMost(sensor, value);
+            case ">":
+                return Condition.atLeast(sensor, value + 1);
+            case "<":
+                return Condition.atMost(sensor, value - 1);
+            default:
+                throw new IllegalArgumentException("Unknown comparison: " + fields[fields.length - 2]);
+        }
+    }
+
+    private static int parseTime(String text) {
+        String[] fields = text.split(":");
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("Expected HH:MM: " + text);
+        }
+        int hours = parseInt(fields[0]);
+        int minutes = parseInt(fields[1]);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+            throw new IllegalArgumentException("Invalid time: " + text);
+        }
+        return hours * 60 + minutes;
+    }
+
+    private static int parseInt(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number: " + text);
+        }
+    }
+
+    private static String formatTime(int minuteOfDay) {
+        int hours = minuteOfDay / 60;
+        int minutes = minuteOfDay % 60;
+        return (hours < 10 ? "0" : "") + hours + (minutes < 10 ? ":0" : ":") + minutes;
+    }
+
+    /**
+     * The rule as written for {@link #parse(String)}.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(mName).append(": ");
+        for (int i = 0; i < mConditions.size(); i++) {
+            if (i > 0) {
+                text.append(AND);
+            }
+            text.append(mConditions.get(i));
+        }
+        if (!mSensorDeviceId.equals(mDeviceId)) {
+            text.append(IN).append(mSensorDeviceId);
+        }
+        return text.append(' ').append(ACTION_SEPARATOR).append(' ')
+                .append(mDeviceId).append(' ').append(mAction).toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.mobilesw.homey;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over a Bluetooth RFCOMM socket, e.g. to the HC-06 module.
+ * It can be connected again after {@link #close()}: the {@link BluetoothDevice}
+ * is looked up once and a new socket is created for every connection.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String TAG = BluetoothTransport.class.getSimpleName();
+
+    /**
+     * "Random" unique identifier
+     */
+    private static final UUID BTMODULEUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter mBtAdapter;
+    private final String mAddress;
+    private final String mName;
+    private BluetoothDevice mDevice;
+    private volatile BluetoothSocket mBtSocket;
+
+    public BluetoothTransport(BluetoothAdapter adapter, String address, String name) {
+        mBtAdapter = adapter;
+        mAddress = address;
+        mName = name;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mDevice == null) {
+            mDevice = mBtAdapter.getRemoteDevice(mAddress);
+        }
+        mBtAdapter.cancelDiscovery(); // discovery slows the connection down
+        BluetoothSocket socket = createBluetoothSocket(mDevice);
+        mBtSocket = socket;
+        Log.d(TAG, "Socket: " + socket.toString());
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mBtSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mBtSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket = mBtSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    private BluetoothSocket createBluetoothSocket(BluetoothDevice device) throws IOException {
+        try {
+            return device.createInsecureRfcommSocketToServiceRecord(BTMODULEUUID);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not create Insecure RFComm Connection.", e);
+            return device.createRfcommSocketToServiceRecord(BTMODULEUUID);
+        }
+    }
+}
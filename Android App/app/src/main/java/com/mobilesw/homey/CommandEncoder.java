@@ -0,0 +1,36 @@
+package com.mobilesw.homey;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes the commands taken from a {@link CommandQueue} into one buffer of
+ * frames, so that they are written at once. Reuses its buffers.
+ *
+ * Not thread-safe.
+ */
+class CommandEncoder {
+
+    private final byte[] mPayload = new byte[64];
+    private byte[] mBuffer = new byte[256];
+
+    /**
+     * @return the length of the frames, in {@link #getBuffer()}
+     */
+    int encode(List<CommandQueue.Command> commands) {
+        int length = 0;
+        for (CommandQueue.Command command : commands) {
+            int payloadLength = CommandQueue.payload(command, mPayload, 0);
+            int frameLength = FrameEncoder.frameLength(payloadLength);
+            if (length + frameLength > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, length + frameLength));
+            }
+            length += FrameEncoder.encode(mPayload, 0, payloadLength, mBuffer, length);
+        }
+        return length;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+}
@@ -0,0 +1,463 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Commands waiting to be written to the Arduino or to be acknowledged by it,
+ * taken by the writer thread of a {@link DeviceConnection}, or polled by a
+ * {@link WriterPool}, all at once so that they go out in one write.
+ *
+ * Commands are taken by priority, then in the order they were put. A command
+ * supersedes the pending one for the same setting, e.g. lights on replaces a
+ * pending lights off, so quickly toggling a switch only sends its last state.
+ * NO_AUTO_LIGHTS_FAN supersedes the pending auto-activation commands of both
+ * devices. Commands are kept while disconnected, so they are written after the
+ * next handshake.
+ *
+ * Each command is sent with a sequence number, the command byte followed by
+ * two hex digits, and the Arduino answers "A" and the same digits once it has
+ * applied it. Up to a window of commands are in flight at once; a command not
+ * acknowledged within the timeout is sent again with a new sequence number,
+ * and given up after {@link #MAX_ATTEMPTS}. The timeout follows the measured
+ * round trip time as in TCP (RFC 6298), doubling with every retransmission.
+ * A superseded command is not sent again, and commands that conflict (such as
+ * AUTO_LIGHTS and NO_AUTO_LIGHTS_FAN) are never in flight together, so
+ * commands for a setting are always applied in order.
+ *
+ * Thread-safe.
+ */
+public class CommandQueue {
+
+    public enum Priority {
+        HANDSHAKE, // the CONNECTED command, first on every connection
+        MANUAL, // switched by the user
+        AUTOMATION, // switched by an automation rule of the user
+        CONFIG // settings synced to the device
+    }
+
+    public interface Listener {
+        /**
+         * Called from the reader thread when the Arduino has applied the command.
+         *
+         * @param roundTripMillis time from writing the command to its
+         *                        acknowledgement, or -1 if it was sent more than once
+         */
+        void onCommandAcknowledged(Command command, long roundTripMillis);
+
+        /**
+         * Called from the writer thread, or the {@link WriterPool}, when the command is given up.
+         */
+        void onCommandFailed(Command command);
+    }
+
+    public static class Command {
+
+        private final String mCommand;
+        private final Priority mPriority;
+        private final int mSlot;
+        private final long mOrder;
+
+        // transmission, guarded by the queue
+        private int mSequence = -1;
+        private int mAttempts = 0;
+        private long mSentAt;
+
+        Command(String command, Priority priority, int slot, long order) {
+            mCommand = command;
+            mPriority = priority;
+            mSlot = slot;
+            mOrder = order;
+        }
+
+        public String getCommand() {
+            return mCommand;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Sequence number it was last sent with, 0 to 255.
+         */
+        public synchronized int getSequence() {
+            return mSequence;
+        }
+    }
+
+    static final int MAX_QUEUED = 32; // the oldest commands are dropped first
+    static final int DEFAULT_WINDOW = 4; // frames of 7 bytes, well within the UART buffer of the Arduino
+    static final int MAX_ATTEMPTS = 5;
+    static final byte ACK = 'A';
+
+    // settings a command sets, by command digit
+    private static final int NO_SLOT = -1;
+    private static final int SLOT_CONNECTED = 0;
+    private static final int SLOT_LIGHTS = 1;
+    private static final int SLOT_FAN = 2;
+    private static final int SLOT_AUTO_LIGHTS = 3;
+    private static final int SLOT_AUTO_FAN = 4;
+    private static final int SLOT_NO_AUTO = 5;
+    private static final int[] SLOTS = {
+            SLOT_CONNECTED, SLOT_LIGHTS, SLOT_LIGHTS, SLOT_FAN, SLOT_FAN,
+            SLOT_AUTO_LIGHTS, SLOT_AUTO_LIGHTS, SLOT_AUTO_FAN, SLOT_AUTO_FAN, SLOT_NO_AUTO
+    };
+
+    private static final Comparator<Command> AGE = new Comparator<Command>() {
+        @Override
+        public int compare(Command a, Command b) {
+            return a.mOrder < b.mOrder ? -1 : a.mOrder == b.mOrder ? 0 : 1;
+        }
+    };
+    private static final Comparator<Command> ORDER = new Comparator<Command>() {
+        @Override
+        public int compare(Command a, Command b) {
+            if (a.mPriority != b.mPriority) {
+                return a.mPriority.compareTo(b.mPriority);
+            }
+            return AGE.compare(a, b);
+        }
+    };
+
+    private final List<Command> mPending = new ArrayList<>();
+    private final List<Command> mInFlight = new ArrayList<>();
+    private final int mWindow;
+    private long mOrder = 0;
+    private int mNextSequence = 0;
+    private volatile Listener mListener;
+    private volatile Runnable mWriteSignal;
+
+    // round trip estimate
+    private long mMinTimeout = 200;
+    private long mMaxTimeout = 8000;
+    private long mSmoothedRtt = -1;
+    private long mRttVariance = 0;
+    private long mTimeout = 1000; // until a round trip is measured
+
+    public CommandQueue() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window commands in flight at most
+     */
+    public CommandQueue(int window) {
+        mWindow = window;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param signal run after commands are put, acknowledged or put back, i.e.
+     *               when there may be commands to {@link #poll()}; null for none
+     */
+    public synchronized void setWriteSignal(Runnable signal) {
+        mWriteSignal = signal;
+    }
+
+    /**
+     * Removes the signal, unless another one was set since.
+     */
+    public synchronized void clearWriteSignal(Runnable signal) {
+        if (mWriteSignal == signal) {
+            mWriteSignal = null;
+        }
+    }
+
+    /**
+     * @param initialMillis timeout until a round trip time is measured
+     * @param minMillis lower bound of the timeout derived from the round trip time
+     * @param maxMillis upper bound, also of the timeouts of retransmissions
+     */
+    public synchronized void setTimeouts(long initialMillis, long minMillis, long maxMillis) {
+        mTimeout = initialMillis;
+        mMinTimeout = minMillis;
+        mMaxTimeout = maxMillis;
+        mSmoothedRtt = -1;
+    }
+
+    /**
+     * Queues the command, replacing the pending commands it supersedes.
+     */
+    public void put(String command, Priority priority) {
+        synchronized (this) {
+            int slot = slotOf(command);
+            if (slot != NO_SLOT) {
+                removeSuperseded(mPending, slot);
+                removeSuperseded(mInFlight, slot); // not sent again, its acknowledgement is ignored
+            }
+            if (mPending.size() == MAX_QUEUED) {
+                mPending.remove(Collections.min(mPending, AGE));
+            }
+            mPending.add(new Command(command, priority, slot, ++mOrder));
+            notifyAll();
+        }
+        signalWrite();
+    }
+
+    /**
+     * Takes the commands to write next: those whose acknowledgement timed out,
+     * then the pending ones while the window has room, each with a new
+     * sequence number. Blocks until there is one.
+     */
+    public List<Command> take() throws InterruptedException {
+        while (true) {
+            List<Command> failed = new ArrayList<>();
+            List<Command> commands = poll(failed, true);
+            reportFailed(failed);
+            if (!commands.isEmpty()) {
+                return commands;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #take()}, without blocking: no commands if none can be
+     * written now. The next timeout is in {@link #getMillisUntilTimeout()}.
+     */
+    public List<Command> poll() {
+        List<Command> failed = new ArrayList<>();
+        List<Command> commands;
+        try {
+            commands = poll(failed, false);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e); // does not wait
+        }
+        reportFailed(failed);
+        return commands;
+    }
+
+    /**
+     * Time until the acknowledgement of a command in flight times out, 0 if
+     * one already has, {@link Long#MAX_VALUE} if none is in flight.
+     */
+    public synchronized long getMillisUntilTimeout() {
+        long now = now();
+        long delay = Long.MAX_VALUE;
+        for (Command command : mInFlight) {
+            delay = Math.min(delay, Math.max(0, command.mSentAt + timeoutOf(command) - now));
+        }
+        return delay;
+    }
+
+    /**
+     * Handles the acknowledgement of a command, see {@link #parseAcknowledgement}.
+     *
+     * @return false if no command in flight has the sequence number, e.g. it was superseded
+     */
+    public boolean acknowledge(int sequence) {
+        Command command = null;
+        long roundTrip = -1;
+        synchronized (this) {
+            for (int i = 0; i < mInFlight.size(); i++) {
+                if (mInFlight.get(i).mSequence == sequence) {
+                    command = mInFlight.remove(i);
+                    break;
+                }
+            }
+            if (command == null) {
+                return false;
+            }
+            if (command.mAttempts == 1) { // ambiguous otherwise
+                roundTrip = now() - command.mSentAt;
+                updateTimeout(roundTrip);
+            }
+            notifyAll(); // room in the window
+        }
+        signalWrite();
+        if (roundTrip >= 0) {
+            Metrics.COMMAND_ROUND_TRIP.record(roundTrip);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCommandAcknowledged(command, roundTrip);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the commands in flight back, to be sent again on the next
+     * connection, e.g. when a write failed or the link was lost.
+     */
+    public void requeue() {
+        synchronized (this) {
+            for (Command command : mInFlight) {
+                command.mAttempts = 0;
+                mPending.add(command);
+            }
+            mInFlight.clear();
+            notifyAll();
+        }
+        signalWrite();
+    }
+
+    /**
+     * Commands pending, not counting those in flight.
+     */
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * Current timeout of a command sent once.
+     */
+    public synchronized long getTimeoutMillis() {
+        return mTimeout;
+    }
+
+    /**
+     * Writes the payload of the command with its sequence number into out.
+     *
+     * @return the length of the payload, 3 bytes for a command byte
+     */
+    static int payload(Command command, byte[] out, int offset) {
+        byte[] bytes = command.getCommand().getBytes();
+        System.arraycopy(bytes, 0, out, offset, bytes.length);
+        int sequence = command.getSequence();
+        out[offset + bytes.length] = FrameEncoder.HEX_DIGITS[sequence >> 4];
+        out[offset + bytes.length + 1] = FrameEncoder.HEX_DIGITS[sequence & 0x0F];
+        return bytes.length + 2;
+    }
+
+    /**
+     * @return the sequence number if the payload is an acknowledgement, -1 otherwise
+     */
+    static int parseAcknowledgement(byte[] buffer, int offset, int length) {
+        if (length != 3 || buffer[offset] != ACK) {
+            return -1;
+        }
+        int high = FrameDecoder.hexValue(buffer[offset + 1]);
+        int low = FrameDecoder.hexValue(buffer[offset + 2]);
+        return high < 0 || low < 0 ? -1 : high << 4 | low;
+    }
+
+    private synchronized List<Command> poll(List<Command> failed, boolean block) throws InterruptedException {
+        long now = now();
+        long deadline = Long.MAX_VALUE;
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            Command command = mInFlight.get(i);
+            long timeout = command.mSentAt + timeoutOf(command);
+            if (timeout > now) {
+                deadline = Math.min(deadline, timeout);
+                continue;
+            }
+            mInFlight.remove(i);
+            if (command.mAttempts >= MAX_ATTEMPTS) {
+                failed.add(command);
+            } else {
+                mPending.add(command); // sent again, in its original order
+                Metrics.COMMAND_RETRANSMITS.increment();
+            }
+        }
+
+        List<Command> commands = new ArrayList<>();
+        Collections.sort(mPending, ORDER);
+        for (int i = 0; i < mPending.size() && mInFlight.size() < mWindow; i++) {
+            Command command = mPending.get(i);
+            if (conflictsInFlight(command)) {
+                continue; // after the acknowledgement of the other one
+            }
+            mPending.remove(i--);
+            synchronized (command) {
+                command.mSequence = mNextSequence;
+            }
+            mNextSequence = (mNextSequence + 1) & 0xFF;
+            command.mAttempts++;
+            command.mSentAt = now;
+            mInFlight.add(command);
+            commands.add(command);
+            deadline = Math.min(deadline, now + timeoutOf(command));
+        }
+        if (block && commands.isEmpty() && failed.isEmpty()) {
+            if (deadline == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, deadline - now));
+            }
+        }
+        return commands;
+    }
+
+    private void reportFailed(List<Command> failed) {
+        Metrics.COMMAND_FAILURES.add(failed.size());
+        Listener listener = mListener;
+        if (listener != null) {
+            for (Command command : failed) {
+                listener.onCommandFailed(command);
+            }
+        }
+    }
+
+    private void signalWrite() {
+        Runnable signal = mWriteSignal;
+        if (signal != null) {
+            signal.run();
+        }
+    }
+
+    private long timeoutOf(Command command) {
+        return Math.min(mMaxTimeout, mTimeout << (command.mAttempts - 1));
+    }
+
+    /**
+     * RTO = SRTT + 4 RTTVAR, with gains of 1/8 and 1/4.
+     */
+    private void updateTimeout(long roundTrip) {
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = roundTrip;
+            mRttVariance = roundTrip / 2;
+        } else {
+            mRttVariance += (Math.abs(mSmoothedRtt - roundTrip) - mRttVariance) / 4;
+            mSmoothedRtt += (roundTrip - mSmoothedRtt) / 8;
+        }
+        mTimeout = Math.max(mMinTimeout, Math.min(mMaxTimeout, mSmoothedRtt + 4 * mRttVariance));
+    }
+
+    private boolean conflictsInFlight(Command command) {
+        if (command.mSlot == NO_SLOT) {
+            return false;
+        }
+        for (Command inFlight : mInFlight) {
+            if (supersedes(command.mSlot, inFlight.mSlot) || supersedes(inFlight.mSlot, command.mSlot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void removeSuperseded(List<Command> commands, int slot) {
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            if (supersedes(slot, commands.get(i).mSlot)) {
+                commands.remove(i);
+            }
+        }
+    }
+
+    private static boolean supersedes(int slot, int otherSlot) {
+        if (slot == SLOT_NO_AUTO) {
+            return otherSlot == SLOT_NO_AUTO || otherSlot == SLOT_AUTO_LIGHTS || otherSlot == SLOT_AUTO_FAN;
+        }
+        return slot == otherSlot;
+    }
+
+    private static int slotOf(String command) {
+        if (command.length() != 1) {
+            return NO_SLOT;
+        }
+        int digit = command.charAt(0) - '0';
+        return digit >= 0 && digit < SLOTS.length ? SLOTS[digit] : NO_SLOT;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,260 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link DeviceConnection} to the Arduino up: failed connections and
+ * lost links are retried after a jittered exponential backoff.
+ *
+ * DISCONNECTED -> CONNECTING -> CONNECTED, and CONNECTING or CONNECTED ->
+ * BACKOFF -> CONNECTING until {@link #stop()}. Commands go through a
+ * {@link CommandQueue} shared by the connections: those sent while not
+ * connected, or not acknowledged when the link was lost, are written right
+ * after the CONNECTED handshake. Acknowledgements are handled here and not
+ * passed on as frames.
+ *
+ * Everything runs on the given executor, so connecting never blocks the caller.
+ */
+public class ConnectionManager {
+
+    public enum State {
+        DISCONNECTED, CONNECTING, CONNECTED, BACKOFF
+    }
+
+    public interface Listener extends FrameDecoder.Listener, CommandQueue.Listener {
+        /**
+         * Called on the executor thread.
+         */
+        void onStateChanged(State state);
+    }
+
+    static final String CONNECTED_COMMAND = "0"; // handshake, answered with the current state
+
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor;
+    private final WriterPool mWriterPool; // null for a writer thread per connection
+    private final Random mRandom;
+    private volatile long mInitialBackoffMillis = 500;
+    private volatile long mMaxBackoffMillis = 30000;
+
+    private final CommandQueue mQueue = new CommandQueue();
+
+    // only used on the executor thread
+    private DeviceConnection mConnection;
+    private ScheduledFuture<?> mRetry;
+    private int mGeneration = 0; // tells the links of old connections apart
+    private int mFailures = 0;
+
+    private volatile boolean mStarted = false;
+    private volatile State mState = State.DISCONNECTED;
+
+    public ConnectionManager(Transport transport, Listener listener, ScheduledExecutorService executor) {
+        this(transport, listener, executor, null, new Random());
+    }
+
+    /**
+     * @param writerPool writes the commands, e.g. shared by the connections to several devices
+     */
+    public ConnectionManager(Transport transport, Listener listener, ScheduledExecutorService executor,
+                             WriterPool writerPool) {
+        this(transport, listener, executor, writerPool, new Random());
+    }
+
+    ConnectionManager(Transport transport, Listener listener, ScheduledExecutorService executor, Random random) {
+        this(transport, listener, executor, null, random);
+    }
+
+    ConnectionManager(Transport transport, Listener listener, ScheduledExecutorService executor,
+                      WriterPool writerPool, Random random) {
+        mTransport = transport;
+        mListener = listener;
+        mExecutor = executor;
+        mWriterPool = writerPool;
+        mRandom = random;
+        mQueue.setListener(listener);
+    }
+
+    /**
+     * The n-th retry waits between half and all of min(max, initial * 2^n).
+     */
+    public void setBackoff(long initialMillis, long maxMillis) {
+        mInitialBackoffMillis = initialMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public CommandQueue getCommandQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Starts connecting, unless already started.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.DISCONNECTED) {
+                    mFailures = 0;
+                    attempt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection and stops retrying. Queued commands are kept for
+     * the next {@link #start()}.
+     */
+    public void stop() {
+        mStarted = false;
+        try {
+            mTransport.close(); // aborts a connection attempt in progress
+        } catch (IOException e) {}
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    return; // started again meanwhile
+                }
+                cancelRetry();
+                closeConnection();
+                setState(State.DISCONNECTED);
+            }
+        });
+    }
+
+    /**
+     * Writes the command from the writer thread if connected, otherwise after
+     * the next handshake. Does not block.
+     */
+    public void send(String command, CommandQueue.Priority priority) {
+        mQueue.put(command, priority);
+    }
+
+    long backoffDelay(int failures) {
+        long base = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << Math.min(failures, 20));
+        long half = base / 2;
+        return half + (long) (mRandom.nextDouble() * (base - half + 1));
+    }
+
+    private void attempt() {
+        mRetry = null;
+        if (!mStarted) {
+            setState(State.DISCONNECTED);
+            return;
+        }
+        setState(State.CONNECTING);
+        final int generation = ++mGeneration;
+        mQueue.put(CONNECTED_COMMAND, CommandQueue.Priority.HANDSHAKE); // written first once connected
+        DeviceConnection connection = new DeviceConnection(mTransport, mQueue, mWriterPool, new DeviceConnection.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                int sequence = CommandQueue.parseAcknowledgement(buffer, offset, length);
+                if (sequence >= 0) {
+                    mQueue.acknowledge(sequence);
+                } else {
+                    mListener.onFrame(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void onDisconnected() {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration && mConnection != null) {
+                            closeConnection();
+                            retry();
+                        }
+                    }
+                });
+            }
+        });
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            connection.shutdown();
+            retry();
+            return;
+        }
+        if (!mStarted) {
+            connection.shutdown(); // stopped while connecting
+            mQueue.requeue();
+            setState(State.DISCONNECTED);
+            return;
+        }
+        mConnection = connection;
+        mFailures = 0;
+        Metrics.CONNECTS.increment();
+        setState(State.CONNECTED);
+    }
+
+    private void retry() {
+        if (!mStarted) {
+            setState(State.DISCONNECTED);
+            return;
+        }
+        setState(State.BACKOFF);
+        Metrics.RECONNECTS.increment();
+        long delay = backoffDelay(mFailures++);
+        try {
+            mRetry = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    private void cancelRetry() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+    }
+
+    private void closeConnection() {
+        if (mConnection != null) {
+            mConnection.shutdown();
+            mConnection = null;
+        }
+        mQueue.requeue(); // sent again on the next connection
+        mGeneration++;
+    }
+
+    private void setState(State state) {
+        if (mState != state) {
+            mState = state;
+            mListener.onStateChanged(state);
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+}
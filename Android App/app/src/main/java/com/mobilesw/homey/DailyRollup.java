@@ -0,0 +1,315 @@
+package com.mobilesw.homey;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Summary of a day of a user, as stored in the UserLogRollups collection: how
+ * many times and how long each device was on, and the range and mean of the
+ * temperature & humidity. Maintained by {@link DailyRollups} as the events
+ * are logged, so summaries read a document per day instead of every log.
+ *
+ * The on-time of a device still on is counted until its last event; see
+ * {@link #getOnMillis(LogEvent.Device, long)} for the time so far.
+ */
+public class DailyRollup {
+
+    private String userID;
+    private String day; // yyyyMMdd, in the time zone of the phone
+    private long start; // epoch millis of the midnight starting the day
+    private long end; // and of the next one
+
+    private int lightsOnCount;
+    private int lightsOffCount;
+    private long lightsOnMillis;
+    private long lightsOnSince; // 0 if off at the last event
+
+    private int fanOnCount;
+    private int fanOffCount;
+    private long fanOnMillis;
+    private long fanOnSince;
+
+    private int samples;
+    private int temperatureMin;
+    private int temperatureMax;
+    private double temperatureMean;
+    private int humidityMin;
+    private int humidityMax;
+    private double humidityMean;
+
+    public DailyRollup() {
+
+    }
+
+    DailyRollup(String userID, String day, long start, long end) {
+        this.userID = userID;
+        this.day = day;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Id of the document of the day of the user.
+     */
+    public static String documentId(String userID, String day) {
+        return userID + "_" + day;
+    }
+
+    public String getUserID() {
+        return userID;
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public int getLightsOnCount() {
+        return lightsOnCount;
+    }
+
+    public int getLightsOffCount() {
+        return lightsOffCount;
+    }
+
+    public long getLightsOnMillis() {
+        return lightsOnMillis;
+    }
+
+    public long getLightsOnSince() {
+        return lightsOnSince;
+    }
+
+    public int getFanOnCount() {
+        return fanOnCount;
+    }
+
+    public int getFanOffCount() {
+        return fanOffCount;
+    }
+
+    public long getFanOnMillis() {
+        return fanOnMillis;
+    }
+
+    public long getFanOnSince() {
+        return fanOnSince;
+    }
+
+    /**
+     * Number of temperature & humidity samples, 0 if the min, max and mean are unknown.
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    public int getTemperatureMin() {
+        return temperatureMin;
+    }
+
+    public int getTemperatureMax() {
+        return temperatureMax;
+    }
+
+    public double getTemperatureMean() {
+        return temperatureMean;
+    }
+
+    public int getHumidityMin() {
+        return humidityMin;
+    }
+
+    public int getHumidityMax() {
+        return humidityMax;
+    }
+
+    public double getHumidityMean() {
+        return humidityMean;
+    }
+
+    /**
+     * Time the device was on during the day, including the time it has been on since its last event.
+     *
+     * @param now e.g. the current time, for the day in progress
+     */
+    public long getOnMillis(LogEvent.Device device, long now) {
+        long onMillis = device == LogEvent.Device.LIGHTS ? lightsOnMillis : fanOnMillis;
+        long onSince = device == LogEvent.Device.LIGHTS ? lightsOnSince : fanOnSince;
+        if (onSince != 0 && now > onSince) {
+            onMillis += Math.min(now, end) - onSince;
+        }
+        return onMillis;
+    }
+
+    public int getCount(LogEvent.Device device, LogEvent.Action action) {
+        if (device == LogEvent.Device.LIGHTS) {
+            return action == LogEvent.Action.ON ? lightsOnCount : lightsOffCount;
+        }
+        return action == LogEvent.Action.ON ? fanOnCount : fanOffCount;
+    }
+
+    /**
+     * Counts the event, whose time must be in the day and not before the previous event.
+     */
+    void add(LogEvent.Device device, LogEvent.Action action, long time) {
+        boolean on = action == LogEvent.Action.ON;
+        if (device == LogEvent.Device.LIGHTS) {
+            if (on) {
+                lightsOnCount++;
+                lightsOnSince = lightsOnSince != 0 ? lightsOnSince : time;
+            } else {
+                lightsOffCount++;
+                lightsOnMillis += lightsOnSince != 0 ? time - lightsOnSince : 0;
+                lightsOnSince = 0;
+            }
+        } else {
+            if (on) {
+                fanOnCount++;
+                fanOnSince = fanOnSince != 0 ? fanOnSince : time;
+            } else {
+                fanOffCount++;
+                fanOnMillis += fanOnSince != 0 ? time - fanOnSince : 0;
+                fanOnSince = 0;
+            }
+        }
+    }
+
+    void addSample(int temperature, int humidity) {
+        if (samples == 0) {
+            temperatureMin = temperatureMax = temperature;
+            humidityMin = humidityMax = humidity;
+        }
+        samples++;
+        temperatureMin = Math.min(temperatureMin, temperature);
+        temperatureMax = Math.max(temperatureMax, temperature);
+        temperatureMean += (temperature - temperatureMean) / samples;
+        humidityMin = Math.min(humidityMin, humidity);
+        humidityMax = Math.max(humidityMax, humidity);
+        humidityMean += (humidity - humidityMean) / samples;
+    }
+
+    boolean isAnyOn() {
+        return lightsOnSince != 0 || fanOnSince != 0;
+    }
+
+    /**
+     * Ends the day, counting the devices still on until its end.
+     *
+     * @return the next day, with the devices still on since its start
+     */
+    DailyRollup close(String nextDay, long nextEnd) {
+        DailyRollup next = new DailyRollup(userID, nextDay, end, nextEnd);
+        if (lightsOnSince != 0) {
+            lightsOnMillis += end - lightsOnSince;
+            lightsOnSince = 0;
+            next.lightsOnSince = end;
+        }
+        if (fanOnSince != 0) {
+            fanOnMillis += end - fanOnSince;
+            fanOnSince = 0;
+            next.fanOnSince = end;
+        }
+        return next;
+    }
+
+    DailyRollup copy() {
+        DailyRollup copy = new DailyRollup();
+        copy.userID = userID;
+        copy.day = day;
+        copy.start = start;
+        copy.end = end;
+        copy.lightsOnCount = lightsOnCount;
+        copy.lightsOffCount = lightsOffCount;
+        copy.lightsOnMillis = lightsOnMillis;
+        copy.lightsOnSince = lightsOnSince;
+        copy.fanOnCount = fanOnCount;
+        copy.fanOffCount = fanOffCount;
+        copy.fanOnMillis = fanOnMillis;
+        copy.fanOnSince = fanOnSince;
+        copy.samples = samples;
+        copy.temperatureMin = temperatureMin;
+        copy.temperatureMax = temperatureMax;
+        copy.temperatureMean = temperatureMean;
+        copy.humidityMin = humidityMin;
+        copy.humidityMax = humidityMax;
+        copy.humidityMean = humidityMean;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DailyRollup)) {
+            return false;
+        }
+        DailyRollup other = (DailyRollup) o;
+        return userID.equals(other.userID) && day.equals(other.day) && start == other.start && end == other.end
+                && lightsOnCount == other.lightsOnCount && lightsOffCount == other.lightsOffCount
+                && lightsOnMillis == other.lightsOnMillis && lightsOnSince == other.lightsOnSince
+                && fanOnCount == other.fanOnCount && fanOffCount == other.fanOffCount
+                && fanOnMillis == other.fanOnMillis && fanOnSince == other.fanOnSince
+                && samples == other.samples
+                && temperatureMin == other.temperatureMin && temperatureMax == other.temperatureMax
+                && Double.compare(temperatureMean, other.temperatureMean) == 0
+                && humidityMin == other.humidityMin && humidityMax == other.humidityMax
+                && Double.compare(humidityMean, other.humidityMean) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return documentId(userID, day).hashCode() * 31 + samples * 7
+                + lightsOnCount + lightsOffCount + fanOnCount + fanOffCount;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(userID);
+        out.writeUTF(day);
+        out.writeLong(start);
+        out.writeLong(end);
+        out.writeInt(lightsOnCount);
+        out.writeInt(lightsOffCount);
+        out.writeLong(lightsOnMillis);
+        out.writeLong(lightsOnSince);
+        out.writeInt(fanOnCount);
+        out.writeInt(fanOffCount);
+        out.writeLong(fanOnMillis);
+        out.writeLong(fanOnSince);
+        out.writeInt(samples);
+        out.writeInt(temperatureMin);
+        out.writeInt(temperatureMax);
+        out.writeDouble(temperatureMean);
+        out.writeInt(humidityMin);
+        out.writeInt(humidityMax);
+        out.writeDouble(humidityMean);
+    }
+
+    static DailyRollup readFrom(DataInputStream in) throws IOException {
+        DailyRollup rollup = new DailyRollup(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+        rollup.lightsOnCount = in.readInt();
+        rollup.lightsOffCount = in.readInt();
+        rollup.lightsOnMillis = in.readLong();
+        rollup.lightsOnSince = in.readLong();
+        rollup.fanOnCount = in.readInt();
+        rollup.fanOffCount = in.readInt();
+        rollup.fanOnMillis = in.readLong();
+        rollup.fanOnSince = in.readLong();
+        rollup.samples = in.readInt();
+        rollup.temperatureMin = in.readInt();
+        rollup.temperatureMax = in.readInt();
+        rollup.temperatureMean = in.readDouble();
+        rollup.humidityMin = in.readInt();
+        rollup.humidityMax = in.readInt();
+        rollup.humidityMean = in.readDouble();
+        return rollup;
+    }
+}
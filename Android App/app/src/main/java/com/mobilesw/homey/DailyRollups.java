@@ -0,0 +1,256 @@
+package com.mobilesw.homey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Maintains the {@link DailyRollup} of the current day of each user as the
+ * logs and samples come, and remembers the rollups changed since they were
+ * last written to Firestore.
+ *
+ * When an event or sample falls after the end of the day, the day is closed:
+ * a device still on is counted on until midnight and on from the start of the
+ * next day, so the days it stays on all along get a rollup too. Events older
+ * than the current day of their user are ignored.
+ *
+ * A device's on-time is kept for a single room: with a device ID, the logs
+ * of the other devices are ignored, and those of no device, logged before
+ * there were several, counted.
+ *
+ * The state is kept in a file by {@link #save()}, so that a day survives the
+ * service being restarted. Thread-safe.
+ */
+public class DailyRollups {
+
+    private static final int MAGIC = 0x524f4c31; // "ROL1"
+
+    private final File mFile; // null if not kept
+    private final TimeZone mZone;
+    private final String mDeviceId; // whose logs are counted, null for every device
+    private final Map<String, DailyRollup> mOpen = new HashMap<>(); // current day of each user
+    private final Map<String, DailyRollup> mChanged = new LinkedHashMap<>(); // by document id, not yet written
+
+    /**
+     * @param file null to keep the rollups in memory only
+     * @param zone where the days start and end
+     */
+    public DailyRollups(File file, TimeZone zone) {
+        this(file, zone, null);
+    }
+
+    /**
+     * @param deviceId the device whose logs are counted, null for every device
+     */
+    public DailyRollups(File file, TimeZone zone, String deviceId) {
+        mFile = file;
+        mZone = zone;
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Reads the rollups saved by {@link #save()}, if any.
+     */
+    public synchronized void load() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return; // never saved
+        }
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a rollups file: " + mFile);
+            }
+            mOpen.clear();
+            mChanged.clear();
+            for (int i = in.readInt(); i > 0; i--) {
+                boolean open = in.readBoolean();
+                boolean changed = in.readBoolean();
+                DailyRollup rollup = DailyRollup.readFrom(in);
+                if (open) {
+                    mOpen.put(rollup.getUserID(), rollup);
+                }
+                if (changed) {
+                    mChanged.put(DailyRollup.documentId(rollup.getUserID(), rollup.getDay()), rollup);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the rollups to a new file, which then replaces the previous one.
+     */
+    public synchronized void save() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        List<DailyRollup> rollups = new ArrayList<>(mOpen.values());
+        for (DailyRollup rollup : mChanged.values()) {
+            if (mOpen.get(rollup.getUserID()) != rollup) {
+                rollups.add(rollup);
+            }
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(rollups.size());
+            for (DailyRollup rollup : rollups) {
+                out.writeBoolean(mOpen.get(rollup.getUserID()) == rollup);
+                out.writeBoolean(mChanged.containsKey(DailyRollup.documentId(rollup.getUserID(), rollup.getDay())));
+                rollup.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * Counts the event in the day of its user. Logs without a user or an
+     * event, or of another device, are ignored.
+     */
+    public synchronized void addLog(UserLog log) {
+        if (log.getUserID() == null || log.getDevice() == null || log.getAction() == null) {
+            return;
+        }
+        if (mDeviceId != null && log.getDeviceId() != null && !mDeviceId.equals(log.getDeviceId())) {
+            return;
+        }
+        DailyRollup rollup = roll(log.getUserID(), log.getTimestamp());
+        if (rollup != null) {
+            rollup.add(log.getDevice(), log.getAction(), log.getTimestamp());
+            changed(rollup);
+        }
+    }
+
+    public synchronized void addSample(String userID, long timeMillis, int temperature, int humidity) {
+        if (userID == null) {
+            return;
+        }
+        DailyRollup rollup = roll(userID, timeMillis);
+        if (rollup != null) {
+            rollup.addSample(temperature, humidity);
+            changed(rollup);
+        }
+    }
+
+    /**
+     * Closes the days of every user ended by the time, e.g. to write them without waiting for the next event.
+     */
+    public synchronized void advance(long timeMillis) {
+        for (String userID : new ArrayList<>(mOpen.keySet())) {
+            roll(userID, timeMillis);
+        }
+    }
+
+    /**
+     * Copies of the rollups changed since they were written, closed days first.
+     */
+    public synchronized List<DailyRollup> getChanged() {
+        List<DailyRollup> changed = new ArrayList<>(mChanged.size());
+        for (DailyRollup rollup : mChanged.values()) {
+            changed.add(rollup.copy());
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets the rollups written, unless they changed again since copied.
+     *
+     * @param written copies returned by {@link #getChanged()}
+     */
+    public synchronized void written(List<DailyRollup> written) {
+        for (DailyRollup rollup : written) {
+            String id = DailyRollup.documentId(rollup.getUserID(), rollup.getDay());
+            if (rollup.equals(mChanged.get(id))) {
+                mChanged.remove(id);
+            }
+        }
+    }
+
+    /**
+     * The midnight starting the day of the time.
+     */
+    public long startOfDay(long timeMillis) {
+        Calendar calendar = Calendar.getInstance(mZone);
+        calendar.setTimeInMillis(timeMillis);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * The open day of the user containing the time, after closing the days before it.
+     *
+     * @return null if the time is before the open day
+     */
+    private DailyRollup roll(String userID, long timeMillis) {
+        DailyRollup rollup = mOpen.get(userID);
+        if (rollup != null && timeMillis < rollup.getStart()) {
+            return null;
+        }
+        while (rollup != null && timeMillis >= rollup.getEnd()) {
+            if (!rollup.isAnyOn()) {
+                rollup = null;
+                break;
+            }
+            DailyRollup closed = rollup;
+            rollup = closed.close(format(closed.getEnd()), nextDay(closed.getEnd()));
+            changed(closed); // counted on until midnight
+            mOpen.put(userID, rollup);
+            changed(rollup);
+        }
+        if (rollup == null) {
+            long start = startOfDay(timeMillis);
+            rollup = new DailyRollup(userID, format(start), start, nextDay(start));
+            mOpen.put(userID, rollup);
+        }
+        return rollup;
+    }
+
+    private void changed(DailyRollup rollup) {
+        mChanged.put(DailyRollup.documentId(rollup.getUserID(), rollup.getDay()), rollup);
+    }
+
+    private long nextDay(long start) {
+        Calendar calendar = Calendar.getInstance(mZone);
+        calendar.setTimeInMillis(start);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * "yyyyMMdd", without a SimpleDateFormat per call.
+     */
+    private String format(long timeMillis) {
+        Calendar calendar = Calendar.getInstance(mZone);
+        calendar.setTimeInMillis(timeMillis);
+        int date = calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+        return String.valueOf(date);
+    }
+}
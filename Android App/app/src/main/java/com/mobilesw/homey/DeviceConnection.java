@@ -0,0 +1,166 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Connection to the Arduino over a {@link Transport}: a {@link MessageReader}
+ * on its own thread and a writer thread for the commands, or a link of a
+ * {@link WriterPool} shared with other connections, so no I/O runs on the
+ * caller's thread.
+ *
+ * The writer takes the commands to send from the {@link CommandQueue}, with
+ * their sequence numbers, and writes their frames with a single write; when a
+ * write fails the commands in flight are put back for the next connection.
+ */
+public class DeviceConnection {
+
+    public interface Listener extends FrameDecoder.Listener {
+        /**
+         * Called from the reader thread when the link is lost, but not after
+         * {@link #shutdown()}.
+         */
+        void onDisconnected();
+    }
+
+    private final Transport mTransport;
+    private final CommandQueue mQueue;
+    private final WriterPool mWriterPool; // null for a writer thread
+    private final Listener mListener;
+    private volatile MessageReader mReader;
+    private volatile Thread mWriter;
+    private volatile WriterPool.Link mWriterLink;
+    private volatile boolean mShutdown = false;
+
+    public DeviceConnection(Transport transport, Listener listener) {
+        this(transport, new CommandQueue(), listener);
+    }
+
+    /**
+     * @param queue commands to write, e.g. shared with the next connections
+     */
+    public DeviceConnection(Transport transport, CommandQueue queue, Listener listener) {
+        this(transport, queue, null, listener);
+    }
+
+    /**
+     * @param writerPool writes the commands, null for a writer thread of this connection
+     */
+    public DeviceConnection(Transport transport, CommandQueue queue, WriterPool writerPool, Listener listener) {
+        mTransport = transport;
+        mQueue = queue;
+        mWriterPool = writerPool;
+        mListener = listener;
+    }
+
+    /**
+     * Opens the transport and starts reading. Blocks until connected.
+     */
+    public void connect() throws IOException {
+        mTransport.connect();
+        final OutputStream out = mTransport.getOutputStream();
+        final MessageReader reader = new MessageReader(mTransport.getInputStream(), mListener);
+        mReader = reader;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reader.run();
+                if (!mShutdown) {
+                    mListener.onDisconnected();
+                }
+            }
+        }, "DeviceConnection " + mTransport.getName()).start();
+        if (mWriterPool != null) {
+            mWriterLink = mWriterPool.attach(mQueue, out, new Runnable() {
+                @Override
+                public void run() {
+                    closeTransport(); // the reader fails too and reports the disconnection
+                }
+            });
+            if (mShutdown) {
+                mWriterLink.detach(); // shut down while connecting
+            }
+            return;
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeCommands(out);
+            }
+        }, "DeviceConnection " + mTransport.getName() + " writer");
+        mWriter = writer;
+        if (mShutdown) {
+            return; // shut down while connecting
+        }
+        writer.start();
+    }
+
+    /**
+     * Queues the command for the writer thread.
+     */
+    public void write(String command, CommandQueue.Priority priority) {
+        mQueue.put(command, priority);
+    }
+
+    public boolean isConnected() {
+        MessageReader reader = mReader;
+        return !mShutdown && reader != null && reader.isRunning();
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Closes the connection. The listener is not called anymore.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        MessageReader reader = mReader;
+        if (reader != null) {
+            reader.shutdown();
+        }
+        closeTransport();
+        Thread writer = mWriter;
+        if (writer != null) {
+            writer.interrupt();
+        }
+        WriterPool.Link link = mWriterLink;
+        if (link != null) {
+            link.detach();
+        }
+    }
+
+    private void writeCommands(OutputStream out) {
+        CommandEncoder encoder = new CommandEncoder();
+        while (!mShutdown) {
+            List<CommandQueue.Command> commands;
+            try {
+                commands = mQueue.take();
+            } catch (InterruptedException e) {
+                return; // shut down
+            }
+            int length = encoder.encode(commands);
+            if (mShutdown) {
+                mQueue.requeue();
+                return;
+            }
+            try {
+                out.write(encoder.getBuffer(), 0, length);
+                Metrics.BYTES_OUT.add(length);
+                Metrics.FRAMES_OUT.add(commands.size());
+            } catch (IOException e) {
+                mQueue.requeue();
+                closeTransport(); // the reader fails too and reports the disconnection
+                return;
+            }
+        }
+    }
+
+    private void closeTransport() {
+        try {
+            mTransport.close();
+        } catch (IOException e) {}
+    }
+}
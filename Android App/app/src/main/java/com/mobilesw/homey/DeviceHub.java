@@ -0,0 +1,221 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a connection to every device of a {@link DeviceRegistry} at once, e.g.
+ * the Arduino of every room.
+ *
+ * Each device has its own {@link ConnectionManager}, with its own reader
+ * thread and retries, and the commands of all of them are written by one
+ * {@link WriterPool}. The messages of all the devices are parsed on their
+ * reader threads and merged into one stream, the {@link Listener}, tagged with
+ * the ID of the device.
+ */
+public class DeviceHub {
+
+    /**
+     * Called from the threads of the connections, concurrently for different
+     * devices but in order for each device.
+     */
+    public interface Listener {
+        /**
+         * @param type         see {@link TelemetryParser}, never INVALID
+         * @param temperature  for TEMP_AND_HUMIDITY only
+         * @param humidity     for TEMP_AND_HUMIDITY only
+         */
+        void onMessage(String deviceId, int type, int temperature, int humidity);
+
+        void onStateChanged(String deviceId, ConnectionManager.State state);
+
+        void onCommandAcknowledged(String deviceId, CommandQueue.Command command, long roundTripMillis);
+
+        void onCommandFailed(String deviceId, CommandQueue.Command command);
+    }
+
+    public interface TransportFactory {
+        Transport create(DeviceRegistry.Device device);
+    }
+
+    public static final int DEFAULT_WRITER_THREADS = 2;
+
+    private final DeviceRegistry mRegistry;
+    private final TransportFactory mTransports;
+    private final WriterPool mWriterPool;
+    private final Listener mListener;
+    private final Map<String, Link> mLinks = new LinkedHashMap<>(); // guarded by this
+    private long mInitialBackoffMillis = 500;
+    private long mMaxBackoffMillis = 30000;
+
+    private class Link implements ConnectionManager.Listener {
+
+        final DeviceRegistry.Device mDevice;
+        final ScheduledExecutorService mExecutor;
+        final ConnectionManager mManager;
+        private final TelemetryParser mParser = new TelemetryParser(); // used on the reader thread
+
+        Link(DeviceRegistry.Device device) {
+            mDevice = device;
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DeviceHub " + mDevice.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mManager = new ConnectionManager(mTransports.create(device), this, mExecutor, mWriterPool);
+            mManager.setBackoff(mInitialBackoffMillis, mMaxBackoffMillis);
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            int type = mParser.parse(buffer, offset, length);
+            if (type != TelemetryParser.INVALID) {
+                mListener.onMessage(mDevice.getId(), type, mParser.getTemperature(), mParser.getHumidity());
+            } else {
+                Metrics.MESSAGES_REJECTED.increment();
+            }
+        }
+
+        @Override
+        public void onStateChanged(ConnectionManager.State state) {
+            mListener.onStateChanged(mDevice.getId(), state);
+        }
+
+        @Override
+        public void onCommandAcknowledged(CommandQueue.Command command, long roundTripMillis) {
+            mListener.onCommandAcknowledged(mDevice.getId(), command, roundTripMillis);
+        }
+
+        @Override
+        public void onCommandFailed(CommandQueue.Command command) {
+            mListener.onCommandFailed(mDevice.getId(), command);
+        }
+
+        void close() {
+            mManager.stop();
+            mExecutor.shutdown(); // after the stop
+        }
+    }
+
+    /**
+     * @param writerThreads threads writing the commands of all the devices
+     */
+    public DeviceHub(DeviceRegistry registry, TransportFactory transports, int writerThreads, Listener listener) {
+        mRegistry = registry;
+        mTransports = transports;
+        mWriterPool = new WriterPool(writerThreads);
+        mListener = listener;
+        synchronized (this) {
+            update();
+        }
+    }
+
+    /**
+     * See {@link ConnectionManager#setBackoff(long, long)}.
+     */
+    public synchronized void setBackoff(long initialMillis, long maxMillis) {
+        mInitialBackoffMillis = initialMillis;
+        mMaxBackoffMillis = maxMillis;
+        for (Link link : mLinks.values()) {
+            link.mManager.setBackoff(initialMillis, maxMillis);
+        }
+    }
+
+    /**
+     * Connects to the devices registered, and disconnects from those no
+     * longer registered or whose module changed. Call it again after changing
+     * the registry.
+     */
+    public synchronized void start() {
+        update();
+        for (Link link : mLinks.values()) {
+            link.mManager.start();
+        }
+    }
+
+    /**
+     * Disconnects from every device. Queued commands are kept for the next {@link #start()}.
+     */
+    public synchronized void stop() {
+        for (Link link : mLinks.values()) {
+            link.mManager.stop();
+        }
+    }
+
+    /**
+     * Disconnects from every device and stops the threads; the hub cannot be started again.
+     */
+    public synchronized void shutdown() {
+        for (Link link : mLinks.values()) {
+            link.close();
+        }
+        mLinks.clear();
+        mWriterPool.shutdown();
+    }
+
+    /**
+     * Queues the command, written once the device is connected, see {@link ConnectionManager#send}.
+     *
+     * @return false if the device is not registered
+     */
+    public boolean send(String deviceId, String command, CommandQueue.Priority priority) {
+        Link link = getLink(deviceId);
+        if (link == null) {
+            return false;
+        }
+        link.mManager.send(command, priority);
+        return true;
+    }
+
+    public ConnectionManager.State getState(String deviceId) {
+        Link link = getLink(deviceId);
+        return link == null ? ConnectionManager.State.DISCONNECTED : link.mManager.getState();
+    }
+
+    /**
+     * IDs of the devices of the registry when last started.
+     */
+    public synchronized List<String> getDeviceIds() {
+        return new ArrayList<>(mLinks.keySet());
+    }
+
+    public DeviceRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    private synchronized Link getLink(String deviceId) {
+        return mLinks.get(deviceId);
+    }
+
+    /**
+     * Makes a link for every device registered, closing those of the devices removed or changed.
+     */
+    private void update() {
+        Map<String, DeviceRegistry.Device> devices = new LinkedHashMap<>();
+        for (DeviceRegistry.Device device : mRegistry.getAll()) {
+            devices.put(device.getId(), device);
+        }
+        Iterator<Link> links = mLinks.values().iterator();
+        while (links.hasNext()) {
+            Link link = links.next();
+            if (!link.mDevice.equals(devices.get(link.mDevice.getId()))) {
+                link.close();
+                links.remove();
+            }
+        }
+        for (DeviceRegistry.Device device : devices.values()) {
+            if (!mLinks.containsKey(device.getId())) {
+                mLinks.put(device.getId(), new Link(device));
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Bluetooth modules of the user, one per room, by ID.
+ *
+ * Kept as text in the preferences, see {@link #encode()}: a line per device
+ * with its ID, name and address separated by tabs.
+ *
+ * Thread-safe.
+ */
+public class DeviceRegistry {
+
+    public static final class Device {
+
+        private final String mId;
+        private final String mName;
+        private final String mAddress;
+
+        /**
+         * @param id e.g. the room, without tabs or line breaks
+         */
+        public Device(String id, String name, String address) {
+            mId = id;
+            mName = name;
+            mAddress = address;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        /**
+         * Name of the Bluetooth module.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * MAC address of the Bluetooth module.
+         */
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Device)) {
+                return false;
+            }
+            Device other = (Device) o;
+            return mId.equals(other.mId) && mName.equals(other.mName) && mAddress.equals(other.mAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mId.hashCode() * 31 + mName.hashCode()) * 31 + mAddress.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mId + " (" + mName + " " + mAddress + ")";
+        }
+    }
+
+    private final Map<String, Device> mDevices = new LinkedHashMap<>();
+
+    /**
+     * Adds the device, or replaces the one with the same ID.
+     */
+    public synchronized void put(Device device) {
+        mDevices.put(device.getId(), device);
+    }
+
+    public synchronized void remove(String id) {
+        mDevices.remove(id);
+    }
+
+    /**
+     * @return null if not registered
+     */
+    public synchronized Device get(String id) {
+        return mDevices.get(id);
+    }
+
+    /**
+     * In the order they were added.
+     */
+    public synchronized List<Device> getAll() {
+        return Collections.unmodifiableList(new ArrayList<>(mDevices.values()));
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    public synchronized String encode() {
+        StringBuilder text = new StringBuilder();
+        for (Device device : mDevices.values()) {
+            text.append(device.getId()).append('\t')
+                    .append(device.getName()).append('\t')
+                    .append(device.getAddress()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads the devices written by {@link #encode()}, skipping malformed lines.
+     */
+    public static DeviceRegistry decode(String text) {
+        DeviceRegistry registry = new DeviceRegistry();
+        if (text == null) {
+            return registry;
+        }
+        for (String line : text.split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 3 && !fields[0].isEmpty()) {
+                registry.put(new Device(fields[0], fields[1], fields[2]));
+            }
+        }
+        return registry;
+    }
+}
@@ -0,0 +1,890 @@
+package com.mobilesw.homey;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+import androidx.preference.PreferenceManager;
+
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Foreground service that owns the connections to the Arduinos, so that they
+ * survive navigation between activities and configuration changes.
+ *
+ * Every device of the {@link DeviceRegistry}, kept in the preference
+ * "devices", stays connected through a {@link DeviceHub}; the screens show
+ * and switch the selected one, the first of the registry.
+ *
+ * The service stores the readings and logs the events of every device,
+ * each under its ID, and applies those of the selected one and the switches
+ * of the user to the {@link DeviceStore}, which the screens observe. The
+ * logs are summed up per day in {@link DailyRollups}. The messages are
+ * handled on a processing thread, from the readings stored to the logs
+ * queued; the main thread is only posted the fields of the state that
+ * changed. The automation rules of the user, see {@link AutomationRule}, run
+ * on every sample of their device there too. Activities bind to it to send
+ * commands and register a {@link Listener} to be told about the connection.
+ */
+public class DeviceService extends Service {
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(ConnectionManager.State state, String name);
+    }
+
+    public class LocalBinder extends Binder {
+        DeviceService getService() {
+            return DeviceService.this;
+        }
+    }
+
+    private static final String TAG = DeviceService.class.getSimpleName();
+
+    public static final String ACTION_DISCONNECT = "com.mobilesw.homey.action.DISCONNECT";
+    private static final String CHANNEL_ID = "device";
+    private static final int NOTIFICATION_ID = 1;
+
+    // codes for identifying shared types between calling functions
+    private final static int MESSAGE_READ = 1; // used in processing handler to identify message update
+    private final static int CONNECTION_STATUS = 2; // used in main handler to identify message status
+    private final static int TELEMETRY_READ = 3; // used in processing handler to identify temperature & humidity update
+    private final static int COMMAND_ACKNOWLEDGED = 4; // arg1: command, arg2: round trip time or -1
+    private final static int COMMAND_FAILED = 5; // arg1: command
+
+    // tag codes for Bluetooth writing, CONNECTED is sent by the ConnectionManager
+    private final static String LIGHTS_OFF = "1";
+    private final static String LIGHTS_ON = "2";
+    private final static String FAN_OFF = "3";
+    private final static String FAN_ON = "4";
+    private final static String AUTO_LIGHTS = "5"; // auto-activate lights
+    private final static String NO_AUTO_LIGHTS = "6"; // disable auto-activate lights
+    private final static String AUTO_FAN = "7"; // auto-activate fan
+    private final static String NO_AUTO_FAN = "8"; // disable auto-activate fan
+    private final static String NO_AUTO_LIGHTS_FAN = "9"; // disable auto-activate lights & fan
+
+    private static final String DEVICES_KEY = "devices";
+    static final String RULES_KEY = "automation_rules";
+    private static final DeviceRegistry.Device DEFAULT_DEVICE =
+            new DeviceRegistry.Device("HC-06", "HC-06", "00:19:07:00:3C:C1"); // our Bluetooth module
+
+    private String mDeviceId; // the selected device
+    private String mBtName; // name of its Bluetooth module
+
+    private final IBinder mBinder = new LocalBinder();
+    private Handler mHandler; // main thread handler that receives the connection status
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler; // receives the messages of the Arduino
+    private Listener mListener;
+    private boolean mForeground = false; // whether the notification is shown
+    private SharedPreferences sharedPreferences;
+    private final DeviceStore mStore = getStore();
+
+    private static DeviceStore sStore;
+
+    private DeviceHub mHub;
+
+    private static final long SAMPLE_RETENTION_MILLIS = 90L * 24 * 3600 * 1000; // 90 days
+    private static final int HOT_SAMPLES = 4320; // 6 hours of samples every 5 seconds
+    private volatile SampleStore mSamples; // of the selected device, null if it cannot be opened
+    private final CountDownLatch mSamplesOpened = new CountDownLatch(1);
+    private final Map<String, DeviceData> mDevices = new HashMap<>(); // by ID, processing thread
+
+    private final ScheduledExecutorService logExecutor = Executors.newSingleThreadScheduledExecutor();
+    private LogBatcher logBatcher; // on the log executor, null until Firebase is initialized
+    private FirestoreLogWriter mLogWriter; // same
+
+    private static final long ROLLUP_WRITE_MILLIS = 10 * 60 * 1000; // rollups changed by the samples only
+    static final String LOG_RETENTION_KEY = "log_retention_days"; // 0 to keep every log
+    private static final long COMPACTION_DELAY_MILLIS = 60 * 1000; // after the start, not to slow it down
+    private static final long COMPACTION_INTERVAL_MILLIS = 24L * 3600 * 1000;
+    // pages through the logs to delete, on its own not to hold the logs back meanwhile
+    private final ScheduledExecutorService mCompactionExecutor = Executors.newSingleThreadScheduledExecutor();
+    private DailyRollups mRollups;
+
+    private static final RulesEngine NO_RULES = new RulesEngine(Collections.<AutomationRule>emptyList());
+    private Map<String, RulesEngine> mRules = Collections.emptyMap(); // by device, processing thread
+
+    /**
+     * What is kept of a device, on the processing thread.
+     */
+    private static final class DeviceData {
+
+        final SampleStore mSamples; // null if it cannot be opened
+        final TelemetryStats mStats = new TelemetryStats();
+
+        DeviceData(SampleStore samples) {
+            mSamples = samples;
+        }
+    }
+
+    /**
+     * Opens the samples of the selected device, then starts its statistics
+     * with those of the last day, once.
+     */
+    private final Runnable mOpenSamples = new Runnable() {
+        @Override
+        public void run() {
+            final DeviceData device = device(mDeviceId);
+            mSamples = device.mSamples;
+            mSamplesOpened.countDown();
+            if (mSamples == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            try {
+                mSamples.scan(now - TelemetryStats.Window.DAY.getMillis(), now + 1, new SampleStore.Visitor() {
+                    @Override
+                    public void onSample(long timeMillis, int temperature, int humidity) {
+                        device.mStats.add(timeMillis, temperature, humidity);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read the samples", e); // the statistics start with the next readings
+            }
+            mStore.statsChanged(device.mStats.getSnapshot());
+        }
+    };
+
+    private final Runnable mLoadRules = new Runnable() {
+        @Override
+        public void run() {
+            List<AutomationRule> rules;
+            try {
+                rules = AutomationRule.parseAll(sharedPreferences.getString(RULES_KEY, null));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid automation rules", e); // checked by the settings when edited
+                rules = Collections.emptyList();
+            }
+            // a rule runs on the samples of the device its conditions are on
+            Map<String, List<AutomationRule>> byDevice = new HashMap<>();
+            for (AutomationRule rule : rules) {
+                List<AutomationRule> list = byDevice.get(rule.getSensorDeviceId());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byDevice.put(rule.getSensorDeviceId(), list);
+                }
+                list.add(rule);
+            }
+            Map<String, RulesEngine> engines = new HashMap<>();
+            for (Map.Entry<String, List<AutomationRule>> entry : byDevice.entrySet()) {
+                engines.put(entry.getKey(), new RulesEngine(entry.getValue()));
+            }
+            mRules = engines;
+        }
+    };
+
+    /**
+     * Replaces the logs older than the retention chosen by the user, if any,
+     * by their daily rollups, at most once a day, once the History has
+     * migrated the logs, for them to be ordered. The rollups pending on the
+     * log executor are written there first, for the days they close to be
+     * found instead of rebuilt.
+     */
+    private final Runnable mCompactLogs = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compactLogs();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Compaction failed", e); // tried again the next day, not to cancel the schedule
+            }
+        }
+
+        private void compactLogs() {
+            long retentionDays = Long.parseLong(sharedPreferences.getString(LOG_RETENTION_KEY, "0"));
+            FirebaseUser user = FirebaseLoader.getAuth(DeviceService.this).getCurrentUser();
+            if (retentionDays <= 0 || user == null
+                    || !sharedPreferences.getBoolean(History.MIGRATED_KEY_PREFIX + user.getUid(), false)) {
+                return;
+            }
+            String key = "userlogs_compacted_" + user.getUid();
+            long now = System.currentTimeMillis();
+            if (now - sharedPreferences.getLong(key, 0) < COMPACTION_INTERVAL_MILLIS) {
+                return;
+            }
+            FirebaseFirestore db = FirebaseLoader.getFirestore(DeviceService.this);
+            try {
+                logExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRollups.advance(System.currentTimeMillis());
+                        saveRollups();
+                        if (mLogWriter != null) {
+                            mLogWriter.writeRollups();
+                        }
+                    }
+                }).get();
+                int deleted = UserLogDocuments.compact(db.collection("UserLogs"), db.collection("UserLogRollups"),
+                        user.getUid(), now - retentionDays * 24 * 3600 * 1000, TimeZone.getDefault(), mDeviceId);
+                Log.i(TAG, "Compacted " + deleted + " logs");
+                sharedPreferences.edit().putLong(key, now).apply();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Compaction failed", e); // tried again next time
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    // kept here, the preferences only keep a weak reference to it
+    private final OnSharedPreferenceChangeListener mSettingsListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+            if (RULES_KEY.equals(key)) {
+                mProcessingHandler.post(mLoadRules);
+                return;
+            }
+            updateSettings();
+        }
+    };
+
+    /**
+     * The state of the device shared by every screen, observed on the main thread.
+     */
+    static synchronized DeviceStore getStore() {
+        if (sStore == null) {
+            final Handler main = new Handler(Looper.getMainLooper());
+            sStore = new DeviceStore(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    main.post(command);
+                }
+            });
+        }
+        return sStore;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            // the messages of the Arduino must not reach the disk or the network from the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+        }
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(mSettingsListener);
+        updateSettings();
+        mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return handleConnectionMessage(msg);
+            }
+        });
+        mProcessingThread = new HandlerThread("DeviceProcessing", Process.THREAD_PRIORITY_BACKGROUND);
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return handleDeviceMessage(msg);
+            }
+        });
+        mProcessingHandler.post(mLoadRules);
+
+        DeviceRegistry registry = loadRegistry(sharedPreferences);
+        selectDevice(registry);
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mHub = new DeviceHub(registry, new DeviceHub.TransportFactory() {
+            @Override
+            public Transport create(DeviceRegistry.Device device) {
+                return new BluetoothTransport(adapter, device.getAddress(), device.getName());
+            }
+        }, DeviceHub.DEFAULT_WRITER_THREADS, new DeviceHub.Listener() {
+            @Override
+            public void onMessage(String deviceId, int type, int temperature, int humidity) {
+                if (type == TelemetryParser.TEMP_AND_HUMIDITY) {
+                    mProcessingHandler.obtainMessage(TELEMETRY_READ, temperature, humidity, deviceId).sendToTarget();
+                } else {
+                    mProcessingHandler.obtainMessage(MESSAGE_READ, type, -1, deviceId).sendToTarget();
+                }
+            }
+
+            @Override
+            public void onStateChanged(String deviceId, ConnectionManager.State state) {
+                if (deviceId.equals(mDeviceId)) {
+                    mHandler.obtainMessage(CONNECTION_STATUS, state.ordinal(), -1).sendToTarget();
+                }
+            }
+
+            @Override
+            public void onCommandAcknowledged(String deviceId, CommandQueue.Command command, long roundTripMillis) {
+                if (deviceId.equals(mDeviceId)) {
+                    mProcessingHandler.obtainMessage(COMMAND_ACKNOWLEDGED, command.getCommand().charAt(0),
+                            (int) roundTripMillis).sendToTarget();
+                }
+            }
+
+            @Override
+            public void onCommandFailed(String deviceId, CommandQueue.Command command) {
+                if (deviceId.equals(mDeviceId)) {
+                    mProcessingHandler.obtainMessage(COMMAND_FAILED, command.getCommand().charAt(0), -1)
+                            .sendToTarget();
+                }
+            }
+        });
+
+        // the on-time of the devices, like the climate, is that of the selected one
+        mRollups = new DailyRollups(new File(getFilesDir(), "rollups"), TimeZone.getDefault(), mDeviceId);
+        final Future<?> rollupsLoaded = logExecutor.submit(new Runnable() { // before the logs are replayed
+            @Override
+            public void run() {
+                try {
+                    mRollups.load();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not load the rollups", e); // the current days start again
+                }
+            }
+        });
+        // the samples are then added to the rollups loaded, instead of being cleared by the load
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rollupsLoaded.get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Could not load the rollups", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // the log executor waits for Firebase to be initialized, not the main thread
+        logExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startLogs();
+            }
+        });
+        logExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mRollups.advance(System.currentTimeMillis());
+                saveRollups();
+                if (mLogWriter != null) {
+                    mLogWriter.writeRollups();
+                }
+            }
+        }, ROLLUP_WRITE_MILLIS, ROLLUP_WRITE_MILLIS, TimeUnit.MILLISECONDS);
+        mCompactionExecutor.scheduleWithFixedDelay(mCompactLogs, COMPACTION_DELAY_MILLIS, COMPACTION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        mProcessingHandler.post(mOpenSamples); // its files are read, not on the main thread
+
+        createNotificationChannel();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            disconnect();
+            mForeground = false;
+            stopForeground(true);
+            stopSelf(); // destroyed once no activity is bound anymore
+        } else {
+            mForeground = true;
+            startForeground(NOTIFICATION_ID, buildNotification());
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mForeground = false;
+        mHub.shutdown();
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(mSettingsListener);
+        mHandler.removeCallbacksAndMessages(null);
+        mStore.connectionChanged(ConnectionManager.State.DISCONNECTED, mBtName); // its message was just removed
+        mCompactionExecutor.shutdownNow(); // a compaction interrupted goes on the next time
+        // after the messages already received
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                logExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (logBatcher != null) {
+                            logBatcher.setListener(null);
+                            logBatcher.flush();
+                        }
+                        saveRollups();
+                    }
+                });
+                logExecutor.shutdown(); // runs the pending flush, then stops
+                for (DeviceData device : mDevices.values()) {
+                    if (device.mSamples != null) {
+                        device.mSamples.close();
+                    }
+                }
+            }
+        });
+        mProcessingThread.quitSafely();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Connects to the Bluetooth modules, unless already connected or connecting.
+     * Lost connections are retried until {@link #disconnect()}.
+     */
+    public void connect() {
+        if (mStore.getState().getConnectionState() == ConnectionManager.State.DISCONNECTED) {
+            Toast.makeText(getApplicationContext(), "Connecting...", Toast.LENGTH_SHORT).show();
+        }
+        mHub.start();
+    }
+
+    public void disconnect() {
+        mHub.stop();
+    }
+
+    /**
+     * Temperature & humidity history of the selected device, null if it could
+     * not be opened. Blocks until it is opened: call it off the main thread.
+     */
+    public SampleStore getSampleStore() throws InterruptedException {
+        mSamplesOpened.await();
+        return mSamples;
+    }
+
+    /**
+     * The command waits for the connection if the device is not connected.
+     */
+    public void switchLights(boolean on) {
+        mHub.send(mDeviceId, on ? LIGHTS_ON : LIGHTS_OFF, CommandQueue.Priority.MANUAL);
+        log(mDeviceId, LogEvent.Device.LIGHTS, on, LogEvent.Source.MANUAL);
+        mStore.switched(LogEvent.Device.LIGHTS, on);
+    }
+
+    public void switchFan(boolean on) {
+        mHub.send(mDeviceId, on ? FAN_ON : FAN_OFF, CommandQueue.Priority.MANUAL);
+        log(mDeviceId, LogEvent.Device.FAN, on, LogEvent.Source.MANUAL);
+        mStore.switched(LogEvent.Device.FAN, on);
+    }
+
+    /**
+     * Sends the auto-activation settings to the Arduino.
+     */
+    public void applySettings() {
+        DeviceState state = mStore.getState();
+        if (state.isAutoLightsEnabled() || state.isAutoFanEnabled()) {
+            mHub.send(mDeviceId, state.isAutoLightsEnabled() ? AUTO_LIGHTS : NO_AUTO_LIGHTS,
+                    CommandQueue.Priority.CONFIG);
+            mHub.send(mDeviceId, state.isAutoFanEnabled() ? AUTO_FAN : NO_AUTO_FAN, CommandQueue.Priority.CONFIG);
+        } else {
+            mHub.send(mDeviceId, NO_AUTO_LIGHTS_FAN, CommandQueue.Priority.CONFIG);
+        }
+    }
+
+    /**
+     * Writes the pending logs without waiting for the batch to fill.
+     */
+    public void flushLogs() {
+        logExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (logBatcher != null) {
+                    logBatcher.flush();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the processing thread.
+     */
+    private boolean handleDeviceMessage(Message msg) {
+        Metrics.HANDLER_DELAY.record(SystemClock.uptimeMillis() - msg.getWhen());
+        String deviceId = (String) msg.obj; // null for the commands, of the selected device only
+        boolean selected = mDeviceId.equals(deviceId); // the only one shown by the screens
+        switch (msg.what) {
+            case TELEMETRY_READ:
+                if (selected) {
+                    mStore.telemetryRead(msg.arg1, msg.arg2);
+                }
+                DeviceData device = device(deviceId);
+                storeSample(deviceId, device, msg.arg1, msg.arg2);
+                RulesEngine rules = rulesOf(deviceId);
+                updateStats(device, rules, selected, msg.arg1, msg.arg2);
+                Calendar now = Calendar.getInstance();
+                rules.set(AutomationRule.Sensor.TEMPERATURE, msg.arg1);
+                rules.set(AutomationRule.Sensor.HUMIDITY, msg.arg2);
+                rules.set(AutomationRule.Sensor.TIME_OF_DAY,
+                        now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE));
+                runRules(rules);
+                return true;
+            case MESSAGE_READ:
+                logEvent(deviceId, msg.arg1);
+                if (selected) {
+                    mStore.eventReceived(msg.arg1);
+                }
+                if (msg.arg1 == TelemetryParser.AUTO_LIGHTS_ON || msg.arg1 == TelemetryParser.AUTO_LIGHTS_OFF) {
+                    // the Arduino turns the lights on when its PIR sensor sees motion, and off a while after
+                    RulesEngine motionRules = rulesOf(deviceId);
+                    motionRules.set(AutomationRule.Sensor.MOTION, msg.arg1 == TelemetryParser.AUTO_LIGHTS_ON ? 1 : 0);
+                    runRules(motionRules);
+                }
+                return true;
+            case COMMAND_ACKNOWLEDGED:
+                String command = String.valueOf((char) msg.arg1);
+                if (msg.arg2 >= 0) {
+                    Log.d(TAG, "Command " + command + " acknowledged in " + msg.arg2 + " ms");
+                }
+                mStore.commandAcknowledged(deviceOf(command), command.equals(LIGHTS_ON) || command.equals(FAN_ON),
+                        msg.arg2);
+                return true;
+            case COMMAND_FAILED:
+                String failed = String.valueOf((char) msg.arg1);
+                Log.w(TAG, "Command " + failed + " not acknowledged");
+                if (deviceOf(failed) != null) {
+                    mStore.commandFailed(deviceOf(failed)); // the switch shows the last state confirmed again
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean handleConnectionMessage(Message msg) {
+        if (msg.what != CONNECTION_STATUS) {
+            return false;
+        }
+        ConnectionManager.State state = ConnectionManager.State.values()[msg.arg1];
+        mStore.connectionChanged(state, mBtName);
+        updateNotification();
+        if (mListener != null) {
+            mListener.onConnectionStateChanged(state, mBtName);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the actions of the rules whose conditions started to hold.
+     */
+    private void runRules(RulesEngine rules) {
+        for (int i = 0, fired = rules.evaluate(); i < fired; i++) {
+            AutomationRule rule = rules.getFired(i);
+            String command = rule.getAction().getCommand();
+            Log.d(TAG, "Rule " + rule.getName() + " fired");
+            mHub.send(rule.getDeviceId(), command, CommandQueue.Priority.AUTOMATION);
+            boolean on = command.equals(LIGHTS_ON) || command.equals(FAN_ON);
+            log(rule.getDeviceId(), deviceOf(command), on, LogEvent.Source.AUTO);
+            if (rule.getDeviceId().equals(mDeviceId)) {
+                mStore.switched(deviceOf(command), on);
+            }
+        }
+    }
+
+    /**
+     * The rules on the sensors of the device.
+     */
+    private RulesEngine rulesOf(String deviceId) {
+        RulesEngine rules = mRules.get(deviceId);
+        return rules != null ? rules : NO_RULES;
+    }
+
+    /**
+     * The data of the device, its samples opened the first time.
+     */
+    private DeviceData device(String deviceId) {
+        DeviceData device = mDevices.get(deviceId);
+        if (device == null) {
+            SampleStore samples = null;
+            try {
+                File dir = new File(new File(getFilesDir(), "samples"), URLEncoder.encode(deviceId, "UTF-8"));
+                if (deviceId.equals(mDeviceId)) {
+                    moveLegacySamples(dir.getParentFile(), dir);
+                }
+                samples = new SampleStore(dir, SAMPLE_RETENTION_MILLIS, HOT_SAMPLES);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the samples of " + deviceId, e);
+            }
+            device = new DeviceData(samples);
+            mDevices.put(deviceId, device);
+        }
+        return device;
+    }
+
+    /**
+     * Moves the samples kept before there was a store per device to the one
+     * of the selected device, the only one read then.
+     */
+    private static void moveLegacySamples(File root, File dir) throws IOException {
+        File[] files = root.listFiles();
+        if (files == null || dir.exists()) {
+            return;
+        }
+        if (!dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        for (File file : files) {
+            if (file.isFile() && !file.renameTo(new File(dir, file.getName()))) {
+                throw new IOException("Cannot move " + file);
+            }
+        }
+    }
+
+    /**
+     * Logs the switches made by the Arduino, before they are applied to the store.
+     */
+    private void logEvent(String deviceId, int type) {
+        DeviceState state = mStore.getState(); // the settings are the same for every device
+        switch (type) {
+            case TelemetryParser.AUTO_LIGHTS_OFF:
+                log(deviceId, LogEvent.Device.LIGHTS, false, LogEvent.Source.AUTO);
+                break;
+            case TelemetryParser.AUTO_FAN_OFF:
+                log(deviceId, LogEvent.Device.FAN, false, LogEvent.Source.AUTO);
+                break;
+            case TelemetryParser.AUTO_LIGHTS_ON:
+                if (state.isAutoLightsEnabled()) {
+                    log(deviceId, LogEvent.Device.LIGHTS, true, LogEvent.Source.AUTO);
+                }
+                break;
+            case TelemetryParser.AUTO_FAN_ON:
+                if (state.isAutoFanEnabled()) {
+                    log(deviceId, LogEvent.Device.FAN, true, LogEvent.Source.AUTO);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The device a command switches, null for the settings.
+     */
+    private static LogEvent.Device deviceOf(String command) {
+        if (command.equals(LIGHTS_ON) || command.equals(LIGHTS_OFF)) {
+            return LogEvent.Device.LIGHTS;
+        } else if (command.equals(FAN_ON) || command.equals(FAN_OFF)) {
+            return LogEvent.Device.FAN;
+        }
+        return null;
+    }
+
+    /**
+     * The devices of the preferences, or our Bluetooth module if there are none.
+     */
+    static DeviceRegistry loadRegistry(SharedPreferences preferences) {
+        DeviceRegistry registry = DeviceRegistry.decode(preferences.getString(DEVICES_KEY, null));
+        if (registry.size() == 0) {
+            registry.put(DEFAULT_DEVICE);
+        }
+        return registry;
+    }
+
+    /**
+     * The screens show the first device of the registry.
+     */
+    private void selectDevice(DeviceRegistry registry) {
+        DeviceRegistry.Device device = registry.getAll().get(0);
+        mDeviceId = device.getId();
+        mBtName = device.getName();
+    }
+
+    private void updateSettings() {
+        boolean autoActivate = sharedPreferences.getBoolean("auto-activate", true);
+        mStore.settingsChanged(autoActivate && sharedPreferences.getBoolean("auto_activate_lights", true),
+                autoActivate && sharedPreferences.getBoolean("auto_activate_fan", true));
+    }
+
+    private void storeSample(String deviceId, DeviceData device, int temperature, int humidity) {
+        long now = System.currentTimeMillis();
+        if (deviceId.equals(mDeviceId)) { // the rollups sum up the climate of one room
+            FirebaseUser user = FirebaseLoader.getAuth(this).getCurrentUser();
+            mRollups.addSample(user != null ? user.getUid() : null, now, temperature, humidity);
+        }
+        if (device.mSamples == null) {
+            return;
+        }
+        try {
+            device.mSamples.append(now, temperature, humidity);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store the sample", e);
+        }
+    }
+
+    /**
+     * Updates the statistics of the readings of the device, and the sensors of its rules made from them.
+     */
+    private void updateStats(DeviceData device, RulesEngine rules, boolean selected, int temperature, int humidity) {
+        device.mStats.add(System.currentTimeMillis(), temperature, humidity);
+        TelemetryStats.Snapshot stats = device.mStats.getSnapshot();
+        if (selected) {
+            mStore.statsChanged(stats);
+        }
+        rules.set(AutomationRule.Sensor.TEMPERATURE_TREND, (int) Math.round(
+                stats.get(TelemetryStats.Measure.TEMPERATURE, TelemetryStats.Window.HOUR).getRatePerHour()));
+        rules.set(AutomationRule.Sensor.HUMIDITY_TREND, (int) Math.round(
+                stats.get(TelemetryStats.Measure.HUMIDITY, TelemetryStats.Window.HOUR).getRatePerHour()));
+        rules.set(AutomationRule.Sensor.SENSOR_FAULT, stats.getAnomalies() != 0 ? 1 : 0);
+    }
+
+    /**
+     * Opens the journal of the logs and replays those not written before the
+     * app was closed, once Firebase is initialized. On the log executor.
+     */
+    private void startLogs() {
+        FirebaseFirestore db;
+        try {
+            db = FirebaseLoader.getFirestore(this);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not start the logs", e); // the logs are not kept
+            return;
+        }
+        LogJournal journal = new LogJournal(new File(getFilesDir(), "userlogs.journal"));
+        mLogWriter = new FirestoreLogWriter(db, db.collection("UserLogs"), mRollups, db.collection("UserLogRollups"));
+        logBatcher = new LogBatcher(journal, mLogWriter, logExecutor);
+        logBatcher.setListener(new LogBatcher.Listener() {
+            @Override
+            public void onBatchWritten(final int count) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceService.this, count + " logs have been added", Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+
+            @Override
+            public void onBatchFailed(int count, final Exception error) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceService.this, error.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        logBatcher.start();
+    }
+
+    /**
+     * Queues a log of the current user; it is written with the next batch.
+     * The user is read on the log executor, which waits for Firebase.
+     */
+    private void log(final String deviceId, final LogEvent.Device device, boolean on,
+                     final LogEvent.Source source) {
+        final long now = System.currentTimeMillis();
+        final LogEvent.Action action = on ? LogEvent.Action.ON : LogEvent.Action.OFF;
+        logExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (logBatcher == null) {
+                    return; // Firebase could not be initialized
+                }
+                FirebaseUser user = FirebaseLoader.getAuth(DeviceService.this).getCurrentUser(); // logged in
+                UserLog log = new UserLog(user != null ? user.getUid() : null, now, device, action, source, deviceId);
+                logBatcher.add(log);
+                mRollups.addLog(log);
+                saveRollups(); // events are few, unlike the samples
+            }
+        });
+    }
+
+    /**
+     * On the log executor.
+     */
+    private void saveRollups() {
+        try {
+            mRollups.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the rollups", e);
+        }
+    }
+
+    /**
+     * E.g. "Connected to HC-06", shown by the notification and the screens.
+     */
+    static String describeConnection(Context context, DeviceState state) {
+        switch (state.getConnectionState()) {
+            case CONNECTED:
+                return context.getString(R.string.device_connected, state.getDeviceName());
+            case DISCONNECTED:
+                return context.getString(R.string.device_not_connected);
+            default:
+                return context.getString(R.string.device_connecting, state.getDeviceName());
+        }
+    }
+
+    private void createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.device_channel_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+    }
+
+    private Notification buildNotification() {
+        Intent open = new Intent(this, BluetoothFunctions.class);
+        Intent disconnect = new Intent(this, DeviceService.class).setAction(ACTION_DISCONNECT);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(describeConnection(this, mStore.getState()))
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, 0))
+                .addAction(0, getString(R.string.disconnect), PendingIntent.getService(this, 0, disconnect, 0))
+                .setOngoing(true)
+                .build();
+    }
+
+    private void updateNotification() {
+        if (!mForeground) {
+            return;
+        }
+        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, buildNotification());
+    }
+}
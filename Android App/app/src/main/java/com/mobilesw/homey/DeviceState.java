@@ -0,0 +1,312 @@
+package com.mobilesw.homey;
+
+/**
+ * Immutable snapshot of the state of the Arduino as known by the app. A new
+ * snapshot is made by the reducers of the {@link DeviceStore} for every change,
+ * and {@link #diff(DeviceState)} tells which fields changed between two of them,
+ * so that the screens only update the views of those.
+ */
+public final class DeviceState {
+
+    // fields for diff(), as bit flags
+    public static final int CONNECTION = 1;
+    public static final int TELEMETRY = 1 << 1;
+    public static final int LIGHTS_ON = 1 << 2;
+    public static final int LIGHTS_CONFIRMED = 1 << 3;
+    public static final int LIGHTS_AUTO_ACTIVATED = 1 << 4;
+    public static final int FAN_ON = 1 << 5;
+    public static final int FAN_CONFIRMED = 1 << 6;
+    public static final int FAN_AUTO_ACTIVATED = 1 << 7;
+    public static final int SETTINGS = 1 << 8;
+    public static final int ROUND_TRIP = 1 << 9;
+    public static final int STATS = 1 << 10;
+    public static final int ALL = (1 << 11) - 1;
+
+    public static final DeviceState INITIAL = new DeviceState();
+
+    private ConnectionManager.State mConnectionState = ConnectionManager.State.DISCONNECTED;
+    private String mDeviceName = "";
+    private boolean mHasTelemetry = false;
+    private int mTemperature;
+    private int mHumidity;
+    private boolean mLightsOn = false;
+    private boolean mFanOn = false;
+    // last state applied by the Arduino, and whether a switch waits for its acknowledgement
+    private boolean mLightsApplied = false;
+    private boolean mFanApplied = false;
+    private boolean mLightsPending = false;
+    private boolean mFanPending = false;
+    private boolean mLightsAutoActivated = false;
+    private boolean mFanAutoActivated = false;
+    private boolean mAutoLightsEnabled = true;
+    private boolean mAutoFanEnabled = true;
+    private long mLastRoundTripMillis = -1;
+    private TelemetryStats.Snapshot mStats = TelemetryStats.Snapshot.EMPTY;
+
+    private DeviceState() {
+    }
+
+    public ConnectionManager.State getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Name of the Bluetooth module connected to, or being connected to.
+     */
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == ConnectionManager.State.CONNECTED;
+    }
+
+    public boolean hasTelemetry() {
+        return mHasTelemetry;
+    }
+
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    public int getHumidity() {
+        return mHumidity;
+    }
+
+    /**
+     * Whether the lights are on, or have been switched on and wait for the acknowledgement.
+     */
+    public boolean isLightsOn() {
+        return mLightsOn;
+    }
+
+    public boolean isFanOn() {
+        return mFanOn;
+    }
+
+    /**
+     * Whether the Arduino has acknowledged the state of the lights shown.
+     */
+    public boolean isLightsConfirmed() {
+        return !mLightsPending;
+    }
+
+    public boolean isFanConfirmed() {
+        return !mFanPending;
+    }
+
+    public boolean isLightsAutoActivated() {
+        return mLightsAutoActivated;
+    }
+
+    public boolean isFanAutoActivated() {
+        return mFanAutoActivated;
+    }
+
+    /**
+     * Whether the settings let the Arduino turn on the lights by itself.
+     */
+    public boolean isAutoLightsEnabled() {
+        return mAutoLightsEnabled;
+    }
+
+    public boolean isAutoFanEnabled() {
+        return mAutoFanEnabled;
+    }
+
+    /**
+     * Time from writing the last command measured to its acknowledgement, -1 if none yet.
+     */
+    public long getLastRoundTripMillis() {
+        return mLastRoundTripMillis;
+    }
+
+    /**
+     * Rolling statistics and anomalies of the readings, see {@link TelemetryStats}.
+     */
+    public TelemetryStats.Snapshot getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return the fields that differ from the other state, see {@link #ALL}
+     */
+    public int diff(DeviceState other) {
+        int changes = 0;
+        if (mConnectionState != other.mConnectionState || !mDeviceName.equals(other.mDeviceName)) {
+            changes |= CONNECTION;
+        }
+        if (mHasTelemetry != other.mHasTelemetry || mTemperature != other.mTemperature
+                || mHumidity != other.mHumidity) {
+            changes |= TELEMETRY;
+        }
+        if (mLightsOn != other.mLightsOn) {
+            changes |= LIGHTS_ON;
+        }
+        if (mLightsPending != other.mLightsPending) {
+            changes |= LIGHTS_CONFIRMED;
+        }
+        if (mLightsAutoActivated != other.mLightsAutoActivated) {
+            changes |= LIGHTS_AUTO_ACTIVATED;
+        }
+        if (mFanOn != other.mFanOn) {
+            changes |= FAN_ON;
+        }
+        if (mFanPending != other.mFanPending) {
+            changes |= FAN_CONFIRMED;
+        }
+        if (mFanAutoActivated != other.mFanAutoActivated) {
+            changes |= FAN_AUTO_ACTIVATED;
+        }
+        if (mAutoLightsEnabled != other.mAutoLightsEnabled || mAutoFanEnabled != other.mAutoFanEnabled) {
+            changes |= SETTINGS;
+        }
+        if (mLastRoundTripMillis != other.mLastRoundTripMillis) {
+            changes |= ROUND_TRIP;
+        }
+        if (mStats != other.mStats) {
+            changes |= STATS;
+        }
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceState{" + mConnectionState + " " + mDeviceName
+                + (mHasTelemetry ? " " + mTemperature + "ºC " + mHumidity + "%" : "")
+                + " lights=" + mLightsOn + (mLightsPending ? "?" : "") + (mLightsAutoActivated ? "(auto)" : "")
+                + " fan=" + mFanOn + (mFanPending ? "?" : "") + (mFanAutoActivated ? "(auto)" : "")
+                + "}";
+    }
+
+    // reducers, called by the DeviceStore
+
+    DeviceState withConnectionState(ConnectionManager.State state, String name) {
+        DeviceState next = copy();
+        next.mConnectionState = state;
+        next.mDeviceName = name;
+        return next;
+    }
+
+    DeviceState withTelemetry(int temperature, int humidity) {
+        DeviceState next = copy();
+        next.mHasTelemetry = true;
+        next.mTemperature = temperature;
+        next.mHumidity = humidity;
+        return next;
+    }
+
+    DeviceState withStats(TelemetryStats.Snapshot stats) {
+        DeviceState next = copy();
+        next.mStats = stats;
+        return next;
+    }
+
+    DeviceState withSettings(boolean autoLights, boolean autoFan) {
+        DeviceState next = copy();
+        next.mAutoLightsEnabled = autoLights;
+        next.mAutoFanEnabled = autoFan;
+        return next;
+    }
+
+    /**
+     * Switched by the user: shown right away, confirmed once acknowledged.
+     */
+    DeviceState withSwitch(LogEvent.Device device, boolean on) {
+        DeviceState next = copy();
+        if (device == LogEvent.Device.LIGHTS) {
+            next.mLightsOn = on;
+            next.mLightsPending = true;
+            next.mLightsAutoActivated = on && mLightsAutoActivated;
+        } else {
+            next.mFanOn = on;
+            next.mFanPending = true;
+            next.mFanAutoActivated = on && mFanAutoActivated;
+        }
+        return next;
+    }
+
+    /**
+     * Switched by the Arduino itself, unless the settings do not allow it to.
+     */
+    DeviceState withAutoActivation(LogEvent.Device device, boolean on) {
+        DeviceState next = copy();
+        if (device == LogEvent.Device.LIGHTS) {
+            if (on && !mAutoLightsEnabled) {
+                return this;
+            }
+            next.mLightsOn = on;
+            next.mLightsApplied = on;
+            next.mLightsPending = false;
+            next.mLightsAutoActivated = on;
+        } else {
+            if (on && !mAutoFanEnabled) {
+                return this;
+            }
+            next.mFanOn = on;
+            next.mFanApplied = on;
+            next.mFanPending = false;
+            next.mFanAutoActivated = on;
+        }
+        return next;
+    }
+
+    /**
+     * @param roundTripMillis -1 if not measured
+     */
+    DeviceState withAcknowledgement(LogEvent.Device device, boolean on, long roundTripMillis) {
+        DeviceState next = copy();
+        if (roundTripMillis >= 0) {
+            next.mLastRoundTripMillis = roundTripMillis;
+        }
+        if (device == LogEvent.Device.LIGHTS) {
+            next.mLightsApplied = on;
+            if (on == mLightsOn) {
+                next.mLightsPending = false;
+            }
+        } else if (device == LogEvent.Device.FAN) {
+            next.mFanApplied = on;
+            if (on == mFanOn) {
+                next.mFanPending = false;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The Arduino did not acknowledge the switch: the last state it applied is shown again.
+     */
+    DeviceState withFailure(LogEvent.Device device) {
+        DeviceState next = copy();
+        if (device == LogEvent.Device.LIGHTS) {
+            next.mLightsOn = mLightsApplied;
+            next.mLightsPending = false;
+        } else {
+            next.mFanOn = mFanApplied;
+            next.mFanPending = false;
+        }
+        return next;
+    }
+
+    private DeviceState copy() {
+        DeviceState copy = new DeviceState();
+        copy.mConnectionState = mConnectionState;
+        copy.mDeviceName = mDeviceName;
+        copy.mHasTelemetry = mHasTelemetry;
+        copy.mTemperature = mTemperature;
+        copy.mHumidity = mHumidity;
+        copy.mLightsOn = mLightsOn;
+        copy.mFanOn = mFanOn;
+        copy.mLightsApplied = mLightsApplied;
+        copy.mFanApplied = mFanApplied;
+        copy.mLightsPending = mLightsPending;
+        copy.mFanPending = mFanPending;
+        copy.mLightsAutoActivated = mLightsAutoActivated;
+        copy.mFanAutoActivated = mFanAutoActivated;
+        copy.mAutoLightsEnabled = mAutoLightsEnabled;
+        copy.mAutoFanEnabled = mAutoFanEnabled;
+        copy.mLastRoundTripMillis = mLastRoundTripMillis;
+        copy.mStats = mStats;
+        return copy;
+    }
+}
@@ -0,0 +1,147 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the current {@link DeviceState} of the app, shared by every screen.
+ *
+ * The {@link DeviceService} feeds it the decoded messages of the Arduino and
+ * the actions of the user through the reducers below, each of which replaces
+ * the state with a new snapshot. Observers are told which fields changed, and
+ * not told at all when a message changes nothing, e.g. the same readings sent
+ * again.
+ *
+ * The reducers can be called from any thread. The observers are called on
+ * the executor given, the main thread in the app, which is only posted a
+ * task when something changed: the changes made before it runs are told at
+ * once.
+ */
+public class DeviceStore {
+
+    public interface Observer {
+        /**
+         * @param changes the fields changed, see {@link DeviceState#diff(DeviceState)}
+         */
+        void onStateChanged(DeviceState state, int changes);
+    }
+
+    private final Executor mObserverExecutor;
+    private volatile DeviceState mState = DeviceState.INITIAL; // replaced by the reducers
+    private final AtomicBoolean mPublishPending = new AtomicBoolean();
+
+    // used on the executor of the observers
+    private DeviceState mPublished = DeviceState.INITIAL;
+    private final List<Observer> mObservers = new ArrayList<>();
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            mPublishPending.set(false); // before reading the state, so that later changes are posted again
+            DeviceState state = mState;
+            int changes = state.diff(mPublished);
+            mPublished = state;
+            if (changes == 0) {
+                return;
+            }
+            for (Observer observer : new ArrayList<>(mObservers)) {
+                observer.onStateChanged(state, changes);
+            }
+        }
+    };
+
+    /**
+     * @param observerExecutor runs the observers, one task at a time
+     */
+    public DeviceStore(Executor observerExecutor) {
+        mObserverExecutor = observerExecutor;
+    }
+
+    /**
+     * The latest state, which the observers may not have been told yet.
+     */
+    public DeviceState getState() {
+        return mState;
+    }
+
+    /**
+     * Tells the observer the state last told, with every field changed, and then its changes.
+     * Called on the executor of the observers.
+     */
+    public void observe(Observer observer) {
+        mObservers.add(observer);
+        observer.onStateChanged(mPublished, DeviceState.ALL);
+    }
+
+    public void removeObserver(Observer observer) {
+        mObservers.remove(observer);
+    }
+
+    public synchronized void connectionChanged(ConnectionManager.State state, String name) {
+        update(mState.withConnectionState(state, name));
+    }
+
+    public synchronized void telemetryRead(int temperature, int humidity) {
+        update(mState.withTelemetry(temperature, humidity));
+    }
+
+    public synchronized void statsChanged(TelemetryStats.Snapshot stats) {
+        update(mState.withStats(stats));
+    }
+
+    /**
+     * @param autoLights whether the Arduino may turn on the lights by itself
+     */
+    public synchronized void settingsChanged(boolean autoLights, boolean autoFan) {
+        update(mState.withSettings(autoLights, autoFan));
+    }
+
+    /**
+     * Applies a {@link TelemetryParser} message other than the readings.
+     */
+    public synchronized void eventReceived(int type) {
+        switch (type) {
+            case TelemetryParser.AUTO_LIGHTS_OFF:
+                update(mState.withAutoActivation(LogEvent.Device.LIGHTS, false));
+                break;
+            case TelemetryParser.AUTO_LIGHTS_ON:
+                update(mState.withAutoActivation(LogEvent.Device.LIGHTS, true));
+                break;
+            case TelemetryParser.AUTO_FAN_OFF:
+                update(mState.withAutoActivation(LogEvent.Device.FAN, false));
+                break;
+            case TelemetryParser.AUTO_FAN_ON:
+                update(mState.withAutoActivation(LogEvent.Device.FAN, true));
+                break;
+        }
+    }
+
+    public synchronized void switched(LogEvent.Device device, boolean on) {
+        update(mState.withSwitch(device, on));
+    }
+
+    /**
+     * @param device null for the commands that switch nothing
+     * @param roundTripMillis -1 if not measured
+     */
+    public synchronized void commandAcknowledged(LogEvent.Device device, boolean on, long roundTripMillis) {
+        update(mState.withAcknowledgement(device, on, roundTripMillis));
+    }
+
+    public synchronized void commandFailed(LogEvent.Device device) {
+        update(mState.withFailure(device));
+    }
+
+    private void update(DeviceState next) {
+        if (next == mState) {
+            return;
+        }
+        boolean changed = next.diff(mState) != 0;
+        mState = next;
+        if (changed && mPublishPending.compareAndSet(false, true)) {
+            mObserverExecutor.execute(mPublish);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.mobilesw.homey;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.CollectionReference;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports the logs and the temperature & humidity history of the user to a
+ * file picked by the user, as CSV or in the binary format of
+ * {@link HistoryFile}, and imports them back from such a file.
+ */
+public class ExportActivity extends AppCompatActivity {
+
+    private static final String TAG = ExportActivity.class.getSimpleName();
+
+    private static final int REQUEST_EXPORT_CSV = 1;
+    private static final int REQUEST_EXPORT_BINARY = 2;
+    private static final int REQUEST_IMPORT = 3;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static Transfer sTransfer; // the running one, null if none; main thread only
+
+    private String mUserID;
+    private ProgressBar mProgressBar;
+    private TextView mStatus;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_export);
+        mProgressBar = findViewById(R.id.export_progress);
+        mStatus = findViewById(R.id.export_status);
+        findViewById(R.id.export_csv).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                pickExportFile(HistoryFile.Format.CSV, "text/csv", REQUEST_EXPORT_CSV);
+            }
+        });
+        findViewById(R.id.export_binary).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                pickExportFile(HistoryFile.Format.BINARY, "application/octet-stream", REQUEST_EXPORT_BINARY);
+            }
+        });
+        findViewById(R.id.export_import).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, REQUEST_IMPORT);
+            }
+        });
+        setEnabled(false); // until the user is known
+        FirebaseLoader.whenReady(this, new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed()) {
+                    return;
+                }
+                FirebaseUser user = FirebaseLoader.getAuth(ExportActivity.this).getCurrentUser();
+                if (user == null) {
+                    finish();
+                    return;
+                }
+                mUserID = user.getUid();
+                if (sTransfer != null) {
+                    sTransfer.attach(ExportActivity.this); // started before the screen was rotated, or left
+                } else {
+                    setEnabled(true);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (sTransfer != null) {
+            sTransfer.detach(this); // it goes on without the screen
+        }
+    }
+
+    private void pickExportFile(HistoryFile.Format format, String type, int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(type);
+        intent.putExtra(Intent.EXTRA_TITLE, "homey-"
+                + new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date()) + "." + format.getExtension());
+        startActivityForResult(intent, requestCode);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        switch (requestCode) {
+            case REQUEST_EXPORT_CSV:
+                transfer(data.getData(), HistoryFile.Format.CSV);
+                break;
+            case REQUEST_EXPORT_BINARY:
+                transfer(data.getData(), HistoryFile.Format.BINARY);
+                break;
+            case REQUEST_IMPORT:
+                transfer(data.getData(), null);
+                break;
+        }
+    }
+
+    /**
+     * Exports to the file, or imports from it if the format is null, in the background.
+     */
+    private void transfer(Uri uri, HistoryFile.Format format) {
+        if (sTransfer != null) {
+            return; // one at a time, the buttons are disabled meanwhile
+        }
+        sTransfer = new Transfer(getApplicationContext(), uri, format, mUserID);
+        sTransfer.attach(this);
+        sTransfer.start();
+    }
+
+    private void showProgress(long rows, long bytes, long size) {
+        setEnabled(false);
+        mProgressBar.setIndeterminate(size <= 0);
+        if (size > 0) {
+            mProgressBar.setProgress((int) (bytes * mProgressBar.getMax() / size));
+        }
+        mStatus.setText(rows > 0 ? getString(R.string.history_rows, rows) : getString(R.string.history_loading));
+    }
+
+    private void showResult(String message) {
+        mStatus.setText(message);
+        setEnabled(true);
+    }
+
+    private void setEnabled(boolean enabled) {
+        findViewById(R.id.export_csv).setEnabled(enabled);
+        findViewById(R.id.export_binary).setEnabled(enabled);
+        findViewById(R.id.export_import).setEnabled(enabled);
+        mProgressBar.setVisibility(enabled ? View.INVISIBLE : View.VISIBLE);
+    }
+
+    /**
+     * A transfer that outlives the screen that started it, shown by the
+     * screen attached to it if any. It holds a binding to the DeviceService
+     * until it is done, so that the samples stay open meanwhile. Used on the
+     * main thread, but for {@link #run()} on the executor.
+     */
+    private static final class Transfer implements ServiceConnection, Runnable {
+
+        private final Context mContext;
+        private final Uri mUri;
+        private final HistoryFile.Format mFormat; // null to import
+        private final String mUserID;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private boolean mBound = false;
+        private boolean mStarted = false;
+        private volatile DeviceService mService; // for the samples, null if it could not be bound
+        private ExportActivity mActivity; // showing it, null if none
+        private long mRows = 0;
+        private long mBytes = 0;
+        private long mSize = -1; // of the file imported, -1 if unknown
+
+        Transfer(Context context, Uri uri, HistoryFile.Format format, String userID) {
+            mContext = context;
+            mUri = uri;
+            mFormat = format;
+            mUserID = userID;
+        }
+
+        void start() {
+            mBound = mContext.bindService(new Intent(mContext, DeviceService.class), this,
+                    Context.BIND_AUTO_CREATE);
+            if (!mBound) {
+                execute(); // the logs only
+            }
+        }
+
+        void attach(ExportActivity activity) {
+            mActivity = activity;
+            activity.showProgress(mRows, mBytes, mSize);
+        }
+
+        void detach(ExportActivity activity) {
+            if (mActivity == activity) {
+                mActivity = null;
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((DeviceService.LocalBinder) binder).getService();
+            execute();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // the process of the service died, and this one with it
+        }
+
+        private void execute() {
+            if (!mStarted) {
+                mStarted = true;
+                sExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            String message;
+            ParcelFileDescriptor file = null;
+            try {
+                CollectionReference logs = FirebaseLoader.getFirestore(mContext).collection("UserLogs");
+                SampleStore samples = mService != null ? mService.getSampleStore() : null;
+                file = mContext.getContentResolver().openFileDescriptor(mUri, mFormat != null ? "wt" : "r");
+                long rows;
+                if (mFormat != null) {
+                    FileChannel channel = new FileOutputStream(file.getFileDescriptor()).getChannel();
+                    rows = HistoryTransfer.export(channel, mFormat, logs, mUserID, samples, progress(-1));
+                    message = mContext.getString(R.string.history_exported, rows);
+                } else {
+                    FileChannel channel = new FileInputStream(file.getFileDescriptor()).getChannel();
+                    rows = HistoryTransfer.importFrom(channel, logs, mUserID, samples,
+                            progress(file.getStatSize()));
+                    message = mContext.getString(R.string.history_imported, rows);
+                }
+            } catch (Exception e) { // I/O, a malformed file or Firestore
+                Log.e(TAG, "Transfer failed", e);
+                message = e.getMessage();
+            } finally {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        // the file was written or read already
+                    }
+                }
+            }
+            final String result = message;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mBound) {
+                        mContext.unbindService(Transfer.this);
+                    }
+                    sTransfer = null;
+                    if (mActivity != null) {
+                        mActivity.showResult(result);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Shows the rows transferred, and the part of the file read if its size is known.
+         */
+        private HistoryFile.Progress progress(final long size) {
+            return new HistoryFile.Progress() {
+                @Override
+                public void onProgress(final long rows, final long bytes) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRows = rows;
+                            mBytes = bytes;
+                            mSize = size;
+                            if (mActivity != null) {
+                                mActivity.showProgress(rows, bytes, size);
+                            }
+                        }
+                    });
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.mobilesw.homey;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Initializes Firebase on a background thread when the app starts, instead of
+ * on the main thread before the first frame (its init provider is removed
+ * from the manifest).
+ *
+ * The getters wait for the initialization if it has not finished yet, and
+ * start it if nobody did, so Firebase is never used uninitialized.
+ */
+public class FirebaseLoader {
+
+    private static final String TAG = FirebaseLoader.class.getSimpleName();
+
+    private static final CountDownLatch sReady = new CountDownLatch(1);
+    private static boolean sStarted = false;
+    private static final List<Runnable> sCallbacks = new ArrayList<>(); // waiting for the initialization
+    private static Handler sMainHandler;
+
+    private FirebaseLoader() {
+    }
+
+    public static synchronized void start(Context context) {
+        if (sStarted) {
+            return;
+        }
+        sStarted = true;
+        sMainHandler = new Handler(Looper.getMainLooper());
+        final Context application = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initialize(application);
+            }
+        }, "FirebaseLoader").start();
+    }
+
+    public static boolean isReady() {
+        return sReady.getCount() == 0;
+    }
+
+    /**
+     * Runs the callback on the main thread once Firebase is initialized,
+     * right away if it is already.
+     */
+    public static synchronized void whenReady(Context context, Runnable callback) {
+        start(context);
+        if (isReady()) {
+            callback.run();
+        } else {
+            sCallbacks.add(callback);
+        }
+    }
+
+    public static FirebaseAuth getAuth(Context context) {
+        await(context);
+        return FirebaseAuth.getInstance();
+    }
+
+    public static FirebaseFirestore getFirestore(Context context) {
+        await(context);
+        return FirebaseFirestore.getInstance();
+    }
+
+    private static void initialize(Context context) {
+        try {
+            FirebaseApp.initializeApp(context);
+            FirebaseAuth.getInstance().getCurrentUser(); // reads the user signed in from the disk
+            FirebaseFirestore.getInstance();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not initialize Firebase", e); // thrown again by the getters
+        }
+        synchronized (FirebaseLoader.class) {
+            sReady.countDown();
+            for (Runnable callback : sCallbacks) {
+                sMainHandler.post(callback);
+            }
+            sCallbacks.clear();
+        }
+    }
+
+    private static void await(Context context) {
+        start(context);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sReady.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.mobilesw.homey;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.List;
+
+/**
+ * Writes each batch of {@link LogBatcher} to the UserLogs collection as one
+ * Firestore WriteBatch. Documents are named after the journal entry ids, so a
+ * batch written again after a crash overwrites the same documents.
+ *
+ * The {@link DailyRollup}s changed since they were last written go in the
+ * same WriteBatch, to the UserLogRollups collection, or on their own with
+ * {@link #writeRollups()}.
+ */
+public class FirestoreLogWriter implements LogBatcher.BatchWriter {
+
+    private static final int MAX_ROLLUPS = 100; // per WriteBatch, of at most 500 writes
+
+    private final FirebaseFirestore mDb;
+    private final CollectionReference mLogs;
+    private final DailyRollups mRollups;
+    private final CollectionReference mRollupDocuments;
+
+    public FirestoreLogWriter(FirebaseFirestore db, CollectionReference logs, DailyRollups rollups,
+                              CollectionReference rollupDocuments) {
+        mDb = db;
+        mLogs = logs;
+        mRollups = rollups;
+        mRollupDocuments = rollupDocuments;
+    }
+
+    @Override
+    public void write(final List<LogJournal.Entry> entries, final LogBatcher.Callback callback) {
+        WriteBatch batch = mDb.batch();
+        for (LogJournal.Entry entry : entries) {
+            batch.set(mLogs.document(entry.getId()), entry.getLog());
+        }
+        final List<DailyRollup> rollups = setRollups(batch);
+        batch.commit().addOnCompleteListener(new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(@NonNull Task<Void> task) {
+                if (task.isSuccessful()) {
+                    mRollups.written(rollups);
+                }
+                callback.onComplete(entries, task.isSuccessful() ? null : task.getException());
+            }
+        });
+    }
+
+    /**
+     * Writes the rollups changed, e.g. by the samples, since the last batch. Failures are retried with the next one.
+     */
+    public void writeRollups() {
+        WriteBatch batch = mDb.batch();
+        final List<DailyRollup> rollups = setRollups(batch);
+        if (rollups.isEmpty()) {
+            return;
+        }
+        batch.commit().addOnCompleteListener(new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(@NonNull Task<Void> task) {
+                if (task.isSuccessful()) {
+                    mRollups.written(rollups);
+                } else {
+                    Metrics.BATCH_FAILURES.increment();
+                }
+            }
+        });
+    }
+
+    private List<DailyRollup> setRollups(WriteBatch batch) {
+        List<DailyRollup> rollups = mRollups.getChanged();
+        if (rollups.size() > MAX_ROLLUPS) {
+            rollups = rollups.subList(0, MAX_ROLLUPS); // the others go with the next batches
+        }
+        for (DailyRollup rollup : rollups) {
+            batch.set(mRollupDocuments.document(DailyRollup.documentId(rollup.getUserID(), rollup.getDay())), rollup);
+        }
+        return rollups;
+    }
+}
@@ -0,0 +1,156 @@
+package com.mobilesw.homey;
+
+/**
+ * Streaming decoder for the frames exchanged with the Arduino.
+ *
+ * A frame is the payload followed by '*', two hex digits with the XOR of the
+ * payload bytes and '\n':
+ *
+ *     TH23 45*3C\n
+ *
+ * Bytes are kept in one ring buffer between calls to {@link #feed(byte[], int, int)},
+ * so any number of frames can be decoded from a single read and a frame split
+ * across several reads is rebuilt. Frames with a wrong checksum or longer than
+ * the buffer are dropped, and decoding resumes after the next '\n'.
+ * Decoding does not allocate.
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives the payload of every valid frame. The buffer is reused by the
+     * decoder, so implementations must copy the bytes they want to keep.
+     */
+    public interface Listener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    public static final byte FRAME_END = '\n';
+    public static final byte CHECKSUM_SEPARATOR = '*';
+    public static final int CHECKSUM_LENGTH = 3; // '*' and two hex digits
+
+    private static final int CAPACITY = 64; // power of two, longest frame accepted
+
+    private final Listener mListener;
+    private final byte[] mRing = new byte[CAPACITY];
+    private final byte[] mScratch = new byte[CAPACITY]; // frames wrapping around the end of the ring
+    private int mHead = 0; // first byte of the pending frame
+    private int mSize = 0; // bytes of the pending frame
+    private boolean mDiscarding = false; // dropping an oversized frame until its end
+
+    private long mFrames = 0;
+    private long mRejected = 0;
+
+    public FrameDecoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Decodes the given bytes, calling the listener once for each complete frame.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == FRAME_END) {
+                endFrame();
+            } else if (b == '\r' || mDiscarding) {
+                // ignored
+            } else if (mSize == CAPACITY) {
+                mDiscarding = true; // too long, not one of our frames
+                mRejected++;
+                Metrics.FRAMES_REJECTED.increment();
+                mSize = 0;
+            } else {
+                mRing[(mHead + mSize) & (CAPACITY - 1)] = b;
+                mSize++;
+            }
+        }
+    }
+
+    /**
+     * Drops the pending partial frame, e.g. after a reconnection.
+     */
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+        mDiscarding = false;
+    }
+
+    /**
+     * Number of valid frames decoded.
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Number of frames dropped because of their checksum, format or length.
+     */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    private void endFrame() {
+        int size = mSize;
+        int head = mHead;
+        mHead = (mHead + mSize) & (CAPACITY - 1);
+        mSize = 0;
+        if (mDiscarding) {
+            mDiscarding = false;
+            return;
+        }
+        if (size == 0) {
+            return; // empty line
+        }
+        byte[] frame;
+        int offset;
+        if (head + size <= CAPACITY) {
+            frame = mRing;
+            offset = head;
+        } else {
+            int first = CAPACITY - head;
+            System.arraycopy(mRing, head, mScratch, 0, first);
+            System.arraycopy(mRing, 0, mScratch, first, size - first);
+            frame = mScratch;
+            offset = 0;
+        }
+        int payload = size - CHECKSUM_LENGTH;
+        if (payload < 1 || frame[offset + payload] != CHECKSUM_SEPARATOR) {
+            mRejected++;
+            Metrics.FRAMES_REJECTED.increment();
+            return;
+        }
+        int high = hexValue(frame[offset + payload + 1]);
+        int low = hexValue(frame[offset + payload + 2]);
+        if (high < 0 || low < 0 || ((high << 4) | low) != checksum(frame, offset, payload)) {
+            mRejected++;
+            Metrics.FRAMES_REJECTED.increment();
+            return;
+        }
+        mFrames++;
+        Metrics.FRAMES_IN.increment();
+        mListener.onFrame(frame, offset, payload);
+    }
+
+    /**
+     * XOR of the given bytes, the checksum used by the frames.
+     */
+    public static int checksum(byte[] buffer, int offset, int length) {
+        int checksum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            checksum ^= buffer[i];
+        }
+        return checksum & 0xFF;
+    }
+
+    static int hexValue(byte digit) {
+        if (digit >= '0' && digit <= '9') {
+            return digit - '0';
+        } else if (digit >= 'A' && digit <= 'F') {
+            return digit - 'A' + 10;
+        } else if (digit >= 'a' && digit <= 'f') {
+            return digit - 'a' + 10;
+        }
+        return -1;
+    }
+}
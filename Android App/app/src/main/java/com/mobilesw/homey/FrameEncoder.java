@@ -0,0 +1,37 @@
+package com.mobilesw.homey;
+
+/**
+ * Builds the frames sent to the Arduino. See {@link FrameDecoder} for the format.
+ */
+public class FrameEncoder {
+
+    static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private FrameEncoder() {}
+
+    /**
+     * Writes the frame of the given payload into out, which needs room for
+     * {@link #frameLength(int)} bytes, and returns its length.
+     */
+    public static int encode(byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        System.arraycopy(payload, offset, out, outOffset, length);
+        int checksum = FrameDecoder.checksum(payload, offset, length);
+        int i = outOffset + length;
+        out[i++] = FrameDecoder.CHECKSUM_SEPARATOR;
+        out[i++] = HEX_DIGITS[checksum >> 4];
+        out[i++] = HEX_DIGITS[checksum & 0x0F];
+        out[i++] = FrameDecoder.FRAME_END;
+        return i - outOffset;
+    }
+
+    public static byte[] encode(String payload) {
+        byte[] bytes = payload.getBytes();
+        byte[] frame = new byte[frameLength(bytes.length)];
+        encode(bytes, 0, bytes.length, frame, 0);
+        return frame;
+    }
+
+    public static int frameLength(int payloadLength) {
+        return payloadLength + FrameDecoder.CHECKSUM_LENGTH + 1;
+    }
+}
@@ -1,15 +1,194 @@
 package com.mobilesw.homey;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.util.Log;
+import android.widget.Toast;
 
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * History of the UserLogs of the current user, newest first. Older logs are
+ * loaded page by page while scrolling; new logs appear at the top.
+ */
 public class History extends AppCompatActivity {
 
+    private static final String TAG = History.class.getSimpleName();
+    private static final int PAGE_SIZE = 30;
+    private static final int PREFETCH_DISTANCE = 10; // items before the end
+    private static final int CACHED_PAGES = 8;
+    static final String MIGRATED_KEY_PREFIX = "userlogs_migrated_"; // + user id, the logs are then ordered
+
+    private Query mQuery;
+    private HistoryPager<DocumentSnapshot, DocumentSnapshot> mPager;
+    private HistoryAdapter mAdapter;
+    private ListenerRegistration mHeadRegistration;
+    private final ExecutorService mSyncExecutor = Executors.newSingleThreadExecutor();
+    private final DeviceStore.Observer mStateObserver = new DeviceStore.Observer() {
+        @Override
+        public void onStateChanged(DeviceState state, int changes) {
+            if ((changes & DeviceState.CONNECTION) != 0) {
+                getSupportActionBar().setSubtitle(DeviceService.describeConnection(History.this, state));
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_history);
         getSupportActionBar().setTitle("Arduino History");
+
+        FirebaseLoader.whenReady(this, new Runnable() {
+            @Override
+            public void run() {
+                if (!isDestroyed()) {
+                    load();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the paging once Firebase is initialized.
+     */
+    private void load() {
+        FirebaseUser user = FirebaseLoader.getAuth(this).getCurrentUser();
+        if (user == null) {
+            finish();
+            return;
+        }
+        CollectionReference logs = FirebaseLoader.getFirestore(this).collection("UserLogs");
+        migrateLogs(logs, user.getUid());
+        new LogSync(LogDatabase.getInstance(this), logs, mSyncExecutor).sync(user.getUid()); // local copy for offline queries
+        // needs the composite index (userID, timestamp desc) on UserLogs
+        mQuery = logs.whereEqualTo("userID", user.getUid())
+                .orderBy("timestamp", Query.Direction.DESCENDING);
+
+        mPager = new HistoryPager<>(new HistoryPager.Loader<DocumentSnapshot, DocumentSnapshot>() {
+            @Override
+            public void load(DocumentSnapshot after, int limit,
+                             final HistoryPager.Callback<DocumentSnapshot, DocumentSnapshot> callback) {
+                Query page = after == null ? mQuery.limit(limit) : mQuery.startAfter(after).limit(limit);
+                page.get().addOnCompleteListener(new OnCompleteListener<QuerySnapshot>() {
+                    @Override
+                    public void onComplete(@NonNull Task<QuerySnapshot> task) {
+                        if (!task.isSuccessful()) {
+                            callback.onError(task.getException());
+                            return;
+                        }
+                        List<DocumentSnapshot> documents = task.getResult().getDocuments();
+                        callback.onLoaded(documents, documents.isEmpty() ? null : documents.get(documents.size() - 1));
+                    }
+                });
+            }
+        }, PAGE_SIZE, PREFETCH_DISTANCE, CACHED_PAGES);
+        mAdapter = new HistoryAdapter(mPager);
+        mPager.setListener(new HistoryPager.Listener<DocumentSnapshot>() {
+            @Override
+            public void onItemsChanged(int start, List<DocumentSnapshot> oldItems, List<DocumentSnapshot> newItems) {
+                mAdapter.applyChanges(start, oldItems, newItems);
+                if (mHeadRegistration == null) {
+                    listenToHead();
+                }
+            }
+
+            @Override
+            public void onError(Exception error) {
+                Toast.makeText(History.this, error.getMessage(), Toast.LENGTH_LONG).show();
+            }
+        });
+
+        RecyclerView list = findViewById(R.id.history_list);
+        list.setLayoutManager(new LinearLayoutManager(this));
+        list.setHasFixedSize(true);
+        list.setAdapter(mAdapter);
+        mPager.start();
+    }
+
+    /**
+     * Rewrites the logs of older versions of the app once per user, so that
+     * they are ordered with the others. Runs before the sync, on its executor.
+     */
+    private void migrateLogs(final CollectionReference logs, final String userID) {
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final String key = MIGRATED_KEY_PREFIX + userID;
+        if (preferences.getBoolean(key, false)) {
+            return;
+        }
+        mSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int migrated = UserLogDocuments.migrate(logs, userID);
+                    Log.i(TAG, "Migrated " + migrated + " logs");
+                    preferences.edit().putBoolean(key, true).apply();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Migration failed", e); // tried again next time
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps the first page up to date: the listener covers every log from the
+     * newest to the last one of the first page, so new logs are added to it.
+     */
+    private void listenToHead() {
+        DocumentSnapshot end = mPager.getEndCursor(0);
+        // without logs yet, every log to come: the pager has no other page for those older than a page
+        Query head = end == null ? mQuery : mQuery.endAt(end);
+        mHeadRegistration = head.addSnapshotListener(new EventListener<QuerySnapshot>() {
+            @Override
+            public void onEvent(@Nullable QuerySnapshot snapshot, @Nullable FirebaseFirestoreException e) {
+                if (snapshot != null) {
+                    mPager.setHead(snapshot.getDocuments());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        DeviceService.getStore().observe(mStateObserver);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        DeviceService.getStore().removeObserver(mStateObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mHeadRegistration != null) {
+            mHeadRegistration.remove();
+        }
+        mSyncExecutor.shutdown(); // lets a running sync finish
     }
 }
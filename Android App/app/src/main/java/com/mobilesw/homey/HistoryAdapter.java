@@ -0,0 +1,120 @@
+package com.mobilesw.homey;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Shows the UserLogs paged by a {@link HistoryPager}. Changes of a page are
+ * applied as the DiffUtil diff between its old and new documents.
+ */
+public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHolder> {
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView mDescription;
+        final TextView mDate;
+
+        ViewHolder(View view) {
+            super(view);
+            mDescription = view.findViewById(R.id.log_description);
+            mDate = view.findViewById(R.id.log_date);
+        }
+    }
+
+    private final HistoryPager<DocumentSnapshot, DocumentSnapshot> mPager;
+    private final DateFormat mDateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+
+    public HistoryAdapter(HistoryPager<DocumentSnapshot, DocumentSnapshot> pager) {
+        mPager = pager;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_history, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        DocumentSnapshot log = mPager.getItem(position);
+        mPager.onBind(position);
+        if (log == null) { // evicted page being loaded again
+            holder.mDescription.setText(R.string.history_loading);
+            holder.mDate.setText("");
+        } else {
+            UserLog userLog = UserLogDocuments.read(log);
+            holder.mDescription.setText(LogEvent.describe(userLog.getDevice(), userLog.getAction(), userLog.getSource()));
+            holder.mDate.setText(mDateFormat.format(new Date(userLog.getTimestamp())));
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPager.getCount();
+    }
+
+    /**
+     * Applies the change of a page, already made in the pager.
+     */
+    public void applyChanges(final int start, final List<DocumentSnapshot> oldItems,
+                             final List<DocumentSnapshot> newItems) {
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldItems.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newItems.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                DocumentSnapshot oldItem = oldItems.get(oldPosition);
+                return oldItem != null && oldItem.getId().equals(newItems.get(newPosition).getId());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldItems.get(oldPosition).getData().equals(newItems.get(newPosition).getData());
+            }
+        }, false);
+        diff.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(start + position, count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(start + position, count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                notifyItemMoved(start + fromPosition, start + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, @Nullable Object payload) {
+                notifyItemRangeChanged(start + position, count, payload);
+            }
+        });
+    }
+}
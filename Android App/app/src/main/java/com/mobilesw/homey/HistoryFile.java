@@ -0,0 +1,665 @@
+package com.mobilesw.homey;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Export files of the logs and the temperature & humidity samples, in CSV or
+ * in a compact binary format.
+ *
+ * Both are written and read in one pass through a buffer of
+ * {@link #BUFFER_SIZE} bytes, so the memory used does not grow with the
+ * number of rows: rows are streamed from the queries to the channel, and from
+ * the channel to a {@link Visitor}.
+ *
+ * The CSV has a header, then a row per log,
+ * "log,id,user,timestamp,device,action,source,,,device_id", or per sample,
+ * "sample,,,timestamp,,,,temperature,humidity,", with the times in epoch
+ * millis and the events in words, e.g. "lights,on,auto".
+ *
+ * The binary file starts with a magic number, then a record per row: 'L', the
+ * id, the user and the device ID (varint length, 0 for none, and UTF-8), the
+ * change of the timestamp since the previous log (zigzag varint) and the
+ * codes of the event in a byte; or 'S' and the changes of time, temperature
+ * and humidity since the previous sample (zigzag varints), 5 bytes for a
+ * sample every 5 seconds.
+ *
+ * Files of the first version, without the device IDs, are read too.
+ */
+public final class HistoryFile {
+
+    public enum Format {
+        CSV("csv"), BINARY("homey");
+
+        private final String mExtension;
+
+        Format(String extension) {
+            mExtension = extension;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+    }
+
+    public interface Visitor {
+        void onLog(String id, UserLog log) throws IOException;
+
+        void onSample(long timeMillis, int temperature, int humidity) throws IOException;
+    }
+
+    public interface Progress {
+        /**
+         * Called every {@link #PROGRESS_ROWS} rows and at the end.
+         *
+         * @param bytes written or read so far
+         */
+        void onProgress(long rows, long bytes);
+    }
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int PROGRESS_ROWS = 10000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x484d5932; // "HMY2"
+    private static final int MAGIC_1 = 0x484d5931; // "HMY1", without the device IDs
+    private static final byte LOG = 'L';
+    private static final byte SAMPLE = 'S';
+    private static final int MAX_SAMPLE_SIZE = 1 + 10 + 5 + 5; // tag, varint of a long and two of ints
+    private static final int MAX_NUMBER_SIZE = 20;
+
+    private static final byte[] CSV_HEADER =
+            ascii("record,id,user,timestamp,device,action,source,temperature,humidity,device_id");
+    private static final byte[] CSV_HEADER_1 =
+            ascii("record,id,user,timestamp,device,action,source,temperature,humidity");
+    private static final byte[] CSV_LOG = ascii("log");
+    private static final byte[] CSV_SAMPLE = ascii("sample");
+    private static final byte[][] DEVICE_NAMES = names(LogEvent.Device.values());
+    private static final byte[][] ACTION_NAMES = names(LogEvent.Action.values());
+    private static final byte[][] SOURCE_NAMES = names(LogEvent.Source.values());
+    private static final int CSV_COLUMNS = 10;
+    private static final int CSV_COLUMNS_1 = 9;
+
+    private HistoryFile() {
+    }
+
+    /**
+     * Writes the rows to the channel, through its buffer. Not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+
+        private final WritableByteChannel mChannel;
+        private final Format mFormat;
+        private final Progress mProgress; // null if not reported
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] mDigits = new byte[MAX_NUMBER_SIZE];
+        private long mRows = 0;
+        private long mBytes = 0; // written to the channel
+
+        private long mLastLogTime = 0;
+        private long mLastSampleTime = 0;
+        private int mLastTemperature = 0;
+        private int mLastHumidity = 0;
+
+        /**
+         * @param progress null if not reported
+         */
+        public Writer(WritableByteChannel channel, Format format, Progress progress) {
+            mChannel = channel;
+            mFormat = format;
+            mProgress = progress;
+            if (format == Format.CSV) {
+                mBuffer.put(CSV_HEADER).put((byte) '\n');
+            } else {
+                mBuffer.putInt(MAGIC);
+            }
+        }
+
+        public void writeLog(String id, UserLog log) throws IOException {
+            byte[] idBytes = id.getBytes(UTF_8);
+            byte[] user = log.getUserID() != null ? log.getUserID().getBytes(UTF_8) : null;
+            int userLength = user != null ? user.length : 0;
+            byte[] deviceId = log.getDeviceId() != null ? log.getDeviceId().getBytes(UTF_8) : null;
+            int deviceIdLength = deviceId != null ? deviceId.length : 0;
+            if (mFormat == Format.CSV) {
+                // each quoted, every byte a quote at worst
+                reserve(2 * (idBytes.length + userLength + deviceIdLength) + 64);
+                mBuffer.put(CSV_LOG).put((byte) ',');
+                putCsvString(idBytes);
+                mBuffer.put((byte) ',');
+                if (user != null) {
+                    putCsvString(user);
+                }
+                mBuffer.put((byte) ',');
+                putNumber(log.getTimestamp());
+                mBuffer.put((byte) ',');
+                putName(DEVICE_NAMES, log.getDevice());
+                mBuffer.put((byte) ',');
+                putName(ACTION_NAMES, log.getAction());
+                mBuffer.put((byte) ',');
+                putName(SOURCE_NAMES, log.getSource());
+                mBuffer.put((byte) ',').put((byte) ',').put((byte) ',');
+                if (deviceId != null) {
+                    putCsvString(deviceId);
+                }
+                mBuffer.put((byte) '\n');
+            } else {
+                reserve(idBytes.length + userLength + deviceIdLength + 48);
+                mBuffer.put(LOG);
+                putVarint(idBytes.length);
+                mBuffer.put(idBytes);
+                putVarint(user != null ? userLength + 1 : 0);
+                if (user != null) {
+                    mBuffer.put(user);
+                }
+                putVarint(deviceId != null ? deviceIdLength + 1 : 0);
+                if (deviceId != null) {
+                    mBuffer.put(deviceId);
+                }
+                putVarint(zigzag(log.getTimestamp() - mLastLogTime));
+                mBuffer.put((byte) (code(log.getDevice()) | code(log.getAction()) << 2 | code(log.getSource()) << 4));
+                mLastLogTime = log.getTimestamp();
+            }
+            row();
+        }
+
+        public void writeSample(long timeMillis, int temperature, int humidity) throws IOException {
+            if (mFormat == Format.CSV) {
+                reserve(3 * MAX_NUMBER_SIZE + 16);
+                mBuffer.put(CSV_SAMPLE).put((byte) ',').put((byte) ',').put((byte) ',');
+                putNumber(timeMillis);
+                mBuffer.put((byte) ',').put((byte) ',').put((byte) ',').put((byte) ',');
+                putNumber(temperature);
+                mBuffer.put((byte) ',');
+                putNumber(humidity);
+                mBuffer.put((byte) ',').put((byte) '\n');
+            } else {
+                reserve(MAX_SAMPLE_SIZE);
+                mBuffer.put(SAMPLE);
+                putVarint(zigzag(timeMillis - mLastSampleTime));
+                putVarint(zigzag((long) temperature - mLastTemperature));
+                putVarint(zigzag((long) humidity - mLastHumidity));
+                mLastSampleTime = timeMillis;
+                mLastTemperature = temperature;
+                mLastHumidity = humidity;
+            }
+            row();
+        }
+
+        public long getRows() {
+            return mRows;
+        }
+
+        /**
+         * Bytes written so far, including the buffered ones.
+         */
+        public long getBytes() {
+            return mBytes + mBuffer.position();
+        }
+
+        /**
+         * Writes the buffered rows to the channel.
+         */
+        public void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mBytes += mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        /**
+         * Flushes and reports the progress; the channel is left open.
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+            if (mProgress != null) {
+                mProgress.onProgress(mRows, mBytes);
+            }
+        }
+
+        private void row() {
+            mRows++;
+            if (mProgress != null && mRows % PROGRESS_ROWS == 0) {
+                mProgress.onProgress(mRows, getBytes());
+            }
+        }
+
+        private void reserve(int size) throws IOException {
+            if (size > BUFFER_SIZE) {
+                throw new IOException("Row of " + size + " bytes");
+            }
+            if (mBuffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void putNumber(long value) {
+            if (value < 0) {
+                mBuffer.put((byte) '-');
+            } else {
+                value = -value; // negative, so that Long.MIN_VALUE fits too
+            }
+            int length = 0;
+            do {
+                mDigits[length++] = (byte) ('0' - value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (length > 0) {
+                mBuffer.put(mDigits[--length]);
+            }
+        }
+
+        private void putCsvString(byte[] value) {
+            boolean quoted = false;
+            for (byte b : value) {
+                if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+                    quoted = true;
+                    break;
+                }
+            }
+            if (!quoted) {
+                mBuffer.put(value);
+                return;
+            }
+            mBuffer.put((byte) '"');
+            for (byte b : value) {
+                if (b == '"') {
+                    mBuffer.put((byte) '"');
+                }
+                mBuffer.put(b);
+            }
+            mBuffer.put((byte) '"');
+        }
+
+        private void putName(byte[][] names, Enum<?> value) {
+            if (value != null) {
+                mBuffer.put(names[value.ordinal()]);
+            }
+        }
+
+        private void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mBuffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mBuffer.put((byte) value);
+        }
+    }
+
+    /**
+     * Reads a file written by a {@link Writer}, in either format, and visits its rows in order.
+     *
+     * @param progress null if not reported
+     * @return the number of rows
+     * @throws IOException also if the file is not in a known format or is cut short
+     */
+    public static long read(ReadableByteChannel channel, Visitor visitor, Progress progress) throws IOException {
+        Input in = new Input(channel);
+        long rows;
+        try {
+            int magic = in.fill(4) ? in.mBuffer.getInt(in.mBuffer.position()) : 0;
+            in.fill(CSV_HEADER.length);
+            int columns = in.startsWith(CSV_HEADER) ? CSV_COLUMNS : in.startsWith(CSV_HEADER_1) ? CSV_COLUMNS_1 : 0;
+            if (magic == MAGIC || magic == MAGIC_1) {
+                in.mBuffer.getInt();
+                rows = readBinary(in, visitor, progress, magic == MAGIC);
+            } else if (columns > 0) {
+                int end = in.findLineEnd();
+                if (end < 0) {
+                    throw new EOFException("The history file is cut short");
+                }
+                in.mBuffer.position(end + 1 - in.mBuffer.arrayOffset());
+                rows = readCsv(in, visitor, progress, columns);
+            } else {
+                throw new IOException("Not a history file");
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("The history file is cut short");
+        }
+        if (progress != null) {
+            progress.onProgress(rows, in.getBytes());
+        }
+        return rows;
+    }
+
+    /**
+     * @param deviceIds whether the logs have a device ID, from the second version
+     */
+    private static long readBinary(Input in, Visitor visitor, Progress progress, boolean deviceIds)
+            throws IOException {
+        ByteBuffer buffer = in.mBuffer;
+        long rows = 0;
+        long lastLogTime = 0;
+        long lastSampleTime = 0;
+        int lastTemperature = 0;
+        int lastHumidity = 0;
+        while (in.fill(MAX_SAMPLE_SIZE) || buffer.hasRemaining()) {
+            byte tag = buffer.get();
+            if (tag == SAMPLE) {
+                lastSampleTime += unzigzag(readVarint(buffer));
+                lastTemperature += (int) unzigzag(readVarint(buffer));
+                lastHumidity += (int) unzigzag(readVarint(buffer));
+                visitor.onSample(lastSampleTime, lastTemperature, lastHumidity);
+            } else if (tag == LOG) {
+                in.fill(10);
+                String id = readString(in, (int) readVarint(buffer));
+                in.fill(10);
+                int userLength = (int) readVarint(buffer);
+                String user = userLength == 0 ? null : readString(in, userLength - 1);
+                String deviceId = null;
+                if (deviceIds) {
+                    in.fill(10);
+                    int deviceIdLength = (int) readVarint(buffer);
+                    deviceId = deviceIdLength == 0 ? null : readString(in, deviceIdLength - 1);
+                }
+                in.fill(11);
+                lastLogTime += unzigzag(readVarint(buffer));
+                int codes = buffer.get();
+                visitor.onLog(id, new UserLog(user, lastLogTime, LogEvent.Device.fromCode(codes & 3),
+                        LogEvent.Action.fromCode(codes >> 2 & 3), LogEvent.Source.fromCode(codes >> 4 & 3),
+                        deviceId));
+            } else {
+                throw new IOException("Unknown record at byte " + (in.getBytes() - 1));
+            }
+            rows++;
+            if (progress != null && rows % PROGRESS_ROWS == 0) {
+                progress.onProgress(rows, in.getBytes());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param columns of the version of the file, see {@link #CSV_COLUMNS}
+     */
+    private static long readCsv(Input in, Visitor visitor, Progress progress, int columns) throws IOException {
+        ByteBuffer buffer = in.mBuffer;
+        byte[] array = buffer.array();
+        int[] starts = new int[CSV_COLUMNS]; // of the fields in the array, quotes excluded
+        int[] ends = new int[CSV_COLUMNS];
+        boolean[] quoted = new boolean[CSV_COLUMNS];
+        long rows = 0;
+        while (true) {
+            int end = in.findLineEnd();
+            if (end < 0) {
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("The history file is cut short");
+                }
+                return rows;
+            }
+            int start = buffer.arrayOffset() + buffer.position();
+            int lineEnd = end > start && array[end - 1] == '\r' ? end - 1 : end; // also read if edited on Windows
+            if (lineEnd == start) { // blank, e.g. left at the end by an editor
+                buffer.position(end + 1 - buffer.arrayOffset());
+                continue;
+            }
+            int found = split(array, start, lineEnd, starts, ends, quoted);
+            if (found != columns) {
+                throw new IOException("Row of " + found + " columns at byte " + in.getBytes());
+            }
+            if (equals(array, starts[0], ends[0], CSV_SAMPLE)) {
+                visitor.onSample(parseNumber(array, starts[3], ends[3]), (int) parseNumber(array, starts[7], ends[7]),
+                        (int) parseNumber(array, starts[8], ends[8]));
+            } else if (equals(array, starts[0], ends[0], CSV_LOG)) {
+                String id = csvString(array, starts[1], ends[1], quoted[1]);
+                String user = ends[2] > starts[2] || quoted[2] ? csvString(array, starts[2], ends[2], quoted[2]) : null;
+                String deviceId = columns > CSV_COLUMNS_1 && (ends[9] > starts[9] || quoted[9])
+                        ? csvString(array, starts[9], ends[9], quoted[9]) : null;
+                visitor.onLog(id, new UserLog(user, parseNumber(array, starts[3], ends[3]),
+                        parseName(LogEvent.Device.values(), DEVICE_NAMES, array, starts[4], ends[4]),
+                        parseName(LogEvent.Action.values(), ACTION_NAMES, array, starts[5], ends[5]),
+                        parseName(LogEvent.Source.values(), SOURCE_NAMES, array, starts[6], ends[6]), deviceId));
+            } else {
+                throw new IOException("Unknown row at byte " + in.getBytes());
+            }
+            buffer.position(end + 1 - buffer.arrayOffset());
+            rows++;
+            if (progress != null && rows % PROGRESS_ROWS == 0) {
+                progress.onProgress(rows, in.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Finds the fields of the line in [start, end), quoted ones without their quotes.
+     *
+     * @return the number of fields
+     */
+    private static int split(byte[] array, int start, int end, int[] starts, int[] ends, boolean[] quoted)
+            throws IOException {
+        int column = 0;
+        int i = start;
+        while (true) {
+            if (column == starts.length) {
+                return column + 1; // too many
+            }
+            quoted[column] = i < end && array[i] == '"';
+            if (quoted[column]) {
+                starts[column] = ++i;
+                while (i < end && !(array[i] == '"' && (i + 1 == end || array[i + 1] != '"'))) {
+                    i += array[i] == '"' ? 2 : 1; // "" is an escaped quote
+                }
+                if (i == end) {
+                    throw new IOException("Unterminated quote");
+                }
+                ends[column] = i++;
+            } else {
+                starts[column] = i;
+                while (i < end && array[i] != ',') {
+                    i++;
+                }
+                ends[column] = i;
+            }
+            column++;
+            if (i >= end) {
+                return column;
+            }
+            if (array[i] != ',') {
+                throw new IOException("Text after a quoted field");
+            }
+            i++;
+            if (i == end) {
+                if (column == starts.length) {
+                    return column + 1;
+                }
+                starts[column] = ends[column] = end; // empty last field
+                quoted[column] = false;
+                return column + 1;
+            }
+        }
+    }
+
+    private static long parseNumber(byte[] array, int start, int end) throws IOException {
+        boolean negative = start < end && array[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > MAX_NUMBER_SIZE - 1) {
+            throw new IOException("Not a number: " + new String(array, start, end - start, UTF_8));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = array[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Not a number: " + new String(array, start, end - start, UTF_8));
+            }
+            value = value * 10 - digit; // negative, as Long.MIN_VALUE has no opposite
+        }
+        return negative ? value : -value;
+    }
+
+    private static <E extends Enum<E>> E parseName(E[] values, byte[][] names, byte[] array, int start, int end)
+            throws IOException {
+        if (start == end) {
+            return null;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (equals(array, start, end, names[i])) {
+                return values[i];
+            }
+        }
+        throw new IOException("Unknown value: " + new String(array, start, end - start, UTF_8));
+    }
+
+    private static String csvString(byte[] array, int start, int end, boolean quoted) {
+        String value = new String(array, start, end - start, UTF_8);
+        return quoted ? value.replace("\"\"", "\"") : value;
+    }
+
+    private static boolean equals(byte[] array, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (array[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(Input in, int length) throws IOException {
+        if (length < 0 || !in.fill(length)) {
+            throw new EOFException("The history file is cut short");
+        }
+        ByteBuffer buffer = in.mBuffer;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * The buffer of a channel being read, in read mode.
+     */
+    private static final class Input {
+
+        final ReadableByteChannel mChannel;
+        final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long mDiscarded = 0; // bytes read before the buffer
+        private boolean mEnd = false;
+        private int mScanned = 0; // bytes from the position known to have no line end
+
+        Input(ReadableByteChannel channel) {
+            mChannel = channel;
+            mBuffer.flip(); // empty
+        }
+
+        /**
+         * Reads until at least the size is buffered, or the channel ends.
+         *
+         * @return whether the size is buffered
+         */
+        boolean fill(int size) throws IOException {
+            if (size > BUFFER_SIZE) {
+                throw new IOException("Record of " + size + " bytes");
+            }
+            while (mBuffer.remaining() < size && !mEnd) {
+                read();
+            }
+            return mBuffer.remaining() >= size;
+        }
+
+        /**
+         * The index in the array of the '\n' ending the line at the position, reading more if needed.
+         *
+         * @return -1 if the channel ends first
+         */
+        int findLineEnd() throws IOException {
+            while (true) {
+                byte[] array = mBuffer.array();
+                int start = mBuffer.arrayOffset() + mBuffer.position();
+                int limit = mBuffer.arrayOffset() + mBuffer.limit();
+                for (int i = start + mScanned; i < limit; i++) {
+                    if (array[i] == '\n') {
+                        mScanned = 0;
+                        return i;
+                    }
+                }
+                mScanned = limit - start;
+                if (mEnd) {
+                    return -1;
+                }
+                if (mScanned == BUFFER_SIZE) {
+                    throw new IOException("Line longer than " + BUFFER_SIZE + " bytes");
+                }
+                read();
+            }
+        }
+
+        boolean startsWith(byte[] prefix) {
+            if (mBuffer.remaining() < prefix.length) {
+                return false;
+            }
+            int start = mBuffer.arrayOffset() + mBuffer.position();
+            return HistoryFile.equals(mBuffer.array(), start, start + prefix.length, prefix);
+        }
+
+        long getBytes() {
+            return mDiscarded + mBuffer.position();
+        }
+
+        private void read() throws IOException {
+            mDiscarded += mBuffer.position();
+            mBuffer.compact();
+            int read = mChannel.read(mBuffer);
+            mBuffer.flip();
+            if (read < 0) {
+                mEnd = true;
+            }
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int code(LogEvent.Device value) {
+        return value != null ? value.getCode() : 0;
+    }
+
+    private static int code(LogEvent.Action value) {
+        return value != null ? value.getCode() : 0;
+    }
+
+    private static int code(LogEvent.Source value) {
+        return value != null ? value.getCode() : 0;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    private static byte[][] names(Enum<?>[] values) {
+        byte[][] names = new byte[values.length][];
+        for (Enum<?> value : values) {
+            names[value.ordinal()] = ascii(value.name().toLowerCase(Locale.ROOT));
+        }
+        return names;
+    }
+}
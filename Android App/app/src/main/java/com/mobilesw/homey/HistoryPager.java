@@ -0,0 +1,225 @@
+package com.mobilesw.homey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pages through a list loaded with query cursors, e.g. the UserLogs of a user
+ * ordered by time, for a RecyclerView.
+ *
+ * Pages are loaded one after the other from the end cursor of the previous
+ * page, and the next page is prefetched when a position near the end is bound.
+ * The first page (the head) is always kept, as it is the one updated live;
+ * the other pages are kept in a {@link PageCache} and loaded again from their
+ * cursor when an evicted page is needed, showing placeholders (null items)
+ * meanwhile. Every change is reported as the old and new items of a page, so
+ * that it can be applied as a diff.
+ *
+ * Not thread-safe: use it, and call the callbacks, on the main thread.
+ *
+ * @param <T> items
+ * @param <C> cursors, e.g. the snapshot of the last document of a page
+ */
+public class HistoryPager<T, C> {
+
+    public interface Loader<T, C> {
+        /**
+         * Loads up to limit items after the cursor, or from the start if it is null.
+         */
+        void load(C after, int limit, Callback<T, C> callback);
+    }
+
+    public interface Callback<T, C> {
+        /**
+         * @param last cursor of the last item, ignored if there are no items
+         */
+        void onLoaded(List<T> items, C last);
+
+        void onError(Exception error);
+    }
+
+    public interface Listener<T> {
+        /**
+         * The items from position start changed from oldItems to newItems.
+         */
+        void onItemsChanged(int start, List<T> oldItems, List<T> newItems);
+
+        void onError(Exception error);
+    }
+
+    private final Loader<T, C> mLoader;
+    private final int mPageSize;
+    private final int mPrefetchDistance;
+    private Listener<T> mListener;
+
+    private final List<C> mEnds = new ArrayList<>(); // end cursor of each page
+    private final List<Integer> mSizes = new ArrayList<>(); // item count of each page
+    private final PageCache<Integer, List<T>> mCache;
+    private final Set<Integer> mLoading = new HashSet<>();
+    private List<T> mHead = Collections.emptyList();
+    private int mCount = 0;
+    private boolean mEnd = false;
+
+    /**
+     * @param prefetchDistance the next page is loaded when a position this close to the end is bound
+     * @param cachedPages pages kept besides the head
+     */
+    public HistoryPager(Loader<T, C> loader, int pageSize, int prefetchDistance, int cachedPages) {
+        mLoader = loader;
+        mPageSize = pageSize;
+        mPrefetchDistance = prefetchDistance;
+        mCache = new PageCache<>(cachedPages);
+    }
+
+    public void setListener(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Loads the first page.
+     */
+    public void start() {
+        if (mSizes.isEmpty()) {
+            load(0);
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getPageCount() {
+        return mSizes.size();
+    }
+
+    /**
+     * Whether all the pages have been loaded.
+     */
+    public boolean isEnd() {
+        return mEnd;
+    }
+
+    /**
+     * @return end cursor of the page, e.g. the last document the head is updated up to
+     */
+    public C getEndCursor(int page) {
+        return mEnds.get(page);
+    }
+
+    /**
+     * @return null if the page of the item has been evicted; it is loaded again
+     */
+    public T getItem(int position) {
+        int page = 0;
+        int start = 0;
+        while (position >= start + mSizes.get(page)) {
+            start += mSizes.get(page);
+            page++;
+        }
+        List<T> items = page == 0 ? mHead : mCache.get(page);
+        if (items == null) {
+            load(page);
+            return null;
+        }
+        return items.get(position - start);
+    }
+
+    /**
+     * To be called when the item at the position is bound to a view: prefetches
+     * the next page near the end.
+     */
+    public void onBind(int position) {
+        if (!mEnd && !mSizes.isEmpty() && position >= mCount - mPrefetchDistance) {
+            load(mSizes.size());
+        }
+    }
+
+    /**
+     * Replaces the items of the head, e.g. with the latest snapshot of a
+     * listener on the items up to {@link #getEndCursor(int) getEndCursor(0)}.
+     */
+    public void setHead(List<T> items) {
+        if (mSizes.isEmpty()) {
+            return; // not loaded yet
+        }
+        List<T> old = mHead;
+        mHead = items;
+        mCount += items.size() - mSizes.get(0);
+        mSizes.set(0, items.size());
+        notifyChanged(0, old, items);
+    }
+
+    private void load(final int page) {
+        if (!mLoading.add(page)) {
+            return;
+        }
+        C after = page == 0 ? null : mEnds.get(page - 1);
+        mLoader.load(after, mPageSize, new Callback<T, C>() {
+            @Override
+            public void onLoaded(List<T> items, C last) {
+                mLoading.remove(page);
+                if (page == mSizes.size()) {
+                    addPage(items, last);
+                } else {
+                    reloaded(page, items);
+                }
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mLoading.remove(page);
+                if (mListener != null) {
+                    mListener.onError(error);
+                }
+            }
+        });
+    }
+
+    private void addPage(List<T> items, C last) {
+        if (items.size() < mPageSize) {
+            mEnd = true;
+        }
+        if (items.isEmpty() && !mSizes.isEmpty()) {
+            return;
+        }
+        int page = mSizes.size();
+        mEnds.add(last);
+        mSizes.add(items.size());
+        if (page == 0) {
+            mHead = items;
+        } else {
+            mCache.put(page, items);
+        }
+        int start = mCount;
+        mCount += items.size();
+        notifyChanged(start, Collections.<T>emptyList(), items);
+    }
+
+    /**
+     * An evicted page has been loaded again; its placeholders are replaced.
+     */
+    private void reloaded(int page, List<T> items) {
+        int start = 0;
+        for (int i = 0; i < page; i++) {
+            start += mSizes.get(i);
+        }
+        int oldSize = mSizes.get(page);
+        if (page == 0) {
+            mHead = items;
+        } else {
+            mCache.put(page, items);
+        }
+        mSizes.set(page, items.size());
+        mCount += items.size() - oldSize;
+        notifyChanged(start, Collections.<T>nCopies(oldSize, null), items);
+    }
+
+    private void notifyChanged(int start, List<T> oldItems, List<T> newItems) {
+        if (mListener != null) {
+            mListener.onItemsChanged(start, oldItems, newItems);
+        }
+    }
+}
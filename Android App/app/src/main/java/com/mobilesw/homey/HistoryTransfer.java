@@ -0,0 +1,129 @@
+package com.mobilesw.homey;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Exports the UserLogs and the samples of a user to a {@link HistoryFile},
+ * and imports them back, streaming page by page so that the memory used does
+ * not depend on the size of the history. Blocks: call it off the main thread.
+ */
+public final class HistoryTransfer {
+
+    private static final int PAGE_SIZE = 500; // the limit of a WriteBatch too
+    private static final long SCAN_MILLIS = 24L * 3600 * 1000; // samples scanned at once, not to hold the store
+
+    private HistoryTransfer() {
+    }
+
+    /**
+     * Writes the logs of the user, oldest first, then the samples. The logs
+     * compacted into their daily rollups, see {@link DeviceService#LOG_RETENTION_KEY},
+     * are gone and so not exported, nor the samples older than the retention of the store.
+     *
+     * @param samples null to export the logs only
+     * @param progress null if not reported
+     * @return the number of rows
+     */
+    public static long export(WritableByteChannel channel, HistoryFile.Format format, CollectionReference logs,
+                              String userID, SampleStore samples, HistoryFile.Progress progress)
+            throws IOException, ExecutionException, InterruptedException {
+        final HistoryFile.Writer writer = new HistoryFile.Writer(channel, format, progress);
+        // needs the composite index (userID, timestamp) on UserLogs
+        Query query = logs.whereEqualTo("userID", userID).orderBy("timestamp").limit(PAGE_SIZE);
+        Query page = query;
+        while (true) {
+            List<DocumentSnapshot> documents = Tasks.await(page.get()).getDocuments();
+            for (DocumentSnapshot document : documents) {
+                writer.writeLog(document.getId(), UserLogDocuments.read(document));
+            }
+            if (documents.size() < PAGE_SIZE) {
+                break;
+            }
+            page = query.startAfter(documents.get(documents.size() - 1));
+        }
+        if (samples != null) {
+            final IOException[] error = new IOException[1];
+            long end = samples.getLastTime();
+            for (long from = samples.getFirstTime(); from <= end && error[0] == null; from += SCAN_MILLIS) {
+                samples.scan(from, Math.min(from + SCAN_MILLIS, end + 1), new SampleStore.Visitor() {
+                    @Override
+                    public void onSample(long timeMillis, int temperature, int humidity) {
+                        if (error[0] == null) {
+                            try {
+                                writer.writeSample(timeMillis, temperature, humidity);
+                            } catch (IOException e) {
+                                error[0] = e; // the visitor cannot throw it
+                            }
+                        }
+                    }
+                });
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        writer.close();
+        return writer.getRows();
+    }
+
+    /**
+     * Writes the logs of the file as logs of the user, in batches, and
+     * appends the samples newer than those of the store. Logs keep their ids
+     * and device IDs, so importing a file twice stores them once.
+     *
+     * @param samples null to import the logs only
+     * @param progress null if not reported
+     * @return the number of rows read
+     */
+    public static long importFrom(ReadableByteChannel channel, final CollectionReference logs, final String userID,
+                                  final SampleStore samples, HistoryFile.Progress progress) throws IOException {
+        final WriteBatch[] batch = {logs.getFirestore().batch()};
+        final int[] pending = {0};
+        long rows = HistoryFile.read(channel, new HistoryFile.Visitor() {
+            @Override
+            public void onLog(String id, UserLog log) throws IOException {
+                batch[0].set(logs.document(id), new UserLog(userID, log.getTimestamp(), log.getDevice(),
+                        log.getAction(), log.getSource(), log.getDeviceId()));
+                if (++pending[0] == PAGE_SIZE) {
+                    commit(batch[0]);
+                    batch[0] = logs.getFirestore().batch();
+                    pending[0] = 0;
+                }
+            }
+
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) throws IOException {
+                if (samples != null) {
+                    // the store only appends, and the device may append meanwhile
+                    samples.appendIfNewer(timeMillis, temperature, humidity);
+                }
+            }
+        }, progress);
+        if (pending[0] > 0) {
+            commit(batch[0]);
+        }
+        return rows;
+    }
+
+    private static void commit(WriteBatch batch) throws IOException {
+        try {
+            Tasks.await(batch.commit());
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write the logs", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
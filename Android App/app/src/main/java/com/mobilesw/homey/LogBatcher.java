@@ -0,0 +1,220 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records {@link UserLog} entries in a {@link LogJournal} and replays them in
+ * batches instead of one request per event.
+ *
+ * {@link #add(UserLog)} only queues the log: appending to the journal and
+ * writing run on the given single thread executor, so the caller never waits
+ * on the disk or the network. A batch is written when {@code maxBatchSize}
+ * entries are pending, when the oldest pending entry has waited
+ * {@code maxDelayMillis}, or when {@link #flush()} is called (e.g. when the
+ * activity stops). One batch is written at a time, in journal order, and its
+ * entries are acknowledged in the journal once written; failed batches are
+ * retried with a growing delay. Entries left in the journal by a previous run
+ * are replayed by {@link #start()}.
+ *
+ * The result of each batch is reported once to the {@link Listener}, on the
+ * executor thread.
+ */
+public class LogBatcher {
+
+    /**
+     * Writes a batch of entries, e.g. as one Firestore WriteBatch. Writing an
+     * entry twice must store it once, which the stable entry ids allow.
+     */
+    public interface BatchWriter {
+        void write(List<LogJournal.Entry> entries, Callback callback);
+    }
+
+    public interface Callback {
+        /**
+         * May be called from any thread.
+         *
+         * @param error null if the batch was written
+         */
+        void onComplete(List<LogJournal.Entry> entries, Exception error);
+    }
+
+    public interface Listener {
+        void onBatchWritten(int count);
+
+        void onBatchFailed(int count, Exception error);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_DELAY_MILLIS = 2000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    private final LogJournal mJournal;
+    private final BatchWriter mWriter;
+    private final ScheduledExecutorService mExecutor;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayMillis;
+    private volatile Listener mListener;
+
+    // only used on the executor thread
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mWriting = false; // a batch is being written
+    private int mFailures = 0; // consecutive failed batches
+    private long mBatchStart; // System.nanoTime() when the batch being written was
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            writeNextBatch();
+        }
+    };
+
+    private final Callback mCallback = new Callback() {
+        @Override
+        public void onComplete(final List<LogJournal.Entry> entries, final Exception error) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBatchComplete(entries, error);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down: the entries are still in the journal and replayed on the next start
+            }
+        }
+    };
+
+    public LogBatcher(LogJournal journal, BatchWriter writer, ScheduledExecutorService executor) {
+        this(journal, writer, executor, DEFAULT_BATCH_SIZE, DEFAULT_DELAY_MILLIS);
+    }
+
+    public LogBatcher(LogJournal journal, BatchWriter writer, ScheduledExecutorService executor,
+                      int maxBatchSize, long maxDelayMillis) {
+        mJournal = journal;
+        mWriter = writer;
+        mExecutor = executor;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replays the entries left in the journal.
+     */
+    public void start() {
+        flush();
+    }
+
+    /**
+     * Queues a log. Never blocks on the disk or the network.
+     */
+    public void add(final UserLog log) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long pending;
+                try {
+                    mJournal.append(log);
+                    pending = mJournal.getPendingCount();
+                } catch (IOException e) {
+                    reportFailure(1, e);
+                    return;
+                }
+                if (pending >= mMaxBatchSize && mFailures == 0) {
+                    writeNextBatch();
+                } else {
+                    scheduleFlush(mMaxDelayMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the pending logs without waiting for the batch to fill.
+     */
+    public void flush() {
+        mExecutor.execute(mFlushTask);
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (mScheduledFlush == null || mScheduledFlush.isDone()) {
+            mScheduledFlush = mExecutor.schedule(mFlushTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writeNextBatch() {
+        if (mWriting) {
+            return; // the next batch follows when this one completes
+        }
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        List<LogJournal.Entry> batch;
+        try {
+            batch = mJournal.read(mMaxBatchSize);
+        } catch (IOException e) {
+            reportFailure(0, e);
+            return;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        mWriting = true;
+        mBatchStart = System.nanoTime();
+        mWriter.write(batch, mCallback);
+    }
+
+    private void onBatchComplete(List<LogJournal.Entry> entries, Exception error) {
+        mWriting = false;
+        Metrics.BATCH_WRITE.record((System.nanoTime() - mBatchStart) / 1000000);
+        if (error == null) {
+            try {
+                mJournal.acknowledge(entries.get(entries.size() - 1));
+            } catch (IOException e) {
+                error = e; // written, but will be written again (to the same documents)
+            }
+        }
+        if (error != null) {
+            Metrics.BATCH_FAILURES.increment();
+            mFailures++;
+            reportFailure(entries.size(), error);
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, mMaxDelayMillis << Math.min(mFailures, 16));
+            scheduleFlush(delay);
+            return;
+        }
+        mFailures = 0;
+        long now = System.currentTimeMillis();
+        for (LogJournal.Entry entry : entries) {
+            Metrics.LOG_DELAY.record(now - entry.getLog().getTimestamp());
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onBatchWritten(entries.size());
+        }
+        try {
+            if (mJournal.getPendingCount() >= mMaxBatchSize) {
+                writeNextBatch();
+            } else if (mJournal.getPendingCount() > 0) {
+                scheduleFlush(mMaxDelayMillis);
+            }
+        } catch (IOException e) {
+            reportFailure(0, e);
+        }
+    }
+
+    private void reportFailure(int count, Exception error) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onBatchFailed(count, error);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.mobilesw.homey;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Map;
+
+/**
+ * Local copy of the UserLogs, so that the history can be queried offline and
+ * without a round trip to Firestore.
+ *
+ * Logs are indexed by (user, timestamp) for the history of a user and by
+ * (device, action, timestamp) for queries such as the fan events of the last
+ * week.
+ */
+public class LogDatabase extends SQLiteOpenHelper {
+
+    private static final String NAME = "userlogs.db";
+    private static final int VERSION = 2; // 2: structured logs, without description and date
+
+    static final String TABLE = "user_logs";
+    static final String ID = "id";
+    static final String USER_ID = "user_id";
+    static final String TIMESTAMP = "timestamp";
+    static final String DEVICE = "device";
+    static final String ACTION = "action";
+    static final String SOURCE = "source";
+
+    private static LogDatabase sInstance;
+
+    public static synchronized LogDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LogDatabase(context.getApplicationContext(), NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name null for an in-memory database
+     */
+    LogDatabase(Context context, String name) {
+        super(context, name, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + ID + " TEXT PRIMARY KEY, "
+                + USER_ID + " TEXT NOT NULL, "
+                + TIMESTAMP + " INTEGER NOT NULL, "
+                + DEVICE + " INTEGER, "
+                + ACTION + " INTEGER, "
+                + SOURCE + " INTEGER)");
+        db.execSQL("CREATE INDEX user_logs_user_time ON " + TABLE + " (" + USER_ID + ", " + TIMESTAMP + ")");
+        db.execSQL("CREATE INDEX user_logs_device_action ON " + TABLE
+                + " (" + DEVICE + ", " + ACTION + ", " + TIMESTAMP + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // a mirror: dropped and synced again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Inserts the logs, replacing those with the same ids, in one transaction.
+     *
+     * @param logs logs by document id
+     */
+    public void putAll(Map<String, UserLog> logs) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE + " ("
+                + ID + ", " + USER_ID + ", " + TIMESTAMP + ", " + DEVICE + ", " + ACTION + ", "
+                + SOURCE + ") VALUES (?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, UserLog> entry : logs.entrySet()) {
+                UserLog log = entry.getValue();
+                if (log.getUserID() == null) {
+                    continue;
+                }
+                insert.clearBindings();
+                insert.bindString(1, entry.getKey());
+                insert.bindString(2, log.getUserID());
+                insert.bindLong(3, log.getTimestamp());
+                if (log.getDevice() != null) {
+                    insert.bindLong(4, log.getDevice().getCode());
+                }
+                if (log.getAction() != null) {
+                    insert.bindLong(5, log.getAction().getCode());
+                }
+                if (log.getSource() != null) {
+                    insert.bindLong(6, log.getSource().getCode());
+                }
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Timestamp of the latest log of the user, 0 if there are none. Logs from
+     * this time on are synced again, in case several share it.
+     */
+    public long getHighWaterMark(String userID) {
+        return DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT IFNULL(MAX(" + TIMESTAMP + "), 0) FROM " + TABLE + " WHERE " + USER_ID + " = ?",
+                new String[]{userID});
+    }
+
+    /**
+     * Deletes the logs of the user older than the time.
+     *
+     * @return the number of logs deleted
+     */
+    public int deleteBefore(String userID, long before) {
+        return getWritableDatabase().delete(TABLE, USER_ID + " = ? AND " + TIMESTAMP + " < ?",
+                new String[]{userID, String.valueOf(before)});
+    }
+
+    /**
+     * Number of events of the device since the time.
+     *
+     * @param action null for both on and off
+     */
+    public long countEvents(String userID, LogEvent.Device device, LogEvent.Action action, long since) {
+        return DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + TABLE + " WHERE " + eventSelection(device, action),
+                eventArgs(userID, device, since));
+    }
+
+    /**
+     * Events of the device since the time, newest first.
+     *
+     * @param action null for both on and off
+     */
+    public Cursor queryEvents(String userID, LogEvent.Device device, LogEvent.Action action, long since, int limit) {
+        return getReadableDatabase().query(TABLE, null, eventSelection(device, action),
+                eventArgs(userID, device, since), null, null, TIMESTAMP + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Logs of the user before the time, newest first.
+     */
+    public Cursor queryHistory(String userID, long before, int limit) {
+        return getReadableDatabase().query(TABLE, null, USER_ID + " = ? AND " + TIMESTAMP + " < ?",
+                new String[]{userID, String.valueOf(before)}, null, null, TIMESTAMP + " DESC", String.valueOf(limit));
+    }
+
+    private static String eventSelection(LogEvent.Device device, LogEvent.Action action) {
+        // the actions are listed so that the (device, action, timestamp) index covers the time range
+        String actions = action != null ? String.valueOf(action.getCode())
+                : LogEvent.Action.ON.getCode() + ", " + LogEvent.Action.OFF.getCode();
+        return DEVICE + " = ? AND " + ACTION + " IN (" + actions + ") AND "
+                + TIMESTAMP + " >= ? AND " + USER_ID + " = ?";
+    }
+
+    private static String[] eventArgs(String userID, LogEvent.Device device, long since) {
+        return new String[]{String.valueOf(device.getCode()), String.valueOf(since), userID};
+    }
+}
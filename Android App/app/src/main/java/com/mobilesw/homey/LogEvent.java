@@ -0,0 +1,154 @@
+package com.mobilesw.homey;
+
+/**
+ * What a {@link UserLog} records: which device was turned on or off, and
+ * whether by the user or automatically by the Arduino.
+ *
+ * The codes are stored in the log journal and the local log database, so they
+ * must not change.
+ */
+public final class LogEvent {
+
+    public enum Device {
+        LIGHTS(1), FAN(2);
+
+        private final int mCode;
+
+        Device(int code) {
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return null if no value has the code
+         */
+        public static Device fromCode(int code) {
+            for (Device value : values()) {
+                if (value.mCode == code) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Action {
+        ON(1), OFF(2);
+
+        private final int mCode;
+
+        Action(int code) {
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return null if no value has the code
+         */
+        public static Action fromCode(int code) {
+            for (Action value : values()) {
+                if (value.mCode == code) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Source {
+        MANUAL(1), AUTO(2);
+
+        private final int mCode;
+
+        Source(int code) {
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return null if no value has the code
+         */
+        public static Source fromCode(int code) {
+            for (Source value : values()) {
+                if (value.mCode == code) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Device mDevice;
+    private final Action mAction;
+    private final Source mSource;
+
+    public LogEvent(Device device, Action action, Source source) {
+        mDevice = device;
+        mAction = action;
+        mSource = source;
+    }
+
+    public Device getDevice() {
+        return mDevice;
+    }
+
+    public Action getAction() {
+        return mAction;
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    /**
+     * Reads the event from a description such as "The lights have been
+     * automatically turned off".
+     *
+     * @return null if the description is not one of a device being turned on or off
+     */
+    public static LogEvent parse(String description) {
+        if (description == null) {
+            return null;
+        }
+        String text = description.toLowerCase();
+        Device device;
+        if (text.contains("light")) {
+            device = Device.LIGHTS;
+        } else if (text.contains("fan")) {
+            device = Device.FAN;
+        } else {
+            return null;
+        }
+        Action action;
+        if (text.endsWith(" on")) {
+            action = Action.ON;
+        } else if (text.endsWith(" off")) {
+            action = Action.OFF;
+        } else {
+            return null;
+        }
+        Source source = text.contains("automatically") ? Source.AUTO : Source.MANUAL;
+        return new LogEvent(device, action, source);
+    }
+
+    /**
+     * Text shown for the event, e.g. "The fan has been manually turned on".
+     */
+    public static String describe(Device device, Action action, Source source) {
+        if (device == null || action == null || source == null) {
+            return "Unknown event";
+        }
+        return (device == Device.LIGHTS ? "The lights have" : "The fan has")
+                + (source == Source.AUTO ? " been automatically" : " been manually")
+                + (action == Action.ON ? " turned on" : " turned off");
+    }
+}
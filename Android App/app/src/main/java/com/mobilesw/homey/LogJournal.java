@@ -0,0 +1,338 @@
+package com.mobilesw.homey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of the {@link UserLog} entries not yet acknowledged by Firestore.
+ *
+ * Each record is its payload length, the CRC32 of the payload and the payload:
+ * the format version, sequence number, user, timestamp and the codes of
+ * device, action and source. Records of the first version, written before
+ * logs were structured, have no version byte (their sequence number starts
+ * with a 0 byte) and hold a description and date instead; they are read with
+ * {@link UserLog#fromLegacy}. Records are synced to disk when appended; a
+ * record cut short by a crash or failing its checksum is dropped, together
+ * with anything after it, when the journal is opened.
+ *
+ * Sequence numbers are consecutive. The last acknowledged one is kept in a
+ * separate state file together with the id of the journal, so that every entry
+ * has a stable document id ({@link Entry#getId()}) and writing it again after a
+ * crash overwrites the same document. Acknowledged records are removed by
+ * truncating the journal once everything is acknowledged, or by compacting it
+ * when they grow large.
+ *
+ * Not thread-safe: use it from a single thread.
+ */
+public class LogJournal {
+
+    public static class Entry {
+
+        private final String mId;
+        private final long mSequence;
+        private final UserLog mLog;
+        private final long mEnd; // offset after the record
+
+        Entry(String id, long sequence, UserLog log, long end) {
+            mId = id;
+            mSequence = sequence;
+            mLog = log;
+            mEnd = end;
+        }
+
+        /**
+         * Id of the Firestore document of this entry, the same every time it is read.
+         */
+        public String getId() {
+            return mId;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public UserLog getLog() {
+            return mLog;
+        }
+    }
+
+    private static final int HEADER_SIZE = 8; // payload length and CRC32
+    private static final byte FORMAT_VERSION = 3; // 3: with the device ID
+    private static final int MAX_PAYLOAD = 4096;
+    private static final long COMPACT_THRESHOLD = 64 * 1024; // bytes of acknowledged records
+
+    private final File mFile;
+    private final File mStateFile;
+
+    private FileChannel mChannel;
+    private String mJournalId;
+    private long mAcknowledged = 0; // last acknowledged sequence
+    private long mLastSequence = 0; // last appended sequence
+    private long mReadOffset = 0; // first record not acknowledged
+
+    private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream(256);
+    private final DataOutputStream mPayloadOut = new DataOutputStream(mPayload);
+    private final CRC32 mCrc = new CRC32();
+
+    public LogJournal(File file) {
+        mFile = file;
+        mStateFile = new File(file.getPath() + ".state");
+    }
+
+    /**
+     * Appends the log and syncs it to disk.
+     *
+     * @return the sequence number of the entry
+     */
+    public long append(UserLog log) throws IOException {
+        open();
+        long sequence = mLastSequence + 1;
+        mPayload.reset();
+        mPayloadOut.writeByte(FORMAT_VERSION);
+        mPayloadOut.writeLong(sequence);
+        mPayloadOut.writeUTF(nonNull(log.getUserID()));
+        mPayloadOut.writeLong(log.getTimestamp());
+        mPayloadOut.writeByte(log.getDevice() != null ? log.getDevice().getCode() : 0);
+        mPayloadOut.writeByte(log.getAction() != null ? log.getAction().getCode() : 0);
+        mPayloadOut.writeByte(log.getSource() != null ? log.getSource().getCode() : 0);
+        mPayloadOut.writeUTF(nonNull(log.getDeviceId()));
+        mPayloadOut.flush();
+
+        byte[] payload = mPayload.toByteArray();
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) mCrc.getValue()).put(payload).flip();
+
+        long position = mChannel.size();
+        while (record.hasRemaining()) {
+            position += mChannel.write(record, position);
+        }
+        mChannel.force(false);
+        mLastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Reads up to max entries not acknowledged yet, oldest first.
+     */
+    public List<Entry> read(int max) throws IOException {
+        open();
+        List<Entry> entries = new ArrayList<>();
+        long offset = mReadOffset;
+        long size = mChannel.size();
+        while (entries.size() < max && offset < size) {
+            Entry entry = readRecord(offset, size);
+            if (entry == null) {
+                break;
+            }
+            offset = entry.mEnd;
+            if (entry.mSequence > mAcknowledged) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Marks every entry up to the given one as written. They won't be read again.
+     */
+    public void acknowledge(Entry entry) throws IOException {
+        open();
+        if (entry.mSequence <= mAcknowledged) {
+            return;
+        }
+        mAcknowledged = entry.mSequence;
+        writeState(); // before removing records, so a crash never brings them back as new
+        mReadOffset = entry.mEnd;
+        if (mAcknowledged == mLastSequence) {
+            mChannel.truncate(0);
+            mReadOffset = 0;
+        } else if (mReadOffset > COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Number of entries not acknowledged yet.
+     */
+    public long getPendingCount() throws IOException {
+        open();
+        return mLastSequence - mAcknowledged;
+    }
+
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+        readState();
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        recover();
+    }
+
+    /**
+     * Scans the journal, dropping a damaged tail left by a crash.
+     */
+    private void recover() throws IOException {
+        long size = mChannel.size();
+        long offset = 0;
+        mReadOffset = -1;
+        mLastSequence = mAcknowledged;
+        while (offset < size) {
+            Entry entry = readRecord(offset, size);
+            if (entry == null) {
+                break;
+            }
+            if (entry.mSequence > mAcknowledged && mReadOffset < 0) {
+                mReadOffset = offset;
+            }
+            mLastSequence = Math.max(mLastSequence, entry.mSequence);
+            offset = entry.mEnd;
+        }
+        if (offset < size) {
+            mChannel.truncate(offset);
+            mChannel.force(false);
+        }
+        if (mReadOffset < 0) {
+            mReadOffset = offset;
+        }
+    }
+
+    /**
+     * Reads the record at the given offset, or returns null if it is incomplete or damaged.
+     */
+    private Entry readRecord(long offset, long size) throws IOException {
+        if (size - offset < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        int crc = header.getInt(4);
+        if (length <= 0 || length > MAX_PAYLOAD || size - offset - HEADER_SIZE < length) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + HEADER_SIZE);
+        mCrc.reset();
+        mCrc.update(payload.array(), 0, length);
+        if ((int) mCrc.getValue() != crc) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+        long sequence;
+        UserLog log;
+        if (payload.get(0) == FORMAT_VERSION || payload.get(0) == 2) {
+            int version = in.readByte();
+            sequence = in.readLong();
+            String userID = in.readUTF();
+            long timestamp = in.readLong();
+            LogEvent.Device device = LogEvent.Device.fromCode(in.readByte());
+            LogEvent.Action action = LogEvent.Action.fromCode(in.readByte());
+            LogEvent.Source source = LogEvent.Source.fromCode(in.readByte());
+            String deviceId = version == FORMAT_VERSION ? in.readUTF() : "";
+            log = new UserLog(userID, timestamp, device, action, source, deviceId.isEmpty() ? null : deviceId);
+        } else {
+            sequence = in.readLong();
+            String userID = in.readUTF();
+            String logDesc = in.readUTF();
+            String date = in.readUTF();
+            long timestamp = in.available() >= 8 ? in.readLong() : 0;
+            log = UserLog.fromLegacy(userID, logDesc, date, timestamp);
+        }
+        return new Entry(mJournalId + "-" + sequence, sequence, log, offset + HEADER_SIZE + length);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal without the acknowledged records.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel tmpChannel = out.getChannel();
+            long size = mChannel.size();
+            long position = mReadOffset;
+            while (position < size) {
+                position += mChannel.transferTo(position, size - position, tmpChannel);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        mChannel.close();
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        mReadOffset = 0;
+    }
+
+    private void readState() throws IOException {
+        if (!mStateFile.exists()) {
+            mJournalId = UUID.randomUUID().toString();
+            mAcknowledged = 0;
+            writeState();
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(mStateFile));
+        try {
+            mJournalId = in.readUTF();
+            mAcknowledged = in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces the state file atomically.
+     */
+    private void writeState() throws IOException {
+        File tmp = new File(mStateFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeUTF(mJournalId);
+            out.writeLong(mAcknowledged);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(mStateFile)) {
+            throw new IOException("Could not replace " + mStateFile);
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,90 @@
+package com.mobilesw.homey;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Copies the UserLogs of a user written since the last sync into the
+ * {@link LogDatabase}. Only the logs from the high-water mark (the latest
+ * timestamp already copied) on are read, page by page.
+ *
+ * Logs are only deleted upstream by the compaction, oldest first, so the
+ * copies older than the oldest log left are deleted too.
+ */
+public class LogSync {
+
+    private static final String TAG = LogSync.class.getSimpleName();
+    private static final int PAGE_SIZE = 500;
+
+    private final LogDatabase mDatabase;
+    private final CollectionReference mLogs;
+    private final Executor mExecutor;
+
+    /**
+     * @param executor runs the sync, off the main thread
+     */
+    public LogSync(LogDatabase database, CollectionReference logs, Executor executor) {
+        mDatabase = database;
+        mLogs = logs;
+        mExecutor = executor;
+    }
+
+    public void sync(final String userID) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    syncNow(userID);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Sync failed", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks: call it off the main thread.
+     */
+    public void syncNow(String userID) throws ExecutionException, InterruptedException {
+        // from the server, the cache may not have the oldest log
+        List<DocumentSnapshot> oldest = Tasks.await(mLogs.whereEqualTo("userID", userID)
+                .orderBy("timestamp").limit(1).get(Source.SERVER)).getDocuments();
+        int deleted = mDatabase.deleteBefore(userID, oldest.isEmpty() ? Long.MAX_VALUE
+                : UserLogDocuments.read(oldest.get(0)).getTimestamp());
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " logs compacted");
+        }
+        Query query = mLogs.whereEqualTo("userID", userID)
+                .whereGreaterThanOrEqualTo("timestamp", mDatabase.getHighWaterMark(userID))
+                .orderBy("timestamp")
+                .limit(PAGE_SIZE);
+        Query page = query;
+        while (true) {
+            QuerySnapshot snapshot = Tasks.await(page.get());
+            List<DocumentSnapshot> documents = snapshot.getDocuments();
+            Map<String, UserLog> logs = new LinkedHashMap<>();
+            for (DocumentSnapshot document : documents) {
+                logs.put(document.getId(), UserLogDocuments.read(document));
+            }
+            mDatabase.putAll(logs);
+            if (documents.size() < PAGE_SIZE) {
+                return;
+            }
+            page = query.startAfter(documents.get(documents.size() - 1));
+        }
+    }
+}
@@ -28,7 +28,7 @@ public class LoginActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_login);
 
-        mFirebaseAuth = FirebaseAuth.getInstance();
+        mFirebaseAuth = FirebaseLoader.getAuth(this);
         emailId = findViewById(R.id.emailInput);
         password = findViewById(R.id.passwordInput);
         btnSignIn= findViewById(R.id.btnSignIn);
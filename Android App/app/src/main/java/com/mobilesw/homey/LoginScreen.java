@@ -26,7 +26,7 @@ public class LoginScreen extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_login_screen);
 
-        mFirebaseAuth = FirebaseAuth.getInstance();
+        mFirebaseAuth = FirebaseLoader.getAuth(this);
         emailId = findViewById(R.id.emailInput);
         password = findViewById(R.id.passwordInput);
         btnSignUp = findViewById(R.id.signupButton);
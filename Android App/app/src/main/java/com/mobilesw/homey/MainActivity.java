@@ -9,8 +9,6 @@ import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.Toast;
 
-import com.google.firebase.FirebaseApp;
-
 public class MainActivity extends AppCompatActivity {
 
     @Override
@@ -18,10 +16,12 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_main);
-        FirebaseApp.initializeApp(this);
+        FirebaseLoader.start(this); // in the background, the splash is shown meanwhile
 
-        Intent intent_loding = new Intent(this,loding_screen.class);
-        startActivity(intent_loding);
+        if (!FirebaseLoader.isReady()) {
+            Intent intent_loding = new Intent(this,loding_screen.class);
+            startActivity(intent_loding);
+        }
 
         ImageButton button = findViewById(R.id.dku_logo);
         button.setOnClickListener(new View.OnClickListener() {
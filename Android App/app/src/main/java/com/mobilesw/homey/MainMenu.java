@@ -9,7 +9,6 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
-import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.FirebaseFirestore;
 
 public class MainMenu extends AppCompatActivity {
@@ -31,7 +30,8 @@ public class MainMenu extends AppCompatActivity {
         btnLogout.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                FirebaseAuth.getInstance().signOut();
+                FirebaseLoader.getAuth(getApplicationContext()).signOut();
+                stopService(new Intent(getApplicationContext(), DeviceService.class)); // disconnects from the Arduino
                 Intent intToMain = new Intent(getApplicationContext(), LoginActivity.class);
                 startActivity(intToMain);
             }
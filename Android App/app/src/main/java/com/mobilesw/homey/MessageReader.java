@@ -0,0 +1,68 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Blocking reader for the frames sent by the Arduino.
+ *
+ * The thread running {@link #run()} sleeps inside {@link InputStream#read(byte[])}
+ * while the link is idle and wakes up as soon as the module delivers bytes, so
+ * no CPU is spent polling and no fixed delay is added to each message. The bytes
+ * read are passed to a {@link FrameDecoder}, which calls the listener with the
+ * payload of each frame.
+ */
+public class MessageReader implements Runnable {
+
+    private static final int BUFFER_SIZE = 64;
+
+    private final InputStream mInStream;
+    private final FrameDecoder mDecoder;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private volatile boolean mRunning = true;
+
+    public MessageReader(InputStream inStream, FrameDecoder.Listener listener) {
+        mInStream = inStream;
+        mDecoder = new FrameDecoder(listener);
+    }
+
+    /**
+     * Reads until the stream is closed, fails or {@link #shutdown()} is called.
+     */
+    @Override
+    public void run() {
+        while (mRunning) {
+            int bytes;
+            try {
+                bytes = mInStream.read(mBuffer); // blocks while idle
+            } catch (IOException e) {
+                break; // stream closed
+            }
+            if (bytes < 0) {
+                break; // end of stream
+            }
+            Metrics.BYTES_IN.add(bytes);
+            mDecoder.feed(mBuffer, 0, bytes);
+        }
+        mRunning = false;
+    }
+
+    /**
+     * Stops the reader. Closes the stream so that a blocked read returns.
+     */
+    public void shutdown() {
+        mRunning = false;
+        try {
+            mInStream.close();
+        } catch (IOException e) {}
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public FrameDecoder getDecoder() {
+        return mDecoder;
+    }
+}
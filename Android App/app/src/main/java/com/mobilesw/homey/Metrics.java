@@ -0,0 +1,244 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the connection to the Arduino, the
+ * message pipeline and the writes to Firestore, shown by MetricsActivity.
+ *
+ * Recording is one or two uncontended atomic operations, cheap enough for
+ * every byte read or written, so the metrics are always on. They are kept
+ * since the process started, until {@link #reset()}.
+ */
+public final class Metrics {
+
+    public static final class Counter {
+
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * Counts values in buckets of powers of 2: bucket 0 counts the values
+     * below 1, bucket i those in [2^(i-1), 2^i), and the last bucket the
+     * larger ones too.
+     */
+    public static final class Histogram {
+
+        static final int BUCKETS = 32;
+
+        private final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String name) {
+            mName = name;
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) { // rarely runs
+                max = mMax.get();
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        public long getBucketCount(int bucket) {
+            return mBuckets.get(bucket);
+        }
+
+        /**
+         * Exclusive upper bound of the values of the bucket.
+         */
+        public static long getBucketLimit(int bucket) {
+            return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * An upper bound of the percentile: the limit of its bucket, or the
+         * maximum if lower. 0 if nothing was recorded.
+         *
+         * @param percentile e.g. 99
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getBucketLimit(i) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mSum.set(0);
+            mMax.set(0);
+        }
+    }
+
+    private static final List<Counter> sCounters = new ArrayList<>();
+    private static final List<Histogram> sHistograms = new ArrayList<>();
+
+    // link, for every device
+    public static final Counter BYTES_IN = counter("link.bytes_in");
+    public static final Counter FRAMES_IN = counter("link.frames_in");
+    public static final Counter FRAMES_REJECTED = counter("link.frames_rejected"); // checksum, format or length
+    public static final Counter BYTES_OUT = counter("link.bytes_out");
+    public static final Counter FRAMES_OUT = counter("link.frames_out");
+    public static final Counter CONNECTS = counter("link.connects");
+    public static final Counter RECONNECTS = counter("link.reconnects"); // retries after a failure or a lost link
+
+    // pipeline
+    public static final Counter MESSAGES_REJECTED = counter("pipeline.messages_rejected"); // unknown or malformed
+    public static final Histogram HANDLER_DELAY = histogram("pipeline.handler_delay_ms");
+
+    // commands
+    public static final Histogram COMMAND_ROUND_TRIP = histogram("command.round_trip_ms");
+    public static final Counter COMMAND_RETRANSMITS = counter("command.retransmits");
+    public static final Counter COMMAND_FAILURES = counter("command.failures");
+
+    // logs written to Firestore
+    public static final Histogram BATCH_WRITE = histogram("firestore.batch_write_ms");
+    public static final Histogram LOG_DELAY = histogram("firestore.log_delay_ms"); // from the event to written
+    public static final Counter BATCH_FAILURES = counter("firestore.batch_failures");
+
+    private Metrics() {
+    }
+
+    private static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        sCounters.add(counter);
+        return counter;
+    }
+
+    private static Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name);
+        sHistograms.add(histogram);
+        return histogram;
+    }
+
+    public static List<Counter> getCounters() {
+        return Collections.unmodifiableList(sCounters);
+    }
+
+    public static List<Histogram> getHistograms() {
+        return Collections.unmodifiableList(sHistograms);
+    }
+
+    /**
+     * Sets every metric back to 0. Events recorded meanwhile may be partly kept.
+     */
+    public static void reset() {
+        for (Counter counter : sCounters) {
+            counter.mValue.set(0);
+        }
+        for (Histogram histogram : sHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes a line per counter, "name value", then per histogram
+     * "name count=... mean=... p50=... p90=... p99=... max=..." followed by
+     * its buckets, "  <limit count" for each bucket counted.
+     */
+    public static void write(Appendable out) throws IOException {
+        for (Counter counter : sCounters) {
+            out.append(counter.getName()).append(' ').append(String.valueOf(counter.get())).append('\n');
+        }
+        for (Histogram histogram : sHistograms) {
+            out.append(histogram.getName())
+                    .append(" count=").append(String.valueOf(histogram.getCount()))
+                    .append(" mean=").append(String.valueOf(Math.round(histogram.getMean() * 10) / 10.0))
+                    .append(" p50=").append(String.valueOf(histogram.getPercentile(50)))
+                    .append(" p90=").append(String.valueOf(histogram.getPercentile(90)))
+                    .append(" p99=").append(String.valueOf(histogram.getPercentile(99)))
+                    .append(" max=").append(String.valueOf(histogram.getMax())).append('\n');
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                long count = histogram.getBucketCount(i);
+                if (count > 0) {
+                    out.append("  <").append(i == Histogram.BUCKETS - 1 ? "inf"
+                            : String.valueOf(Histogram.getBucketLimit(i)))
+                            .append(' ').append(String.valueOf(count)).append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * See {@link #write(Appendable)}.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        try {
+            write(report);
+        } catch (IOException e) {
+            throw new AssertionError(e); // a StringBuilder does not throw
+        }
+        return report.toString();
+    }
+}
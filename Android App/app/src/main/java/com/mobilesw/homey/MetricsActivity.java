@@ -0,0 +1,108 @@
+package com.mobilesw.homey;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Debug screen showing the {@link Metrics}, refreshed every second, which
+ * can be exported to a file of the app (Android/data/com.mobilesw.homey/files).
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    private static final String TAG = MetricsActivity.class.getSimpleName();
+    private static final long REFRESH_MILLIS = 1000;
+
+    private final Handler mHandler = new Handler();
+    private TextView mReport;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mReport.setText(Metrics.report());
+            mHandler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mReport = findViewById(R.id.metrics_report);
+        findViewById(R.id.metrics_export).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                export();
+            }
+        });
+        findViewById(R.id.metrics_reset).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Metrics.reset();
+                mReport.setText(Metrics.report());
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    private void export() {
+        final String report = Metrics.report(); // as shown
+        final String name = "metrics-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt";
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File dir = getExternalFilesDir(null);
+                if (dir == null) {
+                    dir = getFilesDir(); // no external storage
+                }
+                File file = new File(dir, name);
+                String message;
+                try {
+                    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                    try {
+                        out.write(report);
+                    } finally {
+                        out.close();
+                    }
+                    message = getString(R.string.metrics_exported, file.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not export the metrics", e);
+                    message = e.getMessage();
+                }
+                final String result = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MetricsActivity.this, result, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "MetricsExport").start();
+    }
+}
@@ -0,0 +1,44 @@
+package com.mobilesw.homey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache that evicts the least recently used entry.
+ */
+public class PageCache<K, V> {
+
+    private final LinkedHashMap<K, V> mEntries;
+
+    public PageCache(final int capacity) {
+        mEntries = new LinkedHashMap<K, V>(capacity + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return null if not cached
+     */
+    public V get(K key) {
+        return mEntries.get(key);
+    }
+
+    public void put(K key, V value) {
+        mEntries.put(key, value);
+    }
+
+    public boolean contains(K key) {
+        return mEntries.containsKey(key);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,160 @@
+package com.mobilesw.homey;
+
+import java.util.List;
+
+/**
+ * Runs the {@link AutomationRule}s on every sample of the sensors.
+ *
+ * The rules are compiled into flat arrays of conditions grouped by sensor,
+ * with a count of the unmet conditions of each rule. A sample only checks the
+ * conditions of the sensors whose value changed, and a rule fires when its
+ * count drops to zero, i.e. when its conditions start to hold. So hundreds of
+ * rules cost a few microseconds per sample, and nothing is allocated after
+ * the compilation.
+ *
+ * Not thread-safe, used on one thread.
+ */
+public class RulesEngine {
+
+    private static final AutomationRule.Sensor[] SENSORS = AutomationRule.Sensor.values();
+
+    private final AutomationRule[] mRules;
+
+    // conditions, the ones of sensor s at [mSensorStart[s], mSensorStart[s + 1])
+    private final int[] mSensorStart = new int[SENSORS.length + 1];
+    private final int[] mMin;
+    private final int[] mMax;
+    private final int[] mRuleOf;
+    private final boolean[] mMet;
+
+    // rules
+    private final int[] mUnmet; // conditions of the rule not met
+    private final boolean[] mActive; // all its conditions were met at the last evaluation
+    private final boolean[] mTouched;
+    private final int[] mTouchedRules;
+    private final int[] mFired; // rules that fired at the last evaluation, in order
+    private int mFiredCount = 0;
+
+    // sensors
+    private final int[] mValues = new int[SENSORS.length];
+    private final boolean[] mKnown = new boolean[SENSORS.length]; // conditions on unknown sensors are not met
+    private int mChanged = 0; // bit per sensor set since the last evaluation
+
+    public RulesEngine(List<AutomationRule> rules) {
+        mRules = rules.toArray(new AutomationRule[0]);
+        int conditions = 0;
+        for (AutomationRule rule : mRules) {
+            for (AutomationRule.Condition condition : rule.getConditions()) {
+                mSensorStart[condition.getSensor().ordinal() + 1]++;
+                conditions++;
+            }
+        }
+        for (int s = 0; s < SENSORS.length; s++) {
+            mSensorStart[s + 1] += mSensorStart[s];
+        }
+        mMin = new int[conditions];
+        mMax = new int[conditions];
+        mRuleOf = new int[conditions];
+        mMet = new boolean[conditions];
+        int[] next = mSensorStart.clone();
+        mUnmet = new int[mRules.length];
+        for (int r = 0; r < mRules.length; r++) {
+            for (AutomationRule.Condition condition : mRules[r].getConditions()) {
+                int c = next[condition.getSensor().ordinal()]++;
+                mMin[c] = condition.getMin();
+                mMax[c] = condition.getMax();
+                mRuleOf[c] = r;
+                mUnmet[r]++;
+            }
+        }
+        mActive = new boolean[mRules.length];
+        mTouched = new boolean[mRules.length];
+        mTouchedRules = new int[mRules.length];
+        mFired = new int[mRules.length];
+    }
+
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    public AutomationRule getRule(int index) {
+        return mRules[index];
+    }
+
+    /**
+     * Sets the value of the sensor for the next {@link #evaluate()}.
+     */
+    public void set(AutomationRule.Sensor sensor, int value) {
+        int s = sensor.ordinal();
+        if (!mKnown[s] || mValues[s] != value) {
+            mKnown[s] = true;
+            mValues[s] = value;
+            mChanged |= 1 << s;
+        }
+    }
+
+    /**
+     * Checks the conditions on the sensors set since the last call.
+     *
+     * @return the number of rules whose conditions started to hold, see {@link #getFired(int)}
+     */
+    public int evaluate() {
+        int touched = 0;
+        for (int s = 0; s < SENSORS.length; s++) {
+            if ((mChanged & 1 << s) == 0) {
+                continue;
+            }
+            int value = mValues[s];
+            for (int c = mSensorStart[s]; c < mSensorStart[s + 1]; c++) {
+                boolean met = AutomationRule.Condition.matches(mMin[c], mMax[c], value);
+                if (met == mMet[c]) {
+                    continue;
+                }
+                mMet[c] = met;
+                int r = mRuleOf[c];
+                mUnmet[r] += met ? -1 : 1;
+                if (!mTouched[r]) {
+                    mTouched[r] = true;
+                    mTouchedRules[touched++] = r;
+                }
+            }
+        }
+        mChanged = 0;
+        // the rules are checked once all the sensors are, so a rule does not fire on half a sample
+        mFiredCount = 0;
+        for (int i = 0; i < touched; i++) {
+            int r = mTouchedRules[i];
+            mTouched[r] = false;
+            boolean active = mUnmet[r] == 0;
+            if (active && !mActive[r]) {
+                insertFired(r);
+            }
+            mActive[r] = active;
+        }
+        return mFiredCount;
+    }
+
+    /**
+     * The i-th rule that fired at the last {@link #evaluate()}, in the order of
+     * the rules, so the later of two conflicting rules is applied last.
+     */
+    public AutomationRule getFired(int i) {
+        return mRules[mFired[i]];
+    }
+
+    /**
+     * Index of the i-th rule that fired, see {@link #getFired(int)}.
+     */
+    public int getFiredIndex(int i) {
+        return mFired[i];
+    }
+
+    private void insertFired(int rule) {
+        int i = mFiredCount++;
+        while (i > 0 && mFired[i - 1] > rule) {
+            mFired[i] = mFired[i - 1];
+            i--;
+        }
+        mFired[i] = rule;
+    }
+}
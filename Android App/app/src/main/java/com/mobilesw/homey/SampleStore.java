@@ -0,0 +1,397 @@
+package com.mobilesw.homey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time series of the temperature & humidity samples sent by the Arduino.
+ *
+ * Samples are appended to fixed-size segment files, memory mapped, each named
+ * after the time of its first sample. A segment starts with a header (magic,
+ * bytes used, sample count, time of the first and last sample) followed by
+ * one record per sample: the time since the previous sample as a varint and
+ * the changes of temperature and humidity as zigzag varints, usually 3 bytes
+ * in total. The header is updated after the record, so a record cut short by a
+ * crash is ignored.
+ *
+ * The latest samples are also kept in an in-memory ring buffer, so that recent
+ * ranges are read without touching the files. Segments older than the
+ * retention are deleted when a new segment is started.
+ *
+ * Thread-safe.
+ */
+public class SampleStore {
+
+    public interface Visitor {
+        void onSample(long timeMillis, int temperature, int humidity);
+    }
+
+    static final int SEGMENT_SIZE = 64 * 1024; // about a day of samples every 5 seconds
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x54485331; // "THS1"
+    private static final int HEADER_SIZE = 32;
+    private static final int USED_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int FIRST_TIME_OFFSET = 16;
+    private static final int LAST_TIME_OFFSET = 24;
+    private static final int MAX_RECORD_SIZE = 20; // varint of a long and two varints of ints
+
+    private final File mDir;
+    private final long mRetentionMillis;
+
+    // hot samples, oldest at mRingStart
+    private final long[] mRingTimes;
+    private final int[] mRingTemperatures;
+    private final int[] mRingHumidities;
+    private int mRingStart = 0;
+    private int mRingSize = 0;
+
+    private final List<Long> mSegments = new ArrayList<>(); // first times, ascending
+    private MappedByteBuffer mTail; // segment being appended to
+    private int mTailUsed;
+    private int mTailCount;
+    private long mLastTime;
+    private int mLastTemperature;
+    private int mLastHumidity;
+
+    /**
+     * @param retentionMillis samples older than this are deleted
+     * @param hotCapacity number of latest samples kept in memory
+     */
+    public SampleStore(File dir, long retentionMillis, int hotCapacity) throws IOException {
+        mDir = dir;
+        mRetentionMillis = retentionMillis;
+        mRingTimes = new long[hotCapacity];
+        mRingTemperatures = new int[hotCapacity];
+        mRingHumidities = new int[hotCapacity];
+        open();
+    }
+
+    public synchronized void append(long timeMillis, int temperature, int humidity) throws IOException {
+        if (timeMillis < mLastTime) {
+            timeMillis = mLastTime; // the clock went back
+        }
+        if (mTail == null || mTailUsed + MAX_RECORD_SIZE > SEGMENT_SIZE) {
+            startSegment(timeMillis);
+        }
+        MappedByteBuffer tail = mTail;
+        tail.position(mTailUsed);
+        if (mTailCount == 0) {
+            writeVarint(tail, 0);
+            writeVarint(tail, zigzag(temperature));
+            writeVarint(tail, zigzag(humidity));
+        } else {
+            writeVarint(tail, timeMillis - mLastTime);
+            writeVarint(tail, zigzag(temperature - mLastTemperature));
+            writeVarint(tail, zigzag(humidity - mLastHumidity));
+        }
+        mTailUsed = tail.position();
+        mTailCount++;
+        tail.putLong(LAST_TIME_OFFSET, timeMillis);
+        tail.putInt(COUNT_OFFSET, mTailCount);
+        tail.putInt(USED_OFFSET, mTailUsed); // last, the record is complete now
+
+        mLastTime = timeMillis;
+        mLastTemperature = temperature;
+        mLastHumidity = humidity;
+        addHot(timeMillis, temperature, humidity);
+    }
+
+    /**
+     * Appends the sample only if newer than the last one, checked atomically
+     * with the append, for samples of another source than the device, e.g. an
+     * import while the device is connected.
+     *
+     * @return whether it was appended
+     */
+    public synchronized boolean appendIfNewer(long timeMillis, int temperature, int humidity) throws IOException {
+        if (timeMillis <= mLastTime) {
+            return false;
+        }
+        append(timeMillis, temperature, humidity);
+        return true;
+    }
+
+    /**
+     * Visits the samples in [from, to) in time order.
+     *
+     * @return the number of samples visited
+     */
+    public synchronized int scan(long from, long to, Visitor visitor) throws IOException {
+        if (mRingSize > 0 && from >= mRingTimes[mRingStart]) {
+            return scanHot(from, to, visitor);
+        }
+        int count = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            long first = mSegments.get(i);
+            if (first >= to) {
+                break;
+            }
+            if (i + 1 < mSegments.size() && mSegments.get(i + 1) <= from) {
+                continue; // ends before the range
+            }
+            MappedByteBuffer segment = i == mSegments.size() - 1 && mTail != null
+                    ? mTail : map(first, FileChannel.MapMode.READ_ONLY);
+            if (segment != null) {
+                count += scanSegment(segment, from, to, visitor);
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Time of the first sample kept, at most; Long.MAX_VALUE if there are none.
+     */
+    public synchronized long getFirstTime() {
+        return mSegments.isEmpty() ? Long.MAX_VALUE : mSegments.get(0);
+    }
+
+    /**
+     * Bytes used on disk by the segments.
+     */
+    public synchronized long getSize() {
+        return (long) mSegments.size() * SEGMENT_SIZE;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Writes the mapped segment to disk.
+     */
+    public synchronized void close() {
+        if (mTail != null) {
+            mTail.force();
+            mTail = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        mSegments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Long[] sorted = mSegments.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        mSegments.clear();
+        mSegments.addAll(Arrays.asList(sorted));
+
+        if (!mSegments.isEmpty()) {
+            MappedByteBuffer tail = map(mSegments.get(mSegments.size() - 1), FileChannel.MapMode.READ_WRITE);
+            if (tail == null) {
+                segmentFile(mSegments.remove(mSegments.size() - 1)).delete(); // damaged
+            } else {
+                mTail = tail;
+                mTailUsed = tail.getInt(USED_OFFSET);
+                mTailCount = tail.getInt(COUNT_OFFSET);
+            }
+        }
+        if (mTail == null) {
+            return;
+        }
+        // reload the hot samples from the latest segments, and the last values the deltas start from
+        long hotFrom = mSegments.get(mSegments.size() - 1);
+        int hotCount = mTailCount;
+        for (int i = mSegments.size() - 2; i >= 0 && hotCount < mRingTimes.length; i--) {
+            MappedByteBuffer segment = map(mSegments.get(i), FileChannel.MapMode.READ_ONLY);
+            if (segment != null) {
+                hotFrom = mSegments.get(i);
+                hotCount += segment.getInt(COUNT_OFFSET);
+            }
+        }
+        scan(hotFrom, Long.MAX_VALUE, new Visitor() {
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) {
+                mLastTime = timeMillis;
+                mLastTemperature = temperature;
+                mLastHumidity = humidity;
+                addHot(timeMillis, temperature, humidity);
+            }
+        });
+    }
+
+    private void startSegment(long firstTime) throws IOException {
+        if (mTail != null) {
+            mTail.force();
+        }
+        long name = firstTime;
+        if (!mSegments.isEmpty() && name <= mSegments.get(mSegments.size() - 1)) {
+            name = mSegments.get(mSegments.size() - 1) + 1; // names must be unique and ascending
+        }
+        RandomAccessFile file = new RandomAccessFile(segmentFile(name), "rw");
+        try {
+            file.setLength(SEGMENT_SIZE);
+            mTail = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            file.close(); // the mapping stays valid
+        }
+        mTail.putLong(FIRST_TIME_OFFSET, firstTime);
+        mTail.putLong(LAST_TIME_OFFSET, firstTime);
+        mTail.putInt(COUNT_OFFSET, 0);
+        mTail.putInt(USED_OFFSET, HEADER_SIZE);
+        mTail.putInt(0, MAGIC);
+        mTailUsed = HEADER_SIZE;
+        mTailCount = 0;
+        mSegments.add(name);
+        deleteExpired(firstTime - mRetentionMillis);
+    }
+
+    /**
+     * Deletes the segments whose samples are all older than limit.
+     */
+    private void deleteExpired(long limit) {
+        while (mSegments.size() > 1 && mSegments.get(1) <= limit) {
+            segmentFile(mSegments.remove(0)).delete();
+        }
+    }
+
+    /**
+     * @return null if the file is not a valid segment
+     */
+    private MappedByteBuffer map(long name, FileChannel.MapMode mode) throws IOException {
+        File file = segmentFile(name);
+        if (file.length() != SEGMENT_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            MappedByteBuffer segment = raf.getChannel().map(mode, 0, SEGMENT_SIZE);
+            int used = segment.getInt(USED_OFFSET);
+            if (segment.getInt(0) != MAGIC || used < HEADER_SIZE || used > SEGMENT_SIZE) {
+                return null;
+            }
+            return segment;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File segmentFile(long name) {
+        return new File(mDir, String.format("%019d", name) + SEGMENT_SUFFIX);
+    }
+
+    private static int scanSegment(MappedByteBuffer segment, long from, long to, Visitor visitor) {
+        int used = segment.getInt(USED_OFFSET);
+        int count = segment.getInt(COUNT_OFFSET);
+        long time = segment.getLong(FIRST_TIME_OFFSET);
+        if (count == 0 || segment.getLong(LAST_TIME_OFFSET) < from) {
+            return 0;
+        }
+        int temperature = 0;
+        int humidity = 0;
+        int visited = 0;
+        // a duplicate keeps the position of the shared buffer untouched
+        ByteBuffer records = segment.duplicate();
+        records.position(HEADER_SIZE);
+        records.limit(used);
+        for (int i = 0; i < count; i++) {
+            time += readVarint(records);
+            temperature += unzigzag((int) readVarint(records));
+            humidity += unzigzag((int) readVarint(records));
+            if (time >= to) {
+                break;
+            }
+            if (time >= from) {
+                visitor.onSample(time, temperature, humidity);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    private int scanHot(long from, long to, Visitor visitor) {
+        int capacity = mRingTimes.length;
+        // binary search of the first sample at or after from
+        int low = 0;
+        int high = mRingSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRingTimes[(mRingStart + mid) % capacity] < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int visited = 0;
+        for (int i = low; i < mRingSize; i++) {
+            int index = (mRingStart + i) % capacity;
+            if (mRingTimes[index] >= to) {
+                break;
+            }
+            visitor.onSample(mRingTimes[index], mRingTemperatures[index], mRingHumidities[index]);
+            visited++;
+        }
+        return visited;
+    }
+
+    private void addHot(long timeMillis, int temperature, int humidity) {
+        int capacity = mRingTimes.length;
+        if (capacity == 0) {
+            return;
+        }
+        int index;
+        if (mRingSize < capacity) {
+            index = (mRingStart + mRingSize) % capacity;
+            mRingSize++;
+        } else {
+            index = mRingStart; // overwrites the oldest
+            mRingStart = (mRingStart + 1) % capacity;
+        }
+        mRingTimes[index] = timeMillis;
+        mRingTemperatures[index] = temperature;
+        mRingHumidities[index] = humidity;
+    }
+
+    private static void writeVarint(MappedByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,14 +1,30 @@
 package com.mobilesw.homey;
 
 import android.os.Bundle;
+import android.text.InputType;
 import android.view.MenuItem;
+import android.widget.EditText;
+import android.widget.Toast;
 
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.EditTextPreference;
+import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
+import androidx.preference.PreferenceManager;
 
 public class SettingsActivity extends AppCompatActivity {
 
+    private final DeviceStore.Observer mStateObserver = new DeviceStore.Observer() {
+        @Override
+        public void onStateChanged(DeviceState state, int changes) {
+            ActionBar actionBar = getSupportActionBar();
+            if ((changes & DeviceState.CONNECTION) != 0 && actionBar != null) {
+                actionBar.setSubtitle(DeviceService.describeConnection(SettingsActivity.this, state));
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -23,10 +39,53 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        DeviceService.getStore().observe(mStateObserver);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        DeviceService.getStore().removeObserver(mStateObserver);
+    }
+
     public static class SettingsFragment extends PreferenceFragmentCompat {
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.root_preferences, rootKey);
+            EditTextPreference rules = findPreference(DeviceService.RULES_KEY);
+            if (rules != null) {
+                rules.setOnBindEditTextListener(new EditTextPreference.OnBindEditTextListener() {
+                    @Override
+                    public void onBindEditText(EditText editText) {
+                        editText.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+                    }
+                });
+                rules.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        try {
+                            DeviceRegistry registry = DeviceService.loadRegistry(
+                                    PreferenceManager.getDefaultSharedPreferences(getContext()));
+                            for (AutomationRule rule : AutomationRule.parseAll((String) newValue)) {
+                                for (String deviceId : new String[]{rule.getSensorDeviceId(), rule.getDeviceId()}) {
+                                    if (registry.get(deviceId) == null) {
+                                        throw new IllegalArgumentException(getString(
+                                                R.string.automation_rules_unknown_device, deviceId, rule.getName()));
+                                    }
+                                }
+                            }
+                            return true;
+                        } catch (IllegalArgumentException e) {
+                            Toast.makeText(getContext(), getString(R.string.automation_rules_invalid,
+                                    e.getMessage()), Toast.LENGTH_LONG).show();
+                            return false; // not saved
+                        }
+                    }
+                });
+            }
         }
     }
 
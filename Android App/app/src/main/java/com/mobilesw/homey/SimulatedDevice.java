@@ -0,0 +1,441 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * In-process {@link Transport} that behaves like the Arduino running
+ * Bluetooth_Arduino.ino, so the message pipeline can be run and measured on a
+ * plain JVM without the HC-06 module.
+ *
+ * It follows the firmware: motion seen by the PIR sensor turns the lights on
+ * automatically for a while, the fan is turned on and off automatically around
+ * the temperature thresholds, temperature & humidity are sent periodically and
+ * the CONNECTED command is answered with the current state. Commands and
+ * messages use the frames of {@link FrameDecoder}; commands sent with a
+ * sequence number are acknowledged once applied (see {@link CommandQueue}).
+ *
+ * For load tests the telemetry interval, a random delay (jitter) before each
+ * message and the size of the chunks messages are split into can be set. For
+ * reconnection tests the device can be made unavailable and the link dropped;
+ * it can be connected again after {@link #close()}. A share of the command
+ * frames can be lost, to test retransmission.
+ */
+public class SimulatedDevice implements Transport {
+
+    // Codes for Bluetooth reading, as in the firmware
+    static final char CONNECTED = '0';
+    static final char LIGHTS_OFF = '1';
+    static final char LIGHTS_ON = '2';
+    static final char FAN_OFF = '3';
+    static final char FAN_ON = '4';
+    static final char AUTO_LIGHTS = '5';
+    static final char NO_AUTO_LIGHTS = '6';
+    static final char AUTO_FAN = '7';
+    static final char NO_AUTO_FAN = '8';
+    static final char NO_AUTO_LIGHTS_FAN = '9';
+
+    // Codes for Bluetooth writing, as in the firmware
+    static final String TEMP_AND_HUMIDITY = "TH";
+    static final String AUTO_LIGHTS_OFF = "0L";
+    static final String AUTO_LIGHTS_ON = "1L";
+    static final String AUTO_FAN_OFF = "0F";
+    static final String AUTO_FAN_ON = "1F";
+    static final String ACK = "A";
+
+    static final int TEMP_THRESHOLD_MAX = 23;
+    static final int TEMP_THRESHOLD_MIN = 20;
+
+    private final String mName;
+    private final Random mRandom;
+    private volatile DeviceInputStream mInStream = new DeviceInputStream(); // a new one on every connection
+    private final DeviceOutputStream mOutStream = new DeviceOutputStream();
+    private final FrameDecoder mCommandDecoder;
+    private volatile Thread mLoop;
+    private volatile boolean mRunning = false;
+    private volatile boolean mAvailable = true;
+
+    // configuration
+    private volatile long mTelemetryIntervalMillis = 5000; // REFRESH_INTERVAL_DHT11
+    private volatile long mLightsAutoIntervalMillis = 10000; // LIGHTS_AUTO_INTERVAL
+    private volatile int mJitterMillis = 0;
+    private volatile int mChunkSize = Integer.MAX_VALUE;
+    private volatile double mCommandLossRate = 0;
+
+    // sensors
+    private volatile int mTemperature = 22;
+    private volatile int mHumidity = 40;
+    private volatile boolean mMotion = false;
+
+    // firmware state, guarded by this
+    private boolean mLightsOn = false;
+    private boolean mFanOn = false;
+    private boolean mLightsAutoActivated = false;
+    private boolean mFanAutoActivated = false;
+    private boolean mAutoActivateLights = true;
+    private boolean mAutoActivateFan = true;
+    private long mLastAutoLights = 0;
+    private long mLastRefresh = 0;
+
+    private long mMessagesSent = 0;
+    private long mCommandsReceived = 0;
+    private long mWritesReceived = 0;
+
+    public SimulatedDevice(String name) {
+        this(name, 0);
+    }
+
+    /**
+     * @param seed seed of the jitter, so that runs can be repeated
+     */
+    public SimulatedDevice(String name, long seed) {
+        mName = name;
+        mRandom = new Random(seed);
+        mCommandDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (mCommandLossRate > 0 && nextRandom() < mCommandLossRate) {
+                    return; // lost
+                }
+                if (length == 1) {
+                    onCommand((char) buffer[offset]);
+                } else if (length == 3 && FrameDecoder.hexValue(buffer[offset + 1]) >= 0
+                        && FrameDecoder.hexValue(buffer[offset + 2]) >= 0) {
+                    onCommand((char) buffer[offset]);
+                    acknowledge(new String(buffer, offset + 1, 2));
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        if (!mAvailable) {
+            throw new IOException("Device not available");
+        }
+        mInStream = new DeviceInputStream(); // the previous one stays closed for its reader
+        mRunning = true;
+        mLastRefresh = now();
+        mLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "SimulatedDevice " + mName);
+        mLoop.start();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutStream;
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        mInStream.close();
+        Thread loop = mLoop;
+        if (loop != null) {
+            loop.interrupt();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Whether connections can be made, e.g. whether the module is in range.
+     */
+    public void setAvailable(boolean available) {
+        mAvailable = available;
+    }
+
+    public void setTelemetryIntervalMillis(long interval) {
+        mTelemetryIntervalMillis = interval;
+    }
+
+    public void setLightsAutoIntervalMillis(long interval) {
+        mLightsAutoIntervalMillis = interval;
+    }
+
+    /**
+     * Each message is delayed by a random time up to jitter.
+     */
+    public void setJitterMillis(int jitter) {
+        mJitterMillis = jitter;
+    }
+
+    /**
+     * Messages are delivered in chunks of at most this many bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Share of the command frames lost, from 0 to 1.
+     */
+    public void setCommandLossRate(double rate) {
+        mCommandLossRate = rate;
+    }
+
+    public void setTemperature(int temperature) {
+        mTemperature = temperature;
+    }
+
+    public void setHumidity(int humidity) {
+        mHumidity = humidity;
+    }
+
+    /**
+     * Whether the PIR sensor sees motion.
+     */
+    public void setMotion(boolean motion) {
+        mMotion = motion;
+    }
+
+    public synchronized boolean isLightsOn() {
+        return mLightsOn;
+    }
+
+    public synchronized boolean isFanOn() {
+        return mFanOn;
+    }
+
+    public synchronized long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public synchronized long getCommandsReceived() {
+        return mCommandsReceived;
+    }
+
+    /**
+     * Writes made to the output stream, each of one or more commands.
+     */
+    public synchronized long getWritesReceived() {
+        return mWritesReceived;
+    }
+
+    private void loop() {
+        while (mRunning && mLoop == Thread.currentThread()) {
+            tick(now());
+            long sleep = Math.max(1, Math.min(10, mTelemetryIntervalMillis));
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * One pass of the firmware loop().
+     */
+    private synchronized void tick(long now) {
+        if (mAutoActivateLights && mMotion && !mLightsOn) {
+            send(AUTO_LIGHTS_ON);
+            mLightsOn = true;
+            mLightsAutoActivated = true;
+            mLastAutoLights = now;
+        } else if (mAutoActivateLights && now - mLastAutoLights > mLightsAutoIntervalMillis
+                && mLightsAutoActivated) {
+            mLightsOn = false;
+            send(AUTO_LIGHTS_OFF);
+            mLightsAutoActivated = false;
+        }
+
+        if (now - mLastRefresh >= mTelemetryIntervalMillis) {
+            mLastRefresh = now;
+            int temperature = mTemperature;
+            if (mAutoActivateFan && temperature > TEMP_THRESHOLD_MAX && !mFanOn) {
+                mFanOn = true;
+                send(AUTO_FAN_ON);
+                mFanAutoActivated = true;
+            } else if (mAutoActivateFan && temperature < TEMP_THRESHOLD_MIN && mFanOn) {
+                mFanOn = false;
+                send(AUTO_FAN_OFF);
+                mFanAutoActivated = false;
+            } else {
+                sendTempHumData();
+            }
+        }
+    }
+
+    private synchronized void onCommand(char command) {
+        mCommandsReceived++;
+        switch (command) {
+            case LIGHTS_OFF:
+                mLightsOn = false;
+                mLightsAutoActivated = false;
+                break;
+            case LIGHTS_ON:
+                mLightsOn = true;
+                break;
+            case FAN_OFF:
+                mFanOn = false;
+                mFanAutoActivated = false;
+                break;
+            case FAN_ON:
+                mFanOn = true;
+                break;
+            case NO_AUTO_LIGHTS:
+                mAutoActivateLights = false;
+                mLightsAutoActivated = false;
+                break;
+            case AUTO_LIGHTS:
+                mAutoActivateLights = true;
+                break;
+            case NO_AUTO_FAN:
+                mAutoActivateFan = false;
+                break;
+            case AUTO_FAN:
+                mAutoActivateFan = true;
+                break;
+            case NO_AUTO_LIGHTS_FAN:
+                mAutoActivateLights = false;
+                mAutoActivateFan = false;
+                mLightsAutoActivated = false;
+                break;
+            case CONNECTED:
+                sendTempHumData();
+                if (mLightsAutoActivated) {
+                    send(AUTO_LIGHTS_ON);
+                }
+                if (mFanAutoActivated) {
+                    send(AUTO_FAN_ON);
+                }
+                break;
+        }
+    }
+
+    private synchronized void acknowledge(String sequence) {
+        send(ACK + sequence);
+    }
+
+    private synchronized double nextRandom() {
+        return mRandom.nextDouble();
+    }
+
+    private void sendTempHumData() {
+        send(TEMP_AND_HUMIDITY + mTemperature + " " + mHumidity);
+    }
+
+    private void send(String payload) {
+        int jitter = mJitterMillis;
+        if (jitter > 0) {
+            try {
+                Thread.sleep(mRandom.nextInt(jitter + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        byte[] frame = FrameEncoder.encode(payload);
+        int chunkSize = mChunkSize;
+        for (int offset = 0; offset < frame.length; offset += chunkSize) {
+            mInStream.push(frame, offset, Math.min(chunkSize, frame.length - offset));
+        }
+        mMessagesSent++;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Bytes sent by the device. Reads block until bytes arrive and fail once closed.
+     */
+    private static class DeviceInputStream extends InputStream {
+
+        private byte[] mData = new byte[1024];
+        private int mLength = 0;
+        private boolean mClosed = false;
+
+        synchronized void push(byte[] bytes, int offset, int length) {
+            if (mClosed) {
+                return;
+            }
+            if (mLength + length > mData.length) {
+                byte[] data = new byte[Math.max(mData.length * 2, mLength + length)];
+                System.arraycopy(mData, 0, data, 0, mLength);
+                mData = data;
+            }
+            System.arraycopy(bytes, offset, mData, mLength, length);
+            mLength += length;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (mLength == 0 && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+            int n = Math.min(len, mLength);
+            System.arraycopy(mData, 0, b, off, n);
+            System.arraycopy(mData, n, mData, 0, mLength - n);
+            mLength -= n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mLength;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Bytes sent to the device, decoded as command frames.
+     */
+    private class DeviceOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!mRunning) {
+                throw new IOException("Transport closed");
+            }
+            synchronized (SimulatedDevice.this) {
+                mWritesReceived++;
+            }
+            synchronized (mCommandDecoder) {
+                mCommandDecoder.feed(b, off, len);
+            }
+        }
+    }
+}
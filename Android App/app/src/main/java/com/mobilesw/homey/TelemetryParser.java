@@ -0,0 +1,103 @@
+package com.mobilesw.homey;
+
+/**
+ * Parses the payload of the frames sent by the Arduino straight from the byte
+ * buffer, without building Strings or using regular expressions.
+ *
+ * {@link #parse(byte[], int, int)} returns the type of the message; for
+ * {@link #TEMP_AND_HUMIDITY} the values are then read with
+ * {@link #getTemperature()} and {@link #getHumidity()}. Malformed payloads are
+ * reported as {@link #INVALID}, nothing is thrown and nothing is allocated.
+ */
+public class TelemetryParser {
+
+    // message types
+    public static final int INVALID = 0;
+    public static final int TEMP_AND_HUMIDITY = 1; // "TH<temperature> <humidity>"
+    public static final int AUTO_LIGHTS_OFF = 2; // "0L"
+    public static final int AUTO_LIGHTS_ON = 3; // "1L"
+    public static final int AUTO_FAN_OFF = 4; // "0F"
+    public static final int AUTO_FAN_ON = 5; // "1F"
+
+    private static final int MAX_DIGITS = 4; // DHT11 readings are never this long
+
+    private int mTemperature;
+    private int mHumidity;
+    private int mPosition; // next byte to parse
+
+    public int parse(byte[] buffer, int offset, int length) {
+        if (length < 2) {
+            return INVALID;
+        }
+        byte first = buffer[offset];
+        byte second = buffer[offset + 1];
+        if (first == 'T' && second == 'H') {
+            return parseTempAndHumidity(buffer, offset + 2, offset + length);
+        }
+        if (length != 2) {
+            return INVALID;
+        }
+        if (second == 'L') {
+            return first == '0' ? AUTO_LIGHTS_OFF : first == '1' ? AUTO_LIGHTS_ON : INVALID;
+        } else if (second == 'F') {
+            return first == '0' ? AUTO_FAN_OFF : first == '1' ? AUTO_FAN_ON : INVALID;
+        }
+        return INVALID;
+    }
+
+    /**
+     * Temperature in degrees Celsius of the last {@link #TEMP_AND_HUMIDITY} message parsed.
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * Relative humidity in % of the last {@link #TEMP_AND_HUMIDITY} message parsed.
+     */
+    public int getHumidity() {
+        return mHumidity;
+    }
+
+    private int parseTempAndHumidity(byte[] buffer, int start, int end) {
+        mPosition = start;
+        int temperature = parseInt(buffer, end);
+        if (mPosition == start || mPosition >= end || buffer[mPosition] != ' ') {
+            return INVALID;
+        }
+        while (mPosition < end && buffer[mPosition] == ' ') {
+            mPosition++;
+        }
+        int humidityStart = mPosition;
+        int humidity = parseInt(buffer, end);
+        if (mPosition == humidityStart || mPosition != end) {
+            return INVALID;
+        }
+        mTemperature = temperature;
+        mHumidity = humidity;
+        return TEMP_AND_HUMIDITY;
+    }
+
+    /**
+     * Reads an optionally negative integer at mPosition and advances past it.
+     * mPosition is left where it was if no integer is found.
+     */
+    private int parseInt(byte[] buffer, int end) {
+        int i = mPosition;
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int digitsStart = i;
+        int value = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9' && i - digitsStart < MAX_DIGITS) {
+            value = value * 10 + (buffer[i] - '0');
+            i++;
+        }
+        if (i == digitsStart || i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            return 0; // no digits or too many
+        }
+        mPosition = i;
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,242 @@
+package com.mobilesw.homey;
+
+import java.util.Locale;
+
+/**
+ * Rolling statistics of the temperature & humidity readings over the last
+ * minute, hour and day, and the anomalies of the DHT11: readings stuck at
+ * the same values, or a reading far off the last hour.
+ *
+ * Each reading updates a {@link WindowStats} per measure and window in O(1),
+ * so the screens and the rules get the statistics of the whole day without
+ * scanning the {@link SampleStore}. The results are taken as an immutable
+ * {@link Snapshot}.
+ *
+ * Not thread-safe, used on the processing thread of the {@link DeviceService}.
+ */
+public class TelemetryStats {
+
+    public enum Measure {
+        TEMPERATURE, HUMIDITY
+    }
+
+    public enum Window {
+        MINUTE(60 * 1000L), HOUR(3600 * 1000L), DAY(24 * 3600 * 1000L);
+
+        private final long mMillis;
+
+        Window(long millis) {
+            mMillis = millis;
+        }
+
+        public long getMillis() {
+            return mMillis;
+        }
+    }
+
+    // anomalies, as bit flags
+    /** The readings have not changed at all for {@link #STUCK_MILLIS}, the sensor is likely not read any more. */
+    public static final int STUCK = 1;
+    /** The latest temperature is far off those of the last hour. */
+    public static final int TEMPERATURE_SPIKE = 1 << 1;
+    public static final int HUMIDITY_SPIKE = 1 << 2;
+
+    static final long STUCK_MILLIS = 2 * 3600 * 1000L;
+    static final int STUCK_MIN_READINGS = 60; // in the last hour, not to take a pause of the device for it
+    static final int SPIKE_MIN_READINGS = 12; // in the last hour, for its deviation to mean something
+    static final double SPIKE_DEVIATIONS = 4;
+    // the DHT11 reads in steps of 1ºC and 1%, and varies by a few even when nothing changes
+    private static final int[] SPIKE_MIN_DELTA = {5, 15};
+
+    private static final int BUCKETS = 60;
+
+    private static final Measure[] MEASURES = Measure.values();
+    private static final Window[] WINDOWS = Window.values();
+
+    private final WindowStats[][] mStats = new WindowStats[MEASURES.length][WINDOWS.length];
+    private final int[] mLast = new int[MEASURES.length];
+    private long mLastChangeMillis = -1; // of the readings, -1 if none yet
+    private int mAnomalies = 0;
+    private Snapshot mSnapshot; // null until taken after a reading
+
+    public TelemetryStats() {
+        for (Measure measure : MEASURES) {
+            for (Window window : WINDOWS) {
+                mStats[measure.ordinal()][window.ordinal()] = new WindowStats(window.getMillis(), BUCKETS);
+            }
+        }
+    }
+
+    public void add(long timeMillis, int temperature, int humidity) {
+        int anomalies = 0;
+        if (isSpike(Measure.TEMPERATURE, temperature)) {
+            anomalies |= TEMPERATURE_SPIKE;
+        }
+        if (isSpike(Measure.HUMIDITY, humidity)) {
+            anomalies |= HUMIDITY_SPIKE;
+        }
+        if (mLastChangeMillis < 0 || temperature != mLast[Measure.TEMPERATURE.ordinal()]
+                || humidity != mLast[Measure.HUMIDITY.ordinal()]) {
+            mLastChangeMillis = timeMillis;
+        }
+        mLast[Measure.TEMPERATURE.ordinal()] = temperature;
+        mLast[Measure.HUMIDITY.ordinal()] = humidity;
+        for (Window window : WINDOWS) {
+            mStats[Measure.TEMPERATURE.ordinal()][window.ordinal()].add(timeMillis, temperature);
+            mStats[Measure.HUMIDITY.ordinal()][window.ordinal()].add(timeMillis, humidity);
+        }
+        if (timeMillis - mLastChangeMillis >= STUCK_MILLIS
+                && get(Measure.TEMPERATURE, Window.HOUR).getCount() >= STUCK_MIN_READINGS) {
+            anomalies |= STUCK;
+        }
+        mAnomalies = anomalies;
+        mSnapshot = null;
+    }
+
+    /**
+     * @return the anomalies of the latest reading, see {@link #STUCK}
+     */
+    public int getAnomalies() {
+        return mAnomalies;
+    }
+
+    /**
+     * The statistics after the latest reading, made once per reading.
+     */
+    public Snapshot getSnapshot() {
+        if (mSnapshot == null) {
+            Summary[] summaries = new Summary[MEASURES.length * WINDOWS.length];
+            for (Measure measure : MEASURES) {
+                for (Window window : WINDOWS) {
+                    summaries[measure.ordinal() * WINDOWS.length + window.ordinal()] =
+                            new Summary(get(measure, window));
+                }
+            }
+            mSnapshot = new Snapshot(summaries, mAnomalies);
+        }
+        return mSnapshot;
+    }
+
+    WindowStats get(Measure measure, Window window) {
+        return mStats[measure.ordinal()][window.ordinal()];
+    }
+
+    /**
+     * Whether the reading is further from the mean of the last hour than
+     * {@link #SPIKE_DEVIATIONS} standard deviations and the minimum delta.
+     */
+    private boolean isSpike(Measure measure, int value) {
+        WindowStats hour = get(measure, Window.HOUR);
+        if (hour.getCount() < SPIKE_MIN_READINGS) {
+            return false;
+        }
+        double threshold = Math.max(SPIKE_MIN_DELTA[measure.ordinal()],
+                SPIKE_DEVIATIONS * hour.getStandardDeviation());
+        return Math.abs(value - hour.getMean()) > threshold;
+    }
+
+    /**
+     * Statistics of a measure over a window.
+     */
+    public static final class Summary {
+
+        private final int mCount;
+        private final int mMin;
+        private final int mMax;
+        private final double mMean;
+        private final double mEwma;
+        private final double mRatePerHour;
+
+        Summary(WindowStats stats) {
+            mCount = stats.getCount();
+            mMin = stats.getMin();
+            mMax = stats.getMax();
+            mMean = stats.getMean();
+            mEwma = stats.getEwma();
+            mRatePerHour = stats.getRatePerHour();
+        }
+
+        /**
+         * Number of readings, the others are meaningless if 0.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getMin() {
+            return mMin;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mMean;
+        }
+
+        /**
+         * See {@link WindowStats#getEwma()}.
+         */
+        public double getEwma() {
+            return mEwma;
+        }
+
+        /**
+         * Trend of the window, in ºC or % per hour.
+         */
+        public double getRatePerHour() {
+            return mRatePerHour;
+        }
+
+        @Override
+        public String toString() {
+            return mCount == 0 ? "-" : String.format(Locale.US, "%d [%d, %d] mean=%.1f ewma=%.1f %+.1f/h",
+                    mCount, mMin, mMax, mMean, mEwma, mRatePerHour);
+        }
+    }
+
+    /**
+     * Immutable statistics of every measure and window, and the anomalies.
+     */
+    public static final class Snapshot {
+
+        public static final Snapshot EMPTY = new TelemetryStats().getSnapshot();
+
+        private final Summary[] mSummaries;
+        private final int mAnomalies;
+
+        private Snapshot(Summary[] summaries, int anomalies) {
+            mSummaries = summaries;
+            mAnomalies = anomalies;
+        }
+
+        public Summary get(Measure measure, Window window) {
+            return mSummaries[measure.ordinal() * WINDOWS.length + window.ordinal()];
+        }
+
+        /**
+         * See {@link #STUCK}.
+         */
+        public int getAnomalies() {
+            return mAnomalies;
+        }
+
+        public boolean hasAnomaly(int anomaly) {
+            return (mAnomalies & anomaly) != 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("TelemetryStats{");
+            for (Measure measure : MEASURES) {
+                builder.append(measure).append(':');
+                for (Window window : WINDOWS) {
+                    builder.append(' ').append(window).append('=').append(get(measure, window));
+                }
+                builder.append(' ');
+            }
+            return builder.append("anomalies=").append(mAnomalies).append('}').toString();
+        }
+    }
+}
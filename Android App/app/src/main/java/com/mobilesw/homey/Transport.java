@@ -0,0 +1,35 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream link to the Arduino, e.g. a Bluetooth RFCOMM socket or a
+ * {@link SimulatedDevice}.
+ */
+public interface Transport {
+
+    /**
+     * Opens the link. Blocks until connected.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Only valid once connected. Reads block until bytes arrive and fail once
+     * the transport is closed.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Only valid once connected.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Name of the device shown to the user.
+     */
+    String getName();
+}
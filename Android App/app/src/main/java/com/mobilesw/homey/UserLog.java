@@ -1,19 +1,87 @@
 package com.mobilesw.homey;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * An event of a user's device, as stored in the UserLogs collection. The text
+ * shown for it is built when it is displayed, see {@link LogEvent#describe}.
+ */
 public class UserLog {
 
+    static final String LEGACY_DATE_FORMAT = "dd/MM/yyyy HH:mm:ss";
+
     private String userID;
-    private String logDesc;
-    private String date;
+    private long timestamp; // epoch millis
+    private LogEvent.Device device;
+    private LogEvent.Action action;
+    private LogEvent.Source source;
+    private String deviceId; // the Arduino, see DeviceRegistry; null in older logs
 
     public UserLog() {
 
     }
 
-    public UserLog(String userID, String logDesc, String date) {
+    public UserLog(String userID, long timestamp, LogEvent.Device device, LogEvent.Action action,
+                   LogEvent.Source source) {
+        this(userID, timestamp, device, action, source, null);
+    }
+
+    public UserLog(String userID, long timestamp, LogEvent.Device device, LogEvent.Action action,
+                   LogEvent.Source source, String deviceId) {
         this.userID = userID;
-        this.logDesc = logDesc;
-        this.date = date;
+        this.timestamp = timestamp;
+        this.device = device;
+        this.action = action;
+        this.source = source;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Reads a log written before logs were structured, with a description
+     * such as "The fan has been automatically turned on" and a
+     * "dd/MM/yyyy HH:mm:ss" date. Device, action and source are null if the
+     * description is not recognized.
+     *
+     * @param timestamp 0 if the log has none, the date is parsed then
+     */
+    public static UserLog fromLegacy(String userID, String logDesc, String date, long timestamp) {
+        if (timestamp == 0 && date != null) {
+            try {
+                timestamp = new SimpleDateFormat(LEGACY_DATE_FORMAT).parse(date).getTime();
+            } catch (ParseException e) {
+                // left at 0
+            }
+        }
+        LogEvent event = LogEvent.parse(logDesc);
+        if (event == null) {
+            return new UserLog(userID, timestamp, null, null, null);
+        }
+        return new UserLog(userID, timestamp, event.getDevice(), event.getAction(), event.getSource());
+    }
+
+    public String getUserID() {
+        return userID;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public LogEvent.Device getDevice() {
+        return device;
+    }
+
+    public LogEvent.Action getAction() {
+        return action;
+    }
+
+    public LogEvent.Source getSource() {
+        return source;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
     }
 
 }
@@ -0,0 +1,176 @@
+package com.mobilesw.homey;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads UserLogs documents, both structured and written by older versions of
+ * the app as a description and a date string, and their daily rollups in
+ * UserLogRollups.
+ */
+public final class UserLogDocuments {
+
+    private static final int PAGE_SIZE = 500; // the limit of a WriteBatch
+    private static final int COMPACT_PAGE_SIZE = 200;
+
+    private UserLogDocuments() {
+    }
+
+    public static UserLog read(DocumentSnapshot document) {
+        if (document.contains("device") || !document.contains("logDesc")) {
+            return document.toObject(UserLog.class);
+        }
+        Long timestamp = document.getLong("timestamp");
+        return UserLog.fromLegacy(document.getString("userID"), document.getString("logDesc"),
+                document.getString("date"), timestamp != null ? timestamp : 0);
+    }
+
+    /**
+     * Rewrites the documents of the user written by older versions as
+     * structured ones, so that they are ordered by timestamp with the others.
+     * Blocks: call it off the main thread.
+     *
+     * @return the number of documents rewritten
+     */
+    public static int migrate(CollectionReference logs, String userID)
+            throws ExecutionException, InterruptedException {
+        Query query = logs.whereEqualTo("userID", userID).orderBy(FieldPath.documentId()).limit(PAGE_SIZE);
+        Query page = query;
+        int migrated = 0;
+        while (true) {
+            List<DocumentSnapshot> documents = Tasks.await(page.get()).getDocuments();
+            WriteBatch batch = logs.getFirestore().batch();
+            int count = 0;
+            for (DocumentSnapshot document : documents) {
+                if (document.contains("logDesc")) {
+                    batch.set(document.getReference(), read(document)); // replaces the old fields
+                    count++;
+                }
+            }
+            if (count > 0) {
+                Tasks.await(batch.commit());
+                migrated += count;
+            }
+            if (documents.size() < PAGE_SIZE) {
+                return migrated;
+            }
+            page = query.startAfter(documents.get(documents.size() - 1));
+        }
+    }
+
+    /**
+     * The rollups of the user of the days starting in [from, to), one
+     * document per day. Needs the composite index (userID, start) on
+     * UserLogRollups.
+     */
+    public static Query queryRollups(CollectionReference rollups, String userID, long from, long to) {
+        return rollups.whereEqualTo("userID", userID)
+                .whereGreaterThanOrEqualTo("start", from)
+                .whereLessThan("start", to);
+    }
+
+    /**
+     * Deletes the logs of the user of the days before the one of
+     * {@code before}. The days without a rollup, logged before the rollups
+     * were kept, get one built from their logs first, written before any of
+     * them is deleted, so an interrupted compaction only leaves logs to delete.
+     * A device on when the oldest log left was written is taken as off. Blocks:
+     * call it off the main thread.
+     *
+     * @param deviceId the device whose on-time is rolled up, see {@link DailyRollups}
+     *
+     * @return the number of logs deleted
+     */
+    public static int compact(CollectionReference logs, CollectionReference rollups, String userID, long before,
+                              TimeZone zone, String deviceId) throws ExecutionException, InterruptedException {
+        DailyRollups rebuilt = new DailyRollups(null, zone, deviceId);
+        before = rebuilt.startOfDay(before);
+        Set<String> existing = new HashSet<>();
+        for (DocumentSnapshot document : Tasks.await(queryRollups(rollups, userID, 0, before).get()).getDocuments()) {
+            existing.add(document.getId());
+        }
+        // needs the composite index (userID, timestamp) on UserLogs
+        Query query = logs.whereEqualTo("userID", userID).whereLessThan("timestamp", before)
+                .orderBy("timestamp").limit(COMPACT_PAGE_SIZE);
+        Query page = query;
+        List<DocumentReference> pending = new ArrayList<>(); // logs of the days not compacted yet
+        long dayStart = Long.MIN_VALUE;
+        int deleted = 0;
+        while (true) {
+            List<DocumentSnapshot> documents = Tasks.await(page.get()).getDocuments();
+            for (DocumentSnapshot document : documents) {
+                UserLog log = read(document);
+                long start = rebuilt.startOfDay(log.getTimestamp());
+                if (start > dayStart && !pending.isEmpty()) {
+                    rebuilt.advance(start);
+                    deleted += compactDays(rebuilt, start, existing, pending, rollups);
+                }
+                dayStart = start;
+                rebuilt.addLog(log);
+                pending.add(document.getReference());
+            }
+            if (documents.size() < COMPACT_PAGE_SIZE) {
+                break;
+            }
+            page = query.startAfter(documents.get(documents.size() - 1));
+        }
+        rebuilt.advance(before);
+        return deleted + compactDays(rebuilt, before, existing, pending, rollups);
+    }
+
+    /**
+     * Writes the rollups rebuilt of the days ended by {@code end} that have none, then deletes the pending logs.
+     */
+    private static int compactDays(DailyRollups rebuilt, long end, Set<String> existing,
+                                   List<DocumentReference> pending, CollectionReference rollups)
+            throws ExecutionException, InterruptedException {
+        List<DailyRollup> days = new ArrayList<>();
+        for (DailyRollup rollup : rebuilt.getChanged()) {
+            if (rollup.getEnd() <= end) {
+                days.add(rollup);
+            }
+        }
+        WriteBatch batch = rollups.getFirestore().batch();
+        int writes = 0;
+        for (DailyRollup rollup : days) {
+            String id = DailyRollup.documentId(rollup.getUserID(), rollup.getDay());
+            if (!existing.contains(id)) {
+                if (writes == PAGE_SIZE) {
+                    Tasks.await(batch.commit());
+                    batch = rollups.getFirestore().batch();
+                    writes = 0;
+                }
+                batch.set(rollups.document(id), rollup);
+                writes++;
+            }
+        }
+        for (DocumentReference log : pending) {
+            if (writes == PAGE_SIZE) {
+                Tasks.await(batch.commit());
+                batch = rollups.getFirestore().batch();
+                writes = 0;
+            }
+            batch.delete(log);
+            writes++;
+        }
+        if (writes > 0) {
+            Tasks.await(batch.commit());
+        }
+        rebuilt.written(days);
+        int deleted = pending.size();
+        pending.clear();
+        return deleted;
+    }
+}
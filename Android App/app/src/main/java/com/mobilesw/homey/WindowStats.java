@@ -0,0 +1,299 @@
+package com.mobilesw.homey;
+
+/**
+ * Minimum, maximum, mean, standard deviation, exponentially weighted moving
+ * average and rate of change of the readings of a sensor over a sliding time
+ * window, updated in O(1) per reading.
+ *
+ * The window is split in buckets of equal duration, each keeping the count,
+ * sums, minimum and maximum of its readings. A reading updates the current
+ * bucket and the totals; buckets leaving the window are subtracted from the
+ * totals, and the minimums and maximums of the closed buckets are kept in
+ * monotonic deques, so nothing is rescanned. The window ends with the latest
+ * reading and starts up to a bucket earlier than its duration.
+ *
+ * Not thread-safe.
+ */
+public class WindowStats {
+
+    private static final double MILLIS_PER_HOUR = 3600 * 1000.0;
+
+    private final long mWindowMillis;
+    private final long mBucketMillis;
+    private final int mBuckets;
+
+    // buckets, by bucket number (time / mBucketMillis) modulo mBuckets
+    private final long[] mNumber;
+    private final int[] mCount;
+    private final long[] mSum;
+    private final long[] mSumOfSquares;
+    private final int[] mMin;
+    private final int[] mMax;
+    private final double[] mSumT; // of the times since the start of the bucket, in hours
+    private final double[] mSumTT;
+    private final double[] mSumTV;
+
+    // closed buckets in the window, by number; their minimums increasing, their maximums decreasing
+    private final long[] mMinDeque;
+    private int mMinHead = 0;
+    private int mMinSize = 0;
+    private final long[] mMaxDeque;
+    private int mMaxHead = 0;
+    private int mMaxSize = 0;
+
+    // totals of the window, times since mOrigin
+    private int mTotalCount = 0;
+    private long mTotalSum = 0;
+    private long mTotalSumOfSquares = 0;
+    private double mTotalSumT = 0;
+    private double mTotalSumTT = 0;
+    private double mTotalSumTV = 0;
+
+    private long mCurrent = Long.MIN_VALUE; // number of the bucket of the latest reading
+    private long mOrigin; // moved along with the window, not to lose precision
+    private long mLastTime;
+    private double mEwma;
+
+    /**
+     * @param buckets the precision of the start of the window
+     */
+    public WindowStats(long windowMillis, int buckets) {
+        mWindowMillis = windowMillis;
+        mBucketMillis = Math.max(1, windowMillis / buckets);
+        mBuckets = buckets;
+        mNumber = new long[buckets];
+        mCount = new int[buckets];
+        mSum = new long[buckets];
+        mSumOfSquares = new long[buckets];
+        mMin = new int[buckets];
+        mMax = new int[buckets];
+        mSumT = new double[buckets];
+        mSumTT = new double[buckets];
+        mSumTV = new double[buckets];
+        mMinDeque = new long[buckets];
+        mMaxDeque = new long[buckets];
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * @param timeMillis readings earlier than the latest one are counted at its time
+     */
+    public void add(long timeMillis, int value) {
+        if (mCurrent == Long.MIN_VALUE) {
+            mCurrent = timeMillis / mBucketMillis;
+            mOrigin = mCurrent * mBucketMillis;
+            mLastTime = timeMillis;
+            mEwma = value;
+            open(mCurrent);
+        } else {
+            if (timeMillis < mLastTime) {
+                timeMillis = mLastTime; // the clock went back
+            }
+            advance(timeMillis / mBucketMillis);
+            // weighted by time, as the readings are not evenly spaced
+            double alpha = 1 - Math.exp(-(double) (timeMillis - mLastTime) / mWindowMillis);
+            mEwma += alpha * (value - mEwma);
+            mLastTime = timeMillis;
+        }
+        int slot = slot(mCurrent);
+        if (mCount[slot] == 0) {
+            mMin[slot] = value;
+            mMax[slot] = value;
+        } else {
+            mMin[slot] = Math.min(mMin[slot], value);
+            mMax[slot] = Math.max(mMax[slot], value);
+        }
+        double t = (timeMillis - mCurrent * mBucketMillis) / MILLIS_PER_HOUR;
+        mCount[slot]++;
+        mSum[slot] += value;
+        mSumOfSquares[slot] += (long) value * value;
+        mSumT[slot] += t;
+        mSumTT[slot] += t * t;
+        mSumTV[slot] += t * value;
+        t = (timeMillis - mOrigin) / MILLIS_PER_HOUR;
+        mTotalCount++;
+        mTotalSum += value;
+        mTotalSumOfSquares += (long) value * value;
+        mTotalSumT += t;
+        mTotalSumTT += t * t;
+        mTotalSumTV += t * value;
+    }
+
+    /**
+     * Number of readings in the window.
+     */
+    public int getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Integer.MAX_VALUE if there are no readings.
+     */
+    public int getMin() {
+        int slot = slot(mCurrent);
+        int min = mCount[slot] > 0 ? mMin[slot] : Integer.MAX_VALUE;
+        return mMinSize > 0 ? Math.min(min, mMin[slot(mMinDeque[mMinHead])]) : min;
+    }
+
+    /**
+     * Integer.MIN_VALUE if there are no readings.
+     */
+    public int getMax() {
+        int slot = slot(mCurrent);
+        int max = mCount[slot] > 0 ? mMax[slot] : Integer.MIN_VALUE;
+        return mMaxSize > 0 ? Math.max(max, mMax[slot(mMaxDeque[mMaxHead])]) : max;
+    }
+
+    /**
+     * 0 if there are no readings.
+     */
+    public double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mTotalSum / mTotalCount;
+    }
+
+    public double getStandardDeviation() {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, (double) mTotalSumOfSquares / mTotalCount - mean * mean));
+    }
+
+    /**
+     * Average of all the readings, weighted by e^(-age / window): follows the
+     * level over about the window without the steps of the window edges.
+     */
+    public double getEwma() {
+        return mEwma;
+    }
+
+    /**
+     * Slope of the least squares line through the readings of the window, in
+     * units per hour; 0 without readings at different times.
+     */
+    public double getRatePerHour() {
+        double n = mTotalCount;
+        double denominator = n * mTotalSumTT - mTotalSumT * mTotalSumT;
+        if (mTotalCount < 2 || denominator <= 1e-9 * n * mTotalSumTT) {
+            return 0;
+        }
+        return (n * mTotalSumTV - mTotalSumT * mTotalSum) / denominator;
+    }
+
+    private int slot(long number) {
+        int slot = (int) (number % mBuckets);
+        return slot < 0 ? slot + mBuckets : slot;
+    }
+
+    /**
+     * Closes the current bucket and opens the one of the number, dropping the
+     * buckets that leave the window.
+     */
+    private void advance(long number) {
+        if (number <= mCurrent) {
+            return;
+        }
+        close(mCurrent);
+        if (number - mCurrent >= mBuckets) {
+            clear(); // nothing left in the window
+        } else {
+            for (long expired = mCurrent + 1 - mBuckets; expired <= number - mBuckets; expired++) {
+                expire(expired);
+            }
+        }
+        mCurrent = number;
+        open(number);
+        if ((number - mBuckets) * mBucketMillis > mOrigin + mWindowMillis) {
+            rebase();
+        }
+    }
+
+    private void open(long number) {
+        int slot = slot(number);
+        mNumber[slot] = number;
+        mCount[slot] = 0;
+        mSum[slot] = 0;
+        mSumOfSquares[slot] = 0;
+        mSumT[slot] = 0;
+        mSumTT[slot] = 0;
+        mSumTV[slot] = 0;
+    }
+
+    private void close(long number) {
+        int slot = slot(number);
+        if (mCount[slot] == 0) {
+            return;
+        }
+        while (mMinSize > 0 && mMin[slot(mMinDeque[(mMinHead + mMinSize - 1) % mBuckets])] >= mMin[slot]) {
+            mMinSize--;
+        }
+        mMinDeque[(mMinHead + mMinSize++) % mBuckets] = number;
+        while (mMaxSize > 0 && mMax[slot(mMaxDeque[(mMaxHead + mMaxSize - 1) % mBuckets])] <= mMax[slot]) {
+            mMaxSize--;
+        }
+        mMaxDeque[(mMaxHead + mMaxSize++) % mBuckets] = number;
+    }
+
+    private void expire(long number) {
+        int slot = slot(number);
+        if (mNumber[slot] != number || mCount[slot] == 0) {
+            return; // no readings in that bucket
+        }
+        mTotalCount -= mCount[slot];
+        mTotalSum -= mSum[slot];
+        mTotalSumOfSquares -= mSumOfSquares[slot];
+        addTimes(slot, -1);
+        mCount[slot] = 0;
+        if (mMinSize > 0 && mMinDeque[mMinHead] == number) {
+            mMinHead = (mMinHead + 1) % mBuckets;
+            mMinSize--;
+        }
+        if (mMaxSize > 0 && mMaxDeque[mMaxHead] == number) {
+            mMaxHead = (mMaxHead + 1) % mBuckets;
+            mMaxSize--;
+        }
+    }
+
+    private void clear() {
+        for (int i = 0; i < mBuckets; i++) {
+            mCount[i] = 0;
+        }
+        mMinSize = 0;
+        mMaxSize = 0;
+        mTotalCount = 0;
+        mTotalSum = 0;
+        mTotalSumOfSquares = 0;
+        mTotalSumT = 0;
+        mTotalSumTT = 0;
+        mTotalSumTV = 0;
+    }
+
+    /**
+     * Moves the origin of the times to the start of the window, summing the
+     * times of the buckets again. Once per window, so O(1) per reading.
+     */
+    private void rebase() {
+        mOrigin = (mCurrent + 1 - mBuckets) * mBucketMillis;
+        mTotalSumT = 0;
+        mTotalSumTT = 0;
+        mTotalSumTV = 0;
+        for (int slot = 0; slot < mBuckets; slot++) {
+            if (mCount[slot] > 0) {
+                addTimes(slot, 1);
+            }
+        }
+    }
+
+    /**
+     * Adds the times of the bucket to the totals, shifted to the origin.
+     */
+    private void addTimes(int slot, int sign) {
+        double shift = (mNumber[slot] * mBucketMillis - mOrigin) / MILLIS_PER_HOUR;
+        mTotalSumT += sign * (mSumT[slot] + mCount[slot] * shift);
+        mTotalSumTT += sign * (mSumTT[slot] + 2 * shift * mSumT[slot] + mCount[slot] * shift * shift);
+        mTotalSumTV += sign * (mSumTV[slot] + shift * mSum[slot]);
+    }
+}
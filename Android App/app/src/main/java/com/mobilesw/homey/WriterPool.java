@@ -0,0 +1,149 @@
+package com.mobilesw.homey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the commands of many connections with a fixed number of threads,
+ * instead of a writer thread per connection.
+ *
+ * A {@link Link} is run on the pool when its {@link CommandQueue} has commands
+ * to write, and again when the acknowledgement of a command in flight times
+ * out. The writes of a link never run concurrently, and a link is queued at
+ * most once plus its timeout, so the pool never has more than two tasks per
+ * link waiting.
+ */
+public class WriterPool {
+
+    private final ScheduledExecutorService mExecutor;
+
+    public WriterPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WriterPool " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts writing the commands of the queue to out, until {@link Link#detach()}.
+     *
+     * @param onError run on the pool when a write fails, after the commands in flight were put back
+     */
+    public Link attach(CommandQueue queue, OutputStream out, Runnable onError) {
+        Link link = new Link(queue, out, onError);
+        queue.setWriteSignal(link.mSignal);
+        link.signal(); // e.g. the handshake
+        return link;
+    }
+
+    /**
+     * Stops the threads; the links are not written anymore.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public class Link {
+
+        private final CommandQueue mQueue;
+        private final OutputStream mOut;
+        private final Runnable mOnError;
+        private final CommandEncoder mEncoder = new CommandEncoder(); // used by one thread at a time
+        private final AtomicInteger mSignals = new AtomicInteger(); // > 0 while queued or writing
+        private volatile boolean mDetached = false;
+        private ScheduledFuture<?> mTimeout; // guarded by the drain
+
+        private final Runnable mSignal = new Runnable() {
+            @Override
+            public void run() {
+                signal();
+            }
+        };
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                int signals = mSignals.get();
+                do {
+                    write();
+                    signals = mSignals.addAndGet(-signals); // those received meanwhile
+                } while (signals != 0);
+            }
+        };
+
+        private Link(CommandQueue queue, OutputStream out, Runnable onError) {
+            mQueue = queue;
+            mOut = out;
+            mOnError = onError;
+        }
+
+        /**
+         * Stops writing. A write in progress completes.
+         */
+        public void detach() {
+            mDetached = true;
+            mQueue.clearWriteSignal(mSignal);
+            mSignal.run(); // cancels the timeout
+        }
+
+        void signal() {
+            if (mSignals.getAndIncrement() == 0) {
+                try {
+                    mExecutor.execute(mDrain);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+        }
+
+        private void write() {
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+                mTimeout = null;
+            }
+            if (mDetached) {
+                return;
+            }
+            List<CommandQueue.Command> commands = mQueue.poll();
+            if (!commands.isEmpty()) {
+                int length = mEncoder.encode(commands);
+                if (mDetached) {
+                    mQueue.requeue();
+                    return;
+                }
+                try {
+                    mOut.write(mEncoder.getBuffer(), 0, length);
+                    Metrics.BYTES_OUT.add(length);
+                    Metrics.FRAMES_OUT.add(commands.size());
+                } catch (IOException e) {
+                    mDetached = true;
+                    mQueue.clearWriteSignal(mSignal);
+                    mQueue.requeue();
+                    mOnError.run();
+                    return;
+                }
+            }
+            long delay = mQueue.getMillisUntilTimeout();
+            if (delay != Long.MAX_VALUE) {
+                try {
+                    mTimeout = mExecutor.schedule(mSignal, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+        }
+    }
+}
@@ -3,8 +3,10 @@ package com.mobilesw.homey;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.os.Bundle;
-import android.os.Handler;
 
+/**
+ * Shown until the app is ready to be used, i.e. Firebase is initialized.
+ */
 public class loding_screen extends AppCompatActivity {
 
     @Override
@@ -12,20 +14,11 @@ public class loding_screen extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_loding_screen);
 
-        startLoading();
-    }
-
-    private void startLoading(){
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+        FirebaseLoader.whenReady(this, new Runnable() {
             @Override
             public void run() {
                 finish();
             }
-        },4000);
-
-
+        });
     }
-
-
 }
@@ -2,13 +2,147 @@ package com.mobilesw.homey;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.Calendar;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class log_screen extends AppCompatActivity {
 
+    private static final String TAG = log_screen.class.getSimpleName();
+    private static final int SUMMARY_DAYS = 7;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_log_screen);
+
+        View.OnClickListener showHistory = new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent intent = new Intent(getApplicationContext(), History.class);
+                startActivity(intent);
+            }
+        };
+        findViewById(R.id.light_log).setOnClickListener(showHistory);
+        findViewById(R.id.fan_log).setOnClickListener(showHistory);
+        FirebaseLoader.whenReady(this, new Runnable() {
+            @Override
+            public void run() {
+                if (!isDestroyed()) {
+                    loadSummary();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown(); // lets a running summary finish
+    }
+
+    /**
+     * Sums up the last days: how many times the devices were turned on from
+     * the local copy of the logs, synced first, and the rest from the
+     * rollups, one document read per day whatever the number of logs.
+     */
+    private void loadSummary() {
+        final TextView summary = findViewById(R.id.log_summary);
+        final FirebaseUser user = FirebaseLoader.getAuth(this).getCurrentUser();
+        if (user == null) {
+            summary.setVisibility(View.GONE);
+            return;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, 1 - SUMMARY_DAYS); // today included
+        final long since = calendar.getTimeInMillis();
+        final LogDatabase database = LogDatabase.getInstance(this);
+        CollectionReference logs = FirebaseLoader.getFirestore(this).collection("UserLogs");
+        final LogSync sync = new LogSync(database, logs, mExecutor);
+        final Query rollups = UserLogDocuments.queryRollups(
+                FirebaseLoader.getFirestore(this).collection("UserLogRollups"), user.getUid(), since, Long.MAX_VALUE);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String text;
+                try {
+                    try {
+                        sync.syncNow(user.getUid());
+                    } catch (ExecutionException e) {
+                        Log.w(TAG, "Sync failed, counting the logs copied before", e); // offline
+                    }
+                    long lightsCount = database.countEvents(user.getUid(), LogEvent.Device.LIGHTS,
+                            LogEvent.Action.ON, since);
+                    long fanCount = database.countEvents(user.getUid(), LogEvent.Device.FAN,
+                            LogEvent.Action.ON, since);
+                    text = describe(Tasks.await(rollups.get()), lightsCount, fanCount);
+                } catch (ExecutionException e) {
+                    text = e.getCause().getMessage();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final String result = text;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        summary.setText(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private String describe(QuerySnapshot days, long lightsCount, long fanCount) {
+        long now = System.currentTimeMillis();
+        long lightsMillis = 0;
+        long fanMillis = 0;
+        int samples = 0;
+        int temperatureMin = Integer.MAX_VALUE;
+        int temperatureMax = Integer.MIN_VALUE;
+        int humidityMin = Integer.MAX_VALUE;
+        int humidityMax = Integer.MIN_VALUE;
+        for (DocumentSnapshot document : days.getDocuments()) {
+            DailyRollup day = document.toObject(DailyRollup.class);
+            lightsMillis += day.getOnMillis(LogEvent.Device.LIGHTS, now);
+            fanMillis += day.getOnMillis(LogEvent.Device.FAN, now);
+            if (day.getSamples() > 0) {
+                samples += day.getSamples();
+                temperatureMin = Math.min(temperatureMin, day.getTemperatureMin());
+                temperatureMax = Math.max(temperatureMax, day.getTemperatureMax());
+                humidityMin = Math.min(humidityMin, day.getHumidityMin());
+                humidityMax = Math.max(humidityMax, day.getHumidityMax());
+            }
+        }
+        String text = getString(R.string.log_summary, formatDuration(lightsMillis), lightsCount,
+                formatDuration(fanMillis), fanCount);
+        if (samples > 0) {
+            text += getString(R.string.log_summary_climate, temperatureMin, temperatureMax, humidityMin, humidityMax);
+        }
+        return text;
+    }
+
+    private String formatDuration(long millis) {
+        long minutes = millis / 60000;
+        return getString(R.string.log_summary_duration, (int) (minutes / 60), (int) (minutes % 60));
     }
 }
@@ -0,0 +1,220 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+
+    private final CommandQueue mQueue = new CommandQueue(64);
+
+    @Test
+    public void takesByPriorityThenInOrder() throws InterruptedException {
+        mQueue.put("5", CommandQueue.Priority.CONFIG);
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        mQueue.put("8", CommandQueue.Priority.CONFIG);
+        mQueue.put("0", CommandQueue.Priority.HANDSHAKE);
+        mQueue.put("3", CommandQueue.Priority.MANUAL);
+        assertEquals("02358", take(mQueue));
+        assertEquals(0, mQueue.size());
+        assertEquals(5, mQueue.getInFlightCount());
+    }
+
+    @Test
+    public void latestCommandForASettingWins() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            mQueue.put("2", CommandQueue.Priority.MANUAL);
+            mQueue.put("1", CommandQueue.Priority.MANUAL);
+            mQueue.put("4", CommandQueue.Priority.MANUAL);
+        }
+        mQueue.put("3", CommandQueue.Priority.MANUAL);
+        mQueue.put("5", CommandQueue.Priority.CONFIG);
+        mQueue.put("6", CommandQueue.Priority.CONFIG);
+        assertEquals("136", take(mQueue));
+    }
+
+    @Test
+    public void disablingAllAutoActivationSupersedesBoth() throws InterruptedException {
+        mQueue.put("5", CommandQueue.Priority.CONFIG);
+        mQueue.put("7", CommandQueue.Priority.CONFIG);
+        mQueue.put("9", CommandQueue.Priority.CONFIG);
+        assertEquals("9", take(mQueue));
+        assertEquals(1, mQueue.getInFlightCount());
+
+        mQueue.put("5", CommandQueue.Priority.CONFIG);
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        List<CommandQueue.Command> taken = mQueue.take();
+        assertEquals(1, taken.size()); // auto lights waits for the acknowledgement of 9
+        assertEquals("2", taken.get(0).getCommand());
+        assertTrue(mQueue.acknowledge(0));
+        assertEquals("5", take(mQueue));
+    }
+
+    @Test
+    public void supersededCommandsInFlightAreNotAcknowledged() throws InterruptedException {
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        CommandQueue.Command lightsOn = mQueue.take().get(0);
+        mQueue.put("1", CommandQueue.Priority.MANUAL);
+        assertFalse(mQueue.acknowledge(lightsOn.getSequence()));
+        CommandQueue.Command lightsOff = mQueue.take().get(0);
+        assertEquals("1", lightsOff.getCommand());
+        assertTrue(mQueue.acknowledge(lightsOff.getSequence()));
+        assertFalse(mQueue.acknowledge(lightsOff.getSequence())); // duplicate
+    }
+
+    @Test
+    public void keepsAWindowOfCommandsInFlight() throws InterruptedException {
+        CommandQueue queue = new CommandQueue(2);
+        queue.put("1", CommandQueue.Priority.MANUAL);
+        queue.put("3", CommandQueue.Priority.MANUAL);
+        queue.put("5", CommandQueue.Priority.CONFIG);
+        queue.put("7", CommandQueue.Priority.CONFIG);
+        List<CommandQueue.Command> taken = queue.take();
+        assertEquals(2, taken.size());
+        assertEquals(2, queue.size());
+
+        assertTrue(queue.acknowledge(taken.get(0).getSequence()));
+        assertEquals("5", take(queue));
+        assertTrue(queue.acknowledge(taken.get(1).getSequence()));
+        assertEquals("7", take(queue));
+    }
+
+    @Test
+    public void requeuesCommandsInFlightNotSupersededMeanwhile() throws InterruptedException {
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        mQueue.put("4", CommandQueue.Priority.MANUAL);
+        mQueue.take();
+        mQueue.put("1", CommandQueue.Priority.MANUAL);
+        mQueue.requeue();
+        assertEquals(0, mQueue.getInFlightCount());
+        assertEquals("41", take(mQueue)); // in the order they were put
+    }
+
+    @Test
+    public void retransmitsUntilGivenUp() throws InterruptedException {
+        final BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+        mQueue.setListener(new CommandQueue.Listener() {
+            @Override
+            public void onCommandAcknowledged(CommandQueue.Command command, long roundTripMillis) {
+            }
+
+            @Override
+            public void onCommandFailed(CommandQueue.Command command) {
+                failed.add(command.getCommand());
+            }
+        });
+        mQueue.setTimeouts(5, 5, 20);
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        int previous = -1;
+        for (int attempt = 1; attempt <= CommandQueue.MAX_ATTEMPTS; attempt++) {
+            List<CommandQueue.Command> taken = mQueue.take();
+            assertEquals("2", taken.get(0).getCommand());
+            assertNotEquals(previous, taken.get(0).getSequence()); // a new sequence number every time
+            previous = taken.get(0).getSequence();
+        }
+        final AtomicReference<List<CommandQueue.Command>> next = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    next.set(mQueue.take());
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        });
+        writer.start();
+        assertEquals("2", failed.poll(1, TimeUnit.SECONDS));
+        assertEquals(0, mQueue.getInFlightCount());
+        writer.interrupt();
+        writer.join(1000);
+        assertNull(next.get());
+    }
+
+    @Test
+    public void measuresTheRoundTripTime() throws InterruptedException {
+        final AtomicReference<Long> roundTrip = new AtomicReference<>();
+        mQueue.setListener(new CommandQueue.Listener() {
+            @Override
+            public void onCommandAcknowledged(CommandQueue.Command command, long roundTripMillis) {
+                roundTrip.set(roundTripMillis);
+            }
+
+            @Override
+            public void onCommandFailed(CommandQueue.Command command) {
+            }
+        });
+        mQueue.setTimeouts(1000, 10, 8000);
+        for (int i = 0; i < 20; i++) {
+            mQueue.put("2", CommandQueue.Priority.MANUAL);
+            CommandQueue.Command command = mQueue.take().get(0);
+            Thread.sleep(5);
+            assertTrue(mQueue.acknowledge(command.getSequence()));
+            assertTrue(roundTrip.get() >= 5);
+        }
+        assertTrue("timeout " + mQueue.getTimeoutMillis(), mQueue.getTimeoutMillis() < 100);
+    }
+
+    @Test
+    public void dropsTheOldestCommandsWhenFull() throws InterruptedException {
+        for (int i = 0; i < CommandQueue.MAX_QUEUED + 3; i++) {
+            mQueue.put("X" + i, CommandQueue.Priority.MANUAL);
+        }
+        List<CommandQueue.Command> commands = mQueue.take();
+        assertEquals(CommandQueue.MAX_QUEUED, commands.size());
+        assertEquals("X3", commands.get(0).getCommand());
+    }
+
+    @Test
+    public void takeWaitsForACommand() throws Exception {
+        final AtomicReference<String> taken = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(take(mQueue));
+                } catch (InterruptedException e) {
+                    taken.set("interrupted");
+                }
+            }
+        });
+        writer.start();
+        Thread.sleep(50);
+        assertNull(taken.get());
+        mQueue.put("2", CommandQueue.Priority.MANUAL);
+        writer.join(1000);
+        assertEquals("2", taken.get());
+    }
+
+    @Test
+    public void encodesSequenceNumbersAndParsesAcknowledgements() throws InterruptedException {
+        for (int i = 0; i < 300; i++) { // wraps around
+            mQueue.put("4", CommandQueue.Priority.MANUAL);
+            CommandQueue.Command command = mQueue.take().get(0);
+            assertEquals(i & 0xFF, command.getSequence());
+            byte[] payload = new byte[8];
+            int length = CommandQueue.payload(command, payload, 1);
+            assertEquals(3, length);
+            assertEquals('4', payload[1]);
+            payload[1] = 'A';
+            assertEquals(i & 0xFF, CommandQueue.parseAcknowledgement(payload, 1, 3));
+            assertTrue(mQueue.acknowledge(i & 0xFF));
+        }
+        assertEquals(-1, CommandQueue.parseAcknowledgement("AXY".getBytes(), 0, 3));
+        assertEquals(-1, CommandQueue.parseAcknowledgement("1L".getBytes(), 0, 2));
+    }
+
+    private static String take(CommandQueue queue) throws InterruptedException {
+        StringBuilder commands = new StringBuilder();
+        for (CommandQueue.Command command : queue.take()) {
+            commands.append(command.getCommand());
+        }
+        return commands.toString();
+    }
+}
@@ -0,0 +1,257 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drops the link of the simulated Arduino and checks that the connection
+ * recovers.
+ */
+public class ConnectionManagerTest {
+
+    private static final long INITIAL_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 80;
+
+    private SimulatedDevice mDevice;
+    private ScheduledExecutorService mExecutor;
+    private ConnectionManager mManager;
+    private BlockingQueue<ConnectionManager.State> mStates;
+    private BlockingQueue<String> mFrames;
+    private final BlockingQueue<String> mAcknowledged = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> mRoundTrips = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mFailed = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        mDevice = new SimulatedDevice("simulated", 42);
+        mDevice.setTelemetryIntervalMillis(60000);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mStates = new LinkedBlockingQueue<>();
+        mFrames = new LinkedBlockingQueue<>();
+        mManager = new ConnectionManager(mDevice, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mFrames.add(new String(buffer, offset, length));
+            }
+
+            @Override
+            public void onStateChanged(ConnectionManager.State state) {
+                mStates.add(state);
+            }
+
+            @Override
+            public void onCommandAcknowledged(CommandQueue.Command command, long roundTripMillis) {
+                if (roundTripMillis >= 0) {
+                    mRoundTrips.add(roundTripMillis);
+                }
+                mAcknowledged.add(command.getCommand());
+            }
+
+            @Override
+            public void onCommandFailed(CommandQueue.Command command) {
+                mFailed.add(command.getCommand());
+            }
+        }, mExecutor, new Random(42));
+        mManager.setBackoff(INITIAL_BACKOFF, MAX_BACKOFF);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mManager.stop();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        mDevice.close();
+    }
+
+    @Test
+    public void connectsAndSendsHandshake() throws Exception {
+        mDevice.setTemperature(21);
+        mDevice.setHumidity(55);
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+        assertEquals("TH21 55", mFrames.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retriesUntilDeviceIsAvailable() throws Exception {
+        mDevice.setAvailable(false);
+        mManager.start();
+        for (int i = 0; i < 3; i++) {
+            awaitState(ConnectionManager.State.CONNECTING);
+            awaitState(ConnectionManager.State.BACKOFF);
+        }
+        mDevice.setAvailable(true);
+        awaitState(ConnectionManager.State.CONNECTED);
+    }
+
+    @Test
+    public void flushesQueuedCommandsAfterHandshake() throws Exception {
+        mDevice.setAvailable(false);
+        mManager.start();
+        mManager.send(String.valueOf(SimulatedDevice.LIGHTS_ON), CommandQueue.Priority.MANUAL);
+        mManager.send(String.valueOf(SimulatedDevice.FAN_ON), CommandQueue.Priority.MANUAL);
+        awaitState(ConnectionManager.State.BACKOFF);
+        assertFalse(mDevice.isLightsOn());
+
+        mDevice.setAvailable(true);
+        awaitState(ConnectionManager.State.CONNECTED);
+        assertTrue(mFrames.poll(1, TimeUnit.SECONDS).startsWith(SimulatedDevice.TEMP_AND_HUMIDITY));
+        waitForCommands(3);
+        assertTrue(mDevice.isLightsOn());
+        assertTrue(mDevice.isFanOn());
+    }
+
+    @Test
+    public void writesQueuedCommandsCoalescedInOneWrite() throws Exception {
+        mDevice.setAvailable(false);
+        mManager.start();
+        mManager.send(String.valueOf(SimulatedDevice.NO_AUTO_FAN), CommandQueue.Priority.CONFIG);
+        for (int i = 0; i < 5; i++) { // toggled quickly
+            mManager.send(String.valueOf(SimulatedDevice.LIGHTS_ON), CommandQueue.Priority.MANUAL);
+            mManager.send(String.valueOf(SimulatedDevice.LIGHTS_OFF), CommandQueue.Priority.MANUAL);
+        }
+        mManager.send(String.valueOf(SimulatedDevice.LIGHTS_ON), CommandQueue.Priority.MANUAL);
+        awaitState(ConnectionManager.State.BACKOFF);
+
+        mDevice.setAvailable(true);
+        awaitState(ConnectionManager.State.CONNECTED);
+        waitForCommands(3); // handshake, lights on and no auto fan
+        assertEquals(1, mDevice.getWritesReceived());
+        assertTrue(mDevice.isLightsOn());
+    }
+
+    @Test
+    public void acknowledgesCommandsAndMeasuresRoundTrips() throws Exception {
+        mDevice.setJitterMillis(3);
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+        assertEquals(String.valueOf(SimulatedDevice.CONNECTED), mAcknowledged.poll(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++) {
+            mManager.send(String.valueOf(i % 2 == 0 ? SimulatedDevice.FAN_ON : SimulatedDevice.FAN_OFF),
+                    CommandQueue.Priority.MANUAL);
+            assertNotNull(mAcknowledged.poll(1, TimeUnit.SECONDS));
+        }
+        assertFalse(mDevice.isFanOn());
+        assertEquals(11, mRoundTrips.size());
+        for (long roundTrip : mRoundTrips) {
+            assertTrue(roundTrip >= 0); // how long, see CommandRoundTripBenchmark
+        }
+        assertTrue(mFailed.isEmpty());
+        assertEquals(0, mManager.getCommandQueue().getInFlightCount());
+    }
+
+    @Test
+    public void retransmitsLostCommands() throws Exception {
+        mManager.getCommandQueue().setTimeouts(20, 20, 100);
+        mDevice.setCommandLossRate(0.3);
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+        mManager.send(String.valueOf(SimulatedDevice.LIGHTS_ON), CommandQueue.Priority.MANUAL);
+        mManager.send(String.valueOf(SimulatedDevice.FAN_ON), CommandQueue.Priority.MANUAL);
+        mManager.send(String.valueOf(SimulatedDevice.NO_AUTO_FAN), CommandQueue.Priority.CONFIG);
+        mManager.send(String.valueOf(SimulatedDevice.NO_AUTO_LIGHTS), CommandQueue.Priority.CONFIG);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mAcknowledged.size() + mFailed.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(5, mAcknowledged.size()); // with the handshake
+        assertTrue(mRoundTrips.size() < 5); // not measured for the commands sent again
+        assertTrue(mDevice.isLightsOn());
+        assertTrue(mDevice.isFanOn());
+    }
+
+    @Test
+    public void recoversFromLinkDrops() throws Exception {
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+
+        long[] recovery = new long[10];
+        for (int i = 0; i < recovery.length; i++) {
+            long start = System.nanoTime();
+            mDevice.close(); // link lost
+            awaitState(ConnectionManager.State.BACKOFF);
+            awaitState(ConnectionManager.State.CONNECTING);
+            awaitState(ConnectionManager.State.CONNECTED);
+            recovery[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(recovery);
+        // the first retry after a drop waits at most the initial backoff
+        assertTrue("median recovery " + recovery[recovery.length / 2] + " ms",
+                recovery[recovery.length / 2] < INITIAL_BACKOFF + 40);
+        assertTrue("max recovery " + recovery[recovery.length - 1] + " ms",
+                recovery[recovery.length - 1] < 500);
+    }
+
+    @Test
+    public void sendsCommandsAfterReconnecting() throws Exception {
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+        mDevice.setAvailable(false);
+        mDevice.close();
+        awaitState(ConnectionManager.State.BACKOFF);
+        mManager.send(String.valueOf(SimulatedDevice.LIGHTS_ON), CommandQueue.Priority.MANUAL);
+
+        mDevice.setAvailable(true);
+        awaitState(ConnectionManager.State.CONNECTED);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!mDevice.isLightsOn() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mDevice.isLightsOn());
+    }
+
+    @Test
+    public void stopDisconnectsAndStopsRetrying() throws Exception {
+        mManager.start();
+        awaitState(ConnectionManager.State.CONNECTED);
+        mManager.stop();
+        awaitState(ConnectionManager.State.DISCONNECTED);
+        Thread.sleep(2 * MAX_BACKOFF);
+        assertNull(mStates.poll());
+        assertEquals(ConnectionManager.State.DISCONNECTED, mManager.getState());
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyWithJitter() {
+        long previousBase = 0;
+        for (int failures = 0; failures < 10; failures++) {
+            long base = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << failures);
+            long delay = mManager.backoffDelay(failures);
+            assertTrue(delay >= base / 2);
+            assertTrue(delay <= base);
+            assertTrue(base >= previousBase);
+            previousBase = base;
+        }
+        assertEquals(MAX_BACKOFF, previousBase);
+        assertTrue(mManager.backoffDelay(1000) <= MAX_BACKOFF);
+    }
+
+    private void awaitState(ConnectionManager.State expected) throws InterruptedException {
+        ConnectionManager.State state;
+        do {
+            state = mStates.poll(1, TimeUnit.SECONDS);
+        } while (state != null && state != expected);
+        assertEquals(expected, state);
+    }
+
+    private void waitForCommands(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mDevice.getCommandsReceived() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, mDevice.getCommandsReceived());
+    }
+}
@@ -0,0 +1,189 @@
+package com.mobilesw.homey;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.mobilesw.homey.LogEvent.Action.*;
+import static com.mobilesw.homey.LogEvent.Device.*;
+import static org.junit.Assert.*;
+
+public class DailyRollupsTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long START = 1577836800000L; // 2020-01-01, midnight in UTC
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static UserLog log(long time, LogEvent.Device device, LogEvent.Action action) {
+        return new UserLog("user", time, device, action, LogEvent.Source.MANUAL);
+    }
+
+    private static UserLog log(long time, String deviceId, LogEvent.Device device, LogEvent.Action action) {
+        return new UserLog("user", time, device, action, LogEvent.Source.MANUAL, deviceId);
+    }
+
+    private static DailyRollup find(List<DailyRollup> rollups, String day) {
+        for (DailyRollup rollup : rollups) {
+            if (rollup.getDay().equals(day)) {
+                return rollup;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void countsEventsAndOnTime() {
+        DailyRollups rollups = new DailyRollups(null, UTC);
+        rollups.addLog(log(START + 8 * HOUR, LIGHTS, ON));
+        rollups.addLog(log(START + 9 * HOUR, LIGHTS, OFF));
+        rollups.addLog(log(START + 10 * HOUR, FAN, ON));
+        rollups.addLog(log(START + 10 * HOUR + MINUTE, FAN, ON)); // already on
+        rollups.addLog(log(START + 20 * HOUR, LIGHTS, ON));
+
+        List<DailyRollup> changed = rollups.getChanged();
+        assertEquals(1, changed.size());
+        DailyRollup day = changed.get(0);
+        assertEquals("20200101", day.getDay());
+        assertEquals("user_20200101", DailyRollup.documentId(day.getUserID(), day.getDay()));
+        assertEquals(START, day.getStart());
+        assertEquals(START + DAY, day.getEnd());
+        assertEquals(2, day.getCount(LIGHTS, ON));
+        assertEquals(1, day.getCount(LIGHTS, OFF));
+        assertEquals(2, day.getCount(FAN, ON));
+        assertEquals(HOUR, day.getLightsOnMillis());
+        assertEquals(2 * HOUR, day.getOnMillis(LIGHTS, START + 21 * HOUR));
+        assertEquals(14 * HOUR, day.getOnMillis(FAN, START + DAY + HOUR)); // until midnight
+    }
+
+    @Test
+    public void countsTheLogsOfOneDevice() {
+        DailyRollups rollups = new DailyRollups(null, UTC, "bedroom");
+        rollups.addLog(log(START + 8 * HOUR, "bedroom", LIGHTS, ON));
+        rollups.addLog(log(START + 9 * HOUR, "kitchen", LIGHTS, ON));
+        rollups.addLog(log(START + 10 * HOUR, "kitchen", LIGHTS, OFF)); // the bedroom's still on
+        rollups.addLog(log(START + 11 * HOUR, "kitchen", LIGHTS, ON));
+        rollups.addLog(log(START + 12 * HOUR, "bedroom", LIGHTS, OFF));
+        rollups.addLog(log(START + 13 * HOUR, LIGHTS, ON)); // of no device
+        rollups.addLog(log(START + 14 * HOUR, "kitchen", LIGHTS, OFF));
+
+        DailyRollup day = rollups.getChanged().get(0);
+        assertEquals(2, day.getCount(LIGHTS, ON));
+        assertEquals(1, day.getCount(LIGHTS, OFF));
+        assertEquals(4 * HOUR, day.getLightsOnMillis());
+        assertEquals(START + 13 * HOUR, day.getLightsOnSince());
+    }
+
+    @Test
+    public void carriesDevicesOnAcrossMidnight() {
+        DailyRollups rollups = new DailyRollups(null, UTC);
+        rollups.addLog(log(START + 22 * HOUR, FAN, ON));
+        rollups.addLog(log(START + 2 * DAY + HOUR, FAN, OFF)); // on all the day between
+
+        List<DailyRollup> changed = rollups.getChanged();
+        assertEquals(3, changed.size());
+        assertEquals(2 * HOUR, find(changed, "20200101").getFanOnMillis());
+        assertEquals(0, find(changed, "20200101").getFanOnSince());
+        assertEquals(DAY, find(changed, "20200102").getFanOnMillis());
+        assertEquals(0, find(changed, "20200102").getCount(FAN, ON));
+        DailyRollup last = find(changed, "20200103");
+        assertEquals(HOUR, last.getFanOnMillis());
+        assertEquals(1, last.getCount(FAN, OFF));
+    }
+
+    @Test
+    public void startsANewDayWhenEverythingIsOff() {
+        DailyRollups rollups = new DailyRollups(null, UTC);
+        rollups.addLog(log(START + HOUR, LIGHTS, ON));
+        rollups.addLog(log(START + 2 * HOUR, LIGHTS, OFF));
+        rollups.addLog(log(START + 10 * DAY, LIGHTS, ON));
+        rollups.addLog(log(START + HOUR, LIGHTS, ON)); // before the open day
+
+        List<DailyRollup> changed = rollups.getChanged();
+        assertEquals(2, changed.size()); // no rollups of the days without events
+        assertEquals("20200101", changed.get(0).getDay());
+        assertEquals(1, changed.get(0).getCount(LIGHTS, ON));
+        assertEquals("20200111", changed.get(1).getDay());
+    }
+
+    @Test
+    public void keepsTheRangeAndMeanOfTheSamples() {
+        DailyRollups rollups = new DailyRollups(null, UTC);
+        rollups.addSample("user", START + HOUR, 20, 40);
+        rollups.addSample("user", START + 2 * HOUR, 26, 50);
+        rollups.addSample("user", START + 3 * HOUR, 23, 30);
+        rollups.addSample(null, START + 4 * HOUR, 99, 99); // no user logged in
+        rollups.addSample("user", START + DAY, 10, 90);
+
+        List<DailyRollup> changed = rollups.getChanged();
+        DailyRollup day = find(changed, "20200101");
+        assertEquals(3, day.getSamples());
+        assertEquals(20, day.getTemperatureMin());
+        assertEquals(26, day.getTemperatureMax());
+        assertEquals(23, day.getTemperatureMean(), 1e-9);
+        assertEquals(30, day.getHumidityMin());
+        assertEquals(50, day.getHumidityMax());
+        assertEquals(40, day.getHumidityMean(), 1e-9);
+        assertEquals(1, find(changed, "20200102").getSamples());
+    }
+
+    @Test
+    public void usesTheDaysOfTheTimeZone() {
+        DailyRollups rollups = new DailyRollups(null, TimeZone.getTimeZone("Asia/Seoul")); // UTC+9
+        rollups.addLog(log(START + 16 * HOUR, LIGHTS, ON)); // 01:00 on January 2nd
+
+        DailyRollup day = rollups.getChanged().get(0);
+        assertEquals("20200102", day.getDay());
+        assertEquals(START + 15 * HOUR, day.getStart());
+    }
+
+    @Test
+    public void forgetsRollupsOnceWritten() {
+        DailyRollups rollups = new DailyRollups(null, UTC);
+        rollups.addLog(log(START + HOUR, LIGHTS, ON));
+        List<DailyRollup> written = rollups.getChanged();
+        rollups.written(written);
+        assertTrue(rollups.getChanged().isEmpty());
+
+        rollups.addLog(log(START + 2 * HOUR, LIGHTS, OFF));
+        written = rollups.getChanged();
+        rollups.addSample("user", START + 3 * HOUR, 21, 40); // changed while being written
+        rollups.written(written);
+        assertEquals(1, rollups.getChanged().size());
+
+        rollups.advance(START + DAY + HOUR); // the lights are off: nothing to close
+        rollups.written(rollups.getChanged());
+        rollups.advance(START + 2 * DAY);
+        assertTrue(rollups.getChanged().isEmpty());
+    }
+
+    @Test
+    public void keepsTheDaysAcrossRestarts() throws IOException {
+        File file = new File(mFolder.getRoot(), "rollups");
+        DailyRollups rollups = new DailyRollups(file, UTC);
+        rollups.load(); // not saved yet
+        rollups.addLog(log(START + 23 * HOUR, FAN, ON));
+        rollups.addLog(log(START + DAY + HOUR, LIGHTS, ON));
+        rollups.written(rollups.getChanged().subList(0, 1)); // the closed day
+        rollups.save();
+
+        rollups = new DailyRollups(file, UTC);
+        rollups.load();
+        List<DailyRollup> changed = rollups.getChanged();
+        assertEquals(1, changed.size());
+        assertEquals("20200102", changed.get(0).getDay());
+        rollups.addLog(log(START + DAY + 2 * HOUR, FAN, OFF));
+        DailyRollup day = rollups.getChanged().get(0);
+        assertEquals(2 * HOUR, day.getFanOnMillis());
+        assertEquals(START + DAY + HOUR, day.getLightsOnSince());
+    }
+}
@@ -0,0 +1,68 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceConnectionTest {
+
+    private SimulatedDevice mDevice;
+    private DeviceConnection mConnection;
+    private BlockingQueue<String> mFrames;
+    private CountDownLatch mDisconnected;
+
+    @Before
+    public void setUp() throws Exception {
+        mDevice = new SimulatedDevice("simulated", 42);
+        mDevice.setTelemetryIntervalMillis(60000);
+        mFrames = new LinkedBlockingQueue<>();
+        mDisconnected = new CountDownLatch(1);
+        mConnection = new DeviceConnection(mDevice, new DeviceConnection.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mFrames.add(new String(buffer, offset, length));
+            }
+
+            @Override
+            public void onDisconnected() {
+                mDisconnected.countDown();
+            }
+        });
+        mConnection.connect();
+    }
+
+    @After
+    public void tearDown() {
+        mConnection.shutdown();
+    }
+
+    @Test
+    public void writesCommandsAndReadsAnswers() throws Exception {
+        mDevice.setTemperature(21);
+        mDevice.setHumidity(55);
+        mConnection.write(String.valueOf(SimulatedDevice.CONNECTED), CommandQueue.Priority.HANDSHAKE);
+        assertEquals("TH21 55", mFrames.poll(1, TimeUnit.SECONDS));
+        assertTrue(mConnection.isConnected());
+    }
+
+    @Test
+    public void reportsLostLink() throws Exception {
+        mDevice.close();
+        assertTrue(mDisconnected.await(1, TimeUnit.SECONDS));
+        assertFalse(mConnection.isConnected());
+    }
+
+    @Test
+    public void shutdownIsNotReportedAsLostLink() throws Exception {
+        mConnection.shutdown();
+        assertFalse(mDisconnected.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(mConnection.isConnected());
+    }
+}
@@ -0,0 +1,244 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the hub with a dozen simulated Arduinos connected at once,
+ * each reporting its own temperature.
+ */
+public class DeviceHubTest {
+
+    private static final int DEVICES = 12;
+    private static final int WRITER_THREADS = 2;
+    private static final int COMMANDS = 20; // per device
+
+    private final Map<String, SimulatedDevice> mDevices = new HashMap<>();
+    private final Map<String, AtomicInteger> mReadings = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> mAcknowledged = new ConcurrentHashMap<>();
+    private final Set<String> mWriters = Collections.synchronizedSet(new HashSet<String>()); // thread names
+    private final List<String> mErrors = new ArrayList<>(); // guarded by itself
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final CountDownLatch mConnected = new CountDownLatch(DEVICES);
+    private DeviceRegistry mRegistry;
+    private DeviceHub mHub;
+
+    @Before
+    public void setUp() {
+        mRegistry = new DeviceRegistry();
+        for (int i = 0; i < DEVICES; i++) {
+            String id = "room" + i;
+            SimulatedDevice device = new SimulatedDevice("HC-06 " + i, i);
+            device.setTelemetryIntervalMillis(20);
+            device.setTemperature(temperatureOf(i));
+            device.setHumidity(40 + i);
+            mDevices.put(id, device);
+            mReadings.put(id, new AtomicInteger());
+            mAcknowledged.put(id, new Semaphore(0));
+            mRegistry.put(new DeviceRegistry.Device(id, device.getName(), "00:00:00:00:00:" + (10 + i)));
+        }
+        mHub = new DeviceHub(mRegistry, new DeviceHub.TransportFactory() {
+            @Override
+            public Transport create(DeviceRegistry.Device device) {
+                return new WriterTracking(mDevices.get(device.getId()));
+            }
+        }, WRITER_THREADS, new DeviceHub.Listener() {
+            @Override
+            public void onMessage(String deviceId, int type, int temperature, int humidity) {
+                if (type != TelemetryParser.TEMP_AND_HUMIDITY) {
+                    return;
+                }
+                int i = Integer.parseInt(deviceId.substring("room".length()));
+                if (temperature != temperatureOf(i) || humidity != 40 + i) {
+                    error(deviceId + " got " + temperature + " " + humidity);
+                }
+                mReadings.get(deviceId).incrementAndGet();
+            }
+
+            @Override
+            public void onStateChanged(String deviceId, ConnectionManager.State state) {
+                if (state == ConnectionManager.State.CONNECTED) {
+                    mConnected.countDown();
+                }
+            }
+
+            @Override
+            public void onCommandAcknowledged(String deviceId, CommandQueue.Command command, long roundTripMillis) {
+                if (!command.getCommand().equals(ConnectionManager.CONNECTED_COMMAND)) {
+                    mAcknowledged.get(deviceId).release();
+                }
+            }
+
+            @Override
+            public void onCommandFailed(String deviceId, CommandQueue.Command command) {
+                mFailed.incrementAndGet();
+            }
+        });
+        mHub.setBackoff(10, 80);
+    }
+
+    @After
+    public void tearDown() {
+        mHub.shutdown();
+        for (SimulatedDevice device : mDevices.values()) {
+            device.close();
+        }
+    }
+
+    @Test
+    public void connectsToEveryDevice() throws InterruptedException {
+        mHub.start();
+        assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+        for (String id : mDevices.keySet()) {
+            assertEquals(ConnectionManager.State.CONNECTED, mHub.getState(id));
+        }
+        assertEquals(DEVICES, mHub.getDeviceIds().size());
+    }
+
+    @Test
+    public void tagsTelemetryWithTheDevice() throws InterruptedException {
+        mHub.start();
+        assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        for (String id : mDevices.keySet()) {
+            while (mReadings.get(id).get() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(id + " sent " + mReadings.get(id).get(), mReadings.get(id).get() >= 10);
+        }
+        synchronized (mErrors) {
+            assertTrue(mErrors.toString(), mErrors.isEmpty());
+        }
+    }
+
+    @Test
+    public void writesCommandsOfEveryDeviceWithThePool() throws InterruptedException {
+        mHub.start();
+        assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+        List<Thread> senders = new ArrayList<>();
+        for (final String id : mDevices.keySet()) { // a user per room, switching as soon as acknowledged
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < COMMANDS; n++) {
+                        mHub.send(id, n % 2 == 0 ? "2" : "1", CommandQueue.Priority.MANUAL);
+                        try {
+                            if (!mAcknowledged.get(id).tryAcquire(5, TimeUnit.SECONDS)) {
+                                error(id + " did not acknowledge command " + n);
+                                return;
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        synchronized (mErrors) {
+            assertTrue(mErrors.toString(), mErrors.isEmpty());
+        }
+        for (SimulatedDevice device : mDevices.values()) {
+            assertFalse(device.isLightsOn()); // the last command
+        }
+        assertEquals(0, mFailed.get());
+        assertTrue(mWriters.toString(), mWriters.size() <= WRITER_THREADS);
+        for (String writer : mWriters) {
+            assertTrue(writer, writer.startsWith("WriterPool"));
+        }
+    }
+
+    @Test
+    public void followsTheRegistry() throws InterruptedException {
+        mHub.start();
+        assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+        mRegistry.remove("room0");
+        mHub.start();
+        assertFalse(mHub.getDeviceIds().contains("room0"));
+        assertFalse(mHub.send("room0", "2", CommandQueue.Priority.MANUAL));
+        assertEquals(DEVICES - 1, mHub.getDeviceIds().size());
+    }
+
+    @Test
+    public void encodesRegistry() {
+        DeviceRegistry decoded = DeviceRegistry.decode(mRegistry.encode() + "malformed\n");
+        assertEquals(mRegistry.getAll(), decoded.getAll());
+    }
+
+    private static int temperatureOf(int device) {
+        return 10 + device;
+    }
+
+    private void error(String error) {
+        synchronized (mErrors) {
+            mErrors.add(error);
+        }
+    }
+
+    /**
+     * Records the threads writing to the device.
+     */
+    private class WriterTracking implements Transport {
+
+        private final Transport mTransport;
+
+        WriterTracking(Transport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mTransport.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mTransport.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(mTransport.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    mWriters.add(Thread.currentThread().getName());
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTransport.close();
+        }
+
+        @Override
+        public String getName() {
+            return mTransport.getName();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.mobilesw.homey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class DeviceStoreTest {
+
+    private final DeviceStore mStore = new DeviceStore(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    });
+    private final List<Integer> mChanges = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mStore.observe(new DeviceStore.Observer() {
+            @Override
+            public void onStateChanged(DeviceState state, int changes) {
+                assertSame(mStore.getState(), state);
+                mChanges.add(changes);
+            }
+        });
+    }
+
+    @Test
+    public void observersGetTheCurrentStateRightAway() {
+        assertEquals(1, mChanges.size());
+        assertEquals(DeviceState.ALL, (int) mChanges.get(0));
+        assertSame(DeviceState.INITIAL, mStore.getState());
+    }
+
+    @Test
+    public void sameReadingsChangeNothing() {
+        mStore.telemetryRead(22, 40);
+        DeviceState state = mStore.getState();
+        mStore.telemetryRead(22, 40);
+        mStore.telemetryRead(22, 40);
+        assertEquals(2, mChanges.size());
+        assertEquals(DeviceState.TELEMETRY, (int) mChanges.get(1));
+        assertEquals(22, state.getTemperature());
+        assertEquals(40, state.getHumidity());
+
+        mStore.telemetryRead(23, 40);
+        assertEquals(3, mChanges.size());
+        assertEquals(22, state.getTemperature()); // snapshots are never changed
+        assertEquals(23, mStore.getState().getTemperature());
+    }
+
+    @Test
+    public void switchesWaitForTheAcknowledgement() {
+        mStore.switched(LogEvent.Device.LIGHTS, true);
+        DeviceState state = mStore.getState();
+        assertTrue(state.isLightsOn());
+        assertFalse(state.isLightsConfirmed());
+        assertEquals(DeviceState.LIGHTS_ON | DeviceState.LIGHTS_CONFIRMED, (int) mChanges.get(1));
+
+        mStore.commandAcknowledged(LogEvent.Device.LIGHTS, true, 42);
+        state = mStore.getState();
+        assertTrue(state.isLightsConfirmed());
+        assertEquals(42, state.getLastRoundTripMillis());
+        assertEquals(DeviceState.LIGHTS_CONFIRMED | DeviceState.ROUND_TRIP, (int) mChanges.get(2));
+    }
+
+    @Test
+    public void failedSwitchesShowTheLastStateApplied() {
+        mStore.switched(LogEvent.Device.FAN, true);
+        mStore.commandAcknowledged(LogEvent.Device.FAN, true, -1);
+        mStore.switched(LogEvent.Device.FAN, false);
+        mStore.commandFailed(LogEvent.Device.FAN);
+        DeviceState state = mStore.getState();
+        assertTrue(state.isFanOn());
+        assertTrue(state.isFanConfirmed());
+        assertEquals(-1, state.getLastRoundTripMillis());
+    }
+
+    @Test
+    public void acknowledgementOfAnOlderSwitchKeepsItPending() {
+        mStore.switched(LogEvent.Device.LIGHTS, true);
+        mStore.switched(LogEvent.Device.LIGHTS, false);
+        mStore.commandAcknowledged(LogEvent.Device.LIGHTS, true, 10);
+        assertFalse(mStore.getState().isLightsOn());
+        assertFalse(mStore.getState().isLightsConfirmed());
+        mStore.commandFailed(LogEvent.Device.LIGHTS);
+        assertTrue(mStore.getState().isLightsOn()); // applied by the Arduino
+    }
+
+    @Test
+    public void autoActivationFollowsTheSettings() {
+        mStore.eventReceived(TelemetryParser.AUTO_LIGHTS_ON);
+        assertTrue(mStore.getState().isLightsOn());
+        assertTrue(mStore.getState().isLightsAutoActivated());
+        assertEquals(DeviceState.LIGHTS_ON | DeviceState.LIGHTS_AUTO_ACTIVATED, (int) mChanges.get(1));
+
+        mStore.settingsChanged(true, false);
+        assertEquals(DeviceState.SETTINGS, (int) mChanges.get(2));
+        mStore.eventReceived(TelemetryParser.AUTO_FAN_ON);
+        assertFalse(mStore.getState().isFanOn());
+        assertEquals(3, mChanges.size());
+
+        mStore.eventReceived(TelemetryParser.AUTO_LIGHTS_OFF);
+        assertFalse(mStore.getState().isLightsOn());
+        assertFalse(mStore.getState().isLightsAutoActivated());
+    }
+
+    @Test
+    public void switchingOffEndsTheAutoActivation() {
+        mStore.eventReceived(TelemetryParser.AUTO_FAN_ON);
+        mStore.switched(LogEvent.Device.FAN, true);
+        assertTrue(mStore.getState().isFanAutoActivated());
+        mStore.switched(LogEvent.Device.FAN, false);
+        assertFalse(mStore.getState().isFanAutoActivated());
+    }
+
+    @Test
+    public void removedObserversAreNotTold() {
+        final List<DeviceState> states = new ArrayList<>();
+        DeviceStore.Observer observer = new DeviceStore.Observer() {
+            @Override
+            public void onStateChanged(DeviceState state, int changes) {
+                states.add(state);
+            }
+        };
+        mStore.connectionChanged(ConnectionManager.State.CONNECTING, "HC-06");
+        mStore.observe(observer);
+        assertEquals("HC-06", states.get(0).getDeviceName());
+        mStore.removeObserver(observer);
+        mStore.connectionChanged(ConnectionManager.State.CONNECTED, "HC-06");
+        assertEquals(1, states.size());
+        assertTrue(mStore.getState().isConnected());
+        assertEquals(DeviceState.CONNECTION, (int) mChanges.get(mChanges.size() - 1));
+    }
+
+    @Test
+    public void postsTheChangesOnceUntilTheObserversRun() throws InterruptedException {
+        final List<Runnable> posted = new ArrayList<>();
+        final DeviceStore store = new DeviceStore(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                posted.add(command);
+            }
+        });
+        final List<Integer> changes = new ArrayList<>();
+        store.observe(new DeviceStore.Observer() {
+            @Override
+            public void onStateChanged(DeviceState state, int fields) {
+                changes.add(fields);
+            }
+        });
+        Thread processing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    store.telemetryRead(22, 40); // the same readings post nothing more
+                }
+                store.eventReceived(TelemetryParser.AUTO_FAN_ON);
+            }
+        });
+        processing.start();
+        processing.join();
+        assertEquals(1, posted.size());
+
+        posted.remove(0).run();
+        assertEquals(2, changes.size());
+        assertEquals(DeviceState.TELEMETRY | DeviceState.FAN_ON | DeviceState.FAN_AUTO_ACTIVATED,
+                (int) changes.get(1));
+
+        store.telemetryRead(23, 40);
+        store.telemetryRead(22, 40); // back to the readings told
+        posted.remove(0).run();
+        assertEquals(2, changes.size());
+        assertTrue(posted.isEmpty());
+    }
+}
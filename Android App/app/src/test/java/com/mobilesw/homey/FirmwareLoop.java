@@ -0,0 +1,422 @@
+package com.mobilesw.homey;
+
+/**
+ * Port of the loop of Bluetooth_Arduino.ino, task for task, with the hardware
+ * behind a {@link Board}, so that its scheduling can be run on the JVM against
+ * a simulated board and clock, e.g. to check how long a command waits before
+ * it is applied. Keep it in sync with the firmware.
+ *
+ * Every call of {@link #loop()} is one pass of the firmware loop: it drains
+ * the bytes received, runs the timed tasks and sends at most one queued byte
+ * and one LCD character.
+ *
+ * Not thread-safe.
+ */
+public class FirmwareLoop {
+
+    /**
+     * The pins, the Bluetooth module and the LCD of the Arduino.
+     */
+    public interface Board {
+        long millis();
+
+        /**
+         * SoftwareSerial.available() and read().
+         */
+        int available();
+
+        int read();
+
+        /**
+         * SoftwareSerial.write(), blocking while the byte is sent.
+         */
+        void write(byte b);
+
+        boolean readMotion();
+
+        void writeLights(boolean on);
+
+        void writeFan(boolean on);
+
+        /**
+         * Pulls the data line of the DHT11 low.
+         */
+        void startDht11();
+
+        /**
+         * Reads the 5 bytes the DHT11 answers once the start signal has lasted long enough.
+         *
+         * @return false if the DHT11 did not answer
+         */
+        boolean readDht11(byte[] data);
+
+        void lcdSetCursor(int column, int row);
+
+        void lcdWrite(char c);
+    }
+
+    static final long RETURN_HOME_INTERVAL = 3000;
+    static final long REFRESH_INTERVAL_DHT11 = 5000;
+    static final long LIGHTS_AUTO_INTERVAL = 10000;
+    static final int TEMP_THRESHOLD_MAX = 23;
+    static final int TEMP_THRESHOLD_MIN = 20;
+    static final long SPLASH_INTERVAL = 400;
+    static final int SPLASH_STEPS = 12;
+    static final long DHT11_START_SIGNAL = 20;
+    static final long DHT11_RETRY_INTERVAL = 1000;
+
+    private static final int FRAME_MAX = 16;
+    private static final int TX_CAPACITY = 128;
+    private static final int LCD_COLUMNS = 16;
+    private static final int LCD_ROWS = 2;
+
+    private final Board mBoard;
+
+    private long mLastPrintTime = 0;
+    private boolean mFanAutoActivated = false;
+    private long mLastRefreshDHT11 = -REFRESH_INTERVAL_DHT11;
+    private boolean mLightsAutoActivated = false;
+    private long mLastAutoLights = 0;
+    private boolean mAutoActivateLights = true;
+    private boolean mAutoActivateFan = true;
+    private int mTemperature = 0;
+    private int mHumidity = 0;
+    private int mLastTemperature = -99;
+    private int mLastHumidity = -99;
+    private boolean mHomeLCD = false;
+    private boolean mLights = false; // digitalRead(LIGHTS_PIN)
+    private boolean mFan = false; // digitalRead(FAN_PIN)
+
+    private final byte[] mRxFrame = new byte[FRAME_MAX];
+    private int mRxLength = 0;
+    private boolean mRxOverflow = false;
+    private int mRxSequence = -1;
+
+    private final byte[] mTxQueue = new byte[TX_CAPACITY];
+    private int mTxHead = 0;
+    private int mTxLength = 0;
+
+    private final char[][] mLcdWanted = new char[LCD_ROWS][LCD_COLUMNS];
+    private final char[][] mLcdShown = new char[LCD_ROWS][LCD_COLUMNS];
+    private int mLcdNext = 0;
+    private int mLcdCursor = -1;
+
+    private int mSplashStep = 0;
+    private long mLastSplashStep = 0;
+
+    private boolean mDhtStarting = false;
+    private long mDhtStartTime = 0;
+    private boolean mDhtFirstReading = true;
+    private final byte[] mDhtData = new byte[5];
+
+    public FirmwareLoop(Board board) {
+        mBoard = board;
+    }
+
+    public void setup() {
+        for (int row = 0; row < LCD_ROWS; row++) {
+            for (int column = 0; column < LCD_COLUMNS; column++) {
+                mLcdWanted[row][column] = ' ';
+                mLcdShown[row][column] = ' ';
+            }
+        }
+        lcdSetLine(0, "   < HOMEY >");
+        mLastSplashStep = mBoard.millis();
+        mLastPrintTime = mBoard.millis();
+    }
+
+    public void loop() {
+        readBluetooth();
+        lightsTask();
+        dhtTask();
+        homeScreenTask();
+        splashTask();
+        sendTask();
+        lcdTask();
+    }
+
+    /**
+     * The screen wanted, which the LCD shows once every character is written.
+     */
+    public String getScreen(int row) {
+        return new String(mLcdWanted[row]);
+    }
+
+    public boolean isSplashDone() {
+        return mSplashStep >= SPLASH_STEPS;
+    }
+
+    public int getQueuedBytes() {
+        return mTxLength;
+    }
+
+    private void readBluetooth() {
+        while (mBoard.available() > 0) {
+            int command = btReadCommand();
+            if (command >= 0) {
+                mHomeLCD = false;
+                handleCommand((char) command);
+                if (mRxSequence >= 0) {
+                    btSendAck(mRxSequence);
+                }
+            }
+        }
+    }
+
+    private void handleCommand(char command) {
+        switch (command) {
+            case SimulatedDevice.LIGHTS_OFF:
+                turnLights(false);
+                mLightsAutoActivated = false;
+                break;
+            case SimulatedDevice.LIGHTS_ON:
+                turnLights(true);
+                break;
+            case SimulatedDevice.FAN_OFF:
+                turnFan(false);
+                mFanAutoActivated = false;
+                break;
+            case SimulatedDevice.FAN_ON:
+                turnFan(true);
+                break;
+            case SimulatedDevice.NO_AUTO_LIGHTS:
+                mAutoActivateLights = false;
+                mLightsAutoActivated = false;
+                break;
+            case SimulatedDevice.AUTO_LIGHTS:
+                mAutoActivateLights = true;
+                break;
+            case SimulatedDevice.NO_AUTO_FAN:
+                mAutoActivateFan = false;
+                break;
+            case SimulatedDevice.AUTO_FAN:
+                mAutoActivateFan = true;
+                break;
+            case SimulatedDevice.NO_AUTO_LIGHTS_FAN:
+                mAutoActivateLights = false;
+                mAutoActivateFan = false;
+                mLightsAutoActivated = false;
+                break;
+            case SimulatedDevice.CONNECTED:
+                btSendTempHumData(mTemperature, mHumidity);
+                if (mLightsAutoActivated) {
+                    btSend(SimulatedDevice.AUTO_LIGHTS_ON);
+                }
+                if (mFanAutoActivated) {
+                    btSend(SimulatedDevice.AUTO_FAN_ON);
+                }
+                clearPrint("    ANDROID", "   connected");
+                break;
+        }
+    }
+
+    private void lightsTask() {
+        if (mAutoActivateLights && mBoard.readMotion() && !mLights) {
+            btSend(SimulatedDevice.AUTO_LIGHTS_ON);
+            turnLights(true);
+            mLightsAutoActivated = true;
+            mLastAutoLights = mBoard.millis();
+        } else if (mAutoActivateLights && mBoard.millis() - mLastAutoLights > LIGHTS_AUTO_INTERVAL
+                && mLightsAutoActivated) {
+            turnLights(false);
+            btSend(SimulatedDevice.AUTO_LIGHTS_OFF);
+            mLightsAutoActivated = false;
+        }
+    }
+
+    private void dhtTask() {
+        if (!mDhtStarting) {
+            if (mBoard.millis() - mLastRefreshDHT11 > REFRESH_INTERVAL_DHT11 && !btReceiving()) {
+                mBoard.startDht11();
+                mDhtStarting = true;
+                mDhtStartTime = mBoard.millis();
+            }
+            return;
+        }
+        if (mBoard.millis() - mDhtStartTime < DHT11_START_SIGNAL) {
+            return;
+        }
+        mDhtStarting = false;
+        if (btReceiving()) {
+            dhtRetryLater();
+            return;
+        }
+        refreshDHT11();
+        if (mAutoActivateFan && mTemperature > TEMP_THRESHOLD_MAX && !mFan) {
+            turnFan(true);
+            btSend(SimulatedDevice.AUTO_FAN_ON);
+            mFanAutoActivated = true;
+        } else if (mAutoActivateFan && mTemperature < TEMP_THRESHOLD_MIN && mFan) {
+            turnFan(false);
+            btSend(SimulatedDevice.AUTO_FAN_OFF);
+            mFanAutoActivated = false;
+        } else if (mSplashStep >= SPLASH_STEPS && mBoard.millis() - mLastPrintTime > RETURN_HOME_INTERVAL
+                && (mLastTemperature != mTemperature || mLastHumidity != mHumidity)) {
+            printHomeScreen(mTemperature, mHumidity);
+            btSendTempHumData(mTemperature, mHumidity);
+        } else if (mDhtFirstReading) {
+            btSendTempHumData(mTemperature, mHumidity);
+        }
+        mDhtFirstReading = false;
+    }
+
+    private void homeScreenTask() {
+        if (mSplashStep >= SPLASH_STEPS && !mHomeLCD && mBoard.millis() - mLastPrintTime > RETURN_HOME_INTERVAL) {
+            printHomeScreen(mTemperature, mHumidity);
+            btSendTempHumData(mTemperature, mHumidity);
+        }
+    }
+
+    private void splashTask() {
+        if (mSplashStep >= SPLASH_STEPS || mBoard.millis() - mLastSplashStep < SPLASH_INTERVAL) {
+            return;
+        }
+        mLastSplashStep = mBoard.millis();
+        mSplashStep++;
+        if (mBoard.millis() - mLastPrintTime < SPLASH_INTERVAL) {
+            return;
+        }
+        int dots = mSplashStep % 4;
+        lcdSetLine(0, "   < HOMEY >");
+        lcdSetLine(1, dots == 1 ? "      ." : dots == 2 ? "      .." : dots == 3 ? "      ..." : "");
+        mLastPrintTime = mBoard.millis();
+    }
+
+    private void sendTask() {
+        if (mTxLength > 0) {
+            mBoard.write(mTxQueue[mTxHead]);
+            mTxHead = (mTxHead + 1) % TX_CAPACITY;
+            mTxLength--;
+        }
+    }
+
+    private void lcdTask() {
+        for (int i = 0; i < LCD_ROWS * LCD_COLUMNS; i++) {
+            int position = (mLcdNext + i) % (LCD_ROWS * LCD_COLUMNS);
+            int row = position / LCD_COLUMNS;
+            int column = position % LCD_COLUMNS;
+            if (mLcdWanted[row][column] != mLcdShown[row][column]) {
+                if (mLcdCursor != position) {
+                    mBoard.lcdSetCursor(column, row);
+                }
+                mBoard.lcdWrite(mLcdWanted[row][column]);
+                mLcdShown[row][column] = mLcdWanted[row][column];
+                mLcdCursor = column == LCD_COLUMNS - 1 ? -1 : position + 1;
+                mLcdNext = position + 1;
+                return;
+            }
+        }
+    }
+
+    private void lcdSetLine(int row, String text) {
+        for (int column = 0; column < LCD_COLUMNS; column++) {
+            mLcdWanted[row][column] = column < text.length() ? text.charAt(column) : ' ';
+        }
+    }
+
+    private void refreshDHT11() {
+        mLastTemperature = mTemperature;
+        mLastHumidity = mHumidity;
+        byte[] data = mDhtData;
+        if (mBoard.readDht11(data) && (byte) (data[0] + data[1] + data[2] + data[3]) == data[4]) {
+            mHumidity = data[0];
+            mTemperature = data[2];
+            mLastRefreshDHT11 = mBoard.millis();
+        } else {
+            dhtRetryLater();
+        }
+    }
+
+    private void dhtRetryLater() {
+        mLastRefreshDHT11 = mBoard.millis() - REFRESH_INTERVAL_DHT11 + DHT11_RETRY_INTERVAL;
+    }
+
+    private boolean btReceiving() {
+        return mRxLength > 0 || mRxOverflow || mBoard.available() > 0;
+    }
+
+    private void turnLights(boolean on) {
+        mHomeLCD = false;
+        clearPrint("     Lights", on ? "       ON" : "       OFF");
+        mLights = on;
+        mBoard.writeLights(on);
+    }
+
+    private void turnFan(boolean on) {
+        mHomeLCD = false;
+        clearPrint("      Fan", on ? "      ON" : "      OFF");
+        mFan = on;
+        mBoard.writeFan(on);
+    }
+
+    private void btSendTempHumData(int temperature, int humidity) {
+        btSend(SimulatedDevice.TEMP_AND_HUMIDITY + temperature + " " + humidity);
+    }
+
+    private void btSendAck(int sequence) {
+        btSend(SimulatedDevice.ACK + (char) FrameEncoder.HEX_DIGITS[sequence >> 4]
+                + (char) FrameEncoder.HEX_DIGITS[sequence & 0x0F]);
+    }
+
+    private void btSend(String payload) {
+        if (mTxLength + payload.length() + 4 > TX_CAPACITY) {
+            return;
+        }
+        byte[] frame = FrameEncoder.encode(payload);
+        for (byte b : frame) {
+            mTxQueue[(mTxHead + mTxLength) % TX_CAPACITY] = b;
+            mTxLength++;
+        }
+    }
+
+    private int btReadCommand() {
+        byte c = (byte) mBoard.read();
+        if (c == '\r') {
+            return -1;
+        }
+        if (c != FrameDecoder.FRAME_END) {
+            if (mRxLength < FRAME_MAX) {
+                mRxFrame[mRxLength++] = c;
+            } else {
+                mRxOverflow = true;
+            }
+            return -1;
+        }
+        int length = mRxLength;
+        boolean overflow = mRxOverflow;
+        mRxLength = 0;
+        mRxOverflow = false;
+        int payload = length - 3;
+        if (overflow || (payload != 1 && payload != 3) || mRxFrame[payload] != FrameDecoder.CHECKSUM_SEPARATOR) {
+            return -1;
+        }
+        int high = FrameDecoder.hexValue(mRxFrame[payload + 1]);
+        int low = FrameDecoder.hexValue(mRxFrame[payload + 2]);
+        if (high < 0 || low < 0 || (high << 4 | low) != FrameDecoder.checksum(mRxFrame, 0, payload)) {
+            return -1;
+        }
+        mRxSequence = -1;
+        if (payload == 3) {
+            high = FrameDecoder.hexValue(mRxFrame[1]);
+            low = FrameDecoder.hexValue(mRxFrame[2]);
+            if (high < 0 || low < 0) {
+                return -1;
+            }
+            mRxSequence = high << 4 | low;
+        }
+        return mRxFrame[0];
+    }
+
+    private void clearPrint(String firstLine, String secondLine) {
+        lcdSetLine(0, firstLine);
+        lcdSetLine(1, secondLine);
+        mLastPrintTime = mBoard.millis();
+    }
+
+    private void printHomeScreen(int temperature, int humidity) {
+        lcdSetLine(0, "   Temp: " + temperature + (char) 223 + "C");
+        lcdSetLine(1, "   Hum:  " + humidity + " %");
+        mLastPrintTime = mBoard.millis();
+        mHomeLCD = true;
+    }
+}
@@ -0,0 +1,290 @@
+package com.mobilesw.homey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the firmware loop against a virtual board, where every operation takes
+ * as long as on the Arduino, and checks how long the received commands wait.
+ */
+public class FirmwareLoopTest {
+
+    private static final long MAX_LATENCY_MICROS = 20000;
+
+    private VirtualBoard mBoard;
+    private FirmwareLoop mLoop;
+
+    @Before
+    public void setUp() {
+        mBoard = new VirtualBoard();
+        mLoop = new FirmwareLoop(mBoard);
+        mLoop.setup();
+    }
+
+    @Test
+    public void appliesCommandsDuringTheSplash() {
+        runUntil(1000);
+        long received = mBoard.receive("2");
+        runUntil(1100);
+        assertFalse(mLoop.isSplashDone());
+        assertLatency(received, 'L', true);
+        assertEquals("     Lights", mLoop.getScreen(0).replaceAll(" +$", ""));
+    }
+
+    @Test
+    public void appliesCommandsRightAfterTheHandshake() {
+        runUntil(6000);
+        long connected = mBoard.receive("0");
+        long lightsOn = mBoard.receive("201");
+        long fanOn = mBoard.receive("402");
+        runUntil(6200);
+        assertTrue(connected < lightsOn);
+        assertLatency(lightsOn, 'L', true);
+        assertLatency(fanOn, 'F', true);
+
+        List<String> sent = mBoard.getFramesSent();
+        assertTrue(sent.toString(), sent.contains("TH" + mBoard.mTemperature + " " + mBoard.mHumidity));
+        assertTrue(sent.contains("A01"));
+        assertTrue(sent.contains("A02"));
+    }
+
+    @Test
+    public void appliesCommandsWithinTwentyMillisecondsUnderLoad() {
+        Random random = new Random(42);
+        char[] commands = {
+                SimulatedDevice.LIGHTS_OFF, SimulatedDevice.LIGHTS_ON,
+                SimulatedDevice.FAN_OFF, SimulatedDevice.FAN_ON
+        };
+        long maxLatency = 0;
+        int sequence = 0;
+        long now = 0;
+        while (now < 60000) {
+            now += 50 + random.nextInt(450);
+            runUntil(now);
+            mBoard.mMotion = random.nextInt(10) == 0; // auto lights
+            mBoard.mTemperature = random.nextBoolean() ? 19 : 25; // auto fan and new readings shown
+            char command = commands[random.nextInt(commands.length)];
+            long received = mBoard.receive("" + command + (char) FrameEncoder.HEX_DIGITS[sequence >> 4]
+                    + (char) FrameEncoder.HEX_DIGITS[sequence & 0x0F]);
+            runUntil(now + MAX_LATENCY_MICROS / 1000 + 10);
+            char pin = command <= SimulatedDevice.LIGHTS_ON ? 'L' : 'F';
+            boolean on = command == SimulatedDevice.LIGHTS_ON || command == SimulatedDevice.FAN_ON;
+            maxLatency = Math.max(maxLatency, assertLatency(received, pin, on));
+            sequence = (sequence + 1) & 0xFF;
+        }
+        runUntil(now + 1000);
+
+        int acks = 0;
+        for (String frame : mBoard.getFramesSent()) {
+            if (frame.startsWith(SimulatedDevice.ACK)) {
+                acks++;
+            }
+        }
+        assertEquals(sequence, acks);
+        assertTrue("max latency " + maxLatency + " µs", maxLatency < MAX_LATENCY_MICROS);
+        assertTrue(mBoard.mDhtReadings >= 10);
+    }
+
+    @Test
+    public void readsTheDht11AgainSoonAfterACommandDisturbedIt() {
+        runUntil(100); // first reading
+        int readings = mBoard.mDhtReadings;
+        long startSignal = mBoard.mDhtStartMicros;
+        while (mBoard.mDhtStartMicros == startSignal) {
+            runUntil(mBoard.millis() + 1);
+        }
+        // a command arriving right before or during the answer
+        long answer = mBoard.mDhtStartMicros + FirmwareLoop.DHT11_START_SIGNAL * 1000;
+        runUntil((answer - 2000) / 1000);
+        long received = mBoard.receive("2");
+        runUntil(answer / 1000 + 500);
+        assertEquals(readings, mBoard.mDhtReadings);
+        assertLatency(received, 'L', true);
+        runUntil(answer / 1000 + FirmwareLoop.DHT11_RETRY_INTERVAL + 100);
+        assertEquals(readings + 1, mBoard.mDhtReadings);
+    }
+
+    @Test
+    public void showsTheReadingsAfterTheSplash() {
+        runUntil(9000);
+        assertTrue(mLoop.isSplashDone());
+        assertEquals("   Temp: 21" + (char) 223 + "C", mLoop.getScreen(0).replaceAll(" +$", ""));
+        assertEquals("   Hum:  40 %", mLoop.getScreen(1).replaceAll(" +$", ""));
+        assertEquals(mLoop.getScreen(0), mBoard.getLcdLine(0));
+        assertEquals(mLoop.getScreen(1), mBoard.getLcdLine(1));
+        assertEquals(0, mLoop.getQueuedBytes());
+    }
+
+    private void runUntil(long millis) {
+        while (mBoard.mMicros < millis * 1000) {
+            mLoop.loop();
+            mBoard.mMicros += VirtualBoard.PASS_MICROS;
+        }
+    }
+
+    /**
+     * @return the microseconds from the end of the frame to the pin written
+     */
+    private long assertLatency(long receivedMicros, char pin, boolean on) {
+        for (long[] write : mBoard.mPinWrites) {
+            if (write[0] >= receivedMicros && write[1] == pin && (write[2] == 1) == on) {
+                long latency = write[0] - receivedMicros;
+                assertTrue("latency " + latency + " µs", latency < MAX_LATENCY_MICROS);
+                return latency;
+            }
+        }
+        fail("command for " + pin + " not applied");
+        return 0;
+    }
+
+    /**
+     * Charges the time every call takes on an Arduino Uno: the Bluetooth
+     * module at 9600 baud, a LiquidCrystal in 4-bit mode and a DHT11.
+     */
+    private static class VirtualBoard implements FirmwareLoop.Board {
+
+        static final long PASS_MICROS = 40; // the rest of loop()
+        static final long BYTE_MICROS = 1042; // 10 bits at 9600 baud
+        static final long LCD_MICROS = 300;
+        static final long DHT_ANSWER_MICROS = 4500;
+
+        long mMicros = 0;
+        boolean mMotion = false;
+        int mTemperature = 21;
+        int mHumidity = 40;
+        int mDhtReadings = 0;
+        long mDhtStartMicros = -1; // of the last start signal
+        final List<long[]> mPinWrites = new ArrayList<>(); // micros, pin, value
+
+        private final List<long[]> mIncoming = new ArrayList<>(); // micros, byte
+        private int mRead = 0;
+        private final StringBuilder mSent = new StringBuilder();
+        private final char[][] mLcd = new char[2][16];
+        private int mLcdColumn = 0;
+        private int mLcdRow = 0;
+
+        VirtualBoard() {
+            for (char[] row : mLcd) {
+                Arrays.fill(row, ' ');
+            }
+        }
+
+        /**
+         * Sends a frame to the board, right after the previous one.
+         *
+         * @return when its last byte has arrived
+         */
+        long receive(String payload) {
+            long arrival = mMicros;
+            if (!mIncoming.isEmpty()) {
+                arrival = Math.max(arrival, mIncoming.get(mIncoming.size() - 1)[0]);
+            }
+            for (byte b : FrameEncoder.encode(payload)) {
+                arrival += BYTE_MICROS;
+                mIncoming.add(new long[]{arrival, b});
+            }
+            return arrival;
+        }
+
+        List<String> getFramesSent() {
+            List<String> payloads = new ArrayList<>();
+            for (String frame : mSent.toString().split("\n")) {
+                int separator = frame.lastIndexOf(FrameDecoder.CHECKSUM_SEPARATOR);
+                if (separator >= 0) {
+                    payloads.add(frame.substring(0, separator));
+                }
+            }
+            return payloads;
+        }
+
+        String getLcdLine(int row) {
+            return new String(mLcd[row]);
+        }
+
+        @Override
+        public long millis() {
+            return mMicros / 1000;
+        }
+
+        @Override
+        public int available() {
+            int available = 0;
+            for (int i = mRead; i < mIncoming.size() && mIncoming.get(i)[0] <= mMicros; i++) {
+                available++;
+            }
+            return available;
+        }
+
+        @Override
+        public int read() {
+            mMicros += 5;
+            return (int) mIncoming.get(mRead++)[1];
+        }
+
+        @Override
+        public void write(byte b) {
+            mMicros += BYTE_MICROS;
+            mSent.append((char) (b & 0xFF));
+        }
+
+        @Override
+        public boolean readMotion() {
+            return mMotion;
+        }
+
+        @Override
+        public void writeLights(boolean on) {
+            mPinWrites.add(new long[]{mMicros, 'L', on ? 1 : 0});
+        }
+
+        @Override
+        public void writeFan(boolean on) {
+            mPinWrites.add(new long[]{mMicros, 'F', on ? 1 : 0});
+        }
+
+        @Override
+        public void startDht11() {
+            mDhtStartMicros = mMicros;
+            mMicros += 10;
+        }
+
+        @Override
+        public boolean readDht11(byte[] data) {
+            long start = mMicros;
+            mMicros += DHT_ANSWER_MICROS;
+            // a byte received meanwhile delays the reading of a bit: the answer is wrong
+            for (long[] incoming : mIncoming) {
+                if (incoming[0] > start && incoming[0] - BYTE_MICROS < mMicros) {
+                    return false;
+                }
+            }
+            mDhtReadings++;
+            data[0] = (byte) mHumidity;
+            data[1] = 0;
+            data[2] = (byte) mTemperature;
+            data[3] = 0;
+            data[4] = (byte) (data[0] + data[2]);
+            return true;
+        }
+
+        @Override
+        public void lcdSetCursor(int column, int row) {
+            mMicros += LCD_MICROS;
+            mLcdColumn = column;
+            mLcdRow = row;
+        }
+
+        @Override
+        public void lcdWrite(char c) {
+            mMicros += LCD_MICROS;
+            mLcd[mLcdRow][mLcdColumn++] = c;
+        }
+    }
+}
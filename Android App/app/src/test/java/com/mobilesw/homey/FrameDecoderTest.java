@@ -0,0 +1,132 @@
+package com.mobilesw.homey;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private List<String> mFrames;
+    private FrameDecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mFrames = new ArrayList<>();
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mFrames.add(new String(buffer, offset, length));
+            }
+        });
+    }
+
+    @Test
+    public void decodesSeveralFramesFromOneRead() {
+        feed(frames("TH23 45", "1L", "0F"));
+        assertEquals(3, mFrames.size());
+        assertEquals("TH23 45", mFrames.get(0));
+        assertEquals("1L", mFrames.get(1));
+        assertEquals("0F", mFrames.get(2));
+    }
+
+    @Test
+    public void rebuildsFramesSplitAcrossReads() {
+        byte[] stream = frames("TH23 45", "1L", "TH24 46", "0L");
+        for (int i = 0; i < stream.length; i++) {
+            mDecoder.feed(stream, i, 1); // worst case: one byte per read
+        }
+        assertEquals(4, mFrames.size());
+        assertEquals("TH24 46", mFrames.get(2));
+    }
+
+    @Test
+    public void rebuildsFramesWrappingAroundTheRing() {
+        for (int i = 0; i < 100; i++) {
+            feed(frames("TH" + i + " 50"));
+        }
+        assertEquals(100, mFrames.size());
+        assertEquals("TH99 50", mFrames.get(99));
+        assertEquals(0, mDecoder.getRejectedCount());
+    }
+
+    @Test
+    public void dropsCorruptedFrameAndKeepsTheNext() {
+        byte[] stream = frames("TH23 45", "1L");
+        stream[3] = '9'; // "TH29 45" no longer matches its checksum
+        feed(stream);
+        assertEquals(1, mFrames.size());
+        assertEquals("1L", mFrames.get(0));
+        assertEquals(1, mDecoder.getRejectedCount());
+    }
+
+    @Test
+    public void dropsUnframedAndOversizedInput() {
+        long rejected = Metrics.FRAMES_REJECTED.get(); // of the whole process
+        feed("1L\n".getBytes());
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            noise.append('x');
+        }
+        feed((noise + "\n").getBytes());
+        feed(frames("0F"));
+        assertEquals(1, mFrames.size());
+        assertEquals("0F", mFrames.get(0));
+        assertEquals(2, mDecoder.getRejectedCount());
+        assertEquals(rejected + 2, Metrics.FRAMES_REJECTED.get());
+    }
+
+    @Test
+    public void decodingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        final int[] count = new int[1];
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                count[0]++;
+            }
+        });
+        byte[] stream = frames("TH23 45", "1L", "0F", "TH24 46");
+        for (int i = 0; i < 10000; i++) {
+            decoder.feed(stream, 0, stream.length); // warm up
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10000; i++) {
+            decoder.feed(stream, 0, 5);
+            decoder.feed(stream, 5, stream.length - 5);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(80000, count[0]);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void encoderOutputIsDecoded() {
+        byte[] frame = FrameEncoder.encode("7");
+        assertEquals("7*37\n", new String(frame));
+        feed(frame);
+        assertEquals("7", mFrames.get(0));
+    }
+
+    private void feed(byte[] bytes) {
+        mDecoder.feed(bytes, 0, bytes.length);
+    }
+
+    private static byte[] frames(String... payloads) {
+        StringBuilder stream = new StringBuilder();
+        for (String payload : payloads) {
+            stream.append(new String(FrameEncoder.encode(payload)));
+        }
+        return stream.toString().getBytes();
+    }
+}
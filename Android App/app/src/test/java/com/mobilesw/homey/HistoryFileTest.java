@@ -0,0 +1,214 @@
+package com.mobilesw.homey;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistoryFileTest {
+
+    private static final long START = 1577836800000L; // 2020-01-01
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Rows as read, e.g. "log id user 1577836800000 LIGHTS ON AUTO kitchen" or "sample 1577836800000 21 40".
+     */
+    private static final class Rows implements HistoryFile.Visitor {
+
+        final List<String> mRows = new ArrayList<>();
+
+        @Override
+        public void onLog(String id, UserLog log) {
+            mRows.add(log(id, log));
+        }
+
+        @Override
+        public void onSample(long timeMillis, int temperature, int humidity) {
+            mRows.add(sample(timeMillis, temperature, humidity));
+        }
+    }
+
+    private static String log(String id, UserLog log) {
+        return "log " + id + " " + log.getUserID() + " " + log.getTimestamp() + " " + log.getDevice() + " "
+                + log.getAction() + " " + log.getSource() + " " + log.getDeviceId();
+    }
+
+    private static String sample(long timeMillis, int temperature, int humidity) {
+        return "sample " + timeMillis + " " + temperature + " " + humidity;
+    }
+
+    /**
+     * Writes random rows, returning them as {@link Rows} reads them.
+     */
+    private static List<String> writeRandom(HistoryFile.Writer writer, int count) throws IOException {
+        Random random = new Random(42);
+        List<String> rows = new ArrayList<>();
+        long time = START;
+        int temperature = 20;
+        int humidity = 50;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(10000);
+            if (random.nextInt(10) == 0) {
+                UserLog log = new UserLog(random.nextBoolean() ? "user" : "other", time,
+                        LogEvent.Device.values()[random.nextInt(2)], LogEvent.Action.values()[random.nextInt(2)],
+                        LogEvent.Source.values()[random.nextInt(2)],
+                        new String[]{null, "kitchen", "living, \"room\""}[random.nextInt(3)]);
+                writer.writeLog("log" + i, log);
+                rows.add(log("log" + i, log));
+            } else {
+                temperature += random.nextInt(3) - 1;
+                humidity += random.nextInt(3) - 1;
+                writer.writeSample(time, temperature, humidity);
+                rows.add(sample(time, temperature, humidity));
+            }
+        }
+        writer.close();
+        return rows;
+    }
+
+    private static byte[] write(HistoryFile.Format format, List<String> rows, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rows.addAll(writeRandom(new HistoryFile.Writer(Channels.newChannel(out), format, null), count));
+        return out.toByteArray();
+    }
+
+    private static List<String> read(byte[] file) throws IOException {
+        Rows rows = new Rows();
+        HistoryFile.read(Channels.newChannel(new ByteArrayInputStream(file)), rows, null);
+        return rows.mRows;
+    }
+
+    @Test
+    public void readsWhatItWrites() throws IOException {
+        for (HistoryFile.Format format : HistoryFile.Format.values()) {
+            List<String> rows = new ArrayList<>();
+            byte[] file = write(format, rows, 50000); // several buffers
+            assertEquals(format.toString(), rows, read(file));
+        }
+    }
+
+    @Test
+    public void writesReadableCsv() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryFile.Writer writer = new HistoryFile.Writer(Channels.newChannel(out), HistoryFile.Format.CSV, null);
+        writer.writeLog("a", new UserLog("user", START, LogEvent.Device.FAN, LogEvent.Action.ON,
+                LogEvent.Source.AUTO, "kitchen"));
+        writer.writeLog("b,\"c\"", new UserLog(null, START + 1, null, null, null));
+        writer.writeSample(START + 2, -3, 41);
+        writer.close();
+
+        String csv = out.toString("UTF-8");
+        assertEquals("record,id,user,timestamp,device,action,source,temperature,humidity,device_id\n"
+                + "log,a,user,1577836800000,fan,on,auto,,,kitchen\n"
+                + "log,\"b,\"\"c\"\"\",,1577836800001,,,,,,\n"
+                + "sample,,,1577836800002,,,,-3,41,\n", csv);
+        assertEquals(Arrays.asList("log a user 1577836800000 FAN ON AUTO kitchen",
+                "log b,\"c\" null 1577836800001 null null null null", "sample 1577836800002 -3 41"),
+                read(csv.getBytes("UTF-8")));
+        assertEquals(3, read(csv.replace("\n", "\r\n").getBytes("UTF-8")).size()); // line ends of Windows
+        assertEquals(3, read((csv + "\n\r\n").getBytes("UTF-8")).size()); // blank lines left by an editor
+    }
+
+    @Test
+    public void readsFilesOfTheFirstVersion() throws IOException {
+        assertEquals(Arrays.asList("log a user 1577836800000 FAN ON AUTO null", "sample 1577836800002 -3 41"),
+                read(("record,id,user,timestamp,device,action,source,temperature,humidity\n"
+                        + "log,a,user,1577836800000,fan,on,auto,,\n"
+                        + "sample,,,1577836800002,,,,-3,41\n").getBytes("UTF-8")));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryFile.Writer writer = new HistoryFile.Writer(Channels.newChannel(out), HistoryFile.Format.BINARY, null);
+        writer.writeLog("a", new UserLog(null, START, LogEvent.Device.FAN, LogEvent.Action.ON,
+                LogEvent.Source.AUTO));
+        writer.close();
+        byte[] file = out.toByteArray();
+        assertEquals(0, file[8]); // the length of the device ID, after the magic, tag, id and user
+        byte[] first = new byte[file.length - 1];
+        System.arraycopy(file, 0, first, 0, 8);
+        System.arraycopy(file, 9, first, 8, file.length - 9);
+        first[3] = '1'; // "HMY1"
+        assertEquals(Arrays.asList("log a null 1577836800000 FAN ON AUTO null"), read(first));
+    }
+
+    @Test
+    public void binaryIsCompact() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryFile.Writer writer = new HistoryFile.Writer(Channels.newChannel(out), HistoryFile.Format.BINARY, null);
+        for (int i = 0; i < 1000; i++) {
+            writer.writeSample(START + i * 5000L, 21 + i % 2, 40);
+        }
+        writer.close();
+        // the magic, the first time in full, then a byte of tag, 2 of time and 1 of each change
+        assertEquals(4 + 4 + 1000 * 5, out.size());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        List<String> rows = new ArrayList<>();
+        byte[] file = write(HistoryFile.Format.BINARY, rows, 1000);
+        try {
+            read(Arrays.copyOf(file, file.length - 1));
+            fail("cut short");
+        } catch (EOFException e) {
+            // expected
+        }
+        for (String text : Arrays.asList("", "hello", "record,id,user,timestamp,device,action,source,temperature,"
+                + "humidity\nlog,a,user,12,lamp,on,auto,,\n", "record,id,user,timestamp,device,action,source,"
+                + "temperature,humidity\nsample,,,12,,,,21\n")) {
+            try {
+                read(text.getBytes("UTF-8"));
+                fail(text);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void streamsThroughAFileChannel() throws IOException {
+        File file = new File(mFolder.getRoot(), "history.homey");
+        final List<Long> progress = new ArrayList<>();
+        HistoryFile.Progress listener = new HistoryFile.Progress() {
+            @Override
+            public void onProgress(long rows, long bytes) {
+                progress.add(rows);
+            }
+        };
+        FileChannel out = new FileOutputStream(file).getChannel();
+        List<String> rows;
+        try {
+            rows = writeRandom(new HistoryFile.Writer(out, HistoryFile.Format.BINARY, listener), 25000);
+        } finally {
+            out.close();
+        }
+        assertEquals(Arrays.asList(10000L, 20000L, 25000L), progress);
+
+        progress.clear();
+        Rows read = new Rows();
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            assertEquals(25000, HistoryFile.read(in, read, listener));
+        } finally {
+            in.close();
+        }
+        assertEquals(rows, read.mRows);
+        assertEquals(Arrays.asList(10000L, 20000L, 25000L), progress);
+    }
+}
@@ -0,0 +1,141 @@
+package com.mobilesw.homey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pages through a list of numbers; the cursor of an item is its index.
+ */
+public class HistoryPagerTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    private List<Integer> mData;
+    private List<Object[]> mPendingLoads; // after, callback
+    private List<Integer> mItems; // as shown by the RecyclerView, applying every change
+    private HistoryPager<Integer, Integer> mPager;
+
+    @Before
+    public void setUp() {
+        mData = new ArrayList<>();
+        for (int i = 0; i < 95; i++) {
+            mData.add(i);
+        }
+        mPendingLoads = new ArrayList<>();
+        mItems = new ArrayList<>();
+        mPager = new HistoryPager<>(new HistoryPager.Loader<Integer, Integer>() {
+            @Override
+            public void load(Integer after, int limit, HistoryPager.Callback<Integer, Integer> callback) {
+                mPendingLoads.add(new Object[]{after, callback});
+            }
+        }, PAGE_SIZE, 3, 2);
+        mPager.setListener(new HistoryPager.Listener<Integer>() {
+            @Override
+            public void onItemsChanged(int start, List<Integer> oldItems, List<Integer> newItems) {
+                mItems.subList(start, start + oldItems.size()).clear();
+                mItems.addAll(start, newItems);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                fail(error.getMessage());
+            }
+        });
+    }
+
+    @Test
+    public void loadsFirstPage() {
+        mPager.start();
+        mPager.start();
+        assertEquals(1, completeLoads());
+        assertEquals(PAGE_SIZE, mPager.getCount());
+        assertEquals(mData.subList(0, PAGE_SIZE), mItems);
+        assertEquals(Integer.valueOf(9), mPager.getEndCursor(0));
+    }
+
+    @Test
+    public void prefetchesNextPageNearTheEnd() {
+        mPager.start();
+        completeLoads();
+        mPager.onBind(5);
+        assertEquals(0, completeLoads());
+        mPager.onBind(7);
+        mPager.onBind(8); // already loading
+        assertEquals(1, completeLoads());
+        assertEquals(2 * PAGE_SIZE, mPager.getCount());
+        assertEquals(mData.subList(0, 2 * PAGE_SIZE), mItems);
+    }
+
+    @Test
+    public void stopsAtTheEnd() {
+        scrollToEnd();
+        assertTrue(mPager.isEnd());
+        assertEquals(95, mPager.getCount());
+        assertEquals(mData, mItems);
+        mPager.onBind(94);
+        assertEquals(0, completeLoads());
+    }
+
+    @Test
+    public void reloadsEvictedPages() {
+        scrollToEnd();
+        // only the head and the 2 most recently loaded pages are kept
+        assertEquals(Integer.valueOf(5), mPager.getItem(5));
+        assertEquals(Integer.valueOf(94), mPager.getItem(94));
+        assertNull(mPager.getItem(25));
+        assertNull(mPager.getItem(26));
+        assertEquals(1, completeLoads());
+        assertEquals(Integer.valueOf(25), mPager.getItem(25));
+        assertEquals(mData, mItems);
+    }
+
+    @Test
+    public void appliesHeadUpdates() {
+        mPager.start();
+        completeLoads();
+        mPager.onBind(9);
+        completeLoads();
+
+        List<Integer> head = new ArrayList<>(Arrays.asList(-2, -1));
+        head.addAll(mData.subList(0, PAGE_SIZE));
+        head.remove(Integer.valueOf(4));
+        mPager.setHead(head);
+
+        assertEquals(2 * PAGE_SIZE + 1, mPager.getCount());
+        assertEquals(Integer.valueOf(-2), mPager.getItem(0));
+        assertEquals(Integer.valueOf(10), mPager.getItem(11));
+        List<Integer> expected = new ArrayList<>(head);
+        expected.addAll(mData.subList(PAGE_SIZE, 2 * PAGE_SIZE));
+        assertEquals(expected, mItems);
+    }
+
+    private void scrollToEnd() {
+        mPager.start();
+        completeLoads();
+        while (!mPager.isEnd()) {
+            mPager.onBind(mPager.getCount() - 1);
+            completeLoads();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int completeLoads() {
+        int count = 0;
+        while (!mPendingLoads.isEmpty()) {
+            Object[] load = mPendingLoads.remove(0);
+            int from = load[0] == null ? 0 : (Integer) load[0] + 1;
+            List<Integer> page = new ArrayList<>(mData.subList(Math.min(from, mData.size()),
+                    Math.min(from + PAGE_SIZE, mData.size())));
+            ((HistoryPager.Callback<Integer, Integer>) load[1]).onLoaded(page,
+                    page.isEmpty() ? null : page.get(page.size() - 1));
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,163 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LogBatcherTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private ScheduledExecutorService mExecutor;
+    private BlockingQueue<Integer> mBatches; // size of each batch written
+    private BlockingQueue<String> mResults;
+    private Map<String, String> mDocuments; // stored documents by id, like the UserLogs collection
+    private volatile Exception mFailure;
+    private LogBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "userlogs.journal");
+        mBatches = new LinkedBlockingQueue<>();
+        mResults = new LinkedBlockingQueue<>();
+        mDocuments = new LinkedHashMap<>();
+        mBatcher = newBatcher();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void writesFullBatchWithoutWaiting() throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            mBatcher.add(log(i));
+        }
+        assertEquals(Integer.valueOf(50), mBatches.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals("written 50", mResults.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void writesPartialBatchAfterDelay() throws InterruptedException {
+        mBatcher.add(log(1));
+        mBatcher.add(log(2));
+        mBatcher.add(log(3));
+        assertNull(mBatches.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(3), mBatches.poll(500, TimeUnit.MILLISECONDS));
+        assertNull(mBatches.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flushWritesPendingLogs() throws InterruptedException {
+        mBatcher.add(log(1));
+        mBatcher.flush();
+        assertEquals(Integer.valueOf(1), mBatches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void splitsBurstIntoBatchesOfMaxSize() throws InterruptedException {
+        for (int i = 0; i < 120; i++) {
+            mBatcher.add(log(i));
+        }
+        mBatcher.flush();
+        int total = 0;
+        Integer size;
+        while ((size = mBatches.poll(400, TimeUnit.MILLISECONDS)) != null) {
+            assertTrue(size <= 50);
+            total += size;
+        }
+        assertEquals(120, total);
+        assertEquals(120, documents().size());
+    }
+
+    @Test
+    public void retriesFailedBatchAndStoresEachLogOnce() throws InterruptedException {
+        mFailure = new Exception("offline");
+        for (int i = 0; i < 5; i++) {
+            mBatcher.add(log(i));
+        }
+        mBatcher.flush();
+        assertEquals("failed 5: offline", mResults.poll(200, TimeUnit.MILLISECONDS));
+        mFailure = null;
+        mBatcher.add(log(5));
+        assertEquals("written 6", mResults.poll(2, TimeUnit.SECONDS));
+        List<String> stored = documents();
+        assertEquals(6, stored.size());
+        assertEquals("event 0", stored.get(0));
+        assertEquals("event 5", stored.get(5));
+    }
+
+    @Test
+    public void replaysJournalLeftByPreviousRun() throws InterruptedException {
+        mFailure = new Exception("offline");
+        mBatcher.add(log(1));
+        mBatcher.add(log(2));
+        mBatcher.flush();
+        assertEquals("failed 2: offline", mResults.poll(200, TimeUnit.MILLISECONDS));
+        mExecutor.shutdownNow(); // the app is closed
+
+        mFailure = null;
+        LogBatcher restarted = newBatcher();
+        restarted.start();
+        assertEquals("written 2", mResults.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, documents().size());
+    }
+
+    private LogBatcher newBatcher() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        LogBatcher batcher = new LogBatcher(new LogJournal(mFile), new LogBatcher.BatchWriter() {
+            @Override
+            public void write(List<LogJournal.Entry> entries, LogBatcher.Callback callback) {
+                mBatches.add(entries.size());
+                if (mFailure == null) {
+                    synchronized (mDocuments) {
+                        for (LogJournal.Entry entry : entries) {
+                            mDocuments.put(entry.getId(), "event " + entry.getLog().getTimestamp());
+                        }
+                    }
+                }
+                callback.onComplete(entries, mFailure);
+            }
+        }, mExecutor, 50, 200);
+        batcher.setListener(new LogBatcher.Listener() {
+            @Override
+            public void onBatchWritten(int count) {
+                mResults.add("written " + count);
+            }
+
+            @Override
+            public void onBatchFailed(int count, Exception error) {
+                mResults.add("failed " + count + ": " + error.getMessage());
+            }
+        });
+        return batcher;
+    }
+
+    private List<String> documents() {
+        synchronized (mDocuments) {
+            return new ArrayList<>(mDocuments.values());
+        }
+    }
+
+    private static UserLog log(int i) {
+        return new UserLog("user", i, LogEvent.Device.LIGHTS, LogEvent.Action.ON, LogEvent.Source.MANUAL);
+    }
+}
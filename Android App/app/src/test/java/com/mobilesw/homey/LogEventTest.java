@@ -0,0 +1,50 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogEventTest {
+
+    @Test
+    public void parsesDescriptions() {
+        assertEvent(LogEvent.Device.LIGHTS, LogEvent.Action.OFF, LogEvent.Source.AUTO,
+                "The lights have been automatically turned off");
+        assertEvent(LogEvent.Device.LIGHTS, LogEvent.Action.ON, LogEvent.Source.AUTO,
+                "The lights have been automatically turned on");
+        assertEvent(LogEvent.Device.FAN, LogEvent.Action.ON, LogEvent.Source.AUTO,
+                "The fan has been automatically turned on");
+        assertEvent(LogEvent.Device.FAN, LogEvent.Action.OFF, LogEvent.Source.AUTO,
+                "The fan has been automatically turned off");
+        assertEvent(LogEvent.Device.LIGHTS, LogEvent.Action.OFF, LogEvent.Source.MANUAL,
+                "The lights have been manually turned off");
+    }
+
+    @Test
+    public void rejectsOtherDescriptions() {
+        assertNull(LogEvent.parse(null));
+        assertNull(LogEvent.parse("The Button has been pressed"));
+        assertNull(LogEvent.parse("The fan has been cleaned"));
+    }
+
+    @Test
+    public void describedEventsAreParsedBack() {
+        for (LogEvent.Device device : LogEvent.Device.values()) {
+            for (LogEvent.Action action : LogEvent.Action.values()) {
+                for (LogEvent.Source source : LogEvent.Source.values()) {
+                    assertEvent(device, action, source, LogEvent.describe(device, action, source));
+                }
+            }
+        }
+        assertEquals("The fan has been manually turned on",
+                LogEvent.describe(LogEvent.Device.FAN, LogEvent.Action.ON, LogEvent.Source.MANUAL));
+    }
+
+    private static void assertEvent(LogEvent.Device device, LogEvent.Action action, LogEvent.Source source,
+                                    String description) {
+        LogEvent event = LogEvent.parse(description);
+        assertEquals(device, event.getDevice());
+        assertEquals(action, event.getAction());
+        assertEquals(source, event.getSource());
+    }
+}
@@ -0,0 +1,200 @@
+package com.mobilesw.homey;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class LogJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "userlogs.journal");
+    }
+
+    @Test
+    public void readsEntriesInOrder() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        assertEquals(1, journal.append(log(1)));
+        assertEquals(2, journal.append(log(2)));
+        assertEquals(3, journal.append(log(3)));
+
+        List<LogJournal.Entry> entries = journal.read(10);
+        assertEquals(3, entries.size());
+        assertEquals(LogEvent.Device.FAN, entries.get(0).getLog().getDevice());
+        assertEquals("user", entries.get(2).getLog().getUserID());
+        assertEquals(1577836800003L, entries.get(2).getLog().getTimestamp());
+        assertEquals(LogEvent.Action.ON, entries.get(2).getLog().getAction());
+        assertEquals(LogEvent.Source.AUTO, entries.get(2).getLog().getSource());
+        assertEquals("kitchen", entries.get(2).getLog().getDeviceId());
+        assertEquals(2, journal.read(2).size());
+    }
+
+    @Test
+    public void acknowledgedEntriesAreNotReadAgain() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        for (int i = 1; i <= 5; i++) {
+            journal.append(log(i));
+        }
+        List<LogJournal.Entry> first = journal.read(2);
+        journal.acknowledge(first.get(1));
+        List<LogJournal.Entry> rest = journal.read(10);
+        assertEquals(3, rest.size());
+        assertEquals(3, rest.get(0).getSequence());
+        assertEquals(3, journal.getPendingCount());
+    }
+
+    @Test
+    public void truncatesWhenEverythingIsAcknowledged() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        journal.append(log(1));
+        journal.append(log(2));
+        journal.acknowledge(journal.read(10).get(1));
+        assertEquals(0, mFile.length());
+        assertEquals(3, journal.append(log(3))); // sequence keeps growing
+    }
+
+    @Test
+    public void reopenedJournalKeepsPendingEntriesAndIds() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        journal.append(log(1));
+        journal.append(log(2));
+        journal.append(log(3));
+        journal.acknowledge(journal.read(1).get(0));
+        String id = journal.read(1).get(0).getId();
+        journal.close();
+
+        LogJournal reopened = new LogJournal(mFile);
+        List<LogJournal.Entry> entries = reopened.read(10);
+        assertEquals(2, entries.size());
+        assertEquals(id, entries.get(0).getId());
+        assertEquals(4, reopened.append(log(4)));
+    }
+
+    @Test
+    public void dropsRecordCutShortByCrash() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        journal.append(log(1));
+        journal.append(log(2));
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3); // last append interrupted
+        file.close();
+
+        LogJournal reopened = new LogJournal(mFile);
+        List<LogJournal.Entry> entries = reopened.read(10);
+        assertEquals(1, entries.size());
+        assertEquals(2, reopened.append(log(3)));
+        assertEquals(2, reopened.read(10).size());
+    }
+
+    @Test
+    public void dropsRecordWithBadChecksum() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        journal.append(log(1));
+        long firstEnd = mFile.length();
+        journal.append(log(2));
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(firstEnd + 20);
+        file.write('#');
+        file.close();
+
+        List<LogJournal.Entry> entries = new LogJournal(mFile).read(10);
+        assertEquals(1, entries.size());
+        assertEquals(1577836800001L, entries.get(0).getLog().getTimestamp());
+    }
+
+    @Test
+    public void readsRecordsOfTheFirstVersion() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(1);
+        out.writeUTF("user");
+        out.writeUTF("The fan has been manually turned off");
+        out.writeUTF("01/01/2020 00:00:00");
+        out.writeLong(1577836800000L);
+        writeRecord(bytes.toByteArray());
+
+        LogJournal journal = new LogJournal(mFile);
+        assertEquals(2, journal.append(log(2)));
+        List<LogJournal.Entry> entries = journal.read(10);
+        assertEquals(2, entries.size());
+        UserLog legacy = entries.get(0).getLog();
+        assertEquals(1577836800000L, legacy.getTimestamp());
+        assertEquals(LogEvent.Device.FAN, legacy.getDevice());
+        assertEquals(LogEvent.Action.OFF, legacy.getAction());
+        assertEquals(LogEvent.Source.MANUAL, legacy.getSource());
+        assertEquals(LogEvent.Device.LIGHTS, entries.get(1).getLog().getDevice());
+    }
+
+    @Test
+    public void readsRecordsOfTheSecondVersion() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeLong(1);
+        out.writeUTF("user");
+        out.writeLong(1577836800000L);
+        out.writeByte(LogEvent.Device.LIGHTS.getCode());
+        out.writeByte(LogEvent.Action.ON.getCode());
+        out.writeByte(LogEvent.Source.MANUAL.getCode());
+        writeRecord(bytes.toByteArray());
+
+        LogJournal journal = new LogJournal(mFile);
+        assertEquals(2, journal.append(log(2)));
+        List<LogJournal.Entry> entries = journal.read(10);
+        assertEquals(2, entries.size());
+        UserLog old = entries.get(0).getLog();
+        assertEquals(1577836800000L, old.getTimestamp());
+        assertEquals(LogEvent.Device.LIGHTS, old.getDevice());
+        assertEquals(LogEvent.Source.MANUAL, old.getSource());
+        assertNull(old.getDeviceId());
+        assertEquals("kitchen", entries.get(1).getLog().getDeviceId());
+    }
+
+    @Test
+    public void compactsLongAcknowledgedPrefix() throws IOException {
+        LogJournal journal = new LogJournal(mFile);
+        for (int i = 1; i <= 3000; i++) {
+            journal.append(log(i));
+        }
+        List<LogJournal.Entry> entries = journal.read(2999);
+        journal.acknowledge(entries.get(2998));
+        assertTrue(mFile.length() < 100);
+        List<LogJournal.Entry> rest = journal.read(10);
+        assertEquals(1, rest.size());
+        assertEquals(3000, rest.get(0).getSequence());
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream file = new DataOutputStream(new FileOutputStream(mFile));
+        file.writeInt(payload.length);
+        file.writeInt((int) crc.getValue());
+        file.write(payload);
+        file.close();
+    }
+
+    private static UserLog log(int i) {
+        return new UserLog("user", 1577836800000L + i, i % 2 == 1 ? LogEvent.Device.FAN : LogEvent.Device.LIGHTS,
+                LogEvent.Action.ON, LogEvent.Source.AUTO, "kitchen");
+    }
+}
@@ -0,0 +1,164 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link MessageReader} against a simulated device stream.
+ */
+public class MessageReaderTest {
+
+    private DeviceStream mDevice;
+    private BlockingQueue<String> mMessages;
+    private BlockingQueue<Long> mArrivals;
+    private MessageReader mReader;
+    private Thread mThread;
+
+    @Before
+    public void setUp() {
+        mDevice = new DeviceStream();
+        mMessages = new LinkedBlockingQueue<>();
+        mArrivals = new LinkedBlockingQueue<>();
+        mReader = new MessageReader(mDevice, new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mArrivals.add(System.nanoTime());
+                mMessages.add(new String(buffer, offset, length));
+            }
+        });
+        mThread = new Thread(mReader, "reader");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mReader.shutdown();
+        mThread.join(1000);
+    }
+
+    @Test
+    public void splitsMessagesSentTogether() throws InterruptedException {
+        mDevice.send("TH23 45*3C\n1L*7D\n0F*76\n");
+        assertEquals("TH23 45", mMessages.poll(1, TimeUnit.SECONDS));
+        assertEquals("1L", mMessages.poll(1, TimeUnit.SECONDS));
+        assertEquals("0F", mMessages.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void joinsMessageSplitAcrossReads() throws InterruptedException {
+        mDevice.send("1L*");
+        Thread.sleep(20);
+        mDevice.send("7D\n");
+        assertEquals("1L", mMessages.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void idleReaderUsesNoCpu() throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeCpuTime(threads);
+        Thread.sleep(50); // let the reader block
+        long before = threads.getThreadCpuTime(mThread.getId());
+        Thread.sleep(500);
+        long used = threads.getThreadCpuTime(mThread.getId()) - before;
+        assertTrue("idle reader used " + used / 1000000 + " ms of CPU", used < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void deliversMessagesWithinTenMillis() throws InterruptedException {
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            long sent = System.nanoTime();
+            mDevice.send(i % 2 == 0 ? "1L*7D\n" : "0L*7C\n");
+            Long arrived = mArrivals.poll(1, TimeUnit.SECONDS);
+            assertNotNull(arrived);
+            latencies.add(arrived - sent);
+            Thread.sleep(2);
+        }
+        Collections.sort(latencies);
+        long median = latencies.get(latencies.size() / 2);
+        assertTrue("median latency " + median / 1000 + " us", median < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void shutdownStopsBlockedReader() throws InterruptedException {
+        Thread.sleep(50);
+        mReader.shutdown();
+        mThread.join(1000);
+        assertFalse(mThread.isAlive());
+        assertFalse(mReader.isRunning());
+    }
+
+    private static void assumeCpuTime(ThreadMXBean threads) {
+        Assume.assumeTrue(threads.isThreadCpuTimeSupported());
+        threads.setThreadCpuTimeEnabled(true);
+    }
+
+    /**
+     * Input stream fed by the test, like the one of a connected RFCOMM socket:
+     * reads block until bytes arrive and closing it releases a blocked read.
+     */
+    static class DeviceStream extends InputStream {
+
+        private final byte[] mData = new byte[1024];
+        private int mLength = 0;
+        private boolean mClosed = false;
+
+        synchronized void send(String message) {
+            byte[] bytes = message.getBytes();
+            System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+            mLength += bytes.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0];
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (mLength == 0 && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (mClosed) {
+                throw new IOException("socket closed");
+            }
+            int n = Math.min(len, mLength);
+            System.arraycopy(mData, 0, b, off, n);
+            System.arraycopy(mData, n, mData, 0, mLength - n);
+            mLength -= n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mLength;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
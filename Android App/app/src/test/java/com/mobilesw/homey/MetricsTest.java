@@ -0,0 +1,81 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void countsIntoPowerOfTwoBuckets() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        for (long value : new long[]{-5, 0, 1, 2, 3, 4, 7, 8, 1000}) {
+            histogram.record(value);
+        }
+        assertEquals(9, histogram.getCount());
+        assertEquals(2, histogram.getBucketCount(0)); // below 1
+        assertEquals(1, histogram.getBucketCount(1)); // 1
+        assertEquals(2, histogram.getBucketCount(2)); // 2 and 3
+        assertEquals(2, histogram.getBucketCount(3)); // 4 to 7
+        assertEquals(1, histogram.getBucketCount(4)); // 8 to 15
+        assertEquals(1, histogram.getBucketCount(10)); // 512 to 1023
+        assertEquals(1025, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getBucketCount(Metrics.Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void boundsPercentilesByTheirBucket() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(63, histogram.getPercentile(50)); // 50 is in [32, 64)
+        assertEquals(100, histogram.getPercentile(99)); // capped by the maximum
+        assertEquals(50.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void countsFromSeveralThreads() throws InterruptedException {
+        final Metrics.Counter counter = new Metrics.Counter("bytes");
+        final Metrics.Histogram histogram = new Metrics.Histogram("latency");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.add(2);
+                        histogram.record(i % 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.get());
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99, histogram.getMax());
+    }
+
+    @Test
+    public void writesReport() {
+        Metrics.reset(); // the Firestore metrics are only recorded by LogBatcherTest
+        Metrics.BATCH_FAILURES.add(12);
+        Metrics.BATCH_WRITE.record(40);
+        Metrics.BATCH_WRITE.record(70);
+        String report = Metrics.report();
+        assertTrue(report, report.contains("firestore.batch_failures 12\n"));
+        assertTrue(report, report.contains("firestore.batch_write_ms count=2 mean=55.0 p50=63 p90=70 p99=70 max=70\n"
+                + "  <64 1\n  <128 1\n"));
+        for (Metrics.Counter counter : Metrics.getCounters()) {
+            assertTrue(counter.getName(), report.contains(counter.getName() + " "));
+        }
+        Metrics.reset();
+        assertTrue(Metrics.report().contains("firestore.batch_failures 0\n"));
+    }
+}
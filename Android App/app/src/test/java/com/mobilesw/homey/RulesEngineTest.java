@@ -0,0 +1,206 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.mobilesw.homey.AutomationRule.Sensor.*;
+import static org.junit.Assert.*;
+
+public class RulesEngineTest {
+
+    private static RulesEngine compile(String rules) {
+        return new RulesEngine(AutomationRule.parseAll(rules));
+    }
+
+    @Test
+    public void parsesRules() {
+        AutomationRule rule = AutomationRule.parse(
+                "fan when hot: temperature >= 25 and time 22:00-06:30 and no motion -> living room fan on");
+        assertEquals("fan when hot", rule.getName());
+        assertEquals("living room", rule.getDeviceId());
+        assertEquals("living room", rule.getSensorDeviceId());
+        assertEquals(AutomationRule.Action.FAN_ON, rule.getAction());
+        assertEquals(3, rule.getConditions().size());
+        AutomationRule.Condition time = rule.getConditions().get(1);
+        assertEquals(TIME_OF_DAY, time.getSensor());
+        assertTrue(time.matches(23 * 60));
+        assertTrue(time.matches(6 * 60 + 30));
+        assertFalse(time.matches(12 * 60));
+        assertEquals(rule.toString(), AutomationRule.parse(rule.toString()).toString());
+    }
+
+    @Test
+    public void parsesTrendAndFaultConditions() {
+        AutomationRule rule = AutomationRule.parse(
+                "drying: humidity trend < -5 and temperature trend >= 2 and no sensor fault -> HC-06 fan off");
+        AutomationRule.Condition humidity = rule.getConditions().get(0);
+        assertEquals(HUMIDITY_TREND, humidity.getSensor());
+        assertTrue(humidity.matches(-6));
+        assertFalse(humidity.matches(-5));
+        assertEquals(TEMPERATURE_TREND, rule.getConditions().get(1).getSensor());
+        assertEquals(SENSOR_FAULT, rule.getConditions().get(2).getSensor());
+        assertTrue(rule.getConditions().get(2).matches(0));
+        assertEquals("drying: humidity trend <= -6 and temperature trend >= 2 and no sensor fault -> HC-06 fan off",
+                rule.toString());
+        assertEquals(rule.toString(), AutomationRule.parse(rule.toString()).toString());
+    }
+
+    @Test
+    public void parsesTheDeviceOfTheConditions() {
+        AutomationRule rule = AutomationRule.parse(
+                "cool the bedroom: temperature >= 25 in kitchen -> bedroom fan on");
+        assertEquals("kitchen", rule.getSensorDeviceId());
+        assertEquals("bedroom", rule.getDeviceId());
+        assertEquals(1, rule.getConditions().size());
+        assertEquals(rule.toString(), AutomationRule.parse(rule.toString()).toString());
+        assertEquals("kitchen", AutomationRule.parse(rule.toString()).getSensorDeviceId());
+    }
+
+    @Test
+    public void rejectsMalformedRules() {
+        for (String rule : Arrays.asList("no colon -> HC-06 fan on", "hot: temperature >= 25",
+                "hot: pressure >= 25 -> HC-06 fan on", "hot: temperature ~ 25 -> HC-06 fan on",
+                "hot: temperature >= warm -> HC-06 fan on", "hot: time 25:00-06:00 -> HC-06 fan on",
+                "hot: temperature >= 25 -> HC-06 fan faster", "hot: temperature rate >= 2 -> HC-06 fan on",
+                "hot: temperature >= 25 in  -> HC-06 fan on")) {
+            try {
+                AutomationRule.parse(rule);
+                fail(rule);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void firesWhenTheConditionsStartToHold() {
+        RulesEngine engine = compile("hot: temperature >= 25 -> HC-06 fan on\n"
+                + "cool: temperature <= 20 -> HC-06 fan off\n");
+        engine.set(TEMPERATURE, 22);
+        assertEquals(0, engine.evaluate());
+        engine.set(TEMPERATURE, 26);
+        assertEquals(1, engine.evaluate());
+        assertEquals("hot", engine.getFired(0).getName());
+        engine.set(TEMPERATURE, 27); // still hot
+        assertEquals(0, engine.evaluate());
+        engine.set(TEMPERATURE, 19);
+        assertEquals(1, engine.evaluate());
+        assertEquals("cool", engine.getFired(0).getName());
+        engine.set(TEMPERATURE, 25);
+        assertEquals(1, engine.evaluate());
+        assertEquals("hot", engine.getFired(0).getName());
+    }
+
+    @Test
+    public void needsEveryCondition() {
+        RulesEngine engine = compile("night motion: motion and time 22:00-06:00 -> HC-06 lights on");
+        engine.set(MOTION, 1);
+        assertEquals(0, engine.evaluate()); // the time is unknown
+        engine.set(TIME_OF_DAY, 12 * 60);
+        assertEquals(0, engine.evaluate());
+        engine.set(TIME_OF_DAY, 23 * 60);
+        assertEquals(1, engine.evaluate());
+        engine.set(MOTION, 0);
+        engine.set(TIME_OF_DAY, 23 * 60 + 1);
+        assertEquals(0, engine.evaluate());
+        engine.set(MOTION, 1);
+        assertEquals(1, engine.evaluate());
+    }
+
+    @Test
+    public void doesNotFireOnHalfASample() {
+        RulesEngine engine = compile("muggy: temperature >= 25 and humidity >= 70 -> HC-06 fan on");
+        engine.set(TEMPERATURE, 20);
+        engine.set(HUMIDITY, 80);
+        assertEquals(0, engine.evaluate());
+        engine.set(TEMPERATURE, 26); // becomes hot while it stops being humid
+        engine.set(HUMIDITY, 60);
+        assertEquals(0, engine.evaluate());
+        engine.set(HUMIDITY, 70);
+        assertEquals(1, engine.evaluate());
+    }
+
+    @Test
+    public void reportsRulesInOrder() {
+        RulesEngine engine = compile("a: humidity >= 50 -> HC-06 fan off\n"
+                + "b: temperature >= 25 -> HC-06 fan on\n"
+                + "c: humidity >= 60 -> HC-06 lights on\n");
+        engine.set(TEMPERATURE, 30);
+        engine.set(HUMIDITY, 65);
+        assertEquals(3, engine.evaluate());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, engine.getFiredIndex(i));
+        }
+    }
+
+    @Test
+    public void matchesTheRulesOneByOne() {
+        Random random = new Random(42);
+        List<AutomationRule> rules = randomRules(random, 1000);
+        RulesEngine engine = new RulesEngine(rules);
+        boolean[] active = new boolean[rules.size()];
+        for (int sample = 0; sample < 2000; sample++) {
+            int[] values = {random.nextInt(40), random.nextInt(100), random.nextInt(2), random.nextInt(1440),
+                    random.nextInt(11) - 5, random.nextInt(21) - 10, random.nextInt(2)};
+            for (AutomationRule.Sensor sensor : AutomationRule.Sensor.values()) {
+                engine.set(sensor, values[sensor.ordinal()]);
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int r = 0; r < rules.size(); r++) {
+                boolean met = true;
+                for (AutomationRule.Condition condition : rules.get(r).getConditions()) {
+                    met &= condition.matches(values[condition.getSensor().ordinal()]);
+                }
+                if (met && !active[r]) {
+                    expected.add(r);
+                }
+                active[r] = met;
+            }
+            List<Integer> fired = new ArrayList<>();
+            for (int i = engine.evaluate() - 1; i >= 0; i--) {
+                fired.add(0, engine.getFiredIndex(i));
+            }
+            assertEquals(expected, fired);
+        }
+    }
+
+    /**
+     * Rules of 1 to 3 conditions over the sensors.
+     */
+    private static List<AutomationRule> randomRules(Random random, int count) {
+        List<AutomationRule> rules = new ArrayList<>();
+        AutomationRule.Action[] actions = AutomationRule.Action.values();
+        for (int r = 0; r < count; r++) {
+            List<AutomationRule.Condition> conditions = new ArrayList<>();
+            for (int c = random.nextInt(3); c >= 0; c--) {
+                switch (random.nextInt(6)) {
+                    case 0:
+                        conditions.add(AutomationRule.Condition.atLeast(TEMPERATURE, 10 + random.nextInt(25)));
+                        break;
+                    case 1:
+                        conditions.add(AutomationRule.Condition.atMost(HUMIDITY, 20 + random.nextInt(70)));
+                        break;
+                    case 2:
+                        conditions.add(new AutomationRule.Condition(MOTION, 1, 1));
+                        break;
+                    case 3:
+                        conditions.add(AutomationRule.Condition.atLeast(TEMPERATURE_TREND, random.nextInt(7) - 3));
+                        break;
+                    case 4:
+                        conditions.add(new AutomationRule.Condition(SENSOR_FAULT, 0, 0));
+                        break;
+                    default:
+                        conditions.add(new AutomationRule.Condition(TIME_OF_DAY, random.nextInt(1440),
+                                random.nextInt(1440)));
+                }
+            }
+            rules.add(new AutomationRule("rule " + r, conditions, "room " + random.nextInt(10),
+                    actions[random.nextInt(actions.length)]));
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,151 @@
+package com.mobilesw.homey;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleStoreTest {
+
+    private static final long SECOND = 1000;
+    private static final long DAY = 24 * 3600 * SECOND;
+    private static final long START = 1577836800000L; // 2020-01-01
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void scansRange() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 90 * DAY, 0);
+        store.append(START, 21, 40);
+        store.append(START + 5 * SECOND, -3, 41);
+        store.append(START + 10 * SECOND, 1000, 0);
+        store.append(START + DAY, 22, 99);
+
+        assertEquals("[" + (START + 5 * SECOND) + " -3 41, " + (START + 10 * SECOND) + " 1000 0]",
+                scan(store, START + 1, START + DAY).toString());
+        assertEquals(4, scan(store, 0, Long.MAX_VALUE).size());
+        assertEquals(0, scan(store, START + DAY + 1, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void keepsSamplesAcrossReopen() throws IOException {
+        File dir = mFolder.getRoot();
+        SampleStore store = new SampleStore(dir, 90 * DAY, 16);
+        for (int i = 0; i < 100; i++) {
+            store.append(START + i * 5 * SECOND, 20 + i % 7, 40 - i % 5);
+        }
+        store.close();
+
+        store = new SampleStore(dir, 90 * DAY, 16);
+        assertEquals(START + 99 * 5 * SECOND, store.getLastTime());
+        for (int i = 100; i < 200; i++) {
+            store.append(START + i * 5 * SECOND, 20 + i % 7, 40 - i % 5);
+        }
+        List<String> samples = scan(store, 0, Long.MAX_VALUE);
+        assertEquals(200, samples.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals((START + i * 5 * SECOND) + " " + (20 + i % 7) + " " + (40 - i % 5), samples.get(i));
+        }
+    }
+
+    @Test
+    public void hotSamplesMatchTheSegments() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 90 * DAY, 100);
+        for (int i = 0; i < 1000; i++) {
+            store.append(START + i * SECOND, i % 30, i % 100);
+        }
+        SampleStore cold = new SampleStore(mFolder.newFolder(), 90 * DAY, 0);
+        for (int i = 0; i < 1000; i++) {
+            cold.append(START + i * SECOND, i % 30, i % 100);
+        }
+        long from = START + 950 * SECOND;
+        assertEquals(scan(cold, from, START + 990 * SECOND), scan(store, from, START + 990 * SECOND));
+        assertEquals(50, scan(store, from, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void ignoresClockGoingBack() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 90 * DAY, 0);
+        store.append(START + 10 * SECOND, 20, 40);
+        store.append(START, 21, 41);
+        assertEquals("[" + (START + 10 * SECOND) + " 20 40, " + (START + 10 * SECOND) + " 21 41]",
+                scan(store, 0, Long.MAX_VALUE).toString());
+    }
+
+    @Test
+    public void appendsOnlyNewerSamplesIfAsked() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 90 * DAY, 0);
+        store.append(START + 10 * SECOND, 20, 40);
+        assertFalse(store.appendIfNewer(START, 21, 41));
+        assertFalse(store.appendIfNewer(START + 10 * SECOND, 21, 41));
+        assertTrue(store.appendIfNewer(START + 15 * SECOND, 22, 42));
+        assertEquals("[" + (START + 10 * SECOND) + " 20 40, " + (START + 15 * SECOND) + " 22 42]",
+                scan(store, 0, Long.MAX_VALUE).toString());
+    }
+
+    @Test
+    public void deletesSegmentsOlderThanRetention() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 3 * DAY, 0);
+        long last = 0;
+        for (long time = START; time < START + 20 * DAY; time += 5 * SECOND) {
+            store.append(time, 20, 40);
+            last = time;
+        }
+        final long[] oldest = {Long.MAX_VALUE};
+        store.scan(0, Long.MAX_VALUE, new SampleStore.Visitor() {
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) {
+                oldest[0] = Math.min(oldest[0], timeMillis);
+            }
+        });
+        assertTrue(oldest[0] >= last - 5 * DAY);
+        assertTrue(oldest[0] <= last - 3 * DAY);
+        assertEquals(store.getSegmentCount(), mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void monthOfSamplesIsCompactAndScansByDay() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), 90 * DAY, 4096);
+        int temperature = 22;
+        int humidity = 40;
+        long end = START + 30 * DAY;
+        for (long time = START; time < end; time += 5 * SECOND) {
+            temperature += (int) (time / 5000 % 3) - 1; // slow drift
+            humidity += (int) (time / 15000 % 3) - 1;
+            store.append(time, temperature, humidity);
+        }
+        assertTrue("size " + store.getSize(), store.getSize() < 3 * 1024 * 1024);
+
+        final long[] last = {Long.MIN_VALUE};
+        SampleStore.Visitor visitor = new SampleStore.Visitor() {
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) {
+                assertTrue(timeMillis > last[0]);
+                last[0] = timeMillis;
+            }
+        };
+        // the time of a scan is measured by SampleStoreBenchmark
+        assertEquals(30 * 17280, store.scan(START, end, visitor));
+        last[0] = Long.MIN_VALUE;
+        assertEquals(17280, store.scan(START + 10 * DAY, START + 11 * DAY, visitor));
+        assertEquals(START + 11 * DAY - 5 * SECOND, last[0]);
+    }
+
+    private static List<String> scan(SampleStore store, long from, long to) throws IOException {
+        final List<String> samples = new ArrayList<>();
+        store.scan(from, to, new SampleStore.Visitor() {
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) {
+                samples.add(timeMillis + " " + temperature + " " + humidity);
+            }
+        });
+        return samples;
+    }
+}
@@ -0,0 +1,123 @@
+package com.mobilesw.homey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the reading pipeline (MessageReader, FrameDecoder, TelemetryParser)
+ * against the simulated Arduino.
+ */
+public class SimulatedDeviceTest {
+
+    private SimulatedDevice mDevice;
+    private MessageReader mReader;
+    private Thread mThread;
+    private BlockingQueue<String> mMessages;
+
+    @Before
+    public void setUp() throws IOException {
+        mDevice = new SimulatedDevice("simulated", 42);
+        mDevice.setTelemetryIntervalMillis(60000);
+        mDevice.connect();
+        mMessages = new LinkedBlockingQueue<>();
+        final TelemetryParser parser = new TelemetryParser();
+        mReader = new MessageReader(mDevice.getInputStream(), new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                int type = parser.parse(buffer, offset, length);
+                if (type == TelemetryParser.TEMP_AND_HUMIDITY) {
+                    mMessages.add(parser.getTemperature() + " " + parser.getHumidity());
+                } else {
+                    mMessages.add(new String(buffer, offset, length));
+                }
+            }
+        });
+        mThread = new Thread(mReader, "reader");
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mReader.shutdown();
+        mDevice.close();
+        mThread.join(1000);
+    }
+
+    @Test
+    public void answersConnectedWithTelemetry() throws Exception {
+        mDevice.setTemperature(21);
+        mDevice.setHumidity(55);
+        command(SimulatedDevice.CONNECTED);
+        assertEquals("21 55", mMessages.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void turnsLightsOnWithMotionAndOffAfterInterval() throws Exception {
+        mDevice.setLightsAutoIntervalMillis(100);
+        mDevice.setMotion(true);
+        assertEquals("1L", mMessages.poll(1, TimeUnit.SECONDS));
+        assertTrue(mDevice.isLightsOn());
+        mDevice.setMotion(false);
+        assertEquals("0L", mMessages.poll(1, TimeUnit.SECONDS));
+        assertFalse(mDevice.isLightsOn());
+    }
+
+    @Test
+    public void turnsFanOnAboveThreshold() throws Exception {
+        mDevice.setTelemetryIntervalMillis(20);
+        mDevice.setTemperature(SimulatedDevice.TEMP_THRESHOLD_MAX + 2);
+        String message;
+        do {
+            message = mMessages.poll(1, TimeUnit.SECONDS);
+        } while (message != null && !message.equals("1F"));
+        assertEquals("1F", message);
+        assertTrue(mDevice.isFanOn());
+    }
+
+    @Test
+    public void appliesCommands() throws Exception {
+        command(SimulatedDevice.LIGHTS_ON);
+        command(SimulatedDevice.FAN_ON);
+        waitForCommands(2);
+        assertTrue(mDevice.isLightsOn());
+        assertTrue(mDevice.isFanOn());
+        command(SimulatedDevice.NO_AUTO_LIGHTS_FAN);
+        command(SimulatedDevice.LIGHTS_OFF);
+        waitForCommands(4);
+        assertFalse(mDevice.isLightsOn());
+    }
+
+    @Test
+    public void decodesEveryMessageUnderLoadWithSplitPackets() throws Exception {
+        mDevice.setChunkSize(3);
+        mDevice.setJitterMillis(1);
+        mDevice.setTelemetryIntervalMillis(1);
+        Thread.sleep(500);
+        mDevice.setTelemetryIntervalMillis(60000);
+        Thread.sleep(50);
+        long sent = mDevice.getMessagesSent();
+        assertTrue(sent > 50);
+        assertEquals(sent, mReader.getDecoder().getFrameCount());
+        assertEquals(0, mReader.getDecoder().getRejectedCount());
+    }
+
+    private void command(char command) throws IOException {
+        mDevice.getOutputStream().write(FrameEncoder.encode(String.valueOf(command)));
+    }
+
+    private void waitForCommands(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mDevice.getCommandsReceived() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, mDevice.getCommandsReceived());
+    }
+}
@@ -0,0 +1,65 @@
+package com.mobilesw.homey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TelemetryParserTest {
+
+    private TelemetryParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new TelemetryParser();
+    }
+
+    @Test
+    public void parsesTemperatureAndHumidity() {
+        assertEquals(TelemetryParser.TEMP_AND_HUMIDITY, parse("TH23 45"));
+        assertEquals(23, mParser.getTemperature());
+        assertEquals(45, mParser.getHumidity());
+
+        assertEquals(TelemetryParser.TEMP_AND_HUMIDITY, parse("TH-5  100"));
+        assertEquals(-5, mParser.getTemperature());
+        assertEquals(100, mParser.getHumidity());
+    }
+
+    @Test
+    public void parsesEventTags() {
+        assertEquals(TelemetryParser.AUTO_LIGHTS_OFF, parse("0L"));
+        assertEquals(TelemetryParser.AUTO_LIGHTS_ON, parse("1L"));
+        assertEquals(TelemetryParser.AUTO_FAN_OFF, parse("0F"));
+        assertEquals(TelemetryParser.AUTO_FAN_ON, parse("1F"));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] malformed = {"", "T", "TH", "TH23", "TH23 ", "TH 45", "TH23 4x", "THab cd",
+                "TH23 45 67", "TH23x45", "TH123456 1", "2L", "1X", "1LL", "XX23 45"};
+        for (String payload : malformed) {
+            assertEquals(payload, TelemetryParser.INVALID, parse(payload));
+        }
+    }
+
+    @Test
+    public void keepsLastValuesOnRejectedInput() {
+        parse("TH23 45");
+        parse("TH99 4x");
+        assertEquals(23, mParser.getTemperature());
+        assertEquals(45, mParser.getHumidity());
+    }
+
+    @Test
+    public void parsesInsideLargerBuffer() {
+        byte[] buffer = "xxTH21 60*yy".getBytes();
+        assertEquals(TelemetryParser.TEMP_AND_HUMIDITY, mParser.parse(buffer, 2, 7));
+        assertEquals(21, mParser.getTemperature());
+        assertEquals(60, mParser.getHumidity());
+    }
+
+    private int parse(String payload) {
+        byte[] bytes = payload.getBytes();
+        return mParser.parse(bytes, 0, bytes.length);
+    }
+}
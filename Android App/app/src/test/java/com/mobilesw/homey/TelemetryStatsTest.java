@@ -0,0 +1,77 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import static com.mobilesw.homey.TelemetryStats.Measure.*;
+import static com.mobilesw.homey.TelemetryStats.Window.*;
+import static org.junit.Assert.*;
+
+public class TelemetryStatsTest {
+
+    private static final long SECOND = 1000;
+    private static final long HOUR_MILLIS = 3600 * SECOND;
+    private static final long START = 1577836800000L; // 2020-01-01
+
+    @Test
+    public void keepsEveryWindow() {
+        TelemetryStats stats = new TelemetryStats();
+        for (long t = 0; t < 24 * HOUR_MILLIS; t += 5 * SECOND) {
+            stats.add(START + t, 15 + (int) (t / HOUR_MILLIS) % 10, 40 + (int) (t / (10 * SECOND)) % 3);
+        }
+        TelemetryStats.Snapshot snapshot = stats.getSnapshot();
+        assertEquals(12, snapshot.get(TEMPERATURE, MINUTE).getCount());
+        assertEquals(720, snapshot.get(TEMPERATURE, HOUR).getCount());
+        assertEquals(17280, snapshot.get(TEMPERATURE, DAY).getCount());
+        assertEquals(18, snapshot.get(TEMPERATURE, HOUR).getMin());
+        assertEquals(15, snapshot.get(TEMPERATURE, DAY).getMin());
+        assertEquals(24, snapshot.get(TEMPERATURE, DAY).getMax());
+        assertEquals(40, snapshot.get(HUMIDITY, MINUTE).getMin());
+        assertEquals(42, snapshot.get(HUMIDITY, MINUTE).getMax());
+        assertEquals(0, snapshot.getAnomalies());
+        assertSame(snapshot, stats.getSnapshot());
+    }
+
+    @Test
+    public void isEmptyWithoutReadings() {
+        assertEquals(0, TelemetryStats.Snapshot.EMPTY.get(HUMIDITY, DAY).getCount());
+        assertEquals(0, TelemetryStats.Snapshot.EMPTY.getAnomalies());
+    }
+
+    @Test
+    public void detectsStuckReadings() {
+        TelemetryStats stats = new TelemetryStats();
+        long t = 0;
+        for (; t < TelemetryStats.STUCK_MILLIS; t += 5 * SECOND) {
+            stats.add(START + t, 22, 45);
+            assertFalse(stats.getSnapshot().hasAnomaly(TelemetryStats.STUCK));
+        }
+        stats.add(START + t, 22, 45);
+        assertTrue(stats.getSnapshot().hasAnomaly(TelemetryStats.STUCK));
+        stats.add(START + t + 5 * SECOND, 22, 46);
+        assertFalse(stats.getSnapshot().hasAnomaly(TelemetryStats.STUCK));
+    }
+
+    @Test
+    public void doesNotTakeAPauseForStuckReadings() {
+        TelemetryStats stats = new TelemetryStats();
+        stats.add(START, 22, 45);
+        stats.add(START + 3 * HOUR_MILLIS, 22, 45); // off meanwhile
+        assertEquals(0, stats.getAnomalies());
+    }
+
+    @Test
+    public void detectsSpikes() {
+        TelemetryStats stats = new TelemetryStats();
+        long t = 0;
+        for (; t < HOUR_MILLIS; t += 5 * SECOND) {
+            stats.add(START + t, 22 + (int) (t / (5 * SECOND)) % 2, 45 + (int) (t / (5 * SECOND)) % 3);
+            assertEquals(0, stats.getAnomalies());
+        }
+        stats.add(START + t, 30, 46);
+        assertEquals(TelemetryStats.TEMPERATURE_SPIKE, stats.getAnomalies());
+        stats.add(START + t + 5 * SECOND, 23, 10);
+        assertEquals(TelemetryStats.HUMIDITY_SPIKE, stats.getAnomalies());
+        stats.add(START + t + 10 * SECOND, 26, 55); // within the usual variation of the DHT11
+        assertEquals(0, stats.getAnomalies());
+    }
+}
@@ -0,0 +1,37 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+
+import static org.junit.Assert.*;
+
+public class UserLogTest {
+
+    @Test
+    public void readsLegacyLogs() throws Exception {
+        UserLog log = UserLog.fromLegacy("user", "The lights have been automatically turned on",
+                "02/01/2020 10:30:00", 0);
+        assertEquals("user", log.getUserID());
+        assertEquals(new SimpleDateFormat(UserLog.LEGACY_DATE_FORMAT).parse("02/01/2020 10:30:00").getTime(),
+                log.getTimestamp());
+        assertEquals(LogEvent.Device.LIGHTS, log.getDevice());
+        assertEquals(LogEvent.Action.ON, log.getAction());
+        assertEquals(LogEvent.Source.AUTO, log.getSource());
+    }
+
+    @Test
+    public void prefersTheTimestampOfLegacyLogs() {
+        UserLog log = UserLog.fromLegacy("user", "The fan has been manually turned off", "not a date", 42);
+        assertEquals(42, log.getTimestamp());
+        assertEquals(LogEvent.Source.MANUAL, log.getSource());
+    }
+
+    @Test
+    public void keepsUnknownLegacyLogs() {
+        UserLog log = UserLog.fromLegacy("user", "The Button has been pressed", "bad", 0);
+        assertEquals(0, log.getTimestamp());
+        assertNull(log.getDevice());
+        assertEquals("Unknown event", LogEvent.describe(log.getDevice(), log.getAction(), log.getSource()));
+    }
+}
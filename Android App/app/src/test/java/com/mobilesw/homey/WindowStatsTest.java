@@ -0,0 +1,109 @@
+package com.mobilesw.homey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WindowStatsTest {
+
+    private static final long SECOND = 1000;
+    private static final long HOUR = 3600 * SECOND;
+    private static final long START = 1577836800000L; // 2020-01-01
+
+    @Test
+    public void isEmptyWithoutReadings() {
+        WindowStats stats = new WindowStats(HOUR, 60);
+        assertEquals(0, stats.getCount());
+        assertEquals(Integer.MAX_VALUE, stats.getMin());
+        assertEquals(Integer.MIN_VALUE, stats.getMax());
+        assertEquals(0, stats.getMean(), 0);
+        assertEquals(0, stats.getRatePerHour(), 0);
+    }
+
+    @Test
+    public void matchesTheReadingsOfTheWindow() {
+        Random random = new Random(42);
+        long window = 10 * 60 * SECOND;
+        long bucket = window / 60;
+        WindowStats stats = new WindowStats(window, 60);
+        List<long[]> readings = new ArrayList<>();
+        long time = START;
+        int value = 20;
+        for (int i = 0; i < 20000; i++) {
+            // mostly every few seconds, sometimes a pause longer than the window
+            time += random.nextInt(100) == 0 ? random.nextInt((int) (2 * window)) : random.nextInt(5000);
+            value += random.nextInt(5) - 2;
+            stats.add(time, value);
+            readings.add(new long[]{time, value});
+
+            long start = (time / bucket - 59) * bucket;
+            int count = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (long[] reading : readings) {
+                if (reading[0] >= start) {
+                    count++;
+                    min = Math.min(min, (int) reading[1]);
+                    max = Math.max(max, (int) reading[1]);
+                    sum += reading[1];
+                    sumOfSquares += reading[1] * reading[1];
+                }
+            }
+            String at = "reading " + i;
+            assertEquals(at, count, stats.getCount());
+            assertEquals(at, min, stats.getMin());
+            assertEquals(at, max, stats.getMax());
+            assertEquals(at, sum / count, stats.getMean(), 1e-9);
+            double mean = sum / count;
+            assertEquals(at, Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean)),
+                    stats.getStandardDeviation(), 1e-6);
+            if (readings.size() > 1000) {
+                readings.subList(0, 500).clear(); // older than the window already
+            }
+        }
+    }
+
+    @Test
+    public void measuresTheRateOfChange() {
+        WindowStats stats = new WindowStats(HOUR, 60);
+        // 3 per hour for 2 hours, then falling by 6 per hour, for a month to lose no precision
+        for (long t = 0; t <= 30 * 24 * HOUR; t += 5 * SECOND) {
+            double hours = (double) t / HOUR;
+            stats.add(START + t, (int) Math.round(t < 2 * HOUR ? 3 * hours : 6 - 6 * (hours - 2)));
+            if (t == 2 * HOUR - 5 * SECOND) {
+                assertEquals(3, stats.getRatePerHour(), 0.25); // of the rounding of the readings
+            }
+        }
+        assertEquals(-6, stats.getRatePerHour(), 0.25);
+    }
+
+    @Test
+    public void averagesOverAboutTheWindow() {
+        WindowStats stats = new WindowStats(HOUR, 60);
+        stats.add(START, 20);
+        assertEquals(20, stats.getEwma(), 0);
+        for (long t = 5 * SECOND; t <= HOUR; t += 5 * SECOND) {
+            stats.add(START + t, 30);
+        }
+        // 1 - 1/e of the step after a window, whatever the spacing of the readings
+        assertEquals(20 + 10 * (1 - Math.exp(-1)), stats.getEwma(), 0.01);
+        stats.add(START + 10 * HOUR, 10);
+        assertEquals(10, stats.getEwma(), 0.01);
+    }
+
+    @Test
+    public void countsLateReadingsAtTheLatestTime() {
+        WindowStats stats = new WindowStats(HOUR, 60);
+        stats.add(START + HOUR, 20);
+        stats.add(START, 25); // the clock went back
+        assertEquals(2, stats.getCount());
+        assertEquals(25, stats.getMax());
+        assertEquals(0, stats.getRatePerHour(), 0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a command to the simulated Arduino through the ConnectionManager
+ * and waiting for its acknowledgement. The round trips should stay well
+ * under 100 ms, the simulated link has no latency of its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandRoundTripBenchmark {
+
+    private SimulatedDevice mDevice;
+    private ScheduledExecutorService mExecutor;
+    private ConnectionManager mManager;
+    private final BlockingQueue<String> mAcknowledged = new LinkedBlockingQueue<>();
+    private boolean mOn = false;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        mDevice = new SimulatedDevice("simulated", 42);
+        mDevice.setTelemetryIntervalMillis(60000);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mManager = new ConnectionManager(mDevice, new ConnectionManager.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void onStateChanged(ConnectionManager.State state) {
+            }
+
+            @Override
+            public void onCommandAcknowledged(CommandQueue.Command command, long roundTripMillis) {
+                mAcknowledged.add(command.getCommand());
+            }
+
+            @Override
+            public void onCommandFailed(CommandQueue.Command command) {
+                mAcknowledged.add(command.getCommand());
+            }
+        }, mExecutor);
+        mManager.start();
+        mAcknowledged.take(); // the handshake
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mManager.stop();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        mDevice.close();
+    }
+
+    @Benchmark
+    public String roundTrip() throws InterruptedException {
+        mOn = !mOn;
+        mManager.send(String.valueOf(mOn ? SimulatedDevice.FAN_ON : SimulatedDevice.FAN_OFF),
+                CommandQueue.Priority.MANUAL);
+        return mAcknowledged.take();
+    }
+}
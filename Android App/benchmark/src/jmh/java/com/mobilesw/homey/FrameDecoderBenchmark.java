@@ -0,0 +1,63 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Decoding of the bytes read by ConnectedThread into frames, with the stream
+ * delivered in reads of different sizes.
+ */
+@State(Scope.Thread)
+public class FrameDecoderBenchmark {
+
+    static final String[] PAYLOADS = {"TH23 45", "1L", "TH23 46", "0L", "TH24 46", "1F", "TH22 44", "0F"};
+
+    /**
+     * Bytes per read; 0 reads the whole stream at once.
+     */
+    @Param({"0", "16", "3"})
+    public int readSize;
+
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+    private int mSum;
+
+    @Setup
+    public void setUp() {
+        mStream = stream(PAYLOADS, 8);
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mSum += buffer[offset] + length;
+            }
+        });
+    }
+
+    /**
+     * Decodes 64 frames.
+     */
+    @Benchmark
+    public int decode() {
+        int chunk = readSize == 0 ? mStream.length : readSize;
+        for (int offset = 0; offset < mStream.length; offset += chunk) {
+            mDecoder.feed(mStream, offset, Math.min(chunk, mStream.length - offset));
+        }
+        return mSum;
+    }
+
+    static byte[] stream(String[] payloads, int repeat) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < repeat; i++) {
+            for (String payload : payloads) {
+                byte[] frame = FrameEncoder.encode(payload);
+                stream.write(frame, 0, frame.length);
+            }
+        }
+        return stream.toByteArray();
+    }
+}
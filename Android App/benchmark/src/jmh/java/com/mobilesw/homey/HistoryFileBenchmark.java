@@ -0,0 +1,99 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting and importing a million rows, a sample every 5 seconds (two
+ * months) with a log every 100 samples, through a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HistoryFileBenchmark {
+
+    private static final int ROWS = 1000000;
+    private static final long START = 1577836800000L;
+
+    @Param({"CSV", "BINARY"})
+    public HistoryFile.Format format;
+
+    private File mFile;
+    private final UserLog[] mLogs = new UserLog[2];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = Files.createTempFile("history", "." + format.getExtension()).toFile();
+        mLogs[0] = new UserLog("kq3Zc0fPm2TgW8sYhN1uXbR5aLd2", 0, LogEvent.Device.FAN, LogEvent.Action.ON,
+                LogEvent.Source.AUTO);
+        mLogs[1] = new UserLog("kq3Zc0fPm2TgW8sYhN1uXbR5aLd2", 0, LogEvent.Device.FAN, LogEvent.Action.OFF,
+                LogEvent.Source.MANUAL);
+        export();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        FileChannel channel = new FileOutputStream(mFile).getChannel();
+        try {
+            HistoryFile.Writer writer = new HistoryFile.Writer(channel, format, null);
+            int temperature = 22;
+            for (int i = 0; i < ROWS; i++) {
+                long time = START + i * 5000L;
+                if (i % 100 == 0) {
+                    UserLog log = mLogs[i / 100 % 2];
+                    writer.writeLog("0123456789abcdefghij" + i, new UserLog(log.getUserID(), time, log.getDevice(),
+                            log.getAction(), log.getSource()));
+                } else {
+                    temperature += i % 3 - 1;
+                    writer.writeSample(time, temperature, 40 + i % 7);
+                }
+            }
+            writer.close();
+            return writer.getBytes();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public long read(final Blackhole blackhole) throws IOException {
+        FileChannel channel = new FileInputStream(mFile).getChannel();
+        try {
+            return HistoryFile.read(channel, new HistoryFile.Visitor() {
+                @Override
+                public void onLog(String id, UserLog log) {
+                    blackhole.consume(log);
+                }
+
+                @Override
+                public void onSample(long timeMillis, int temperature, int humidity) {
+                    blackhole.consume(timeMillis + temperature + humidity);
+                }
+            }, null);
+        } finally {
+            channel.close();
+        }
+    }
+}
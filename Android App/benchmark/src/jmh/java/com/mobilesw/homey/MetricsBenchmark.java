@@ -0,0 +1,44 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of recording an event, which must stay under 50 ns: alone, and from
+ * the reader and writer threads of several connections at once.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics.Counter mCounter = new Metrics.Counter("bytes");
+    private final Metrics.Histogram mHistogram = new Metrics.Histogram("latency");
+
+    @State(Scope.Thread)
+    public static class Values {
+        long mValue = 0;
+    }
+
+    @Benchmark
+    public void count() {
+        mCounter.add(7);
+    }
+
+    @Benchmark
+    public void record(Values values) {
+        mHistogram.record(values.mValue++ & 1023);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void countContended() {
+        mCounter.add(7);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Values values) {
+        mHistogram.record(values.mValue++ & 1023);
+    }
+}
@@ -0,0 +1,78 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The whole path from the bytes read by ConnectedThread to the state changes
+ * applied by the handler: decoding, parsing, tag dispatch and the creation of a
+ * {@link UserLog} for every automatic event.
+ */
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+    private final TelemetryParser mParser = new TelemetryParser();
+    private Blackhole mBlackhole;
+
+    // state applied by the handler
+    private int mTemperature;
+    private int mHumidity;
+    private boolean mLightsOn;
+    private boolean mFanOn;
+
+    @Setup
+    public void setUp() {
+        mStream = FrameDecoderBenchmark.stream(FrameDecoderBenchmark.PAYLOADS, 1);
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                handle(mParser.parse(buffer, offset, length));
+            }
+        });
+    }
+
+    /**
+     * Handles 8 messages, 4 of them events that are logged.
+     */
+    @Benchmark
+    public void readAndHandle(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mDecoder.feed(mStream, 0, mStream.length);
+        blackhole.consume(mTemperature + mHumidity);
+    }
+
+    @Benchmark
+    public UserLog createUserLog() {
+        return new UserLog("uid", System.currentTimeMillis(), LogEvent.Device.LIGHTS, LogEvent.Action.ON,
+                LogEvent.Source.AUTO);
+    }
+
+    private void handle(int type) {
+        switch (type) {
+            case TelemetryParser.TEMP_AND_HUMIDITY:
+                mTemperature = mParser.getTemperature();
+                mHumidity = mParser.getHumidity();
+                return;
+            case TelemetryParser.AUTO_LIGHTS_ON:
+                mLightsOn = true;
+                break;
+            case TelemetryParser.AUTO_LIGHTS_OFF:
+                mLightsOn = false;
+                break;
+            case TelemetryParser.AUTO_FAN_ON:
+                mFanOn = true;
+                break;
+            case TelemetryParser.AUTO_FAN_OFF:
+                mFanOn = false;
+                break;
+            default:
+                return;
+        }
+        mBlackhole.consume(createUserLog());
+    }
+}
@@ -0,0 +1,92 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Evaluating the automation rules on a sample of temperature & humidity,
+ * compared with checking every condition of every rule.
+ */
+@State(Scope.Thread)
+public class RulesEngineBenchmark {
+
+    private static final int SAMPLES = 1024; // precomputed, a slow random walk like the DHT11
+
+    @Param({"10", "100", "1000"})
+    public int rules;
+
+    private List<AutomationRule> mRules;
+    private RulesEngine mEngine;
+    private boolean[] mActive;
+    private final int[] mTemperatures = new int[SAMPLES];
+    private final int[] mHumidities = new int[SAMPLES];
+    private int mSample = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        mRules = new ArrayList<>();
+        AutomationRule.Action[] actions = AutomationRule.Action.values();
+        for (int r = 0; r < rules; r++) {
+            List<AutomationRule.Condition> conditions = new ArrayList<>();
+            conditions.add(random.nextBoolean()
+                    ? AutomationRule.Condition.atLeast(AutomationRule.Sensor.TEMPERATURE, 15 + random.nextInt(15))
+                    : AutomationRule.Condition.atMost(AutomationRule.Sensor.HUMIDITY, 30 + random.nextInt(40)));
+            if (random.nextBoolean()) {
+                conditions.add(new AutomationRule.Condition(AutomationRule.Sensor.TIME_OF_DAY,
+                        random.nextInt(1440), random.nextInt(1440)));
+            }
+            mRules.add(new AutomationRule("rule " + r, conditions, "room " + random.nextInt(10),
+                    actions[random.nextInt(actions.length)]));
+        }
+        mEngine = new RulesEngine(mRules);
+        mEngine.set(AutomationRule.Sensor.TIME_OF_DAY, 12 * 60);
+        mEngine.set(AutomationRule.Sensor.MOTION, 0);
+        mActive = new boolean[rules];
+        int temperature = 22;
+        int humidity = 50;
+        for (int i = 0; i < SAMPLES; i++) {
+            temperature = Math.max(10, Math.min(35, temperature + random.nextInt(3) - 1));
+            humidity = Math.max(20, Math.min(80, humidity + random.nextInt(3) - 1));
+            mTemperatures[i] = temperature;
+            mHumidities[i] = humidity;
+        }
+    }
+
+    @Benchmark
+    public int evaluate() {
+        int i = mSample++ & (SAMPLES - 1);
+        mEngine.set(AutomationRule.Sensor.TEMPERATURE, mTemperatures[i]);
+        mEngine.set(AutomationRule.Sensor.HUMIDITY, mHumidities[i]);
+        return mEngine.evaluate();
+    }
+
+    /**
+     * Every condition of every rule on every sample, as the rules would be checked by hand.
+     */
+    @Benchmark
+    public int evaluateEveryRule() {
+        int i = mSample++ & (SAMPLES - 1);
+        int[] values = {mTemperatures[i], mHumidities[i], 0, 12 * 60};
+        int fired = 0;
+        for (int r = 0; r < mRules.size(); r++) {
+            boolean met = true;
+            for (AutomationRule.Condition condition : mRules.get(r).getConditions()) {
+                met &= condition.matches(values[condition.getSensor().ordinal()]);
+            }
+            if (met && !mActive[r]) {
+                fired++;
+            }
+            mActive[r] = met;
+        }
+        return fired;
+    }
+}
@@ -0,0 +1,73 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Appending a sample and scanning ranges of a month of samples taken every
+ * 5 seconds. A day should scan well under 50 ms and the month under 200 ms,
+ * for the history screens.
+ */
+@State(Scope.Thread)
+public class SampleStoreBenchmark {
+
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final long START = 1577836800000L;
+    private static final long END = START + 30 * DAY;
+
+    /**
+     * Days scanned, from the end; the latest hours come from the hot samples.
+     */
+    @Param({"0.25", "1", "30"})
+    public double days;
+
+    private File mDir;
+    private SampleStore mStore;
+    private long mTime;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("samples").toFile();
+        mStore = new SampleStore(mDir, 90 * DAY, 4320);
+        int temperature = 22;
+        for (mTime = START; mTime < END; mTime += 5000) {
+            temperature += (int) (mTime / 5000 % 3) - 1;
+            mStore.append(mTime, temperature, 40);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public int scan(final Blackhole blackhole) throws IOException {
+        return mStore.scan(END - (long) (days * DAY), END, new SampleStore.Visitor() {
+            @Override
+            public void onSample(long timeMillis, int temperature, int humidity) {
+                blackhole.consume(temperature);
+            }
+        });
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        mTime += 5000;
+        mStore.append(mTime, 22, 40);
+    }
+}
@@ -0,0 +1,70 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parsing and tag dispatch of one payload, compared with the String and regex
+ * parsing BluetoothFunctions used to do on the UI thread.
+ */
+@State(Scope.Thread)
+public class TelemetryParserBenchmark {
+
+    private final byte[] mTelemetry = "TH23 45".getBytes();
+    private final byte[] mEvent = "1L".getBytes();
+    private final TelemetryParser mParser = new TelemetryParser();
+
+    @Benchmark
+    public int parseTelemetry() {
+        mParser.parse(mTelemetry, 0, mTelemetry.length);
+        return mParser.getTemperature() + mParser.getHumidity();
+    }
+
+    @Benchmark
+    public int dispatchTag() {
+        switch (mParser.parse(mEvent, 0, mEvent.length)) {
+            case TelemetryParser.AUTO_LIGHTS_ON:
+                return 1;
+            case TelemetryParser.AUTO_LIGHTS_OFF:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    @Benchmark
+    public int parseTelemetryWithStrings() throws UnsupportedEncodingException {
+        return parseWithStrings(mTelemetry);
+    }
+
+    @Benchmark
+    public int dispatchTagWithStrings() throws UnsupportedEncodingException {
+        return parseWithStrings(mEvent);
+    }
+
+    /**
+     * The parsing previously done in BluetoothFunctions.mHandler.
+     */
+    private static int parseWithStrings(byte[] message) throws UnsupportedEncodingException {
+        String readMessage = new String(message, "UTF-8");
+        String tag = readMessage.substring(0, 2);
+        String contentMessage = readMessage.substring(2);
+        switch (tag) {
+            case "TH":
+                String[] values = contentMessage.split("\\s+");
+                if (contentMessage.matches("[^A-Za-z]+") && values.length == 2) {
+                    return Integer.parseInt(values[0]) + Integer.parseInt(values[1]);
+                }
+                return 0;
+            case "1L":
+                return 1;
+            case "0L":
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.mobilesw.homey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Updating the statistics of the last minute, hour and day on a reading
+ * every 5 seconds, compared with computing those of the day again from the
+ * readings kept in memory.
+ */
+@State(Scope.Thread)
+public class TelemetryStatsBenchmark {
+
+    private static final long START = 1577836800000L;
+    private static final long PERIOD = 5000;
+    private static final int DAY = (int) (TelemetryStats.Window.DAY.getMillis() / PERIOD);
+    private static final int SAMPLES = 1024; // precomputed, a slow random walk like the DHT11
+
+    private final TelemetryStats mStats = new TelemetryStats();
+    private final int[] mTemperatures = new int[SAMPLES];
+    private final int[] mHumidities = new int[SAMPLES];
+    private final int[] mDayTemperatures = new int[DAY]; // ring of the readings of the last day
+    private final int[] mDayHumidities = new int[DAY];
+    private long mTime = START;
+    private int mSample = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        int temperature = 22;
+        int humidity = 50;
+        for (int i = 0; i < SAMPLES; i++) {
+            temperature = Math.max(10, Math.min(35, temperature + random.nextInt(3) - 1));
+            humidity = Math.max(20, Math.min(80, humidity + random.nextInt(3) - 1));
+            mTemperatures[i] = temperature;
+            mHumidities[i] = humidity;
+        }
+        for (int i = 0; i < DAY; i++) {
+            mStats.add(mTime, mTemperatures[i % SAMPLES], mHumidities[i % SAMPLES]);
+            mDayTemperatures[i] = mTemperatures[i % SAMPLES];
+            mDayHumidities[i] = mHumidities[i % SAMPLES];
+            mTime += PERIOD;
+        }
+    }
+
+    @Benchmark
+    public TelemetryStats.Snapshot streaming() {
+        int i = mSample++ & (SAMPLES - 1);
+        mStats.add(mTime, mTemperatures[i], mHumidities[i]);
+        mTime += PERIOD;
+        return mStats.getSnapshot();
+    }
+
+    @Benchmark
+    public long rescanningTheDay() {
+        int i = mSample++ & (SAMPLES - 1);
+        int slot = (int) ((mTime - START) / PERIOD % DAY);
+        mDayTemperatures[slot] = mTemperatures[i];
+        mDayHumidities[slot] = mHumidities[i];
+        mTime += PERIOD;
+        int minTemperature = Integer.MAX_VALUE;
+        int maxTemperature = Integer.MIN_VALUE;
+        int minHumidity = Integer.MAX_VALUE;
+        int maxHumidity = Integer.MIN_VALUE;
+        long sum = 0;
+        for (int s = 0; s < DAY; s++) {
+            minTemperature = Math.min(minTemperature, mDayTemperatures[s]);
+            maxTemperature = Math.max(maxTemperature, mDayTemperatures[s]);
+            minHumidity = Math.min(minHumidity, mDayHumidities[s]);
+            maxHumidity = Math.max(maxHumidity, mDayHumidities[s]);
+            sum += mDayTemperatures[s] + mDayHumidities[s];
+        }
+        return minTemperature + maxTemperature + minHumidity + maxHumidity + sum;
+    }
+}
@@ -1,13 +1,18 @@
 #include <LiquidCrystal_I2C.h>
 #include <SoftwareSerial.h>
-#include <dht.h>
 
 // Set the LCD address to 0x27 for a 16 chars and 2 line display
 LiquidCrystal_I2C lcd(0x27, 16, 2);
 
 SoftwareSerial bluetooth(2, 4); // RX, TX
 
-dht DHT;
+// Scheduling: loop() runs every task in turn and no task waits, so a command
+// is read and applied within a few milliseconds whatever else is going on.
+// Timed work (splash screen, DHT11 start signal, returning home) checks
+// millis(), messages to Android are queued and sent a byte per pass, and the
+// LCD is updated a character per pass from the screen wanted.
+// FirmwareLoop.java in the Android app is a port of this loop, task for task,
+// used to test the command latency on the JVM: keep them in sync.
 
 const long RETURN_HOME_INTERVAL = 3000; // millis to return to home screen
 unsigned long lastPrintTime = 0; // last time printed on LCD
@@ -23,6 +28,8 @@ unsigned long lastAutoLights = 0; // last time lights auto-activated
 boolean autoActivateLights = true; // lights will be activated automatically?
 boolean autoActivateFan = true; // fan will be activated automatically?
 
+int temperature = 0;
+int humidity = 0;
 int lastTemperature = -99;
 int lastHumidity = -99;
 
@@ -54,11 +61,62 @@ const String AUTO_LIGHTS_OFF = "0L";
 const String AUTO_LIGHTS_ON = "1L";
 const String AUTO_FAN_OFF = "0F";
 const String AUTO_FAN_ON = "1F";
+const String ACK = "A"; // command applied, followed by its sequence number
+
+// Framing: payload + '*' + two hex digits (XOR of the payload) + '\n'
+const char FRAME_END = '\n';
+const char CHECKSUM_SEPARATOR = '*';
+const char HEX_DIGITS[] = "0123456789ABCDEF";
+const int FRAME_MAX = 16; // longest frame accepted from Android
+char rxFrame[FRAME_MAX]; // frame being received
+int rxLength = 0;
+boolean rxOverflow = false; // frame too long, dropped until its end
+int rxSequence = -1; // sequence number of the last command read, -1 if it had none
+
+// Messages to Android, sent a byte per pass: SoftwareSerial cannot receive
+// while it sends, so commands are read in between
+const int TX_CAPACITY = 128;
+char txQueue[TX_CAPACITY];
+int txHead = 0; // next byte to send
+int txLength = 0;
+
+// LCD: the screen wanted and the one shown, written a character per pass
+const int LCD_COLUMNS = 16;
+const int LCD_ROWS = 2;
+char lcdWanted[LCD_ROWS][LCD_COLUMNS];
+char lcdShown[LCD_ROWS][LCD_COLUMNS];
+int lcdNext = 0; // next position to compare, row * LCD_COLUMNS + column
+int lcdCursor = -1; // position of the LCD cursor, -1 if unknown
+
+// Splash screen: three rounds of three dots, a step every 400 ms
+const long SPLASH_INTERVAL = 400;
+const int SPLASH_STEPS = 12;
+int splashStep = 0;
+unsigned long lastSplashStep = 0;
+
+// DHT11: the 18 ms start signal is timed by the loop, only the answer
+// (about 4 ms) is read at once. It is read with interrupts enabled: with them
+// disabled, SoftwareSerial would lose the command bytes arriving meanwhile.
+// No reading starts while a frame is being received; a byte received during
+// the answer stretches a bit, which the checksum catches, and the DHT11 is
+// read again a second later.
+const long DHT11_START_SIGNAL = 20; // millis, at least 18
+const long DHT11_RETRY_INTERVAL = 1000; // millis, the DHT11 needs a second between readings
+boolean dhtStarting = false;
+unsigned long dhtStartTime = 0;
+boolean dhtFirstReading = true; // sent to Android as soon as it is read
 
 void setup() {
   // initialize the LCD
   lcd.begin();
   lcd.backlight();
+  lcd.clear();
+  for (int row = 0; row < LCD_ROWS; row++) {
+    for (int column = 0; column < LCD_COLUMNS; column++) {
+      lcdWanted[row][column] = ' ';
+      lcdShown[row][column] = ' ';
+    }
+  }
 
   // LEDs
   pinMode(LIGHTS_PIN, OUTPUT);
@@ -70,113 +128,255 @@ void setup() {
   // Bluetooth
   bluetooth.begin(9600); // start the bluetooth UART at 9600 (default)
 
-  splashScreen();
-
-  // inmediately send temperature & humidity values to Android
-  refreshDHT11();
-  btSendTempHumData(DHT.temperature, DHT.humidity);
+  // the splash screen runs in the loop; temperature & humidity values are
+  // sent to Android as soon as the DHT11 is read
+  lcdSetLine(0, "   < HOMEY >");
+  lastSplashStep = millis();
+  lastPrintTime = millis();
 }
 
 void loop() {
+  readBluetooth();
+  lightsTask();
+  dhtTask();
+  homeScreenTask();
+  splashTask();
+  sendTask();
+  lcdTask();
+}
+
+// read every byte received and apply the commands
+void readBluetooth() {
+  while (bluetooth.available()) { // check if anything in UART buffer
+    int command = btReadCommand();
+    if (command >= 0) {
+      homeLCD = false;
+      handleCommand(command);
+      // acknowledge once applied; commands set a state, so applying one again
+      // when the acknowledgement was lost and it is retransmitted is harmless
+      if (rxSequence >= 0) {
+        btSendAck(rxSequence);
+      }
+    }
+  }
+}
+
+void handleCommand(int command) {
+  switch (command) {
+    case LIGHTS_OFF:
+      turnLights(LOW);
+      lightsAutoActivated = false;
+      break;
+    case LIGHTS_ON:
+      turnLights(HIGH);
+      break;
+    case FAN_OFF:
+      turnFan(LOW);
+      fanAutoActivated = false;
+      break;
+    case FAN_ON:
+      turnFan(HIGH);
+      break;
+    case NO_AUTO_LIGHTS:
+      autoActivateLights = false;
+      lightsAutoActivated = false;
+      break;
+    case AUTO_LIGHTS:
+      autoActivateLights = true;
+      break;
+    case NO_AUTO_FAN:
+      autoActivateFan = false;
+      break;
+    case AUTO_FAN:
+      autoActivateFan = true;
+      break;
+    case NO_AUTO_LIGHTS_FAN:
+      autoActivateLights = false;
+      autoActivateFan = false;
+      lightsAutoActivated = false;
+      break;
+    case CONNECTED:
+      // update data on Android; frames need no pause between them
+      btSendTempHumData(temperature, humidity);
+      if (lightsAutoActivated) {
+        btSend(AUTO_LIGHTS_ON);
+      }
+      if (fanAutoActivated) {
+        btSend(AUTO_FAN_ON);
+      }
+      clearPrint("    ANDROID", "   connected");
+      break;
+  }
+}
+
+// turn lights on/off automatically according to the motion sensor
+void lightsTask() {
   if (autoActivateLights && digitalRead(PIR_PIN) && !digitalRead(LIGHTS_PIN)) {
-    bluetooth.print(AUTO_LIGHTS_ON);
+    btSend(AUTO_LIGHTS_ON);
     turnLights(HIGH);
     lightsAutoActivated = true;
     lastAutoLights = millis();
   } else if (autoActivateLights && millis() - lastAutoLights >
                       LIGHTS_AUTO_INTERVAL && lightsAutoActivated) {
     turnLights(LOW);
-    bluetooth.print(AUTO_LIGHTS_OFF);
+    btSend(AUTO_LIGHTS_OFF);
     lightsAutoActivated = false;
   }
-  
-  // DHT11 management
-  if (millis() - lastRefreshDHT11 > REFRESH_INTERVAL_DHT11) {
-    refreshDHT11(); // update DHT11 data
-    // turn on/off fan automatically according to the threshold
-    if (autoActivateFan && DHT.temperature > TEMP_THRESHOLD_MAX
-                                          && !digitalRead(FAN_PIN)) {
-      turnFan(HIGH);
-      bluetooth.print(AUTO_FAN_ON);
-      fanAutoActivated = true;
-    } else if (autoActivateFan && DHT.temperature < TEMP_THRESHOLD_MIN
-                                                  && digitalRead(FAN_PIN)) {
-      turnFan(LOW);
-      bluetooth.print(AUTO_FAN_OFF);
-      fanAutoActivated = false;
-    } else if (millis() - lastPrintTime > RETURN_HOME_INTERVAL &&
-        (lastTemperature != DHT.temperature || lastHumidity != DHT.humidity)) {
-      printHomeScreen(DHT.temperature, DHT.humidity);
-      // send temperature & humidity data to Android
-      btSendTempHumData(DHT.temperature, DHT.humidity);
+}
+
+// DHT11 management
+void dhtTask() {
+  if (!dhtStarting) {
+    if (millis() - lastRefreshDHT11 > REFRESH_INTERVAL_DHT11 && !btReceiving()) {
+      pinMode(DHT11_PIN, OUTPUT); // start signal
+      digitalWrite(DHT11_PIN, LOW);
+      dhtStarting = true;
+      dhtStartTime = millis();
     }
+    return;
   }
+  if (millis() - dhtStartTime < DHT11_START_SIGNAL) {
+    return;
+  }
+  dhtStarting = false;
+  if (btReceiving()) { // a frame started meanwhile
+    pinMode(DHT11_PIN, INPUT);
+    dhtRetryLater();
+    return;
+  }
+  refreshDHT11(); // update DHT11 data
+  // turn on/off fan automatically according to the threshold
+  if (autoActivateFan && temperature > TEMP_THRESHOLD_MAX
+                                        && !digitalRead(FAN_PIN)) {
+    turnFan(HIGH);
+    btSend(AUTO_FAN_ON);
+    fanAutoActivated = true;
+  } else if (autoActivateFan && temperature < TEMP_THRESHOLD_MIN
+                                                && digitalRead(FAN_PIN)) {
+    turnFan(LOW);
+    btSend(AUTO_FAN_OFF);
+    fanAutoActivated = false;
+  } else if (splashStep >= SPLASH_STEPS && millis() - lastPrintTime > RETURN_HOME_INTERVAL &&
+      (lastTemperature != temperature || lastHumidity != humidity)) {
+    printHomeScreen(temperature, humidity);
+    // send temperature & humidity data to Android
+    btSendTempHumData(temperature, humidity);
+  } else if (dhtFirstReading) {
+    btSendTempHumData(temperature, humidity);
+  }
+  dhtFirstReading = false;
+}
 
-  // Home screen
-  if (!homeLCD && millis() - lastPrintTime > RETURN_HOME_INTERVAL) {
-    printHomeScreen(DHT.temperature, DHT.humidity);
-    btSendTempHumData(DHT.temperature, DHT.humidity);
-  }
-
-  // Bluetooth reading
-  if (bluetooth.available()) { // check if anything in UART buffer
-    homeLCD = false;
-    switch (bluetooth.read()) {
-      case LIGHTS_OFF:
-        turnLights(LOW);
-        lightsAutoActivated = false;
-        break;
-      case LIGHTS_ON:
-        turnLights(HIGH);
-        break;
-      case FAN_OFF:
-        turnFan(LOW);
-        fanAutoActivated = false;
-        break;
-      case FAN_ON:
-        turnFan(HIGH);
-        break;
-      case NO_AUTO_LIGHTS:
-        autoActivateLights = false;
-        lightsAutoActivated = false;
-        break;
-      case AUTO_LIGHTS:
-        autoActivateLights = true;
-        break;
-      case NO_AUTO_FAN:
-        autoActivateFan = false;
-        break;
-      case AUTO_FAN:
-        autoActivateFan = true;
-        break;
-      case NO_AUTO_LIGHTS_FAN:
-        autoActivateLights = false;
-        autoActivateFan = false;
-        lightsAutoActivated = false;
-        break;
-      case CONNECTED:
-        // update data on Android
-        btSendTempHumData(DHT.temperature, DHT.humidity);
-        delay(200);
-        if (lightsAutoActivated) {
-          bluetooth.print(AUTO_LIGHTS_ON);
-          delay(200);
-        }
-        if (fanAutoActivated) {
-          bluetooth.print(AUTO_FAN_ON);
-        }
-        homeLCD = false;
-        clearPrint("    ANDROID", "   connected");
-        break;
+// Home screen
+void homeScreenTask() {
+  if (splashStep >= SPLASH_STEPS && !homeLCD && millis() - lastPrintTime > RETURN_HOME_INTERVAL) {
+    printHomeScreen(temperature, humidity);
+    btSendTempHumData(temperature, humidity);
+  }
+}
+
+void splashTask() {
+  if (splashStep >= SPLASH_STEPS || millis() - lastSplashStep < SPLASH_INTERVAL) {
+    return;
+  }
+  lastSplashStep = millis();
+  splashStep++;
+  if (millis() - lastPrintTime < SPLASH_INTERVAL) {
+    return; // a command printed something meanwhile
+  }
+  int dots = splashStep % 4; // 1, 2 or 3 dots, then none
+  lcdSetLine(0, "   < HOMEY >");
+  lcdSetLine(1, dots == 1 ? "      ." : dots == 2 ? "      .." : dots == 3 ? "      ..." : "");
+  lastPrintTime = millis();
+}
+
+// send the next queued byte to Android
+void sendTask() {
+  if (txLength > 0) {
+    bluetooth.write(txQueue[txHead]);
+    txHead = (txHead + 1) % TX_CAPACITY;
+    txLength--;
+  }
+}
+
+// write the next character of the LCD that differs from the screen wanted
+void lcdTask() {
+  for (int i = 0; i < LCD_ROWS * LCD_COLUMNS; i++) {
+    int position = (lcdNext + i) % (LCD_ROWS * LCD_COLUMNS);
+    int row = position / LCD_COLUMNS;
+    int column = position % LCD_COLUMNS;
+    if (lcdWanted[row][column] != lcdShown[row][column]) {
+      if (lcdCursor != position) {
+        lcd.setCursor(column, row);
+      }
+      lcd.write(lcdWanted[row][column]);
+      lcdShown[row][column] = lcdWanted[row][column];
+      lcdCursor = column == LCD_COLUMNS - 1 ? -1 : position + 1;
+      lcdNext = position + 1;
+      return;
     }
   }
 }
 
+// the line is shown padded with spaces
+void lcdSetLine(int row, String text) {
+  for (int column = 0; column < LCD_COLUMNS; column++) {
+    lcdWanted[row][column] = column < (int) text.length() ? text[column] : ' ';
+  }
+}
+
 void refreshDHT11() {
-  lastTemperature = DHT.temperature;
-  lastHumidity = DHT.humidity;
-  DHT.read11(DHT11_PIN);
-  lastRefreshDHT11 = millis();
+  lastTemperature = temperature;
+  lastHumidity = humidity;
+  byte data[5];
+  if (dhtReadAnswer(data) && (byte) (data[0] + data[1] + data[2] + data[3]) == data[4]) {
+    humidity = data[0];
+    temperature = data[2];
+    lastRefreshDHT11 = millis();
+  } else {
+    dhtRetryLater(); // the previous values are kept meanwhile
+  }
+}
+
+void dhtRetryLater() {
+  lastRefreshDHT11 = millis() - REFRESH_INTERVAL_DHT11 + DHT11_RETRY_INTERVAL;
+}
+
+// whether a frame from Android is being received
+boolean btReceiving() {
+  return rxLength > 0 || rxOverflow || bluetooth.available();
+}
+
+// read the 40 bits the DHT11 answers after the start signal; the time the
+// line stays high tells a 0 (26-28 us) from a 1 (70 us)
+boolean dhtReadAnswer(byte data[5]) {
+  for (int i = 0; i < 5; i++) {
+    data[i] = 0;
+  }
+  digitalWrite(DHT11_PIN, HIGH);
+  delayMicroseconds(40);
+  pinMode(DHT11_PIN, INPUT);
+  // interrupts stay enabled, see DHT11_RETRY_INTERVAL
+  boolean ok = dhtWaitLevel(LOW) && dhtWaitLevel(HIGH) && dhtWaitLevel(LOW);
+  for (int i = 0; ok && i < 40; i++) {
+    ok = dhtWaitLevel(HIGH);
+    unsigned long start = micros();
+    ok = ok && dhtWaitLevel(LOW);
+    if (micros() - start > 40) {
+      data[i / 8] |= 0x80 >> (i % 8);
+    }
+  }
+  return ok;
+}
+
+boolean dhtWaitLevel(int level) {
+  unsigned long start = micros();
+  while (digitalRead(DHT11_PIN) != level) {
+    if (micros() - start > 100) {
+      return false;
+    }
+  }
+  return true;
 }
 
 void turnLights(int state) {
@@ -201,54 +401,117 @@ void turnFan(int state) {
   }
 }
 
-void btSendTempHumData(double temperature, double humidity) {
-  bluetooth.print(TEMP_AND_HUMIDITY + (String) ((int) temperature) + " "
-                      + (String) ((int) humidity));
+void btSendTempHumData(int temperature, int humidity) {
+  btSend(TEMP_AND_HUMIDITY + (String) temperature + " " + (String) humidity);
+}
+
+// acknowledge the command with the given sequence number
+void btSendAck(int sequence) {
+  String payload = ACK;
+  payload += HEX_DIGITS[sequence >> 4];
+  payload += HEX_DIGITS[sequence & 0x0F];
+  btSend(payload);
+}
+
+// queue the payload as one frame; dropped if the queue is full
+void btSend(String payload) {
+  if (txLength + (int) payload.length() + 4 > TX_CAPACITY) {
+    return;
+  }
+  byte checksum = 0;
+  for (unsigned int i = 0; i < payload.length(); i++) {
+    checksum ^= payload[i];
+    txPut(payload[i]);
+  }
+  txPut(CHECKSUM_SEPARATOR);
+  txPut(HEX_DIGITS[checksum >> 4]);
+  txPut(HEX_DIGITS[checksum & 0x0F]);
+  txPut(FRAME_END);
+}
+
+void txPut(char c) {
+  txQueue[(txHead + txLength) % TX_CAPACITY] = c;
+  txLength++;
+}
+
+// read one byte; returns the command of a complete, valid frame or -1.
+// A command is one byte, optionally followed by a sequence number of two hex
+// digits (rxSequence), which is then acknowledged.
+int btReadCommand() {
+  char c = bluetooth.read();
+  if (c == '\r') {
+    return -1;
+  }
+  if (c != FRAME_END) {
+    if (rxLength < FRAME_MAX) {
+      rxFrame[rxLength++] = c;
+    } else {
+      rxOverflow = true;
+    }
+    return -1;
+  }
+  int length = rxLength;
+  boolean overflow = rxOverflow;
+  rxLength = 0;
+  rxOverflow = false;
+  // a command frame is one or three bytes of payload and its checksum
+  int payload = length - 3;
+  if (overflow || (payload != 1 && payload != 3)
+      || rxFrame[payload] != CHECKSUM_SEPARATOR) {
+    return -1;
+  }
+  byte expected = 0;
+  for (int i = 0; i < payload; i++) {
+    expected ^= rxFrame[i];
+  }
+  int checksum = (hexValue(rxFrame[payload + 1]) << 4) | hexValue(rxFrame[payload + 2]);
+  if (checksum != expected) {
+    return -1;
+  }
+  rxSequence = -1;
+  if (payload == 3) {
+    int high = hexValue(rxFrame[1]);
+    int low = hexValue(rxFrame[2]);
+    if (high > 0x0F || low > 0x0F) {
+      return -1;
+    }
+    rxSequence = (high << 4) | low;
+  }
+  return rxFrame[0];
+}
+
+int hexValue(char digit) {
+  if (digit >= '0' && digit <= '9') {
+    return digit - '0';
+  } else if (digit >= 'A' && digit <= 'F') {
+    return digit - 'A' + 10;
+  } else if (digit >= 'a' && digit <= 'f') {
+    return digit - 'a' + 10;
+  }
+  return 0xFF; // never matches a checksum
 }
 
 void clearPrint(String text) {
-  lcd.clear();
-  lcd.print(text);
-  lastPrintTime = millis();
+  clearPrint(text, "");
 }
 
 
 void clearPrint(String firstLine, String secondLine) {
-  lcd.clear();
-  lcd.print(firstLine);
-  lcd.setCursor(0, 1);
-  lcd.print(secondLine);
+  lcdSetLine(0, firstLine);
+  lcdSetLine(1, secondLine);
   lastPrintTime = millis();
 }
 
-void printHomeScreen(double temperature, double humidity) {
-  lcd.clear();
-  lcd.print("   Temp: ");
-  lcd.print((int) temperature);
-  lcd.print((char) 223);
-  lcd.print("C");
-  lcd.setCursor(0, 1);
-  lcd.print("   Hum:  ");
-  lcd.print((int) humidity);
-  lcd.print(" %");
+void printHomeScreen(int temperature, int humidity) {
+  String first = "   Temp: ";
+  first += temperature;
+  first += (char) 223;
+  first += "C";
+  String second = "   Hum:  ";
+  second += humidity;
+  second += " %";
+  lcdSetLine(0, first);
+  lcdSetLine(1, second);
   lastPrintTime = millis();
   homeLCD = true;
 }
-
-void splashScreen() {
-  lcd.clear();
-  lcd.print("  ");
-  lcd.print(" < HOMEY >");
-  lcd.setCursor(6, 1);
-  for (int i = 0; i < 3; i++) {
-    for (int j = 0; j < 3; j++) {
-      delay(400);
-      lcd.print(".");
-    }
-    delay(400);
-    lcd.setCursor(6, 1);
-    lcd.print("   ");
-    lcd.setCursor(6, 1);
-  }
-}
-